@@ -0,0 +1,403 @@
+import benchmarks.Workload;
+import org.apache.commons.io.FileUtils;
+import org.springframework.web.client.RestTemplate;
+import org.zeroturnaround.exec.ProcessExecutor;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Factories for the workloads measured by the benchmarks in the benchmarks package
+ */
+public class Workloads {
+
+    /**
+     * Builds instruments output with the given number of real devices and as many simulators
+     */
+    static String deviceListOutput(int devices) {
+        StringBuilder output = new StringBuilder("Known Devices:\n");
+        output.append("Build Mac Mini [5B3D1F4A-2C6E-5F7A-9B8C-0D1E2F3A4B5C]\n");
+        for (int i = 0; i < devices; i++) {
+            output.append(String.format("Farm iPhone %d (11.%d.%d) [%040x]\n", i, i % 5, i % 3, i + 1));
+            output.append(String.format("iPhone X (12.1) + Apple Watch Series 4 - 44mm (5.1) [%08X-6A7B-8C9D-0E1F-2A3B4C5D6E7F] (Simulator)\n", i));
+        }
+        return output.toString();
+    }
+
+    public static Workload deviceParsing(int devices) {
+        String output = deviceListOutput(devices);
+        return () -> DeviceListParser.parse(output);
+    }
+
+    /**
+     * The regex based parsing that DeviceListParser replaced, kept as a baseline
+     */
+    public static Workload regexDeviceParsing(int devices) {
+        Pattern pattern = Pattern.compile("((.{0,})\\((.{0,})\\)\\s{0,}\\s\\[(.{0,})])|(((.{0,})\\((.{0,})\\))(\\s-*\\s*(.*)))|((\\w+ \\w+ -)(\\s-*\\s*(.*)))|((\\w*\\s\\-)(.*))");
+        String output = deviceListOutput(devices);
+        return () -> {
+            List<IosHelper.IosDevice> found = new ArrayList<>();
+            for (String line : output.split("\\r?\\n")) {
+                Matcher matcher = pattern.matcher(line);
+                if (matcher.find()) {
+                    String uuid = matcher.group(4);
+                    if (uuid != null && !line.toLowerCase().contains("simulator") && !uuid.contains("-")) {
+                        IosHelper.IosDevice device = new IosHelper.IosDevice();
+                        device.setName(matcher.group(2));
+                        device.setVersion(matcher.group(3));
+                        device.setUuid(uuid);
+                        found.add(device);
+                    }
+                }
+            }
+            return found;
+        };
+    }
+
+    public static Workload pollImmediate() {
+        return () -> PollingService.poll(() -> true, Constants.ONE_MINUTE, 1);
+    }
+
+    /**
+     * Fails the first attempt so the time includes waking up for the second one
+     */
+    public static Workload pollWakeUp(long waitTime) {
+        return () -> {
+            AtomicInteger attempts = new AtomicInteger();
+            return PollingService.poll(() -> attempts.incrementAndGet() > 1, Constants.ONE_MINUTE, waitTime);
+        };
+    }
+
+    /**
+     * Writes a project.pbxproj that looks like the wda one, repeating the build file and configuration sections
+     */
+    static void writeProjectFile(Path projectFile, int megabytes) throws Exception {
+        long size = megabytes * 1024L * 1024L;
+        try (BufferedWriter writer = Files.newBufferedWriter(projectFile, StandardCharsets.UTF_8)) {
+            writer.write("// !$*UTF8*$!\n{\n\tarchiveVersion = 1;\n\tclasses = {\n\t};\n\tobjectVersion = 48;\n\tobjects = {\n\n");
+            long written = 0;
+            for (int i = 0; written < size; i++) {
+                String section = String.format(
+                        "\t\t%024X /* FBElement%d.m in Sources */ = {isa = PBXBuildFile; fileRef = %024X /* FBElement%d.m */; };\n"
+                                + "\t\t%024X /* Debug */ = {\n\t\t\tisa = XCBuildConfiguration;\n\t\t\tbuildSettings = {\n"
+                                + "\t\t\t\tINFOPLIST_FILE = WebDriverAgentRunner/Info.plist;\n"
+                                + "\t\t\t\tPRODUCT_BUNDLE_IDENTIFIER = %s;\n"
+                                + "\t\t\t\tPRODUCT_NAME = \"$(TARGET_NAME)\";\n\t\t\t};\n\t\t\tname = Debug;\n\t\t};\n",
+                        i, i, i + 1, i, i + 2, i % 8 == 0 ? Constants.ORIG_WDA_RUNNER_BUNDLE_ID : "com.facebook.WebDriverAgentLib");
+                writer.write(section);
+                written += section.length();
+            }
+            writer.write("\t};\n\trootObject = 91F9DAE11B99DBC2001349B2 /* Project object */;\n}\n");
+        }
+    }
+
+    /**
+     * Copies a fresh project file in place and rewrites the bundle id, so every run has ids to replace
+     */
+    public static Workload bundleIdRewrite(int megabytes) throws Exception {
+        return bundleIdWorkload(megabytes, Provisioner::replaceBundleId);
+    }
+
+    /**
+     * The read-everything regex rewrite that Provisioner replaced, kept as a baseline
+     */
+    public static Workload regexBundleIdRewrite(int megabytes) throws Exception {
+        return bundleIdWorkload(megabytes, projectFile -> {
+            try (Stream<String> lines = Files.lines(projectFile)) {
+                List<String> replaced = lines.map(line -> line.replaceAll(
+                        Constants.ORIG_WDA_RUNNER_BUNDLE_ID.replace(".", "\\."),
+                        Constants.WDA_RUNNER_BUNDLE_ID.replace(".", "\\.")))
+                        .collect(Collectors.toList());
+                Files.write(projectFile, replaced);
+            }
+            return true;
+        });
+    }
+
+    private interface Rewrite {
+        boolean rewrite(Path projectFile) throws Exception;
+    }
+
+    private static Workload bundleIdWorkload(int megabytes, Rewrite rewrite) throws Exception {
+        Path dir = Files.createTempDirectory("bundle-id-benchmark");
+        Path original = dir.resolve(Constants.PROJECT_FILE + ".orig");
+        Path projectFile = dir.resolve(Constants.PROJECT_FILE);
+        writeProjectFile(original, megabytes);
+
+        return new Workload() {
+            @Override
+            public Object run() throws Exception {
+                Files.copy(original, projectFile, StandardCopyOption.REPLACE_EXISTING);
+                return rewrite.rewrite(projectFile);
+            }
+
+            @Override
+            public void close() throws Exception {
+                Files.deleteIfExists(projectFile);
+                Files.deleteIfExists(original);
+                Files.deleteIfExists(dir);
+            }
+        };
+    }
+
+    /**
+     * @param shared true to use the shared health check client, false to build a RestTemplate per probe
+     */
+    public static Workload readinessProbe(boolean shared) throws Exception {
+        StubHttpServer server = new StubHttpServer().respond("/status", 200, "{\"value\":{\"ready\":true},\"status\":0}");
+        String url = server.getUrl() + "/status";
+
+        return new Workload() {
+            @Override
+            public Object run() {
+                if (shared) {
+                    return HealthCheckClient.getInstance().probe(url);
+                }
+                return new RestTemplate().getForEntity(url, String.class).getStatusCode().is2xxSuccessful();
+            }
+
+            @Override
+            public void close() {
+                server.close();
+            }
+        };
+    }
+
+    /**
+     * Offers a typical xcodebuild line to a capture channel, each thread gets its own channel like a process stream
+     */
+    public static Workload logCapture() throws Exception {
+        Path dir = Files.createTempDirectory("log-capture-benchmark");
+        LogCaptureService service = new LogCaptureService(dir, LogCaptureService.DEFAULT_CAPACITY,
+                LogCaptureService.DEFAULT_MAX_FILE_BYTES, LogCaptureService.DEFAULT_MAX_FILES, LogCaptureService.DEFAULT_TAIL_LINES);
+        String line = "Test Suite 'All tests' started at 2018-03-14 10:15:30.123 t =     0.00s Device: 656d6ef9da2ccb39d34b00fe7e0c23fe7ec91278";
+        AtomicInteger threads = new AtomicInteger();
+        ThreadLocal<LogCaptureService.Channel> channels = ThreadLocal.withInitial(() ->
+                service.open("device" + threads.incrementAndGet(), "benchmark", "xcodebuild"));
+
+        return new Workload() {
+            @Override
+            public Object run() {
+                return channels.get().offer(line);
+            }
+
+            @Override
+            public void close() throws Exception {
+                service.close();
+                FileUtils.deleteDirectory(dir.toFile());
+            }
+        };
+    }
+
+    /**
+     * Builds a wda screenshot response, base64 with the slashes escaped like wda sends it
+     */
+    static byte[] screenshotResponse(int bytes) {
+        byte[] png = new byte[bytes];
+        new Random(1).nextBytes(png);
+        String base64 = Base64.getEncoder().encodeToString(png).replace("/", "\\/");
+        return ("{\"value\":\"" + base64 + "\",\"sessionId\":\"ABC-1\",\"status\":0}").getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Decodes a screenshot response to a file while reading it, like the failure artifacts do
+     */
+    public static Workload streamingScreenshot(int bytes) throws Exception {
+        byte[] response = screenshotResponse(bytes);
+        Path file = Files.createTempFile("screenshot-benchmark", ".png");
+
+        return new Workload() {
+            @Override
+            public Object run() throws Exception {
+                try (InputStream value = Base64.getMimeDecoder().wrap(FailureArtifacts.valueStream(new ByteArrayInputStream(response)))) {
+                    return Files.copy(value, file, StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+
+            @Override
+            public void close() throws Exception {
+                Files.delete(file);
+            }
+        };
+    }
+
+    /**
+     * Reads the whole response into a String before decoding it, kept as a baseline
+     */
+    public static Workload stringScreenshot(int bytes) throws Exception {
+        byte[] response = screenshotResponse(bytes);
+        Path file = Files.createTempFile("screenshot-benchmark", ".png");
+
+        return new Workload() {
+            @Override
+            public Object run() throws Exception {
+                String json = new String(response, StandardCharsets.UTF_8);
+                int start = json.indexOf("\"value\":\"") + 9;
+                String base64 = json.substring(start, json.indexOf('"', start)).replace("\\/", "/");
+                return Files.write(file, Base64.getDecoder().decode(base64));
+            }
+
+            @Override
+            public void close() throws Exception {
+                Files.delete(file);
+            }
+        };
+    }
+
+    /**
+     * Starts a process for each command like the helpers used to do, kept as a baseline
+     */
+    public static Workload forkExecCommand() {
+        return () -> new ProcessExecutor().command("echo", "ready").readOutput(true).execute().outputUTF8();
+    }
+
+    /**
+     * Runs each command in one of the pooled shells
+     */
+    public static Workload shellCommand() {
+        CommandShell shell = new CommandShell(CommandShell.DEFAULT_SHELLS, CommandShell.DEFAULT_TIMEOUT,
+                Integer.MAX_VALUE, Long.MAX_VALUE);
+
+        return new Workload() {
+            @Override
+            public Object run() throws Exception {
+                return shell.run("echo", "ready").getOutput();
+            }
+
+            @Override
+            public void close() {
+                shell.close();
+            }
+        };
+    }
+
+    /**
+     * A local port forwarded to an echo server through a fake usbmuxd
+     */
+    private static class Forward implements AutoCloseable {
+        private final FakeUsbmuxd usbmuxd = new FakeUsbmuxd();
+        private final int port;
+        private UsbmuxForwarder forwarder;
+        private Process iproxy;
+
+        /**
+         * @param tool forwarder for the in jvm forwarder, iproxy for the process, which has to be on the PATH
+         */
+        Forward(String tool) throws Exception {
+            String udid = "benchmark-device";
+            usbmuxd.attach(udid);
+            int devicePort = usbmuxd.startEchoServer();
+            try (ServerSocket socket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+                port = socket.getLocalPort();
+            }
+            if (tool.equals("iproxy")) {
+                ProcessBuilder builder = new ProcessBuilder("iproxy", String.valueOf(port), String.valueOf(devicePort), udid)
+                        .redirectErrorStream(true)
+                        .redirectOutput(ProcessBuilder.Redirect.DISCARD);
+                //libusbmuxd talks tcp when this is set
+                builder.environment().put("USBMUXD_SOCKET_ADDRESS", "127.0.0.1:" + usbmuxd.getAddress().getPort());
+                iproxy = builder.start();
+                PollingService.poll(() -> {
+                    try (Socket ignored = new Socket(InetAddress.getLoopbackAddress(), port)) {
+                        return true;
+                    } catch (IOException e) {
+                        return false;
+                    }
+                }, 10 * Constants.ONE_SECOND, 50);
+            } else {
+                forwarder = new UsbmuxForwarder(usbmuxd.getAddress());
+                forwarder.add(port, udid, devicePort);
+            }
+        }
+
+        Socket connect() throws IOException {
+            Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+            socket.setTcpNoDelay(true);
+            return socket;
+        }
+
+        @Override
+        public void close() {
+            if (forwarder != null) {
+                forwarder.close();
+            }
+            if (iproxy != null) {
+                ProcessTeardown.destroy(ProcessTeardown.DEFAULT_TIMEOUT, iproxy.toHandle());
+            }
+            usbmuxd.close();
+        }
+    }
+
+    /**
+     * Opens a forwarded connection, sends a byte, waits for it to come back and closes the connection
+     *
+     * @param tool forwarder or iproxy
+     */
+    public static Workload portForwardConnect(String tool) throws Exception {
+        Forward forward = new Forward(tool);
+
+        return new Workload() {
+            @Override
+            public Object run() throws Exception {
+                try (Socket socket = forward.connect()) {
+                    socket.getOutputStream().write(1);
+                    return socket.getInputStream().read();
+                }
+            }
+
+            @Override
+            public void close() {
+                forward.close();
+            }
+        };
+    }
+
+    /**
+     * Sends a block of bytes over an open forwarded connection and reads it back
+     *
+     * @param tool  forwarder or iproxy
+     * @param bytes the size of the block
+     */
+    public static Workload portForwardTransfer(String tool, int bytes) throws Exception {
+        Forward forward = new Forward(tool);
+        Socket socket = forward.connect();
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+        byte[] block = new byte[bytes];
+        new Random(1).nextBytes(block);
+        byte[] received = new byte[bytes];
+
+        return new Workload() {
+            @Override
+            public Object run() throws Exception {
+                socket.getOutputStream().write(block);
+                in.readFully(received);
+                return received;
+            }
+
+            @Override
+            public void close() throws Exception {
+                socket.close();
+                forward.close();
+            }
+        };
+    }
+}
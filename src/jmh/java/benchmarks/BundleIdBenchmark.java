@@ -0,0 +1,55 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rewriting the bundle id in a generated project.pbxproj of a few MB, streamed and with the old regex rewrite
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BundleIdBenchmark {
+    @Param({"1", "4"})
+    public int megabytes;
+
+    private Workload rewrite;
+    private Workload regexRewrite;
+
+    @Setup
+    public void setUp() throws Exception {
+        rewrite = Workload.create("bundleIdRewrite", megabytes);
+        regexRewrite = Workload.create("regexBundleIdRewrite", megabytes);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        rewrite.close();
+        regexRewrite.close();
+    }
+
+    @Benchmark
+    public Object rewrite() throws Exception {
+        return rewrite.run();
+    }
+
+    @Benchmark
+    public Object regexRewrite() throws Exception {
+        return regexRewrite.run();
+    }
+}
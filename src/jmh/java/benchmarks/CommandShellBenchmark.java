@@ -0,0 +1,51 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of a short command, starting a process for it and running it in a pooled shell.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandShellBenchmark {
+    private Workload forkExec;
+    private Workload shell;
+
+    @Setup
+    public void setUp() throws Exception {
+        forkExec = Workload.create("forkExecCommand");
+        shell = Workload.create("shellCommand");
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        forkExec.close();
+        shell.close();
+    }
+
+    @Benchmark
+    public Object forkExec() throws Exception {
+        return forkExec.run();
+    }
+
+    @Benchmark
+    public Object shell() throws Exception {
+        return shell.run();
+    }
+}
@@ -0,0 +1,48 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing the output of instruments -s device, compared to the regex the parser replaced
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DeviceParsingBenchmark {
+    @Param({"10", "100", "1000"})
+    public int devices;
+
+    private Workload singlePass;
+    private Workload regex;
+
+    @Setup
+    public void setUp() throws Exception {
+        singlePass = Workload.create("deviceParsing", devices);
+        regex = Workload.create("regexDeviceParsing", devices);
+    }
+
+    @Benchmark
+    public Object singlePass() throws Exception {
+        return singlePass.run();
+    }
+
+    @Benchmark
+    public Object regex() throws Exception {
+        return regex.run();
+    }
+}
@@ -0,0 +1,65 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lines per second a process stream can hand to the log capture, with the writer compressing them to disk at the
+ * same time.  The captured and dropped counters show how many of those lines the writer kept up with.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(4)
+@Fork(1)
+public class LogCaptureBenchmark {
+    private Workload capture;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Lines {
+        public long captured;
+        public long dropped;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            captured = 0;
+            dropped = 0;
+        }
+    }
+
+    @Setup
+    public void setUp() throws Exception {
+        capture = Workload.create("logCapture");
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        capture.close();
+    }
+
+    @Benchmark
+    public void offer(Lines lines) throws Exception {
+        if ((Boolean) capture.run()) {
+            lines.captured++;
+        } else {
+            lines.dropped++;
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The overhead of PollingService.poll when the action succeeds straight away, and the time it takes to wake up
+ * for the next attempt after a failed one.
+ */
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PollingBenchmark {
+    private Workload immediate;
+    private Workload wakeUp;
+
+    @Setup
+    public void setUp() throws Exception {
+        immediate = Workload.create("pollImmediate");
+        wakeUp = Workload.create("pollWakeUp", 1L);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    public Object overhead() throws Exception {
+        return immediate.run();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    public Object wakeUp() throws Exception {
+        return wakeUp.run();
+    }
+}
@@ -0,0 +1,57 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Connection latency and round trips of 64k blocks through a forwarded port, with the in jvm forwarder and with an
+ * iproxy process, both talking to a fake usbmuxd over tcp.  The iproxy runs need libusbmuxd 2 or later on the PATH,
+ * pass <code>-p tool=forwarder</code> where it isn't installed.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PortForwardBenchmark {
+    @Param({"forwarder", "iproxy"})
+    public String tool;
+
+    private Workload connect;
+    private Workload transfer;
+
+    @Setup
+    public void setUp() throws Exception {
+        connect = Workload.create("portForwardConnect", tool);
+        transfer = Workload.create("portForwardTransfer", tool, 64 * 1024);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        connect.close();
+        transfer.close();
+    }
+
+    @Benchmark
+    public Object connect() throws Exception {
+        return connect.run();
+    }
+
+    @Benchmark
+    public Object transfer64k() throws Exception {
+        return transfer.run();
+    }
+}
@@ -0,0 +1,52 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Round trip of a readiness probe against a local stub server, with the shared client and with a new
+ * RestTemplate per probe like the services used to do.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReadinessProbeBenchmark {
+    private Workload sharedClient;
+    private Workload newRestTemplate;
+
+    @Setup
+    public void setUp() throws Exception {
+        sharedClient = Workload.create("readinessProbe", true);
+        newRestTemplate = Workload.create("readinessProbe", false);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        sharedClient.close();
+        newRestTemplate.close();
+    }
+
+    @Benchmark
+    public Object sharedClient() throws Exception {
+        return sharedClient.run();
+    }
+
+    @Benchmark
+    public Object newRestTemplate() throws Exception {
+        return newRestTemplate.run();
+    }
+}
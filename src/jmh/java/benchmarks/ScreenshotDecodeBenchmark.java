@@ -0,0 +1,57 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to save a screenshot from a wda response, decoding it while it is read and reading it into a String first.
+ * Run with -prof gc to see the bytes allocated per screenshot.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScreenshotDecodeBenchmark {
+    //Size of the png, a retina screenshot is a few megabytes
+    @Param({"4194304"})
+    public int bytes;
+
+    private Workload streaming;
+    private Workload string;
+
+    @Setup
+    public void setUp() throws Exception {
+        streaming = Workload.create("streamingScreenshot", bytes);
+        string = Workload.create("stringScreenshot", bytes);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        streaming.close();
+        string.close();
+    }
+
+    @Benchmark
+    public Object streaming() throws Exception {
+        return streaming.run();
+    }
+
+    @Benchmark
+    public Object string() throws Exception {
+        return string.run();
+    }
+}
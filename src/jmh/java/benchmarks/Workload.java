@@ -0,0 +1,35 @@
+package benchmarks;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+
+/**
+ * A piece of code to measure.
+ * <p>
+ * JMH does not allow benchmarks in the default package, which is where all of the project classes are, so the
+ * benchmarks only see workloads created by the static factories of the <code>Workloads</code> class.
+ */
+public interface Workload extends AutoCloseable {
+    Object run() throws Exception;
+
+    @Override
+    default void close() throws Exception {
+    }
+
+    /**
+     * Creates a workload with one of the static factories of <code>Workloads</code>
+     *
+     * @param name the name of the factory method
+     * @param args the arguments for the factory method
+     */
+    static Workload create(String name, Object... args) throws Exception {
+        for (Method method : Class.forName("Workloads").getMethods()) {
+            if (method.getName().equals(name) && Modifier.isStatic(method.getModifiers())
+                    && method.getParameterCount() == args.length) {
+                return (Workload) method.invoke(null, args);
+            }
+        }
+        throw new IllegalArgumentException("No workload " + name + " taking " + Arrays.toString(args));
+    }
+}
@@ -0,0 +1,347 @@
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.IntFunction;
+
+/**
+ * Runs several appium servers so session creation and proxying are not serialised through one node process.
+ * <p>
+ * Each new session goes to the running node with the fewest open sessions.  One extra node is kept started as a
+ * spare, when a node exits the spare takes its place right away and a new spare is started in the background.  A node
+ * that is running but stopped answering is killed by the {@link LivenessWatchdog} so the spare takes its place too.
+ * Detached nodes are left running when the pool is closed, the next pool gets the same ports and reattaches to them.
+ */
+@Slf4j
+public class AppiumPool implements AutoCloseable {
+    private final int size;
+    private final IntFunction<AppiumService> factory;
+    private final LivenessWatchdog watchdog;
+    private final PortAllocator.Lease ports;
+    private final Deque<Integer> freePorts = new ArrayDeque<>();
+    private final List<Node> nodes = new ArrayList<>();
+    private final ExecutorService starter = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "appium-pool-start");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private CompletableFuture<Node> spare;
+    private boolean closed;
+
+    /**
+     * Creates a pool whose ports are leased from the {@link PortAllocator}, in detached mode the ports of the nodes an
+     * earlier run kept come first
+     *
+     * @param size the number of nodes taking sessions
+     */
+    public AppiumPool(int size) {
+        this(size, Constants.DETACHED
+                        ? PortAllocator.getInstance().reuse("appium-pool", size + 1)
+                        : PortAllocator.getInstance().allocate("appium-pool", size + 1),
+                AppiumService::new, LivenessWatchdog.getInstance());
+    }
+
+    public AppiumPool(int size, int basePort) {
+        this(size, basePort, AppiumService::new, LivenessWatchdog.getInstance());
+    }
+
+    /**
+     * Creates a pool whose nodes are only replaced when they exit
+     */
+    public AppiumPool(int size, int basePort, IntFunction<AppiumService> factory) {
+        this(size, basePort, factory, null);
+    }
+
+    /**
+     * @param size     the number of nodes taking sessions
+     * @param basePort the port of the first node, the others and the spare use the ports after it
+     * @param factory  creates the service for a port
+     * @param watchdog watches the nodes taking sessions, null to only replace the ones that exit
+     */
+    public AppiumPool(int size, int basePort, IntFunction<AppiumService> factory, LivenessWatchdog watchdog) {
+        this.size = size;
+        this.factory = factory;
+        this.watchdog = watchdog;
+        this.ports = null;
+        for (int i = 0; i <= size; i++) {
+            freePorts.add(basePort + i);
+        }
+    }
+
+    /**
+     * @param size     the number of nodes taking sessions
+     * @param ports    the ports of the nodes and the spare, released when the pool is closed
+     * @param factory  creates the service for a port
+     * @param watchdog watches the nodes taking sessions, null to only replace the ones that exit
+     */
+    public AppiumPool(int size, PortAllocator.Lease ports, IntFunction<AppiumService> factory, LivenessWatchdog watchdog) {
+        this.size = size;
+        this.factory = factory;
+        this.watchdog = watchdog;
+        this.ports = ports;
+        freePorts.addAll(ports.getPorts());
+    }
+
+    /**
+     * Starts the nodes and the spare, waiting for the nodes to be ready
+     */
+    public void start() throws Exception {
+        List<CompletableFuture<Node>> starting = new ArrayList<>();
+        synchronized (this) {
+            for (int i = 0; i < size; i++) {
+                starting.add(startNode());
+            }
+            spare = startNode();
+        }
+
+        try {
+            for (CompletableFuture<Node> node : starting) {
+                Node started = node.get();
+                synchronized (this) {
+                    nodes.add(started);
+                }
+                watch(started);
+            }
+        } catch (ExecutionException e) {
+            close();
+            starting.forEach(node -> node.thenAccept(started -> stopQuietly(started.service)));
+            throw new Exception("Failed to start Appium pool", e.getCause());
+        }
+        log.info("Appium pool started with {} nodes", size);
+    }
+
+    private synchronized CompletableFuture<Node> startNode() {
+        int port = freePorts.remove();
+        return CompletableFuture.supplyAsync(() -> {
+            AppiumService service = factory.apply(port);
+            try {
+                service.startAppium();
+            } catch (Exception e) {
+                stopQuietly(service);
+                synchronized (this) {
+                    freePorts.add(port);
+                }
+                throw new CompletionException(e);
+            }
+            Node node = new Node(port, service);
+            service.onExit().thenRun(() -> replace(node));
+            return node;
+        }, starter);
+    }
+
+    //A wedged node is killed, which makes the spare take its place
+    private void watch(Node node) {
+        if (watchdog != null) {
+            watchdog.watch(node.service, () -> {
+                stopQuietly(node.service);
+                return true;
+            });
+        }
+    }
+
+    /**
+     * Puts the spare in place of a node that exited and starts a new spare
+     */
+    private void replace(Node exited) {
+        if (watchdog != null) {
+            watchdog.unwatch(exited.service);
+        }
+        CompletableFuture<Node> promoted;
+        synchronized (this) {
+            if (closed || !nodes.remove(exited)) {
+                return;
+            }
+            log.warn("Appium node on port {} exited with {} open sessions, replacing it", exited.port, exited.sessions);
+            freePorts.add(exited.port);
+            promoted = spare;
+            spare = startNode();
+        }
+
+        //If the spare failed too, start a node for the slot and wait for it
+        promoted.handle((node, e) -> e == null ? CompletableFuture.completedFuture(node) : startNode())
+                .thenCompose(node -> node)
+                .whenComplete((node, e) -> {
+                    boolean added;
+                    synchronized (this) {
+                        added = e == null && !closed;
+                        if (added) {
+                            nodes.add(node);
+                            log.info("Appium node on port {} took the place of port {}", node.port, exited.port);
+                        }
+                    }
+                    if (added) {
+                        watch(node);
+                        return;
+                    }
+                    if (e != null) {
+                        log.error("Could not replace appium node on port {}", exited.port, e);
+                    } else {
+                        stopQuietly(node.service);
+                    }
+                });
+    }
+
+    /**
+     * Picks the running node with the fewest sessions for a new session
+     *
+     * @return the session, close it when the driver quits
+     */
+    public Session openSession() {
+        for (int attempt = 0; ; attempt++) {
+            List<Node> exited = new ArrayList<>();
+            synchronized (this) {
+                Node node = null;
+                for (Node candidate : nodes) {
+                    if (!candidate.service.isRunning()) {
+                        exited.add(candidate);
+                    } else if (node == null || candidate.sessions < node.sessions) {
+                        node = candidate;
+                    }
+                }
+                if (node != null) {
+                    node.sessions++;
+                    return new Session(node);
+                }
+                if (exited.isEmpty() || attempt > 0) {
+                    throw new IllegalStateException("No appium node is running");
+                }
+            }
+            //The exit callback has not run yet, put the spare in place and try again
+            exited.forEach(this::replace);
+        }
+    }
+
+    private synchronized void closeSession(Node node) {
+        node.sessions--;
+    }
+
+    /**
+     * Gets the number of open sessions on each node by port
+     */
+    public synchronized Map<Integer, Integer> getSessionCounts() {
+        Map<Integer, Integer> counts = new LinkedHashMap<>();
+        nodes.stream()
+                .sorted(Comparator.comparingInt(node -> node.port))
+                .forEach(node -> counts.put(node.port, node.sessions));
+        return counts;
+    }
+
+    /**
+     * Checks if the spare has started and can take over from a node right away
+     */
+    public synchronized boolean isSpareReady() {
+        return spare != null && spare.isDone() && !spare.isCompletedExceptionally();
+    }
+
+    /**
+     * Gets the processes of every node and the spare that are up
+     */
+    public synchronized List<ProcessHandle> getProcesses() {
+        List<ProcessHandle> processes = new ArrayList<>();
+        nodes.forEach(node -> processes.addAll(node.service.getProcesses()));
+        if (spare != null && spare.isDone() && !spare.isCompletedExceptionally()) {
+            processes.addAll(spare.join().service.getProcesses());
+        }
+        return processes;
+    }
+
+    /**
+     * Stops every node and the spare, detached ones are left running for the next run
+     */
+    @Override
+    public void close() {
+        List<Node> all;
+        CompletableFuture<Node> lastSpare;
+        synchronized (this) {
+            closed = true;
+            all = new ArrayList<>(nodes);
+            nodes.clear();
+            lastSpare = spare;
+        }
+        if (lastSpare != null && lastSpare.isDone() && !lastSpare.isCompletedExceptionally()) {
+            all.add(lastSpare.join());
+        }
+        if (watchdog != null) {
+            all.forEach(node -> watchdog.unwatch(node.service));
+        }
+        all.removeIf(node -> {
+            if (node.service.isDetached() && node.service.isRunning()) {
+                node.service.detach();
+                return true;
+            }
+            return false;
+        });
+        //Every node goes down at once, stopping them one by one afterwards only checks they are gone
+        ProcessTeardown teardown = new ProcessTeardown();
+        all.forEach(node -> teardown.addAll(node.service.getProcesses()));
+        teardown.run(ProcessTeardown.DEFAULT_TIMEOUT);
+        all.forEach(node -> stopQuietly(node.service));
+        //A spare that is still starting is stopped once it is up
+        if (lastSpare != null && !lastSpare.isDone()) {
+            lastSpare.thenAccept(node -> stopQuietly(node.service));
+        }
+        if (ports != null) {
+            ports.close();
+        }
+        starter.shutdown();
+    }
+
+    private static void stopQuietly(AppiumService service) {
+        try {
+            service.stopAppium();
+        } catch (RuntimeException e) {
+            log.error("Error stopping appium on port {}", service.getPort(), e);
+        }
+    }
+
+    private static class Node {
+        private final int port;
+        private final AppiumService service;
+        private int sessions;
+
+        Node(int port, AppiumService service) {
+            this.port = port;
+            this.service = service;
+        }
+    }
+
+    /**
+     * A session routed to one of the nodes
+     */
+    public class Session implements AutoCloseable {
+        @Getter
+        private final int port;
+        @Getter
+        private final String url;
+        private final Node node;
+        private boolean closed;
+
+        Session(Node node) {
+            this.node = node;
+            this.port = node.port;
+            this.url = node.service.getHubUrl();
+        }
+
+        @Override
+        public void close() {
+            synchronized (AppiumPool.this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+            }
+            closeSession(node);
+        }
+    }
+}
@@ -1,15 +1,12 @@
 import lombok.Data;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.http.ResponseEntity;
-import org.springframework.web.client.RestClientException;
-import org.springframework.web.client.RestTemplate;
 
 import java.io.File;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 
 
 /**
@@ -22,19 +19,40 @@ public class AppiumService {
     private Integer port;
     private String logDirectory = "appium";
     private ProcessHandle processHandle;
+    private PortAllocator.Lease driverPorts;
+    private ReadinessMode readinessMode = ReadinessMode.LOG_STREAM;
+    //Left running for the next run instead of stopped, see DetachedServers
+    private boolean detached = Constants.DETACHED;
 
     public AppiumService(Integer port) {
         this.port = port;
     }
 
+    /**
+     * Starts appium, a detached service reattaches to the one an earlier run kept on the port if it can
+     *
+     * @return the process, null if it reattached
+     */
     public Process startAppium() throws Exception {
-        Process process;
+        Process process = null;
+        PhaseTimers.Device timers = PhaseTimers.getInstance().forDevice("appium-" + port);
+        long started = System.nanoTime();
         try {
+            String path = "/usr/local/bin:/usr/bin:/bin:/usr/sbin:/sbin";
+            path = Constants.TOOLCHAIN_PATH != null ? Constants.TOOLCHAIN_PATH + ":" + path : path;
+            String command = "appium --log-timestamp --log-level debug --log-no-colors -p " + port;
+            //The driver ports aren't part of it, a kept appium keeps its own
+            String fingerprint = Fingerprint.create().add(command).add(path).hex();
+            if (detached && reattach(fingerprint)) {
+                return null;
+            }
             log.info("Device : Starting Appium server with port {}", port);
 
-            String bootstrapPort = String.valueOf(port + 1000); // set the bootstrap port to be in the 46xxx range
-            String selendroidPort = String.valueOf(port + 2000); // set the bootstrap port to be in the 47xxx range
-            String chromePort = String.valueOf(port + 3000); // set the bootstrap port to be in the 48xxx range
+            //The bootstrap, selendroid and chromedriver ports are leased too, they are free again once appium exits
+            driverPorts = PortAllocator.getInstance().allocate("appium-" + port, 3);
+            String bootstrapPort = String.valueOf(driverPorts.getPort(0));
+            String selendroidPort = String.valueOf(driverPorts.getPort(1));
+            String chromePort = String.valueOf(driverPorts.getPort(2));
 
             // create the log dir if needed
             File logsDir = new File(logDirectory);
@@ -53,54 +71,165 @@ public class AppiumService {
 
             Map<String, String> envs = processBuilder.environment();
             log.debug("Path {}",  envs.get("PATH"));
-            envs.put("PATH", "/usr/local/bin:/usr/bin:/bin:/usr/sbin:/sbin");
+            envs.put("PATH", path);
             log.debug("PATH {}",  envs.get("PATH"));
 
-            processBuilder.command("sh", "-c", "appium --log-timestamp --log-level debug --log " + new File(logsDir, "appium.txt").getAbsolutePath() + " -p " + port
+            //The log goes to stdout and is captured per node and start instead of growing one shared file
+            processBuilder.command("sh", "-c", command
                     + " -bp " + bootstrapPort +
                     " --selendroid-port " + selendroidPort +
                     " --chromedriver-port " + chromePort +
                     " --tmp " + new File(logsDir, "tmp-instruments.txt").getAbsolutePath());
 
             processBuilder.redirectError(new File(logsDir, "appiumError.txt"));
-            processBuilder.redirectOutput(new File(logsDir, "appiumOutput.txt"));
+            processBuilder.redirectOutput(ProcessBuilder.Redirect.PIPE);
             log.debug("process: " + processBuilder.directory());
+            if (detached) {
+                return startDetached(processBuilder, fingerprint, timers, started);
+            }
             process = processBuilder.start();
             processHandle = process.toHandle();
+            process.onExit().thenRun(driverPorts::close);
+            ProcessRegistry.getInstance().register(processHandle, "appium-" + port, "appium");
+            long spawned = timers.record(PhaseTimers.Phase.APPIUM_SPAWN, started);
+
+            //Keep capturing the output while watching it for the ready marker
+            LogCaptureService.Channel output = LogCaptureService.getInstance().open("appium-" + port, LogCaptureService.newSession(), "appium");
+            ReadinessWatcher watcher = new ReadinessWatcher(Constants.APPIUM_READY_MARKER);
+            //The pump closes the stream, and so the channel, once it read the end of the output
+            watcher.watch(process.getInputStream(), output.asStream(), "appium-output-" + port);
 
             log.debug("Appium server started");
             log.debug("Appium server on port {}", port);
 
-            if (PollingService.poll(this::pollAppiumServer, 2 * Constants.ONE_MINUTE, Constants.ONE_SECOND)) {
+            if (awaitReady(watcher)) {
+                timers.record(PhaseTimers.Phase.APPIUM_READY, spawned);
+                timers.record(PhaseTimers.Phase.APPIUM_START, started);
                 log.debug("Appium Server is running and ready to accept requests");
             }
 
         } catch (Exception ex) {
+            if (process == null && driverPorts != null) {
+                driverPorts.close();
+            }
             throw new Exception("Failed to start Appium server", ex);
         }
         return process;
     }
 
+    /**
+     * Starts appium so it outlives the jvm, its output goes to a file and readiness is polled
+     */
+    private Process startDetached(ProcessBuilder processBuilder, String fingerprint, PhaseTimers.Device timers, long started) throws Exception {
+        Process process = DetachedServers.getInstance().launch(processBuilder, key(), "appium");
+        processHandle = process.toHandle();
+        //The ports stay leased while appium runs, even after this jvm is gone
+        driverPorts.handOver(processHandle);
+        PortAllocator.getInstance().handOver(port, processHandle);
+        long spawned = timers.record(PhaseTimers.Phase.APPIUM_SPAWN, started);
+        if (PollingService.poll(this::pollAppiumServer, 2 * Constants.ONE_MINUTE, Constants.ONE_SECOND)) {
+            timers.record(PhaseTimers.Phase.APPIUM_READY, spawned);
+            timers.record(PhaseTimers.Phase.APPIUM_START, started);
+            DetachedServers.getInstance().record(key(), "appium", getProcesses(), getStatusUrl(), fingerprint);
+            log.debug("Appium Server is running and ready to accept requests");
+        }
+        return process;
+    }
+
+    /**
+     * Takes over the appium an earlier run kept on the port, if it was started the same way and answers
+     *
+     * @return true if appium is up
+     */
+    private boolean reattach(String fingerprint) {
+        Optional<DetachedServers.State> state = DetachedServers.getInstance().reattach(key(), fingerprint);
+        if (!state.isPresent()) {
+            return false;
+        }
+        List<ProcessHandle> processes = state.get().getHandles();
+        if (processes.size() != 1) {
+            log.info("The kept appium server on port {} has {} processes, starting it again", port, processes.size());
+            ProcessTeardown.destroy(ProcessTeardown.DEFAULT_TIMEOUT, processes);
+            DetachedServers.getInstance().release(key());
+            return false;
+        }
+        processHandle = processes.get(0);
+        PortAllocator.getInstance().handOver(port, processHandle);
+        log.info("Reattached to the appium server on port {}", port);
+        return true;
+    }
+
+    /**
+     * Leaves a detached appium running for the next run
+     */
+    public void detach() {
+        DetachedServers.getInstance().detach(key());
+    }
+
+    private String key() {
+        return "appium-" + port;
+    }
+
+    private boolean awaitReady(ReadinessWatcher watcher) throws Exception {
+        if (readinessMode == ReadinessMode.LOG_STREAM) {
+            return ReadinessWatcher.awaitReady(watcher.getReady(), this::pollAppiumServer, 2 * Constants.ONE_MINUTE).get();
+        }
+        return PollingService.poll(this::pollAppiumServer, 2 * Constants.ONE_MINUTE, Constants.ONE_SECOND);
+    }
+
+    //Gets the url the drivers connect to
+    public String getHubUrl() {
+        return String.format("http://127.0.0.1:%s/wd/hub", port);
+    }
+
+    //Gets the url used to check the server status
+    public String getStatusUrl() {
+        return String.format("http://localhost:%s/wd/hub/status", port);
+    }
+
     /**
      * Checks is the appium server is running or not
      *
      * @return result it appium has started
      */
     private boolean pollAppiumServer() {
-        try {
-            RestTemplate restTemplate = new RestTemplate();
-            ResponseEntity<String> response = restTemplate.getForEntity(String.format("http://localhost:%s/wd/hub/status", port), String.class);
-            return response
-                    .getStatusCode()
-                    .is2xxSuccessful();
-        } catch (RestClientException e) {
-            log.debug("Appium server not ready yet, port: {}", port);
-            return false;
+        if (processHandle != null && !processHandle.isAlive()) {
+            throw new RuntimeException("appium exited before it was ready, port: " + port);
+        }
+        if (HealthCheckClient.getInstance().probe(getStatusUrl())) {
+            return true;
+        }
+        log.debug("Appium server not ready yet, port: {}", port);
+        return false;
+    }
+
+    /**
+     * Checks if the appium process is still alive
+     */
+    public boolean isRunning() {
+        return processHandle != null && processHandle.isAlive();
+    }
+
+    /**
+     * Completes when the appium process exits, never completes if it was not started
+     */
+    public CompletableFuture<Void> onExit() {
+        if (processHandle == null) {
+            return new CompletableFuture<>();
         }
+        return processHandle.onExit().thenApply(handle -> null);
+    }
+
+    /**
+     * Gets the appium process, empty if it was not started
+     */
+    public List<ProcessHandle> getProcesses() {
+        return processHandle == null ? Collections.emptyList() : Collections.singletonList(processHandle);
     }
 
     /**
      * Shutdown the Appium server. This needs to be done before exiting the application so we are not left with node.exe running.
+     * The node processes started by the shell are stopped with it.
      */
     public void stopAppium() {
         log.info("Stopping Appium server...");
@@ -110,34 +239,13 @@ public class AppiumService {
         }
         log.debug("Appium server stopping with PID " + processHandle.pid());
 
-        if (!processHandle.isAlive()) {
-            //if it's shutdown that is okay
-            return;
-        }
-        Future<ProcessHandle> onExitFuture = processHandle.onExit();
-        //Try to destroy it gracefully
-        try {
-            processHandle.destroy();
-            onExitFuture.get(30, TimeUnit.SECONDS);
-        } catch (ExecutionException | InterruptedException | TimeoutException e) {
-            log.info("Failed to stop appium gracefully: {}", e.getMessage());
-        }
-
-        if (processHandle.isAlive()) {
-            //Try to destroy it forcefully
-            try {
-                processHandle.destroyForcibly();
-                onExitFuture.get(30, TimeUnit.SECONDS);
-            } catch (ExecutionException | InterruptedException | TimeoutException e) {
-                log.info("Failed to stop appium forcefully: {}", e.getMessage());
-            }
-        }
-
-        if (!processHandle.isAlive()) {
-            log.info("Appium server stopped");
-        } else {
+        if (!ProcessTeardown.destroy(ProcessTeardown.DEFAULT_TIMEOUT, processHandle).isEmpty()) {
             throw new RuntimeException("Failed to stop Appium server");
         }
+        if (detached) {
+            DetachedServers.getInstance().release(key());
+        }
+        log.info("Appium server stopped");
     }
 
 }
@@ -0,0 +1,252 @@
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+/**
+ * Runs the steps of bringing up a device as a dependency graph.
+ * <p>
+ * A step starts as soon as the steps it depends on are done, so independent steps run at the same time.  When a step
+ * fails every step that hasn't finished is cancelled, running ones are interrupted.  Blocking steps run on a small
+ * shared executor, async steps only hold a thread while they start so waiting on many devices doesn't need a thread
+ * each.
+ */
+@Slf4j
+public class BringUp {
+    private static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(
+            Math.max(4, 2 * Runtime.getRuntime().availableProcessors()), r -> {
+                Thread thread = new Thread(r, "bring-up");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    private final String name;
+    private final Executor executor;
+    private final List<Step<?>> steps = new ArrayList<>();
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    public BringUp(String name) {
+        this(name, EXECUTOR);
+    }
+
+    /**
+     * @param name     what is brought up, used in the log
+     * @param executor runs the blocking steps
+     */
+    public BringUp(String name, Executor executor) {
+        this.name = name;
+        this.executor = executor;
+    }
+
+    /**
+     * Adds a blocking step, the values of the dependencies can be read with {@link Step#get()} inside it
+     *
+     * @param stepName  the name of the step
+     * @param action    the work of the step
+     * @param dependsOn the steps that have to finish first
+     */
+    public <T> Step<T> step(String stepName, Callable<T> action, Step<?>... dependsOn) {
+        Step<T> step = new Step<>(stepName);
+        start(step, dependsOn, () -> executor.execute(step::run), action, null);
+        return step;
+    }
+
+    /**
+     * Adds a step that returns a future instead of blocking, it runs on the thread that finished its last dependency
+     */
+    public <T> Step<T> stepAsync(String stepName, Supplier<? extends CompletionStage<T>> action, Step<?>... dependsOn) {
+        Step<T> step = new Step<>(stepName);
+        start(step, dependsOn, step::runAsync, null, action);
+        return step;
+    }
+
+    private synchronized <T> void start(Step<T> step, Step<?>[] dependsOn, Runnable launch,
+                                        Callable<T> action, Supplier<? extends CompletionStage<T>> asyncAction) {
+        step.action = action;
+        step.asyncAction = asyncAction;
+        steps.add(step);
+        step.result.whenComplete((value, e) -> {
+            if (e != null && !(e instanceof CancellationException)) {
+                fail(step, e);
+            }
+        });
+
+        CompletableFuture<?>[] dependencies = new CompletableFuture<?>[dependsOn.length];
+        for (int i = 0; i < dependsOn.length; i++) {
+            dependencies[i] = dependsOn[i].result;
+        }
+        CompletableFuture.allOf(dependencies).whenComplete((ignored, e) -> {
+            if (e != null || failure.get() != null) {
+                step.cancel();
+            } else {
+                try {
+                    launch.run();
+                } catch (RuntimeException rejected) {
+                    step.result.completeExceptionally(rejected);
+                }
+            }
+        });
+    }
+
+    private void fail(Step<?> step, Throwable e) {
+        if (failure.compareAndSet(null, unwrap(e))) {
+            log.info("{}: {} failed, cancelling the other steps: {}", name, step.name, unwrap(e).toString());
+            cancelAll();
+        }
+    }
+
+    private void cancelAll() {
+        List<Step<?>> all;
+        synchronized (this) {
+            all = new ArrayList<>(steps);
+        }
+        all.forEach(Step::cancel);
+    }
+
+    /**
+     * Completes when every step is done, exceptionally with the first failure
+     */
+    public CompletableFuture<Void> getDone() {
+        CompletableFuture<?>[] results;
+        synchronized (this) {
+            results = steps.stream().map(step -> step.result).toArray(CompletableFuture<?>[]::new);
+        }
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        CompletableFuture.allOf(results).whenComplete((ignored, e) -> {
+            Throwable first = failure.get();
+            if (first != null) {
+                done.completeExceptionally(first);
+            } else if (e != null) {
+                done.completeExceptionally(unwrap(e));
+            } else {
+                done.complete(null);
+            }
+        });
+        return done;
+    }
+
+    /**
+     * Waits for every step, cancelling them all if it takes too long
+     *
+     * @param timeout the max time in ms
+     * @throws Exception the first step failure, or a TimeoutException
+     */
+    public void await(long timeout) throws Exception {
+        try {
+            getDone().get(timeout, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        } catch (TimeoutException | InterruptedException e) {
+            cancelAll();
+            throw e;
+        }
+    }
+
+    private static Throwable unwrap(Throwable e) {
+        while ((e instanceof CompletionException || e instanceof ExecutionException) && e.getCause() != null) {
+            e = e.getCause();
+        }
+        return e;
+    }
+
+    /**
+     * One step of the bring up, its value is available once it has finished
+     */
+    public static class Step<T> {
+        private final String name;
+        private final CompletableFuture<T> result = new CompletableFuture<>();
+        private Callable<T> action;
+        private Supplier<? extends CompletionStage<T>> asyncAction;
+        private volatile CompletableFuture<T> pending;
+        private Thread runner;
+
+        Step(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Completes with the value of the step
+         */
+        public CompletableFuture<T> getResult() {
+            return result;
+        }
+
+        /**
+         * Gets the value of a finished step, for use by the steps that depend on it
+         */
+        public T get() {
+            return result.join();
+        }
+
+        private void run() {
+            synchronized (this) {
+                if (result.isDone()) {
+                    return;
+                }
+                runner = Thread.currentThread();
+            }
+            try {
+                result.complete(action.call());
+            } catch (Throwable e) {
+                result.completeExceptionally(e);
+            } finally {
+                synchronized (this) {
+                    runner = null;
+                    //Don't leave the interrupt of a cancel to the next task on the thread
+                    Thread.interrupted();
+                }
+            }
+        }
+
+        private void runAsync() {
+            try {
+                CompletableFuture<T> future = asyncAction.get().toCompletableFuture();
+                pending = future;
+                future.whenComplete((value, e) -> {
+                    if (e != null) {
+                        result.completeExceptionally(unwrap(e));
+                    } else {
+                        result.complete(value);
+                    }
+                });
+                if (result.isCancelled()) {
+                    future.cancel(true);
+                }
+            } catch (Throwable e) {
+                result.completeExceptionally(e);
+            }
+        }
+
+        private synchronized void cancel() {
+            if (result.cancel(false)) {
+                if (runner != null) {
+                    runner.interrupt();
+                }
+                CompletableFuture<T> future = pending;
+                if (future != null) {
+                    future.cancel(true);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,197 @@
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BiConsumer;
+
+/**
+ * Keeps track of failures per device and stops using a device that keeps failing.
+ * <p>
+ * After a number of failures within a window the breaker of the device opens and it is left alone.  Once it has been
+ * open for a while one restart is allowed, if the device is healthy after it the breaker closes again, if not it goes
+ * back to open.
+ */
+@Slf4j
+public class CircuitBreaker {
+    public static int DEFAULT_FAILURE_THRESHOLD = 3;
+    public static long DEFAULT_FAILURE_WINDOW = 10 * Constants.ONE_MINUTE;
+    public static long DEFAULT_OPEN_TIME = 5 * Constants.ONE_MINUTE;
+
+    private static final CircuitBreaker INSTANCE = new CircuitBreaker(DEFAULT_FAILURE_THRESHOLD, DEFAULT_FAILURE_WINDOW, DEFAULT_OPEN_TIME);
+
+    public enum State {
+        /**
+         * In use
+         */
+        CLOSED,
+        /**
+         * Failed too often, not used or restarted
+         */
+        OPEN,
+        /**
+         * Being restarted to see if it works again
+         */
+        HALF_OPEN
+    }
+
+    private final int failureThreshold;
+    private final long failureWindow;
+    private final long openTime;
+    private final Map<String, Breaker> breakers = new HashMap<>();
+    private final List<BiConsumer<String, State>> listeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * @param failureThreshold the failures that open the breaker
+     * @param failureWindow    the time in ms the failures have to happen in
+     * @param openTime         the time in ms the breaker stays open before a restart is tried
+     */
+    public CircuitBreaker(int failureThreshold, long failureWindow, long openTime) {
+        this.failureThreshold = failureThreshold;
+        this.failureWindow = failureWindow;
+        this.openTime = openTime;
+    }
+
+    public static CircuitBreaker getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Adds a listener called with the device and its new state whenever a breaker changes
+     */
+    public void addListener(BiConsumer<String, State> listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(BiConsumer<String, State> listener) {
+        listeners.remove(listener);
+    }
+
+    int getListenerCount() {
+        return listeners.size();
+    }
+
+    public synchronized State getState(String key) {
+        Breaker breaker = breakers.get(key);
+        return breaker == null ? State.CLOSED : breaker.state;
+    }
+
+    /**
+     * @return true if the device can be used
+     */
+    public boolean isClosed(String key) {
+        return getState(key) == State.CLOSED;
+    }
+
+    /**
+     * Records a failure, which opens the breaker if there were too many
+     */
+    public void recordFailure(String key) {
+        State changed = null;
+        synchronized (this) {
+            Breaker breaker = breakers.computeIfAbsent(key, k -> new Breaker());
+            long now = System.currentTimeMillis();
+            if (breaker.state == State.HALF_OPEN) {
+                changed = breaker.open(now);
+            } else if (breaker.state == State.CLOSED) {
+                breaker.failures.addLast(now);
+                while (now - breaker.failures.peekFirst() > failureWindow) {
+                    breaker.failures.removeFirst();
+                }
+                if (breaker.failures.size() >= failureThreshold) {
+                    changed = breaker.open(now);
+                }
+            }
+        }
+        if (changed != null) {
+            log.warn("Circuit breaker for {} is open, it failed {} times", key, failureThreshold);
+            fireChange(key, changed);
+        }
+    }
+
+    /**
+     * Records that the device is healthy, which closes a breaker that was trying a restart
+     */
+    public void recordSuccess(String key) {
+        synchronized (this) {
+            Breaker breaker = breakers.get(key);
+            if (breaker == null || breaker.state != State.HALF_OPEN) {
+                return;
+            }
+            breakers.remove(key);
+        }
+        log.info("Circuit breaker for {} is closed again", key);
+        fireChange(key, State.CLOSED);
+    }
+
+    /**
+     * Checks if the device may be restarted, a breaker that has been open long enough allows one restart
+     */
+    public boolean tryRestart(String key) {
+        synchronized (this) {
+            Breaker breaker = breakers.get(key);
+            if (breaker == null || breaker.state == State.CLOSED) {
+                return true;
+            }
+            if (breaker.state == State.HALF_OPEN || System.currentTimeMillis() - breaker.openedAt < openTime) {
+                return false;
+            }
+            breaker.state = State.HALF_OPEN;
+        }
+        log.info("Circuit breaker for {} is half open, trying a restart", key);
+        fireChange(key, State.HALF_OPEN);
+        return true;
+    }
+
+    /**
+     * Closes the breaker of a device and forgets its failures, for when it has been fixed by hand
+     */
+    public void reset(String key) {
+        Breaker breaker;
+        synchronized (this) {
+            breaker = breakers.remove(key);
+        }
+        if (breaker != null && breaker.state != State.CLOSED) {
+            fireChange(key, State.CLOSED);
+        }
+    }
+
+    /**
+     * Gets the devices whose breaker isn't closed
+     */
+    public synchronized Map<String, State> getTripped() {
+        Map<String, State> tripped = new HashMap<>();
+        breakers.forEach((key, breaker) -> {
+            if (breaker.state != State.CLOSED) {
+                tripped.put(key, breaker.state);
+            }
+        });
+        return tripped;
+    }
+
+    private void fireChange(String key, State state) {
+        for (BiConsumer<String, State> listener : listeners) {
+            try {
+                listener.accept(key, state);
+            } catch (RuntimeException e) {
+                log.error("Error in circuit breaker listener", e);
+            }
+        }
+    }
+
+    private static class Breaker {
+        private final Deque<Long> failures = new ArrayDeque<>();
+        private State state = State.CLOSED;
+        private long openedAt;
+
+        State open(long now) {
+            state = State.OPEN;
+            openedAt = now;
+            failures.clear();
+            return state;
+        }
+    }
+}
@@ -0,0 +1,287 @@
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Collectors;
+
+/**
+ * Runs short commands in a few long lived shells instead of starting a process for each one.
+ * <p>
+ * A command is written to the stdin of an idle shell and runs in a subshell, the shell then prints a marker with the
+ * exit value so the output can be split from the next command.  A shell that takes too long is killed, and shells are
+ * replaced after a number of commands or an age so they don't hold on to a stale environment.  Long running processes
+ * like xcodebuild keep their own process.
+ */
+@Slf4j
+public class CommandShell implements AutoCloseable {
+    public static int DEFAULT_SHELLS = 2;
+    public static long DEFAULT_TIMEOUT = Constants.ONE_MINUTE;
+    public static int DEFAULT_MAX_COMMANDS = 200;
+    public static long DEFAULT_MAX_AGE = 10 * Constants.ONE_MINUTE;
+
+    //Exit value of the shell when the program doesn't exist
+    private static final int NOT_FOUND = 127;
+
+    private static final CommandShell INSTANCE = new CommandShell(DEFAULT_SHELLS, DEFAULT_TIMEOUT, DEFAULT_MAX_COMMANDS, DEFAULT_MAX_AGE);
+
+    private final int size;
+    private final long timeout;
+    private final int maxCommands;
+    private final long maxAge;
+    private final LinkedBlockingDeque<Shell> idle = new LinkedBlockingDeque<>();
+    private int created;
+    private boolean closed;
+
+    /**
+     * The exit value and output of a command
+     */
+    @Data
+    public static class Result {
+        private final int exitValue;
+        /**
+         * Stdout and stderr as they came, like a ProcessExecutor reading the output
+         */
+        private final String output;
+    }
+
+    /**
+     * @param size        the most shells, and so commands, running at once
+     * @param timeout     the max time in ms of a command
+     * @param maxCommands the commands a shell runs before it is replaced
+     * @param maxAge      the time in ms a shell is used before it is replaced
+     */
+    public CommandShell(int size, long timeout, int maxCommands, long maxAge) {
+        this.size = size;
+        this.timeout = timeout;
+        this.maxCommands = maxCommands;
+        this.maxAge = maxAge;
+    }
+
+    public static CommandShell getInstance() {
+        return INSTANCE;
+    }
+
+    public Result run(String... command) throws IOException, InterruptedException, TimeoutException {
+        return run(Arrays.asList(command), Collections.emptyMap(), null);
+    }
+
+    /**
+     * Runs a command and waits for it
+     *
+     * @param command     the program and its arguments, nothing is interpreted by the shell
+     * @param environment variables added for the command
+     * @param directory   the working directory, null for the current one
+     * @return the exit value and output, a failing command is not an error
+     * @throws IOException      if the program could not be found
+     * @throws TimeoutException if the command took longer than the timeout, its shell is killed
+     */
+    public Result run(List<String> command, Map<String, String> environment, Path directory)
+            throws IOException, InterruptedException, TimeoutException {
+        StringBuilder script = new StringBuilder("(");
+        for (Map.Entry<String, String> variable : environment.entrySet()) {
+            script.append("export ").append(variable.getKey()).append('=').append(quote(variable.getValue())).append("; ");
+        }
+        if (directory != null) {
+            script.append("cd ").append(quote(directory.toAbsolutePath().toString())).append(" && ");
+        }
+        script.append("exec");
+        for (String arg : command) {
+            script.append(' ').append(quote(arg));
+        }
+        script.append(')');
+
+        Shell shell = borrow();
+        boolean healthy = false;
+        try {
+            Result result = shell.run(script.toString(), timeout);
+            healthy = true;
+            if (result.getExitValue() == NOT_FOUND && result.getOutput().contains(": not found")) {
+                throw new IOException("Could not execute " + command + ": " + result.getOutput().trim());
+            }
+            return result;
+        } finally {
+            giveBack(shell, healthy);
+        }
+    }
+
+    static String quote(String value) {
+        return "'" + value.replace("'", "'\\''") + "'";
+    }
+
+    private Shell borrow() throws IOException, InterruptedException {
+        while (true) {
+            Shell shell;
+            synchronized (this) {
+                if (closed) {
+                    throw new IOException("Command shell is closed");
+                }
+                shell = idle.pollFirst();
+                if (shell == null && created < size) {
+                    created++;
+                    try {
+                        return new Shell();
+                    } catch (IOException e) {
+                        created--;
+                        throw e;
+                    }
+                }
+            }
+            if (shell == null) {
+                shell = idle.pollFirst(timeout, TimeUnit.MILLISECONDS);
+                if (shell == null) {
+                    continue;
+                }
+            }
+            if (shell.isUsable()) {
+                return shell;
+            }
+            discard(shell);
+        }
+    }
+
+    private void giveBack(Shell shell, boolean healthy) {
+        synchronized (this) {
+            if (healthy && !closed && shell.isUsable()) {
+                idle.addFirst(shell);
+                return;
+            }
+        }
+        discard(shell);
+    }
+
+    private void discard(Shell shell) {
+        shell.close();
+        synchronized (this) {
+            created--;
+        }
+    }
+
+    /**
+     * Gets the number of shells started and not yet stopped
+     */
+    public synchronized int getShellCount() {
+        return created;
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+        }
+        Shell shell;
+        while ((shell = idle.pollFirst()) != null) {
+            discard(shell);
+        }
+    }
+
+    private class Shell {
+        private final Process process;
+        private final long started = System.currentTimeMillis();
+        private final InputStream in;
+        private final OutputStream out;
+        private final byte[] buffer = new byte[8192];
+        private int commands;
+        private volatile boolean timedOut;
+
+        Shell() throws IOException {
+            process = new ProcessBuilder("sh").redirectError(ProcessBuilder.Redirect.DISCARD).start();
+            in = process.getInputStream();
+            out = process.getOutputStream();
+            log.debug("Started command shell {}", process.pid());
+        }
+
+        boolean isUsable() {
+            return process.isAlive() && commands < maxCommands && System.currentTimeMillis() - started < maxAge;
+        }
+
+        Result run(String script, long timeout) throws IOException, TimeoutException {
+            commands++;
+            String marker = "__command_done_" + UUID.randomUUID() + "__";
+            String line = script + " </dev/null 2>&1; printf '\\n" + marker + " %d\\n' $?\n";
+
+            ScheduledFuture<?> watchdog = PollingService.getScheduler().schedule(() -> {
+                timedOut = true;
+                //The shell goes first so it can't print the marker for the killed command
+                List<ProcessHandle> descendants = process.toHandle().descendants().collect(Collectors.toList());
+                process.destroyForcibly();
+                descendants.forEach(ProcessHandle::destroyForcibly);
+            }, timeout, TimeUnit.MILLISECONDS);
+            try {
+                out.write(line.getBytes(StandardCharsets.UTF_8));
+                out.flush();
+                Result result = readResult(marker);
+                if (timedOut) {
+                    throw new TimeoutException("Command timed out after " + timeout + "ms: " + script);
+                }
+                return result;
+            } catch (IOException e) {
+                if (timedOut) {
+                    throw new TimeoutException("Command timed out after " + timeout + "ms: " + script);
+                }
+                throw e;
+            } finally {
+                watchdog.cancel(false);
+            }
+        }
+
+        /**
+         * Reads the output up to the marker, which starts on a line of its own after the output and is followed by the
+         * exit value.  The marker only has a new line at its start so a partial match can simply start over.
+         */
+        private Result readResult(String marker) throws IOException {
+            byte[] end = ("\n" + marker + " ").getBytes(StandardCharsets.UTF_8);
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            StringBuilder exitValue = null;
+            int matched = 0;
+            while (true) {
+                int read = in.read(buffer);
+                if (read < 0) {
+                    throw new IOException("Command shell exited");
+                }
+                for (int i = 0; i < read; i++) {
+                    byte b = buffer[i];
+                    if (exitValue != null) {
+                        if (b == '\n') {
+                            return new Result(Integer.parseInt(exitValue.toString()),
+                                    new String(output.toByteArray(), StandardCharsets.UTF_8));
+                        }
+                        exitValue.append((char) b);
+                    } else if (b == end[matched]) {
+                        if (++matched == end.length) {
+                            exitValue = new StringBuilder();
+                        }
+                    } else {
+                        output.write(end, 0, matched);
+                        matched = b == end[0] ? 1 : 0;
+                        if (matched == 0) {
+                            output.write(b);
+                        }
+                    }
+                }
+            }
+        }
+
+        void close() {
+            try {
+                out.close();
+            } catch (IOException e) {
+                //It is being stopped anyway
+            }
+            ProcessTeardown.destroy(ProcessTeardown.DEFAULT_TIMEOUT, process.toHandle());
+        }
+    }
+}
@@ -7,9 +7,32 @@ public class Constants {
 
     public static final Path KEYCHAIN = Paths.get(System.getProperty("user.home"), "/Library/Keychains/miw-dev.keychain");
     public static final String KEYCHAIN_PASSWORD = "zN38bubQ";
-    public static final Path WDA_PROJECT_PATH = Paths.get("/usr/local/lib/node_modules/appium/node_modules/appium-xcuitest-driver/WebDriverAgent");
+    public static final Path WDA_PROJECT_PATH = Paths.get(System.getProperty("wda.project.path",
+            "/usr/local/lib/node_modules/appium/node_modules/appium-xcuitest-driver/WebDriverAgent"));
     public static final String WDA_PROJECT_DIR = "WebDriverAgent.xcodeproj";
     public static final String ORIG_WDA_RUNNER_BUNDLE_ID = "com.facebook.WebDriverAgentRunner";
     public static final String WDA_RUNNER_BUNDLE_ID = "com.miw.WebDriverAgentRunner";
     public static final String PROJECT_FILE = "project.pbxproj";
+
+    //Where state that is kept between runs lives
+    public static final Path STATE_DIR = Paths.get(System.getProperty("user.home"), ".ios-sample");
+    public static final Path WDA_BUILD_CACHE = STATE_DIR.resolve("wda-cache");
+    //Where the captured output of xcodebuild, iproxy and appium goes
+    public static final Path LOG_DIR = Paths.get("logs");
+
+    //Directory searched before the usual ones for the ios tools, the load tests put stand-ins there
+    public static final String TOOLCHAIN_PATH = System.getProperty("ios.toolchain.path");
+
+    //host:port of usbmuxd, when set the device ports are forwarded in the jvm instead of by iproxy
+    public static final String USBMUXD_ADDRESS = System.getProperty("usbmuxd.address");
+
+    //When set appium and wda are left running after the run and the next run reattaches to them, see DetachedServers
+    public static final boolean DETACHED = Boolean.getBoolean("ios.detached");
+
+    //The devices and ports a worker jvm of a sharded run was given, unset when the run isn't sharded
+    public static final String SHARD_DEVICES = System.getProperty("ios.shard.devices");
+
+    //Lines printed once the servers are listening
+    public static final String WDA_READY_MARKER = "ServerURLHere->";
+    public static final String APPIUM_READY_MARKER = "http interface listener started on";
 }
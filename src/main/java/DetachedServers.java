@@ -0,0 +1,475 @@
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.stream.Collectors;
+
+/**
+ * Keeps appium and the wda servers running between runs, so rerunning a test doesn't pay for bringing them up again.
+ * <p>
+ * When {@link Constants#DETACHED} is set each server that starts writes a state file with its processes, status url
+ * and the fingerprint of what it was started from, and is attached to the jvm that started it.  At the end of the run
+ * the servers are detached instead of stopped.  The next run reattaches to a server when its processes are the same
+ * ones, the fingerprint matches and it answers its status probe, a server that fails one of the checks is stopped and
+ * started again.  A watcher in its own jvm stops the servers no run used for the idle timeout and exits once none are
+ * left, run this class with {@code shutdown} to stop them right away.
+ * <p>
+ * The servers are meant for one detached run at a time, a run never reattaches to a server another live run uses.
+ */
+@Slf4j
+public class DetachedServers {
+    public static long DEFAULT_IDLE_TIMEOUT = 30 * Constants.ONE_MINUTE;
+    public static long DEFAULT_WATCH_INTERVAL = Constants.ONE_MINUTE;
+
+    private static final String SUFFIX = ".properties";
+    private static final String LOCK_FILE = "servers.lock";
+    private static final String WATCHER_FILE = "watcher.pid";
+
+    private static final DetachedServers INSTANCE = new DetachedServers(Constants.STATE_DIR.resolve("detached"),
+            DEFAULT_IDLE_TIMEOUT, DEFAULT_WATCH_INTERVAL);
+
+    private final Path directory;
+    private final long idleTimeout;
+    private final long watchInterval;
+    private final String owner = format(ProcessHandle.current());
+
+    /**
+     * @param directory     where the state files are kept
+     * @param idleTimeout   how long in ms a detached server is kept without a run using it
+     * @param watchInterval how often in ms the watcher looks for idle servers, 0 to not start a watcher
+     */
+    public DetachedServers(Path directory, long idleTimeout, long watchInterval) {
+        this.directory = directory;
+        this.idleTimeout = idleTimeout;
+        this.watchInterval = watchInterval;
+    }
+
+    public static DetachedServers getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Starts a process that keeps running after this jvm exits, its output is appended to a log file next to the
+     * state files instead of being read by this jvm
+     *
+     * @param builder the process to start, its output redirect is replaced and its error output is left as it is
+     * @param key     the server the process belongs to
+     * @param stream  what the output is, like xcodebuild or appium
+     */
+    public Process launch(ProcessBuilder builder, String key, String stream) throws IOException {
+        Files.createDirectories(directory);
+        List<String> command = new ArrayList<>();
+        //Closing the terminal of the run doesn't take the server down
+        command.add("nohup");
+        command.addAll(builder.command());
+        File output = directory.resolve(LogCaptureService.safeName(key) + "-" + stream + ".log").toFile();
+        return builder.command(command)
+                .redirectOutput(ProcessBuilder.Redirect.appendTo(output))
+                .start();
+    }
+
+    /**
+     * Records a server that was started, attached to this jvm until it is detached
+     *
+     * @param key         names the server, like wda-uuid or appium-port
+     * @param device      the device the server is for
+     * @param processes   the processes of the server, the first one is the main one
+     * @param statusUrl   answers with a 2xx status while the server can be used
+     * @param fingerprint what the server was started from, a server with another fingerprint isn't reattached
+     */
+    public void record(String key, String device, List<ProcessHandle> processes, String statusUrl, String fingerprint) {
+        State state = new State();
+        state.setKey(key);
+        state.setDevice(device);
+        state.setProcesses(processes.stream().map(DetachedServers::format).collect(Collectors.joining(",")));
+        state.setStatusUrl(statusUrl);
+        state.setFingerprint(fingerprint);
+        state.setOwner(owner);
+        state.setStartedAt(System.currentTimeMillis());
+        state.setLastUsed(state.getStartedAt());
+        locked(() -> {
+            State previous = read(file(key));
+            if (previous != null && previous.isAttachedElsewhere(owner)) {
+                log.warn("{} was used by the run with pid {}, it is no longer kept", key, previous.getOwner().split("\\|")[0]);
+            }
+            write(state);
+            startWatcher();
+            return null;
+        }, null);
+    }
+
+    /**
+     * Attaches to the server left running by an earlier run.  A server whose processes are gone, that was started from
+     * something else or doesn't answer is stopped.
+     *
+     * @param key         names the server
+     * @param fingerprint what the server should have been started from
+     * @return the state of the server with the processes that were checked, empty if it has to be started
+     */
+    public Optional<State> reattach(String key, String fingerprint) {
+        return locked(() -> {
+            State state = read(file(key));
+            if (state == null) {
+                return Optional.<State>empty();
+            }
+            if (state.isAttachedElsewhere(owner)) {
+                log.info("Not reattaching to {}, it is used by the run with pid {}", key, state.getOwner().split("\\|")[0]);
+                return Optional.<State>empty();
+            }
+            List<ProcessHandle> handles = state.resolveProcesses();
+            String problem = check(state, handles, fingerprint);
+            if (problem != null) {
+                log.info("Not reattaching to {}, {}", key, problem);
+                stop(state);
+                return Optional.<State>empty();
+            }
+            log.info("Reattaching to {}, started {} s ago", key, (System.currentTimeMillis() - state.getStartedAt()) / Constants.ONE_SECOND);
+            state.setOwner(owner);
+            state.setLastUsed(System.currentTimeMillis());
+            write(state);
+            state.setHandles(handles);
+            return Optional.of(state);
+        }, Optional.<State>empty());
+    }
+
+    private static String check(State state, List<ProcessHandle> handles, String fingerprint) {
+        if (handles.isEmpty()) {
+            return "its processes exited";
+        }
+        if (!state.getFingerprint().equals(fingerprint)) {
+            return "it was started from a different build";
+        }
+        if (!HealthCheckClient.getInstance().probe(state.getStatusUrl())) {
+            return "it doesn't answer on " + state.getStatusUrl();
+        }
+        return null;
+    }
+
+    /**
+     * Leaves the server running for the next run, its idle time starts now
+     */
+    public void detach(String key) {
+        locked(() -> {
+            State state = read(file(key));
+            if (state != null && owner.equals(state.getOwner())) {
+                state.setOwner("");
+                state.setLastUsed(System.currentTimeMillis());
+                write(state);
+                log.info("Detached {}, it is stopped if no run uses it for {} s", key, idleTimeout / Constants.ONE_SECOND);
+            }
+            return null;
+        }, null);
+    }
+
+    /**
+     * Forgets a server that was stopped
+     */
+    public void release(String key) {
+        locked(() -> Files.deleteIfExists(file(key)), false);
+    }
+
+    /**
+     * Gets the state of every server that is kept
+     */
+    public List<State> list() {
+        return locked(this::readAll, new ArrayList<>());
+    }
+
+    /**
+     * Stops the detached servers no run used for the idle timeout, and forgets the ones whose processes are gone
+     *
+     * @return the number of servers stopped
+     */
+    public int reapIdle() {
+        return locked(() -> {
+            int stopped = 0;
+            long now = System.currentTimeMillis();
+            for (State state : readAll()) {
+                if (state.findProcesses().isEmpty()) {
+                    Files.deleteIfExists(file(state.getKey()));
+                } else if (!state.isAttached() && now - state.getLastUsed() > idleTimeout) {
+                    log.info("Stopping {}, it was idle for {} s", state.getKey(), (now - state.getLastUsed()) / Constants.ONE_SECOND);
+                    stop(state);
+                    stopped++;
+                }
+            }
+            return stopped;
+        }, 0);
+    }
+
+    /**
+     * Stops every kept server, even the ones a run is using
+     *
+     * @return the number of servers stopped
+     */
+    public int shutdown() {
+        return locked(() -> {
+            List<State> states = readAll();
+            for (State state : states) {
+                log.info("Stopping {}", state.getKey());
+                stop(state);
+            }
+            return states.size();
+        }, 0);
+    }
+
+    /**
+     * Stops the idle servers until none are left
+     */
+    void watch() throws InterruptedException {
+        log.info("Watching the servers in {}, stopping the ones idle for {} s", directory, idleTimeout / Constants.ONE_SECOND);
+        while (true) {
+            reapIdle();
+            //Checked under the lock so a server recorded meanwhile starts a new watcher
+            boolean done = locked(() -> {
+                if (readAll().isEmpty()) {
+                    Files.deleteIfExists(directory.resolve(WATCHER_FILE));
+                    return true;
+                }
+                return false;
+            }, true);
+            if (done) {
+                log.info("No servers left, the watcher stops");
+                return;
+            }
+            Thread.sleep(watchInterval);
+        }
+    }
+
+    private void startWatcher() throws IOException {
+        Path file = directory.resolve(WATCHER_FILE);
+        if (watchInterval <= 0 || Files.exists(file) && isAlive(new String(Files.readAllBytes(file), StandardCharsets.UTF_8).trim())) {
+            return;
+        }
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        Process watcher = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), DetachedServers.class.getName(),
+                "watch", directory.toString(), String.valueOf(idleTimeout), String.valueOf(watchInterval))
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.appendTo(directory.resolve("watcher.log").toFile()))
+                .start();
+        Files.write(file, format(watcher.toHandle()).getBytes(StandardCharsets.UTF_8));
+        log.debug("Started the detached server watcher, pid {}", watcher.pid());
+    }
+
+    private void stop(State state) throws IOException {
+        List<ProcessHandle> survivors = ProcessTeardown.destroy(ProcessTeardown.DEFAULT_TIMEOUT, state.findProcesses());
+        if (!survivors.isEmpty()) {
+            log.error("{} processes of {} are still running", survivors.size(), state.getKey());
+        }
+        Files.deleteIfExists(file(state.getKey()));
+    }
+
+    private Path file(String key) {
+        return directory.resolve(LogCaptureService.safeName(key) + SUFFIX);
+    }
+
+    private List<State> readAll() throws IOException {
+        List<State> states = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path file : files) {
+                State state = read(file);
+                if (state != null) {
+                    states.add(state);
+                }
+            }
+        }
+        return states;
+    }
+
+    private static State read(Path file) throws IOException {
+        if (!Files.exists(file)) {
+            return null;
+        }
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            properties.load(reader);
+            return State.from(properties);
+        } catch (IllegalArgumentException | NullPointerException e) {
+            log.warn("Ignoring unreadable server state {}: {}", file, e.getMessage());
+            Files.delete(file);
+            return null;
+        }
+    }
+
+    private void write(State state) throws IOException {
+        Path temp = Files.createTempFile(directory, LogCaptureService.safeName(state.getKey()), ".tmp");
+        try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            state.toProperties().store(writer, null);
+        }
+        Files.move(temp, file(state.getKey()), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private interface Action<T> {
+        T run() throws IOException;
+    }
+
+    /**
+     * Runs the action holding the lock, so the runs and the watcher see each others changes
+     */
+    private synchronized <T> T locked(Action<T> action, T fallback) {
+        try {
+            Files.createDirectories(directory);
+            try (FileChannel channel = FileChannel.open(directory.resolve(LOCK_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                 FileLock ignored = channel.lock()) {
+                return action.run();
+            }
+        } catch (IOException e) {
+            log.warn("Could not update the detached servers in {}: {}", directory, e.getMessage());
+            return fallback;
+        }
+    }
+
+    private static String format(ProcessHandle process) {
+        return process.pid() + "|" + startOf(process);
+    }
+
+    //Checks a pid|start pair against the running processes, a reused pid doesn't match
+    private static Optional<ProcessHandle> find(String process) {
+        String[] parts = process.split("\\|");
+        try {
+            long start = Long.parseLong(parts[1]);
+            return ProcessHandle.of(Long.parseLong(parts[0])).filter(handle -> handle.isAlive() && startOf(handle) == start);
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            return Optional.empty();
+        }
+    }
+
+    private static boolean isAlive(String process) {
+        return find(process).isPresent();
+    }
+
+    private static long startOf(ProcessHandle process) {
+        return process.info().startInstant().map(start -> start.toEpochMilli()).orElse(-1L);
+    }
+
+    /**
+     * The state of a kept server, processes and owner are pid|start pairs and the times are in epoch ms
+     */
+    @Data
+    public static class State {
+        private String key;
+        private String device;
+        private String processes;
+        private String statusUrl;
+        private String fingerprint;
+        //The run using the server, empty once it is detached
+        private String owner;
+        private long startedAt;
+        private long lastUsed;
+        //The processes checked when the server was reattached, in the order they were recorded, not saved
+        private transient List<ProcessHandle> handles = Collections.emptyList();
+
+        /**
+         * Gets the processes of the server that are still running, in the order they were recorded
+         */
+        public List<ProcessHandle> findProcesses() {
+            List<ProcessHandle> handles = new ArrayList<>();
+            for (String process : processes.split(",")) {
+                find(process).ifPresent(handles::add);
+            }
+            return handles;
+        }
+
+        /**
+         * Gets every process of the server in the order they were recorded, empty if any of them is gone
+         */
+        List<ProcessHandle> resolveProcesses() {
+            List<ProcessHandle> handles = new ArrayList<>();
+            for (String process : processes.split(",")) {
+                Optional<ProcessHandle> handle = find(process);
+                if (!handle.isPresent()) {
+                    return Collections.emptyList();
+                }
+                handles.add(handle.get());
+            }
+            return handles;
+        }
+
+        boolean isAttached() {
+            return !owner.isEmpty() && isAlive(owner);
+        }
+
+        boolean isAttachedElsewhere(String current) {
+            return !owner.equals(current) && isAttached();
+        }
+
+        static State from(Properties properties) {
+            State state = new State();
+            state.setKey(properties.getProperty("key"));
+            state.setDevice(properties.getProperty("device", ""));
+            state.setProcesses(properties.getProperty("processes"));
+            state.setStatusUrl(properties.getProperty("statusUrl"));
+            state.setFingerprint(properties.getProperty("fingerprint"));
+            state.setOwner(properties.getProperty("owner", ""));
+            state.setStartedAt(Long.parseLong(properties.getProperty("startedAt")));
+            state.setLastUsed(Long.parseLong(properties.getProperty("lastUsed")));
+            if (state.getKey() == null || state.getProcesses() == null || state.getStatusUrl() == null || state.getFingerprint() == null) {
+                throw new IllegalArgumentException("missing values");
+            }
+            return state;
+        }
+
+        Properties toProperties() {
+            Properties properties = new Properties();
+            properties.setProperty("key", key);
+            properties.setProperty("device", device == null ? "" : device);
+            properties.setProperty("processes", processes);
+            properties.setProperty("statusUrl", statusUrl);
+            properties.setProperty("fingerprint", fingerprint);
+            properties.setProperty("owner", owner);
+            properties.setProperty("startedAt", String.valueOf(startedAt));
+            properties.setProperty("lastUsed", String.valueOf(lastUsed));
+            return properties;
+        }
+    }
+
+    /**
+     * Shows or stops the kept servers: status, shutdown, or watch which the runs start on their own
+     */
+    public static void main(String[] args) throws InterruptedException {
+        String command = args.length > 0 ? args[0] : "status";
+        DetachedServers servers = args.length > 1
+                ? new DetachedServers(Paths.get(args[1]), args.length > 2 ? Long.parseLong(args[2]) : DEFAULT_IDLE_TIMEOUT,
+                args.length > 3 ? Long.parseLong(args[3]) : DEFAULT_WATCH_INTERVAL)
+                : INSTANCE;
+        switch (command) {
+            case "status":
+                long now = System.currentTimeMillis();
+                List<State> states = servers.list();
+                System.out.println(states.size() + " servers kept in " + servers.directory);
+                for (State state : states) {
+                    System.out.printf("%-50s %-12s pids %s, up %d s, %s%n", state.getKey(), state.getDevice(),
+                            state.findProcesses().stream().map(p -> String.valueOf(p.pid())).collect(Collectors.joining(",")),
+                            (now - state.getStartedAt()) / Constants.ONE_SECOND,
+                            state.isAttached() ? "in use" : "idle for " + (now - state.getLastUsed()) / Constants.ONE_SECOND + " s");
+                }
+                break;
+            case "shutdown":
+                System.out.println("Stopped " + servers.shutdown() + " servers");
+                break;
+            case "watch":
+                servers.watch();
+                break;
+            default:
+                System.err.println("Usage: DetachedServers status|shutdown|watch [directory [idleTimeout [watchInterval]]]");
+                System.exit(2);
+        }
+    }
+}
@@ -0,0 +1,286 @@
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+import org.openqa.selenium.remote.DesiredCapabilities;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps the facts of each device that take a slow tool call to find out, like the os version, model and free storage.
+ * <p>
+ * The facts are fetched for every device at once, each fetch runs its own tool processes so it doesn't wait for or hold
+ * up the pooled shells of {@link CommandShell}.  They are saved in a properties file per device, so the next run only
+ * reads the files.  An entry older than its time to live is still used but fetched again in the background.  An entry
+ * whose os version doesn't match the version in the device list is thrown away, the device was updated since.  Once
+ * loaded, building the capabilities of a device doesn't touch the device or the disk.
+ */
+@Slf4j
+public class DeviceCapabilityCache {
+    public static long DEFAULT_TTL = 24 * 60 * Constants.ONE_MINUTE;
+    public static int DEFAULT_THREADS = 8;
+
+    private static final DeviceCapabilityCache INSTANCE = new DeviceCapabilityCache(Constants.STATE_DIR.resolve("devices"),
+            DEFAULT_TTL, DEFAULT_THREADS, IosHelper::deviceInfo);
+
+    /**
+     * Reads the lockdown values of a device
+     */
+    public interface Fetcher {
+        Map<String, Object> fetch(String uuid) throws Exception;
+    }
+
+    private final Path directory;
+    private final long ttl;
+    private final Fetcher fetcher;
+    private final Map<String, DeviceInfo> entries = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<DeviceInfo>> fetching = new ConcurrentHashMap<>();
+    private final ExecutorService executor;
+
+    /**
+     * @param directory where the file of each device is kept, null to keep the entries in memory only
+     * @param ttl       the time in ms after which an entry is fetched again
+     * @param threads   the devices fetched at the same time
+     * @param fetcher   reads the values of a device
+     */
+    public DeviceCapabilityCache(Path directory, long ttl, int threads, Fetcher fetcher) {
+        this.directory = directory;
+        this.ttl = ttl;
+        this.fetcher = fetcher;
+        AtomicInteger count = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "device-info-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public static DeviceCapabilityCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Loads the entries of the devices, reading the saved ones and fetching the missing ones at the same time
+     *
+     * @return completes once every device has an entry, or failed to get one
+     */
+    public CompletableFuture<Void> load(Collection<IosHelper.IosDevice> devices) {
+        List<CompletableFuture<DeviceInfo>> loads = new ArrayList<>();
+        for (IosHelper.IosDevice device : devices) {
+            DeviceInfo info = entries.computeIfAbsent(device.getUuid(), this::read);
+            if (info == null || !info.matches(device)) {
+                if (info != null) {
+                    log.info("{} - Os version changed from {} to {}, fetching the device info again",
+                            device.getUuid(), info.getOsVersion(), device.getVersion());
+                    invalidate(device.getUuid());
+                }
+                loads.add(fetch(device.getUuid()).exceptionally(e -> {
+                    log.warn("{} - Could not get the device info: {}", device.getUuid(), e.getMessage());
+                    return null;
+                }));
+            } else {
+                refreshIfExpired(info);
+            }
+        }
+        return CompletableFuture.allOf(loads.toArray(new CompletableFuture<?>[0]));
+    }
+
+    /**
+     * Gets the entry of a device from memory, an expired entry is returned and fetched again in the background
+     *
+     * @return the entry, or null if the device wasn't loaded or its os version changed since
+     */
+    public DeviceInfo get(IosHelper.IosDevice device) {
+        DeviceInfo info = entries.get(device.getUuid());
+        if (info == null || !info.matches(device)) {
+            return null;
+        }
+        refreshIfExpired(info);
+        return info;
+    }
+
+    /**
+     * Builds the capabilities that identify the device to appium, using the cached facts when there are any
+     */
+    public DesiredCapabilities capabilities(IosHelper.IosDevice device) {
+        DeviceInfo info = get(device);
+        DesiredCapabilities capabilities = new DesiredCapabilities();
+        capabilities.setCapability("platformName", "iOS");
+        capabilities.setCapability("udid", device.getUuid());
+        capabilities.setCapability("deviceName", info != null && info.getName() != null ? info.getName() : device.getName());
+        String version = info != null ? info.getOsVersion() : device.getVersion();
+        if (version != null) {
+            capabilities.setCapability("platformVersion", version);
+        }
+        return capabilities;
+    }
+
+    /**
+     * Forgets the entry of a device, in memory and on disk
+     */
+    public void invalidate(String uuid) {
+        entries.remove(uuid);
+        if (directory != null) {
+            try {
+                Files.deleteIfExists(file(uuid));
+            } catch (IOException e) {
+                log.warn("Could not delete the device info of {}: {}", uuid, e.getMessage());
+            }
+        }
+    }
+
+    private void refreshIfExpired(DeviceInfo info) {
+        if (System.currentTimeMillis() - info.getFetchedAt() > ttl) {
+            fetch(info.getUuid()).exceptionally(e -> {
+                log.debug("{} - Could not refresh the device info, keeping the old one: {}", info.getUuid(), e.getMessage());
+                return null;
+            });
+        }
+    }
+
+    /**
+     * Fetches the entry of a device, a device that is being fetched already isn't fetched twice
+     */
+    private CompletableFuture<DeviceInfo> fetch(String uuid) {
+        CompletableFuture<DeviceInfo> fetch = new CompletableFuture<>();
+        CompletableFuture<DeviceInfo> running = fetching.putIfAbsent(uuid, fetch);
+        if (running != null) {
+            return running;
+        }
+        executor.execute(() -> {
+            DeviceInfo info = null;
+            Exception error = null;
+            try {
+                info = DeviceInfo.from(uuid, fetcher.fetch(uuid));
+                entries.put(uuid, info);
+                write(info);
+                log.debug("{} - Fetched device info {}", uuid, info);
+            } catch (Exception e) {
+                error = e;
+            }
+            //Done before completing so a caller that sees the result can start a new fetch
+            fetching.remove(uuid, fetch);
+            if (error == null) {
+                fetch.complete(info);
+            } else {
+                fetch.completeExceptionally(error);
+            }
+        });
+        return fetch;
+    }
+
+    private Path file(String uuid) {
+        return directory.resolve(LogCaptureService.safeName(uuid) + ".properties");
+    }
+
+    private DeviceInfo read(String uuid) {
+        if (directory == null || !Files.exists(file(uuid))) {
+            return null;
+        }
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(file(uuid), StandardCharsets.UTF_8)) {
+            properties.load(reader);
+            return DeviceInfo.from(properties);
+        } catch (IOException | IllegalArgumentException e) {
+            log.warn("Ignoring unreadable device info of {}: {}", uuid, e.getMessage());
+            return null;
+        }
+    }
+
+    private void write(DeviceInfo info) {
+        if (directory == null) {
+            return;
+        }
+        try {
+            Files.createDirectories(directory);
+            Path temp = Files.createTempFile(directory, info.getUuid(), ".tmp");
+            try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                info.toProperties().store(writer, null);
+            }
+            Files.move(temp, file(info.getUuid()), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            log.warn("Could not save the device info of {}: {}", info.getUuid(), e.getMessage());
+        }
+    }
+
+    /**
+     * The facts of one device, the storage sizes are in bytes and -1 when unknown
+     */
+    @Data
+    public static class DeviceInfo {
+        private String uuid;
+        private String osVersion;
+        private String model;
+        private String name;
+        private long totalStorage = -1;
+        private long freeStorage = -1;
+        private long fetchedAt;
+
+        /**
+         * Checks the entry against the os version from the device list, an unknown version matches anything
+         */
+        boolean matches(IosHelper.IosDevice device) {
+            return device.getVersion() == null || device.getVersion().equals(osVersion);
+        }
+
+        static DeviceInfo from(String uuid, Map<String, Object> values) {
+            DeviceInfo info = new DeviceInfo();
+            info.setUuid(uuid);
+            info.setOsVersion((String) values.get("ProductVersion"));
+            info.setModel((String) values.get("ProductType"));
+            info.setName((String) values.get("DeviceName"));
+            if (values.get("TotalDiskCapacity") instanceof Long) {
+                info.setTotalStorage((Long) values.get("TotalDiskCapacity"));
+            }
+            if (values.get("AmountDataAvailable") instanceof Long) {
+                info.setFreeStorage((Long) values.get("AmountDataAvailable"));
+            }
+            info.setFetchedAt(System.currentTimeMillis());
+            return info;
+        }
+
+        static DeviceInfo from(Properties properties) {
+            DeviceInfo info = new DeviceInfo();
+            info.setUuid(properties.getProperty("uuid"));
+            info.setOsVersion(properties.getProperty("osVersion"));
+            info.setModel(properties.getProperty("model"));
+            info.setName(properties.getProperty("name"));
+            info.setTotalStorage(Long.parseLong(properties.getProperty("totalStorage", "-1")));
+            info.setFreeStorage(Long.parseLong(properties.getProperty("freeStorage", "-1")));
+            info.setFetchedAt(Long.parseLong(properties.getProperty("fetchedAt", "0")));
+            return info;
+        }
+
+        Properties toProperties() {
+            Properties properties = new Properties();
+            properties.setProperty("uuid", uuid);
+            if (osVersion != null) {
+                properties.setProperty("osVersion", osVersion);
+            }
+            if (model != null) {
+                properties.setProperty("model", model);
+            }
+            if (name != null) {
+                properties.setProperty("name", name);
+            }
+            properties.setProperty("totalStorage", String.valueOf(totalStorage));
+            properties.setProperty("freeStorage", String.valueOf(freeStorage));
+            properties.setProperty("fetchedAt", String.valueOf(fetchedAt));
+            return properties;
+        }
+    }
+}
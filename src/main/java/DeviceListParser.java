@@ -0,0 +1,123 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Parses the output of <code>instruments -s device</code> in a single pass.
+ * <p>
+ * Device lines look like <code>Chris's iPhone (11.2.5) [656d6ef9da2ccb39d34b00fe7e0c23fe7ec91278]</code>.  The host
+ * computer has no version and simulators end with <code>(Simulator)</code>, those lines are skipped.  Only the fields of
+ * real devices are copied out of the output.
+ */
+public class DeviceListParser {
+    private static final String SIMULATOR = "(Simulator)";
+
+    private DeviceListParser() {
+    }
+
+    /**
+     * @param output the output of instruments
+     * @return the connected devices in the order they are listed
+     */
+    public static List<IosHelper.IosDevice> parse(CharSequence output) {
+        List<IosHelper.IosDevice> devices = new ArrayList<>();
+        int length = output.length();
+        int start = 0;
+        while (start < length) {
+            int end = start;
+            while (end < length && output.charAt(end) != '\n') {
+                end++;
+            }
+
+            IosHelper.IosDevice device = parseLine(output, start, end);
+            if (device != null) {
+                devices.add(device);
+            }
+            start = end + 1;
+        }
+        return devices;
+    }
+
+    /**
+     * Parses one line, working back from the end: <code>name (version) [uuid]</code>
+     *
+     * @return the device or null if the line is not a real device
+     */
+    static IosHelper.IosDevice parseLine(CharSequence line, int start, int end) {
+        end = trimEnd(line, start, end);
+        if (end <= start || line.charAt(end - 1) != ']' || endsWith(line, start, end, SIMULATOR)) {
+            return null;
+        }
+
+        int uuidEnd = end - 1;
+        int uuidStart = lastIndexOf(line, '[', start, uuidEnd) + 1;
+        if (uuidStart <= start || uuidStart == uuidEnd) {
+            return null;
+        }
+
+        int versionEnd = trimEnd(line, start, uuidStart - 1) - 1;
+        if (versionEnd < start || line.charAt(versionEnd) != ')') {
+            //No version, this is the host computer
+            return null;
+        }
+        int versionStart = lastIndexOf(line, '(', start, versionEnd) + 1;
+        if (versionStart <= start) {
+            return null;
+        }
+
+        if (isSimulatorUuid(line, uuidStart, uuidEnd)) {
+            return null;
+        }
+
+        IosHelper.IosDevice device = new IosHelper.IosDevice();
+        device.setName(line.subSequence(start, trimEnd(line, start, versionStart - 1)).toString());
+        device.setVersion(line.subSequence(versionStart, versionEnd).toString());
+        device.setUuid(line.subSequence(uuidStart, uuidEnd).toString());
+        return device;
+    }
+
+    /**
+     * Simulators and the host use the 8-4-4-4-12 uuid form, real devices don't
+     */
+    private static boolean isSimulatorUuid(CharSequence line, int start, int end) {
+        if (end - start != 36) {
+            return false;
+        }
+        for (int i = start; i < end; i++) {
+            int offset = i - start;
+            boolean dash = offset == 8 || offset == 13 || offset == 18 || offset == 23;
+            if ((line.charAt(i) == '-') != dash) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int trimEnd(CharSequence line, int start, int end) {
+        while (end > start && Character.isWhitespace(line.charAt(end - 1))) {
+            end--;
+        }
+        return end;
+    }
+
+    private static int lastIndexOf(CharSequence line, char c, int start, int end) {
+        for (int i = end - 1; i >= start; i--) {
+            if (line.charAt(i) == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean endsWith(CharSequence line, int start, int end, String suffix) {
+        int offset = end - suffix.length();
+        if (offset < start) {
+            return false;
+        }
+        for (int i = 0; i < suffix.length(); i++) {
+            if (line.charAt(offset + i) != suffix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,299 @@
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * Leases devices to test invocations on demand.
+ * <p>
+ * Waiting invocations are handed out longest expected duration first, each to the free device with the least work
+ * assigned so far, so the slowest tests don't end up last on a busy phone.  The expected durations come from the
+ * {@link DurationHistory}, which is updated every time a lease is closed.  A device whose {@link CircuitBreaker} is
+ * not closed is skipped until it is healthy again.  The ports of each device are leased from the {@link PortAllocator}
+ * when it is added.  Close the scheduler once the run is over, that releases the ports and stops listening to the
+ * breaker.
+ */
+@Slf4j
+public class DeviceScheduler implements AutoCloseable {
+    private final DurationHistory history;
+    private final Function<IosHelper.IosDevice, String> modelOf;
+    private final CircuitBreaker breaker;
+    private final PortAllocator ports;
+    private final BiConsumer<String, CircuitBreaker.State> breakerListener = (device, state) -> {
+        if (state == CircuitBreaker.State.CLOSED) {
+            dispatch();
+        }
+    };
+
+    private final Map<String, Slot> slots = new LinkedHashMap<>();
+    private final List<Request> pending = new LinkedList<>();
+    private final ExecutorService executor = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "device-scheduler");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public DeviceScheduler(Collection<IosHelper.IosDevice> devices, DurationHistory history) {
+        this(devices, history, IosHelper.IosDevice::getName);
+    }
+
+    /**
+     * @param devices the devices to hand out, more can be added later
+     * @param history the durations of earlier runs
+     * @param modelOf gets the model of a device that durations are recorded against
+     */
+    public DeviceScheduler(Collection<IosHelper.IosDevice> devices, DurationHistory history, Function<IosHelper.IosDevice, String> modelOf) {
+        this(devices, history, modelOf, CircuitBreaker.getInstance());
+    }
+
+    /**
+     * @param devices the devices to hand out, more can be added later
+     * @param history the durations of earlier runs
+     * @param modelOf gets the model of a device that durations are recorded against
+     * @param breaker tells which devices keep failing, a device is handed out again once its breaker closes
+     */
+    public DeviceScheduler(Collection<IosHelper.IosDevice> devices, DurationHistory history,
+                           Function<IosHelper.IosDevice, String> modelOf, CircuitBreaker breaker) {
+        this(devices, history, modelOf, breaker, PortAllocator.getInstance());
+    }
+
+    /**
+     * @param devices the devices to hand out, more can be added later
+     * @param history the durations of earlier runs
+     * @param modelOf gets the model of a device that durations are recorded against
+     * @param breaker tells which devices keep failing, a device is handed out again once its breaker closes
+     * @param ports   leases the wda and webkit debug proxy ports of each device
+     */
+    public DeviceScheduler(Collection<IosHelper.IosDevice> devices, DurationHistory history,
+                           Function<IosHelper.IosDevice, String> modelOf, CircuitBreaker breaker, PortAllocator ports) {
+        this.history = history;
+        this.modelOf = modelOf;
+        this.breaker = breaker;
+        this.ports = ports;
+        devices.forEach(this::addDevice);
+        breaker.addListener(breakerListener);
+    }
+
+    /**
+     * Adds a device that can be leased
+     */
+    public void addDevice(IosHelper.IosDevice device) {
+        synchronized (this) {
+            if (slots.containsKey(device.getUuid())) {
+                return;
+            }
+            //A detached run gets the wda port the kept server of the device listens on, a shard the ports it was given
+            PortAllocator.Lease lease = Constants.DETACHED || Constants.SHARD_DEVICES != null
+                    ? ports.reuse(device.getUuid(), 2)
+                    : ports.allocate(device.getUuid(), 2);
+            slots.put(device.getUuid(), new Slot(device, lease));
+        }
+        dispatch();
+    }
+
+    /**
+     * Stops handing out a device, a current lease on it is not affected
+     */
+    public synchronized void removeDevice(IosHelper.IosDevice device) {
+        Slot slot = slots.remove(device.getUuid());
+        if (slot != null) {
+            slot.ports.close();
+        }
+    }
+
+    /**
+     * Stops listening to the breaker and releases the ports of every device, tests still waiting for a device fail.
+     * Current leases can still be closed.
+     */
+    @Override
+    public void close() {
+        breaker.removeListener(breakerListener);
+        List<Request> waiting;
+        synchronized (this) {
+            slots.values().forEach(slot -> slot.ports.close());
+            slots.clear();
+            waiting = new ArrayList<>(pending);
+            pending.clear();
+        }
+        waiting.forEach(request -> request.lease.completeExceptionally(new IllegalStateException("The device scheduler was closed")));
+        executor.shutdown();
+    }
+
+    public synchronized int getDeviceCount() {
+        return slots.size();
+    }
+
+    /**
+     * Gets the wda local port of each device by uuid, so servers can be started before the device is leased
+     */
+    public synchronized Map<String, Integer> getWdaLocalPorts() {
+        Map<String, Integer> ports = new LinkedHashMap<>();
+        slots.forEach((uuid, slot) -> ports.put(uuid, slot.wdaLocalPort));
+        return ports;
+    }
+
+    /**
+     * Waits for a device to run the test on
+     *
+     * @param test the name of the test, used to look up the expected duration
+     * @return the lease, close it when the test is done with the device
+     */
+    public Lease acquire(String test) throws InterruptedException {
+        try {
+            return acquireAsync(test).get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Asks for a device to run the test on
+     *
+     * @return completes once a device has been leased to the test
+     */
+    public CompletableFuture<Lease> acquireAsync(String test) {
+        Request request = new Request(test);
+        synchronized (this) {
+            pending.add(request);
+        }
+        dispatch();
+        return request.lease;
+    }
+
+    /**
+     * Runs the task on the next device the test gets, then releases the device
+     *
+     * @return completes with the result of the task
+     */
+    public <T> CompletableFuture<T> submit(String test, Function<Lease, T> task) {
+        return acquireAsync(test).thenApplyAsync(lease -> {
+            try (Lease ignored = lease) {
+                return task.apply(lease);
+            }
+        }, executor);
+    }
+
+    private void dispatch() {
+        List<Runnable> grants = new ArrayList<>();
+        synchronized (this) {
+            while (!pending.isEmpty()) {
+                Slot slot = slots.values().stream()
+                        .filter(s -> s.lease == null && breaker.isClosed(s.device.getUuid()))
+                        .min(Comparator.comparingLong(s -> s.assigned))
+                        .orElse(null);
+                if (slot == null) {
+                    break;
+                }
+
+                String model = modelOf.apply(slot.device);
+                Request request = pending.stream()
+                        .max(Comparator.comparingLong(r -> history.expected(r.test, model)))
+                        .get();
+                pending.remove(request);
+
+                long expected = history.expected(request.test, model);
+                slot.assigned += expected;
+                slot.lease = new Lease(this, slot, request.test);
+                log.debug("Leasing {} to {}, expected {}ms", slot.device.getUuid(), request.test, expected);
+
+                Lease lease = slot.lease;
+                grants.add(() -> {
+                    //The caller stopped waiting, give the device to someone else
+                    if (!request.lease.complete(lease)) {
+                        lease.close();
+                    }
+                });
+            }
+        }
+        //Complete outside the lock, the callers may acquire again right away
+        grants.forEach(Runnable::run);
+    }
+
+    private void release(Lease lease) {
+        long duration = System.currentTimeMillis() - lease.start;
+        history.record(lease.test, modelOf.apply(lease.device), duration);
+        synchronized (this) {
+            lease.slot.lease = null;
+        }
+        log.debug("{} released {} after {}ms", lease.test, lease.device.getUuid(), duration);
+        dispatch();
+    }
+
+    private static class Slot {
+        private final IosHelper.IosDevice device;
+        private final PortAllocator.Lease ports;
+        private final int wdaLocalPort;
+        private final int webkitDebugProxyPort;
+        private long assigned;
+        private Lease lease;
+
+        Slot(IosHelper.IosDevice device, PortAllocator.Lease ports) {
+            this.device = device;
+            this.ports = ports;
+            this.wdaLocalPort = ports.getPort(0);
+            this.webkitDebugProxyPort = ports.getPort(1);
+        }
+    }
+
+    private static class Request {
+        private final String test;
+        private final CompletableFuture<Lease> lease = new CompletableFuture<>();
+
+        Request(String test) {
+            this.test = test;
+        }
+    }
+
+    /**
+     * A device leased to a test, along with the ports to use for it
+     */
+    public static class Lease implements AutoCloseable {
+        @Getter
+        private final IosHelper.IosDevice device;
+        @Getter
+        private final int wdaLocalPort;
+        @Getter
+        private final int webkitDebugProxyPort;
+        @Getter
+        private final String test;
+        private final long start = System.currentTimeMillis();
+        private final DeviceScheduler scheduler;
+        private final Slot slot;
+        private boolean closed;
+
+        Lease(DeviceScheduler scheduler, Slot slot, String test) {
+            this.scheduler = scheduler;
+            this.slot = slot;
+            this.device = slot.device;
+            this.wdaLocalPort = slot.wdaLocalPort;
+            this.webkitDebugProxyPort = slot.webkitDebugProxyPort;
+            this.test = test;
+        }
+
+        /**
+         * Gives the device back and records how long the test took on it
+         */
+        @Override
+        public void close() {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+            }
+            scheduler.release(this);
+        }
+    }
+}
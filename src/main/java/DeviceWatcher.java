@@ -0,0 +1,145 @@
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps an up to date list of the connected devices and tells listeners when devices are attached or detached.
+ * <p>
+ * Devices are refreshed on demand with {@link #refresh()}, on a schedule with {@link #start(long)}, or by
+ * {@link #getDevices()} once the last refresh is older than the max age.
+ */
+@Slf4j
+public class DeviceWatcher implements AutoCloseable {
+    public static long DEFAULT_MAX_AGE = 10 * Constants.ONE_SECOND;
+    public static long DEFAULT_PERIOD = 5 * Constants.ONE_SECOND;
+
+    private static final DeviceWatcher INSTANCE = new DeviceWatcher(IosHelper::listDevicesOutput);
+
+    /**
+     * Gets told about changes to the connected devices
+     */
+    public interface Listener {
+        default void onAttached(IosHelper.IosDevice device) {
+        }
+
+        default void onDetached(IosHelper.IosDevice device) {
+        }
+    }
+
+    private final Callable<String> source;
+    private final long maxAge;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private volatile Map<String, IosHelper.IosDevice> devices;
+    //When the devices were last read, in nano time
+    private volatile long refreshed;
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * @param source produces the output of instruments, tests can pass recorded output
+     */
+    public DeviceWatcher(Callable<String> source) {
+        this(source, DEFAULT_MAX_AGE);
+    }
+
+    /**
+     * @param source produces the output of instruments, tests can pass recorded output
+     * @param maxAge the time in ms the devices are handed out before they are read again
+     */
+    public DeviceWatcher(Callable<String> source, long maxAge) {
+        this.source = source;
+        this.maxAge = maxAge;
+    }
+
+    public static DeviceWatcher getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Gets the connected devices, refreshing them the first time and when they are older than the max age
+     */
+    public List<IosHelper.IosDevice> getDevices() {
+        Map<String, IosHelper.IosDevice> current = devices;
+        if (current == null || System.nanoTime() - refreshed > TimeUnit.MILLISECONDS.toNanos(maxAge)) {
+            return refresh();
+        }
+        return new ArrayList<>(current.values());
+    }
+
+    /**
+     * Reads the devices now and tells the listeners what changed since the last refresh
+     *
+     * @return the connected devices
+     */
+    public synchronized List<IosHelper.IosDevice> refresh() {
+        Map<String, IosHelper.IosDevice> previous = devices == null ? Collections.emptyMap() : devices;
+        Map<String, IosHelper.IosDevice> current = new LinkedHashMap<>();
+        //Also when it fails, so a missing instruments isn't run on every call
+        refreshed = System.nanoTime();
+        try {
+            for (IosHelper.IosDevice device : DeviceListParser.parse(source.call())) {
+                current.put(device.getUuid(), device);
+            }
+        } catch (Exception e) {
+            log.error("Error listing devices, keeping the last known devices", e);
+            return new ArrayList<>(previous.values());
+        }
+        devices = current;
+
+        for (IosHelper.IosDevice device : previous.values()) {
+            if (!Objects.equals(device, current.get(device.getUuid()))) {
+                log.info("Device detached: {}", device);
+                listeners.forEach(listener -> listener.onDetached(device));
+            }
+        }
+        for (IosHelper.IosDevice device : current.values()) {
+            if (!Objects.equals(device, previous.get(device.getUuid()))) {
+                log.info("Device attached: {}", device);
+                listeners.forEach(listener -> listener.onAttached(device));
+            }
+        }
+        return new ArrayList<>(current.values());
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Refreshes the devices in the background
+     *
+     * @param period the time in ms between the end of one refresh and the start of the next
+     */
+    public synchronized void start(long period) {
+        if (scheduler != null) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "device-watcher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::refresh, 0, period, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public synchronized void close() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+}
@@ -0,0 +1,106 @@
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+/**
+ * Remembers how long each test took on each device model, stored in a small properties file between runs.
+ * <p>
+ * Every new duration is blended into the stored one so a single slow run doesn't throw off the estimate.
+ */
+@Slf4j
+public class DurationHistory {
+    /**
+     * Expected duration of a test that never ran
+     */
+    public static long DEFAULT_DURATION = 2 * Constants.ONE_MINUTE;
+
+    /**
+     * How much a new duration counts against the stored one
+     */
+    private static final double WEIGHT = 0.3;
+
+    private final Path file;
+    private final Properties durations = new Properties();
+
+    private DurationHistory(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * Loads the history, a missing or broken file starts an empty history
+     *
+     * @param file the properties file, null keeps the history in memory only
+     */
+    public static DurationHistory load(Path file) {
+        DurationHistory history = new DurationHistory(file);
+        if (file != null && Files.exists(file)) {
+            try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                history.durations.load(reader);
+            } catch (IOException | IllegalArgumentException e) {
+                log.warn("Ignoring unreadable duration history {}: {}", file, e.getMessage());
+            }
+        }
+        return history;
+    }
+
+    private static String key(String test, String model) {
+        return test + "|" + model;
+    }
+
+    /**
+     * Gets the expected duration in ms, falling back to the test on any model and then to the default
+     */
+    public synchronized long expected(String test, String model) {
+        String duration = durations.getProperty(key(test, model));
+        if (duration != null) {
+            return Long.parseLong(duration);
+        }
+
+        long total = 0;
+        int count = 0;
+        for (String name : durations.stringPropertyNames()) {
+            if (name.startsWith(test + "|")) {
+                total += Long.parseLong(durations.getProperty(name));
+                count++;
+            }
+        }
+        return count > 0 ? total / count : DEFAULT_DURATION;
+    }
+
+    public synchronized boolean contains(String test, String model) {
+        return durations.containsKey(key(test, model));
+    }
+
+    /**
+     * Records a duration and saves the history
+     */
+    public synchronized void record(String test, String model, long millis) {
+        String previous = durations.getProperty(key(test, model));
+        long duration = previous == null ? millis : Math.round(WEIGHT * millis + (1 - WEIGHT) * Long.parseLong(previous));
+        durations.setProperty(key(test, model), String.valueOf(duration));
+        save();
+    }
+
+    private void save() {
+        if (file == null) {
+            return;
+        }
+        try {
+            Files.createDirectories(file.toAbsolutePath().getParent());
+            Path temp = Files.createTempFile(file.toAbsolutePath().getParent(), file.getFileName().toString(), ".tmp");
+            try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                durations.store(writer, "Test durations in ms by test|model");
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.warn("Could not save duration history {}: {}", file, e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,396 @@
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.http.client.SimpleClientHttpRequestFactory;
+import org.springframework.web.client.DefaultResponseErrorHandler;
+import org.springframework.web.client.RestClientException;
+import org.springframework.web.client.RestTemplate;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Base64;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Saves a screenshot, the page source and the captured log of a device when a test on it fails.
+ * <p>
+ * The screenshot and source come from wda as a json string, they are decoded while they are read from the connection
+ * and go straight to the file, so a large screenshot never ends up on the heap as a String.  Captures run on a small
+ * bounded pool, when too many devices fail at once the extra captures are skipped instead of queueing up behind the
+ * others.
+ */
+@Slf4j
+public class FailureArtifacts implements AutoCloseable {
+    public static int DEFAULT_THREADS = 4;
+    public static int DEFAULT_QUEUE_SIZE = 32;
+    public static int DEFAULT_CONNECT_TIMEOUT = 2 * Constants.ONE_SECOND;
+    public static int DEFAULT_READ_TIMEOUT = 30 * Constants.ONE_SECOND;
+
+    private static final FailureArtifacts INSTANCE = new FailureArtifacts(Constants.LOG_DIR.resolve("artifacts"),
+            LogCaptureService.getInstance(), DEFAULT_THREADS, DEFAULT_QUEUE_SIZE, DEFAULT_READ_TIMEOUT);
+
+    private final Path root;
+    private final LogCaptureService logs;
+    private final RestTemplate restTemplate;
+    private final ThreadPoolExecutor executor;
+    private final AtomicLong skipped = new AtomicLong();
+
+    /**
+     * @param root        the directory the artifacts go in, one directory per device and capture
+     * @param logs        where the log tail of the device comes from
+     * @param threads     the captures that run at the same time
+     * @param queueSize   the captures that can wait for a thread, more are skipped
+     * @param readTimeout max time in ms to wait for wda to send the next bytes
+     */
+    public FailureArtifacts(Path root, LogCaptureService logs, int threads, int queueSize, int readTimeout) {
+        this.root = root;
+        this.logs = logs;
+
+        SimpleClientHttpRequestFactory requestFactory = new SimpleClientHttpRequestFactory();
+        requestFactory.setConnectTimeout(DEFAULT_CONNECT_TIMEOUT);
+        requestFactory.setReadTimeout(readTimeout);
+        restTemplate = new RestTemplate(requestFactory);
+        //The status is checked while reading so the error body isn't read into memory
+        restTemplate.setErrorHandler(new DefaultResponseErrorHandler() {
+            @Override
+            public boolean hasError(ClientHttpResponse response) {
+                return false;
+            }
+        });
+
+        AtomicInteger count = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS, new ArrayBlockingQueue<>(queueSize),
+                r -> {
+                    Thread thread = new Thread(r, "failure-artifacts-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    public static FailureArtifacts getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Captures the artifacts of a device in the background
+     *
+     * @param device    the device uuid
+     * @param serverUrl the url of the wda server on the device
+     * @return completes with the directory the artifacts were saved in, or fails if the capture was skipped
+     */
+    public CompletableFuture<Path> capture(String device, String serverUrl) {
+        try {
+            return CompletableFuture.supplyAsync(() -> {
+                try {
+                    return captureNow(device, serverUrl);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }, executor);
+        } catch (RejectedExecutionException e) {
+            skipped.incrementAndGet();
+            log.warn("{} - Too many artifact captures waiting, skipping this one", device);
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Captures the artifacts of a device and waits a limited time for them, for use before the device is given back
+     *
+     * @return the directory the artifacts were saved in, or null if they couldn't be saved in time
+     */
+    public Path captureAndWait(String device, String serverUrl, long timeout) {
+        try {
+            return capture(device, serverUrl).get(timeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            log.warn("{} - Artifacts not captured: {}", device, e.getCause().toString());
+        } catch (TimeoutException e) {
+            log.warn("{} - Artifacts not captured within {} ms, they are still being saved", device, timeout);
+        }
+        return null;
+    }
+
+    /**
+     * Gets the number of captures skipped because the queue was full
+     */
+    public long getSkipped() {
+        return skipped.get();
+    }
+
+    private Path captureNow(String device, String serverUrl) throws IOException {
+        Path directory = root.resolve(LogCaptureService.safeName(device)).resolve(LogCaptureService.newSession());
+        Files.createDirectories(directory);
+
+        //Each artifact is saved on its own, a wda that can't take a screenshot may still give the source
+        download(device, serverUrl + "/screenshot", directory.resolve("screenshot.png"), true);
+        download(device, serverUrl + "/source", directory.resolve("source.xml"), false);
+        Files.write(directory.resolve("device.log"), logs.getTail(device), StandardCharsets.UTF_8);
+
+        log.info("{} - Failure artifacts saved in {}", device, directory);
+        return directory;
+    }
+
+    private void download(String device, String url, Path file, boolean base64) {
+        try {
+            Long bytes = restTemplate.execute(url, HttpMethod.GET, null, response -> {
+                if (!response.getStatusCode().is2xxSuccessful()) {
+                    throw new IOException("Status " + response.getRawStatusCode());
+                }
+                try (InputStream value = base64
+                        ? Base64.getMimeDecoder().wrap(valueStream(response.getBody()))
+                        : valueStream(response.getBody())) {
+                    return Files.copy(value, file, StandardCopyOption.REPLACE_EXISTING);
+                }
+            });
+            log.debug("{} - Saved {} bytes from {}", device, bytes, url);
+        } catch (RestClientException | IllegalArgumentException e) {
+            log.warn("{} - Error saving {}: {}", device, url, e.getMessage());
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException ignored) {
+                //Nothing more to do
+            }
+        }
+    }
+
+    /**
+     * Reads the "value" string of a wda json response as the bytes it stands for
+     *
+     * @param json the response body, positioned at the start
+     * @return the unescaped utf-8 bytes of the string, ends at the closing quote
+     * @throws IOException if the response has no string value
+     */
+    static InputStream valueStream(InputStream json) throws IOException {
+        JsonString reader = new JsonString(new BufferedInputStream(json, 16 * 1024));
+        reader.seekValue();
+        return reader;
+    }
+
+    @Override
+    public void close() throws InterruptedException {
+        executor.shutdown();
+        executor.awaitTermination(DEFAULT_READ_TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Finds the value of a json object and streams it out, one escape at a time
+     */
+    private static class JsonString extends InputStream {
+        private final InputStream in;
+        //Utf-8 bytes of an escaped character still to be returned
+        private final byte[] pending = new byte[4];
+        private int pendingStart;
+        private int pendingEnd;
+        private int peeked = -2;
+        private boolean ended;
+
+        JsonString(InputStream in) {
+            this.in = in;
+        }
+
+        private int next() throws IOException {
+            if (peeked != -2) {
+                int c = peeked;
+                peeked = -2;
+                return c;
+            }
+            return in.read();
+        }
+
+        private int nextRequired() throws IOException {
+            int c = next();
+            if (c == -1) {
+                throw new EOFException("Json response ended early");
+            }
+            return c;
+        }
+
+        private int nextToken() throws IOException {
+            int c;
+            do {
+                c = nextRequired();
+            } while (c == ' ' || c == '\n' || c == '\r' || c == '\t');
+            return c;
+        }
+
+        private void expect(int c, int expected) throws IOException {
+            if (c != expected) {
+                throw new IOException("Expected '" + (char) expected + "' in json response but got '" + (char) c + "'");
+            }
+        }
+
+        void seekValue() throws IOException {
+            expect(nextToken(), '{');
+            while (true) {
+                int c = nextToken();
+                if (c == '}') {
+                    throw new IOException("No value in json response");
+                }
+                if (c == ',') {
+                    c = nextToken();
+                }
+                expect(c, '"');
+                String key = readKey();
+                expect(nextToken(), ':');
+                c = nextToken();
+                if (key.equals("value")) {
+                    expect(c, '"');
+                    return;
+                }
+                skipValue(c);
+            }
+        }
+
+        private String readKey() throws IOException {
+            StringBuilder key = new StringBuilder();
+            byte[] bytes = new byte[4];
+            int length;
+            while ((length = readChar(bytes)) != -1) {
+                key.append(new String(bytes, 0, length, StandardCharsets.UTF_8));
+            }
+            return key.toString();
+        }
+
+        private void skipValue(int c) throws IOException {
+            int depth = 0;
+            while (true) {
+                if (c == '"') {
+                    while (readChar(pending) != -1) {
+                        //Skipped
+                    }
+                } else if (c == '{' || c == '[') {
+                    depth++;
+                } else if (c == '}' || c == ']') {
+                    depth--;
+                }
+                if (depth > 0) {
+                    c = nextRequired();
+                    continue;
+                }
+                //The value is done unless it is a number or literal that goes on
+                c = nextToken();
+                if (c == ',' || c == '}') {
+                    peeked = c;
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Reads one character of a string into the buffer as utf-8
+         *
+         * @return the number of bytes, or -1 at the closing quote
+         */
+        private int readChar(byte[] bytes) throws IOException {
+            int c = nextRequired();
+            if (c == '"') {
+                return -1;
+            }
+            if (c != '\\') {
+                bytes[0] = (byte) c;
+                return 1;
+            }
+            c = nextRequired();
+            switch (c) {
+                case 'b':
+                    bytes[0] = '\b';
+                    return 1;
+                case 'f':
+                    bytes[0] = '\f';
+                    return 1;
+                case 'n':
+                    bytes[0] = '\n';
+                    return 1;
+                case 'r':
+                    bytes[0] = '\r';
+                    return 1;
+                case 't':
+                    bytes[0] = '\t';
+                    return 1;
+                case 'u':
+                    int codePoint = readHex();
+                    if (Character.isHighSurrogate((char) codePoint)) {
+                        expect(nextRequired(), '\\');
+                        expect(nextRequired(), 'u');
+                        codePoint = Character.toCodePoint((char) codePoint, (char) readHex());
+                    }
+                    byte[] encoded = new String(Character.toChars(codePoint)).getBytes(StandardCharsets.UTF_8);
+                    System.arraycopy(encoded, 0, bytes, 0, encoded.length);
+                    return encoded.length;
+                default:
+                    //Quote, backslash and slash stand for themselves
+                    bytes[0] = (byte) c;
+                    return 1;
+            }
+        }
+
+        private int readHex() throws IOException {
+            int value = 0;
+            for (int i = 0; i < 4; i++) {
+                int digit = Character.digit(nextRequired(), 16);
+                if (digit < 0) {
+                    throw new IOException("Bad unicode escape in json response");
+                }
+                value = value * 16 + digit;
+            }
+            return value;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (pendingStart < pendingEnd) {
+                return pending[pendingStart++] & 0xff;
+            }
+            if (ended) {
+                return -1;
+            }
+            int length = readChar(pending);
+            if (length == -1) {
+                ended = true;
+                return -1;
+            }
+            pendingStart = 1;
+            pendingEnd = length;
+            return pending[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            int count = 0;
+            while (count < len) {
+                int c = read();
+                if (c == -1) {
+                    break;
+                }
+                b[off + count++] = (byte) c;
+            }
+            return count == 0 ? -1 : count;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,135 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * Builds a sha-256 fingerprint of strings, files and directory trees
+ */
+public class Fingerprint {
+    private final MessageDigest digest;
+    private final byte[] buffer = new byte[64 * 1024];
+
+    private Fingerprint() {
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static Fingerprint create() {
+        return new Fingerprint();
+    }
+
+    public Fingerprint add(String value) {
+        byte[] bytes = String.valueOf(value).getBytes(StandardCharsets.UTF_8);
+        addLength(bytes.length);
+        digest.update(bytes);
+        return this;
+    }
+
+    /**
+     * Adds the content of a file, a missing file is added as a marker so it still changes the fingerprint
+     */
+    public Fingerprint addFile(Path file) throws IOException {
+        if (!Files.isRegularFile(file)) {
+            return add("<missing>");
+        }
+        addLength(Files.size(file));
+        try (InputStream in = Files.newInputStream(file)) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Adds the relative path and content of every file in the tree, in a stable order
+     *
+     * @param root the directory to add
+     * @param skip returns true for paths that should be left out, directories are skipped with everything under them
+     */
+    public Fingerprint addTree(Path root, Predicate<Path> skip) throws IOException {
+        for (Path file : listTree(root, skip)) {
+            add(root.relativize(file).toString().replace('\\', '/'));
+            addFile(file);
+        }
+        return this;
+    }
+
+    /**
+     * Adds the relative path, size and modification time of every file in the tree without reading them, a cheap
+     * stand in to tell if the tree changed since its content was added
+     *
+     * @param root the directory to add
+     * @param skip returns true for paths that should be left out, directories are skipped with everything under them
+     */
+    public Fingerprint addTreeStamp(Path root, Predicate<Path> skip) throws IOException {
+        for (Path file : listTree(root, skip)) {
+            addFileStamp(file).add(root.relativize(file).toString().replace('\\', '/'));
+        }
+        return this;
+    }
+
+    /**
+     * Adds the size and modification time of a file, a missing file is added as a marker
+     */
+    public Fingerprint addFileStamp(Path file) throws IOException {
+        if (!Files.isRegularFile(file)) {
+            return add("<missing>");
+        }
+        addLength(Files.size(file));
+        addLength(Files.getLastModifiedTime(file).toMillis());
+        return this;
+    }
+
+    private static List<Path> listTree(Path root, Predicate<Path> skip) throws IOException {
+        List<Path> files = new ArrayList<>();
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                return !dir.equals(root) && skip.test(dir) ? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (attrs.isRegularFile() && !skip.test(file)) {
+                    files.add(file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        Collections.sort(files);
+        return files;
+    }
+
+    private void addLength(long length) {
+        for (int i = 0; i < 8; i++) {
+            digest.update((byte) (length >>> (i * 8)));
+        }
+    }
+
+    /**
+     * @return the fingerprint as lower case hex
+     */
+    public String hex() {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+}
@@ -0,0 +1,188 @@
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.http.client.SimpleClientHttpRequestFactory;
+import org.springframework.util.StreamUtils;
+import org.springframework.web.client.DefaultResponseErrorHandler;
+import org.springframework.web.client.RestClientException;
+import org.springframework.web.client.RestTemplate;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Shared client for the readiness probes of the appium and wda servers.
+ * <p>
+ * One {@link RestTemplate} is reused for every probe so the connections to each endpoint are kept alive between probes.
+ * Every probe is bounded by the connect and read timeouts so a hung endpoint can't stall polling.
+ */
+@Slf4j
+public class HealthCheckClient {
+    public static final int DEFAULT_CONNECT_TIMEOUT = 500;
+    public static final int DEFAULT_READ_TIMEOUT = 1000;
+    public static final int DEFAULT_THREADS = 8;
+
+    private static final HealthCheckClient INSTANCE = new HealthCheckClient(DEFAULT_CONNECT_TIMEOUT, DEFAULT_READ_TIMEOUT, DEFAULT_THREADS);
+
+    private final RestTemplate restTemplate;
+    private final ExecutorService executor;
+    private final ConcurrentMap<String, ProbeStats> stats = new ConcurrentHashMap<>();
+
+    public static HealthCheckClient getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @param connectTimeout max time in ms to open a connection
+     * @param readTimeout    max time in ms to wait for the response
+     * @param threads        the number of probes that can be in flight at the same time
+     */
+    public HealthCheckClient(int connectTimeout, int readTimeout, int threads) {
+        SimpleClientHttpRequestFactory requestFactory = new SimpleClientHttpRequestFactory();
+        requestFactory.setConnectTimeout(connectTimeout);
+        requestFactory.setReadTimeout(readTimeout);
+
+        restTemplate = new RestTemplate(requestFactory);
+        //Any status is a valid answer for a probe, only 2xx means healthy
+        restTemplate.setErrorHandler(new DefaultResponseErrorHandler() {
+            @Override
+            public boolean hasError(ClientHttpResponse response) {
+                return false;
+            }
+        });
+
+        AtomicInteger count = new AtomicInteger();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(),
+                r -> {
+                    Thread thread = new Thread(r, "health-check-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        pool.allowCoreThreadTimeOut(true);
+        executor = pool;
+    }
+
+    /**
+     * Probes the url once
+     *
+     * @param url the status url to check
+     * @return true if the endpoint answered with a 2xx status
+     */
+    public boolean probe(String url) {
+        long start = System.nanoTime();
+        boolean healthy;
+        try {
+            Boolean result = restTemplate.execute(url, HttpMethod.GET, null, response -> {
+                //Read the whole body so the connection can be reused
+                StreamUtils.drain(response.getBody());
+                return response.getStatusCode().is2xxSuccessful();
+            });
+            healthy = Boolean.TRUE.equals(result);
+        } catch (RestClientException | IllegalArgumentException e) {
+            log.trace("Probe of {} failed: {}", url, e.getMessage());
+            healthy = false;
+        }
+        stats.computeIfAbsent(url, u -> new ProbeStats()).record(System.nanoTime() - start, healthy);
+        return healthy;
+    }
+
+    /**
+     * Probes the url without blocking the caller
+     */
+    public CompletableFuture<Boolean> probeAsync(String url) {
+        return CompletableFuture.supplyAsync(() -> probe(url), executor);
+    }
+
+    /**
+     * Probes all the urls at the same time
+     *
+     * @param urls the status urls to check
+     * @return completes once every url has been probed with the result for each url
+     */
+    public CompletableFuture<Map<String, Boolean>> probeAll(Collection<String> urls) {
+        Map<String, CompletableFuture<Boolean>> probes = new LinkedHashMap<>();
+        for (String url : urls) {
+            probes.computeIfAbsent(url, this::probeAsync);
+        }
+
+        return CompletableFuture.allOf(probes.values().toArray(new CompletableFuture<?>[0]))
+                .thenApply(v -> {
+                    Map<String, Boolean> results = new LinkedHashMap<>();
+                    probes.forEach((url, probe) -> results.put(url, probe.join()));
+                    return results;
+                });
+    }
+
+    /**
+     * Gets the latency stats for an endpoint
+     *
+     * @return the stats or null if the url was never probed
+     */
+    public ProbeStats getStats(String url) {
+        return stats.get(url);
+    }
+
+    public Map<String, ProbeStats> getAllStats() {
+        return stats;
+    }
+
+    /**
+     * Latency stats of the probes to one endpoint
+     */
+    public static class ProbeStats {
+        private final LongAdder count = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final AtomicLong maxNanos = new AtomicLong();
+        private final AtomicLong lastNanos = new AtomicLong();
+
+        void record(long nanos, boolean healthy) {
+            count.increment();
+            if (!healthy) {
+                failures.increment();
+            }
+            totalNanos.add(nanos);
+            maxNanos.accumulateAndGet(nanos, Math::max);
+            lastNanos.set(nanos);
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public long getFailures() {
+            return failures.sum();
+        }
+
+        public double getMeanMillis() {
+            long n = count.sum();
+            return n == 0 ? 0 : totalNanos.sum() / (double) n / 1_000_000;
+        }
+
+        public double getMaxMillis() {
+            return maxNanos.get() / 1_000_000.0;
+        }
+
+        public double getLastMillis() {
+            return lastNanos.get() / 1_000_000.0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("count=%d failures=%d mean=%.2fms max=%.2fms last=%.2fms",
+                    getCount(), getFailures(), getMeanMillis(), getMaxMillis(), getLastMillis());
+        }
+    }
+}
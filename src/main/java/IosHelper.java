@@ -5,47 +5,71 @@ import org.apache.commons.lang3.StringUtils;
 import org.zeroturnaround.exec.ProcessExecutor;
 import org.zeroturnaround.exec.ProcessResult;
 
-import java.util.LinkedList;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 @Slf4j
 public class IosHelper {
-    private static Pattern deviceParsingPattern = Pattern.compile("((.{0,})\\((.{0,})\\)\\s{0,}\\s\\[(.{0,})])|(((.{0,})\\((.{0,})\\))(\\s-*\\s*(.*)))|((\\w+ \\w+ -)(\\s-*\\s*(.*)))|((\\w*\\s\\-)(.*))");
 
-    @SneakyThrows
+    /**
+     * Gets the connected devices from the shared {@link DeviceWatcher}, instruments only runs when the devices it read
+     * last are older than {@link DeviceWatcher#DEFAULT_MAX_AGE}.
+     */
     public static List<IosDevice> getConnectedDevices() {
-        final List<IosDevice> devices = new LinkedList<>();
+        return DeviceWatcher.getInstance().getDevices();
+    }
+
+    /**
+     * Runs instruments to list the devices
+     *
+     * @return the raw output of instruments
+     */
+    @SneakyThrows
+    public static String listDevicesOutput() {
         final String command =  "instruments -s device";
 
-        ProcessResult result = new ProcessExecutor()
-                .command(command.split("\\s"))
-                .readOutput(true)
-                .execute();
+        CommandShell.Result result = CommandShell.getInstance().run(command.split("\\s"));
 
         if (result.getExitValue() != 0) {
-            log.error("Error running {}: exitCode: {} error: {}", command, result.getExitValue(), result.outputUTF8());
+            log.error("Error running {}: exitCode: {} error: {}", command, result.getExitValue(), result.getOutput());
         }
 
-        String[] lines = result.outputUTF8().split("\\r?\\n");
-        for (String line : lines) {
-            Matcher matcher = deviceParsingPattern.matcher(line);
-            String UUID;
-            if (matcher.find()) {
-                UUID = matcher.group(4);
-
-                if (!line.toLowerCase().contains("simulator") && !UUID.contains("-")) {
-                    IosDevice device = new IosDevice();
-                    device.setName(matcher.group(2));
-                    device.setVersion(matcher.group(3));
-                    device.setUuid(UUID);
-                    devices.add(device);
-                }
-            }
-        }
+        return result.getOutput();
+    }
+
+    /**
+     * Runs ideviceinfo to read the lockdown values and the disk usage of a device
+     *
+     * @return the values by their lockdown key, like ProductVersion, ProductType and AmountDataAvailable
+     */
+    public static Map<String, Object> deviceInfo(String uuid) throws Exception {
+        Map<String, Object> info = new HashMap<>(ideviceinfo("-u", uuid, "-x"));
+        info.putAll(ideviceinfo("-u", uuid, "-q", "com.apple.disk_usage", "-x"));
+        return info;
+    }
 
-        return devices;
+    /**
+     * Runs ideviceinfo in a process of its own, it can take seconds on a busy device and would hold up the short
+     * commands waiting for the few pooled shells
+     */
+    private static Map<String, Object> ideviceinfo(String... arguments) throws Exception {
+        List<String> command = new ArrayList<>();
+        command.add("ideviceinfo");
+        command.addAll(Arrays.asList(arguments));
+        ProcessResult result = new ProcessExecutor()
+                .command(command)
+                .readOutput(true)
+                .timeout(CommandShell.DEFAULT_TIMEOUT, TimeUnit.MILLISECONDS)
+                .execute();
+        if (result.getExitValue() != 0) {
+            throw new IOException("Error running " + command + ": exitCode: " + result.getExitValue() + " error: " + result.outputUTF8().trim());
+        }
+        return Plist.parseDict(result.output());
     }
 
     @Data
@@ -58,4 +82,4 @@ public class IosHelper {
             return StringUtils.isNotEmpty(name) ? name : "iPhone";
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,248 @@
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Keeps checking the wda servers and appium nodes once they are up, and restarts the ones that died or stopped
+ * answering.
+ * <p>
+ * A process that exits is noticed right away through its exit callback.  A process that is alive but wedged is
+ * noticed by the status probes, which run for every component at once on the shared scheduler.  Every failure is
+ * recorded on the {@link CircuitBreaker}, once the breaker of a device opens it isn't restarted until the breaker
+ * allows a try, and the scheduler doesn't hand the device out.
+ */
+@Slf4j
+public class LivenessWatchdog implements AutoCloseable {
+    public static long DEFAULT_CHECK_INTERVAL = 5 * Constants.ONE_SECOND;
+    //Probes that have to fail in a row before a live process is restarted, one slow answer isn't enough
+    public static int DEFAULT_MISSED_PROBES = 2;
+
+    private static final LivenessWatchdog INSTANCE = new LivenessWatchdog(CircuitBreaker.getInstance(),
+            HealthCheckClient.getInstance(), DEFAULT_CHECK_INTERVAL, DEFAULT_MISSED_PROBES);
+
+    private final CircuitBreaker breaker;
+    private final HealthCheckClient client;
+    private final int missedProbes;
+    private final Map<Object, Watched> watched = new ConcurrentHashMap<>();
+    private final ExecutorService restarter = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "liveness-restart");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final ScheduledFuture<?> checkTask;
+
+    /**
+     * @param breaker       records the failures of each device
+     * @param client        probes the status urls
+     * @param checkInterval the time in ms between probes
+     * @param missedProbes  the failed probes in a row that count as a failure
+     */
+    public LivenessWatchdog(CircuitBreaker breaker, HealthCheckClient client, long checkInterval, int missedProbes) {
+        this.breaker = breaker;
+        this.client = client;
+        this.missedProbes = missedProbes;
+        checkTask = PollingService.getScheduler().scheduleWithFixedDelay(this::check, checkInterval, checkInterval, TimeUnit.MILLISECONDS);
+    }
+
+    public static LivenessWatchdog getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Watches a started wda server, it is restarted in place when xcodebuild or iproxy dies or wda stops answering
+     */
+    public void watch(WdaServer server) {
+        watch(server, server.getUuid(), server::getProcesses, server.getServerUrl() + "/status", () -> {
+            server.stop();
+            server.start();
+            return server.isHealthy();
+        });
+    }
+
+    /**
+     * Watches a started appium server
+     *
+     * @param restart brings the server back, returns true if it worked
+     */
+    public void watch(AppiumService appium, Callable<Boolean> restart) {
+        watch(appium, "appium-" + appium.getPort(), appium::getProcesses, appium.getStatusUrl(), restart);
+    }
+
+    /**
+     * Watches a component
+     *
+     * @param component the component, used to stop watching it
+     * @param key       the circuit breaker key, the device uuid for the device servers
+     * @param processes gets the current processes of the component, none of them may exit
+     * @param statusUrl the url that answers while the component works
+     * @param restart   brings the component back, returns true if it worked
+     */
+    public void watch(Object component, String key, Supplier<List<ProcessHandle>> processes, String statusUrl,
+                      Callable<Boolean> restart) {
+        Watched entry = new Watched(key, processes, statusUrl, restart);
+        Watched previous = watched.put(component, entry);
+        if (previous != null) {
+            previous.removed = true;
+        }
+        hookExits(entry);
+        log.debug("Watching {}", key);
+    }
+
+    /**
+     * Stops watching, do this before stopping a component on purpose.  Waits for a restart that is under way so the
+     * component isn't started again after it was stopped.
+     */
+    public void unwatch(Object component) {
+        Watched entry = watched.remove(component);
+        if (entry != null) {
+            entry.removed = true;
+            synchronized (entry.restartLock) {
+                log.debug("Stopped watching {}", entry.key);
+            }
+        }
+    }
+
+    public boolean isWatching(Object component) {
+        return watched.containsKey(component);
+    }
+
+    /**
+     * Checks if the component is being restarted by the watchdog
+     */
+    public boolean isRestarting(Object component) {
+        Watched entry = watched.get(component);
+        return entry != null && entry.restarting;
+    }
+
+    /**
+     * Gets the number of times the component was restarted
+     */
+    public int getRestarts(Object component) {
+        Watched entry = watched.get(component);
+        return entry == null ? 0 : entry.restarts;
+    }
+
+    private void hookExits(Watched entry) {
+        for (ProcessHandle process : entry.processes.get()) {
+            if (entry.hooked.add(process.pid())) {
+                process.onExit().thenRun(() -> {
+                    //Only a process the component still uses counts, the old ones exit during a restart
+                    if (!entry.removed && !entry.restarting && entry.processes.get().contains(process)) {
+                        fail(entry, "process " + process.pid() + " exited");
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Probes every component that isn't being restarted
+     */
+    void check() {
+        for (Watched entry : new ArrayList<>(watched.values())) {
+            if (entry.restarting) {
+                continue;
+            }
+            if (!entry.processes.get().stream().allMatch(ProcessTeardown::isRunning)) {
+                fail(entry, "a process is not running");
+                continue;
+            }
+            client.probeAsync(entry.statusUrl).thenAccept(healthy -> {
+                if (entry.removed || entry.restarting) {
+                    return;
+                }
+                if (healthy) {
+                    entry.missed = 0;
+                    breaker.recordSuccess(entry.key);
+                } else if (++entry.missed >= missedProbes) {
+                    fail(entry, "missed " + entry.missed + " status probes");
+                }
+            });
+        }
+    }
+
+    private void fail(Watched entry, String reason) {
+        synchronized (entry) {
+            if (entry.removed || entry.restarting) {
+                return;
+            }
+            entry.restarting = true;
+        }
+        breaker.recordFailure(entry.key);
+        if (!breaker.tryRestart(entry.key)) {
+            log.debug("{} failed, {}, not restarting it while its circuit breaker is open", entry.key, reason);
+            entry.restarting = false;
+            return;
+        }
+
+        log.warn("{} failed, {}, restarting it", entry.key, reason);
+        restarter.execute(() -> {
+            synchronized (entry.restartLock) {
+                try {
+                    if (!entry.removed) {
+                        restart(entry);
+                    }
+                } finally {
+                    entry.restarting = false;
+                }
+            }
+        });
+    }
+
+    private void restart(Watched entry) {
+        boolean healthy;
+        try {
+            healthy = entry.restart.call();
+        } catch (Exception e) {
+            log.error("Error restarting {}", entry.key, e);
+            healthy = false;
+        }
+        entry.restarts++;
+        entry.missed = 0;
+        if (healthy) {
+            log.info("{} restarted", entry.key);
+            breaker.recordSuccess(entry.key);
+            hookExits(entry);
+        } else {
+            breaker.recordFailure(entry.key);
+        }
+    }
+
+    @Override
+    public void close() {
+        checkTask.cancel(false);
+        watched.values().forEach(entry -> entry.removed = true);
+        watched.clear();
+        restarter.shutdownNow();
+    }
+
+    private static class Watched {
+        private final String key;
+        private final Supplier<List<ProcessHandle>> processes;
+        private final String statusUrl;
+        private final Callable<Boolean> restart;
+        private final Set<Long> hooked = ConcurrentHashMap.newKeySet();
+        private final Object restartLock = new Object();
+        private volatile boolean restarting;
+        private volatile boolean removed;
+        private volatile int missed;
+        private volatile int restarts;
+
+        Watched(String key, Supplier<List<ProcessHandle>> processes, String statusUrl, Callable<Boolean> restart) {
+            this.key = key;
+            this.processes = processes;
+            this.statusUrl = statusUrl;
+            this.restart = restart;
+        }
+    }
+}
@@ -0,0 +1,406 @@
+import lombok.extern.slf4j.Slf4j;
+import org.zeroturnaround.exec.stream.LogOutputStream;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Captures the output of the child processes without slowing them down.
+ * <p>
+ * Each process stream writes its lines into a bounded buffer for its channel, when the buffer is full the line is
+ * dropped and counted instead of blocking the process.  One background thread drains every channel into rotating gzip
+ * files per device and session, and keeps the last lines of each device in memory so they can be added to a failure.
+ */
+@Slf4j
+public class LogCaptureService implements AutoCloseable {
+    public static int DEFAULT_CAPACITY = 8192;
+    public static long DEFAULT_MAX_FILE_BYTES = 16 * 1024 * 1024;
+    public static int DEFAULT_MAX_FILES = 4;
+    public static int DEFAULT_TAIL_LINES = 200;
+
+    /**
+     * How long the writer sleeps when every buffer is empty
+     */
+    private static final long IDLE_WAIT = TimeUnit.MILLISECONDS.toNanos(20);
+    private static final DateTimeFormatter SESSION_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss-SSS");
+    private static final DateTimeFormatter LINE_FORMAT = DateTimeFormatter.ofPattern("HH:mm:ss.SSS");
+
+    private static final LogCaptureService INSTANCE = new LogCaptureService(Constants.LOG_DIR,
+            DEFAULT_CAPACITY, DEFAULT_MAX_FILE_BYTES, DEFAULT_MAX_FILES, DEFAULT_TAIL_LINES);
+
+    static {
+        //The writer is a daemon, finish the gzip files before the jvm exits
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                INSTANCE.close();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "log-capture-shutdown"));
+    }
+
+    private final Path root;
+    private final int capacity;
+    private final long maxFileBytes;
+    private final int maxFiles;
+    private final int tailLines;
+
+    private final List<Channel> channels = new CopyOnWriteArrayList<>();
+    private final Map<String, Deque<String>> tails = new ConcurrentHashMap<>();
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final Thread writer;
+    private volatile boolean running = true;
+    private long flushRequested;
+    private long flushCompleted;
+
+    /**
+     * @param root         the directory the log files go in, one directory per device and session
+     * @param capacity     the lines buffered per channel before lines are dropped
+     * @param maxFileBytes the size of a file before it is rotated, before compression
+     * @param maxFiles     the files kept per channel, the oldest is deleted after a rotation
+     * @param tailLines    the lines kept in memory per device
+     */
+    public LogCaptureService(Path root, int capacity, long maxFileBytes, int maxFiles, int tailLines) {
+        this.root = root;
+        this.capacity = capacity;
+        this.maxFileBytes = maxFileBytes;
+        this.maxFiles = maxFiles;
+        this.tailLines = tailLines;
+        writer = new Thread(this::writeLoop, "log-capture-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    public static LogCaptureService getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Creates a session id from the current time, for when a process is started
+     */
+    public static String newSession() {
+        return LocalDateTime.now().format(SESSION_FORMAT);
+    }
+
+    /**
+     * Opens a channel to capture a process stream into
+     *
+     * @param device  the device the process belongs to, the tail is kept per device
+     * @param session the session the process belongs to
+     * @param stream  the name of the stream, used for the file name
+     * @return the channel, close it when the process has ended
+     */
+    public Channel open(String device, String session, String stream) {
+        Channel channel = new Channel(device, root.resolve(safeName(device)).resolve(safeName(session)), safeName(stream));
+        channels.add(channel);
+        return channel;
+    }
+
+    /**
+     * Gets the last lines captured for the device, oldest first
+     */
+    public List<String> getTail(String device) {
+        Deque<String> tail = tails.get(device);
+        if (tail == null) {
+            return new ArrayList<>();
+        }
+        synchronized (tail) {
+            return new ArrayList<>(tail);
+        }
+    }
+
+    /**
+     * Gets the number of lines written to the files
+     */
+    public long getWrittenLines() {
+        return written.get();
+    }
+
+    /**
+     * Gets the number of lines dropped because a buffer was full or the channel was already closed
+     */
+    public long getDroppedLines() {
+        return dropped.get();
+    }
+
+    /**
+     * Waits for every line captured so far to be written and flushed to the files
+     */
+    public void flush() throws InterruptedException {
+        long target;
+        synchronized (this) {
+            target = ++flushRequested;
+        }
+        LockSupport.unpark(writer);
+        synchronized (this) {
+            while (flushCompleted < target && writer.isAlive()) {
+                wait(100);
+            }
+        }
+    }
+
+    /**
+     * Writes what is left in the buffers and closes every file
+     */
+    @Override
+    public void close() throws InterruptedException {
+        running = false;
+        LockSupport.unpark(writer);
+        writer.join(10 * Constants.ONE_SECOND);
+    }
+
+    private void writeLoop() {
+        List<Entry> batch = new ArrayList<>(capacity);
+        while (true) {
+            long requested;
+            synchronized (this) {
+                requested = flushRequested;
+            }
+            boolean stopping = !running;
+
+            int drained = 0;
+            for (Channel channel : channels) {
+                drained += channel.drain(batch);
+                if (channel.remove()) {
+                    channel.closeFile();
+                    channels.remove(channel);
+                }
+            }
+
+            if (drained > 0) {
+                continue;
+            }
+            if (stopping) {
+                channels.forEach(Channel::closeFile);
+                channels.clear();
+                synchronized (this) {
+                    flushCompleted = Long.MAX_VALUE;
+                    notifyAll();
+                }
+                return;
+            }
+            //Everything captured before the flush was requested has been written
+            if (requested > flushCompleted) {
+                channels.forEach(Channel::flushFile);
+                synchronized (this) {
+                    flushCompleted = requested;
+                    notifyAll();
+                }
+            }
+            LockSupport.parkNanos(this, IDLE_WAIT);
+        }
+    }
+
+    private void addToTail(String device, List<Entry> lines) {
+        Deque<String> tail = tails.computeIfAbsent(device, key -> new ArrayDeque<>());
+        synchronized (tail) {
+            for (int i = Math.max(0, lines.size() - tailLines); i < lines.size(); i++) {
+                tail.addLast(lines.get(i).line);
+            }
+            while (tail.size() > tailLines) {
+                tail.removeFirst();
+            }
+        }
+    }
+
+    static String safeName(String name) {
+        return name.replaceAll("[^A-Za-z0-9._-]", "_");
+    }
+
+    private static class Entry {
+        private final long time;
+        private final String line;
+
+        Entry(long time, String line) {
+            this.time = time;
+            this.line = line;
+        }
+    }
+
+    /**
+     * One captured stream, lines offered to it never block
+     */
+    public class Channel implements AutoCloseable {
+        private final String device;
+        private final Path directory;
+        private final String stream;
+        private final ArrayBlockingQueue<Entry> buffer = new ArrayBlockingQueue<>(capacity);
+        private final AtomicLong channelDropped = new AtomicLong();
+        private final AtomicInteger openStreams = new AtomicInteger();
+        private volatile boolean closed;
+        //Set by the writer once the channel is closed and empty, lines offered after that are dropped
+        private boolean removed;
+
+        //Only used by the writer thread
+        private Writer out;
+        private long fileBytes;
+        private int fileIndex;
+
+        Channel(String device, Path directory, String stream) {
+            this.device = device;
+            this.directory = directory;
+            this.stream = stream;
+        }
+
+        /**
+         * Adds a line, dropping it if the buffer is full or the channel was closed and has been written out
+         *
+         * @return false if the line was dropped
+         */
+        public boolean offer(String line) {
+            boolean buffered;
+            synchronized (this) {
+                buffered = !removed && buffer.offer(new Entry(System.currentTimeMillis(), line));
+            }
+            if (buffered) {
+                //Wake the writer early when the buffer is filling up
+                if (buffer.remainingCapacity() < capacity / 2) {
+                    LockSupport.unpark(writer);
+                }
+                return true;
+            }
+            channelDropped.incrementAndGet();
+            dropped.incrementAndGet();
+            return false;
+        }
+
+        /**
+         * Gets an output stream that splits the bytes written to it into lines for this channel.  The channel is
+         * closed once every stream it handed out is closed, so close the stream when the process output has ended.
+         */
+        public LogOutputStream asStream() {
+            openStreams.incrementAndGet();
+            return new LogOutputStream() {
+                private boolean streamClosed;
+
+                @Override
+                protected void processLine(String line) {
+                    offer(line);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    //Writes the last line if it didn't end with a new line
+                    super.close();
+                    synchronized (this) {
+                        if (streamClosed) {
+                            return;
+                        }
+                        streamClosed = true;
+                    }
+                    if (openStreams.decrementAndGet() == 0) {
+                        Channel.this.close();
+                    }
+                }
+            };
+        }
+
+        public long getDroppedLines() {
+            return channelDropped.get();
+        }
+
+        /**
+         * Stops the channel, the lines already buffered are still written
+         */
+        @Override
+        public void close() {
+            closed = true;
+            LockSupport.unpark(writer);
+        }
+
+        /**
+         * Marks the channel removed if it is closed and everything offered was written
+         */
+        private synchronized boolean remove() {
+            if (closed && buffer.isEmpty()) {
+                removed = true;
+            }
+            return removed;
+        }
+
+        private int drain(List<Entry> batch) {
+            batch.clear();
+            buffer.drainTo(batch);
+            if (batch.isEmpty()) {
+                return 0;
+            }
+            try {
+                StringBuilder text = new StringBuilder();
+                for (Entry entry : batch) {
+                    if (out == null || fileBytes > maxFileBytes) {
+                        rotate();
+                    }
+                    text.setLength(0);
+                    text.append(LINE_FORMAT.format(LocalDateTime.ofInstant(Instant.ofEpochMilli(entry.time), ZoneId.systemDefault())))
+                            .append(' ').append(entry.line).append('\n');
+                    out.append(text);
+                    fileBytes += text.length();
+                }
+                written.addAndGet(batch.size());
+            } catch (IOException e) {
+                log.error("Error writing captured output of {} to {}", device, directory, e);
+                dropped.addAndGet(batch.size());
+                closeFile();
+            }
+            addToTail(device, batch);
+            return batch.size();
+        }
+
+        private void rotate() throws IOException {
+            closeFile();
+            Files.createDirectories(directory);
+            Path file = directory.resolve(stream + "." + fileIndex + ".log.gz");
+            out = new BufferedWriter(new OutputStreamWriter(
+                    new GZIPOutputStream(new BufferedOutputStream(Files.newOutputStream(file)), 64 * 1024, true),
+                    StandardCharsets.UTF_8));
+            fileBytes = 0;
+            Files.deleteIfExists(directory.resolve(stream + "." + (fileIndex - maxFiles) + ".log.gz"));
+            fileIndex++;
+        }
+
+        private void flushFile() {
+            if (out != null) {
+                try {
+                    out.flush();
+                } catch (IOException e) {
+                    log.error("Error flushing captured output of {}", device, e);
+                }
+            }
+        }
+
+        private void closeFile() {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    log.error("Error closing captured output of {}", device, e);
+                }
+                out = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,302 @@
+import com.google.gson.GsonBuilder;
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Keeps latency histograms of the startup phases, per device and for the whole host.
+ * <p>
+ * Get the timers for a device once with {@link #forDevice(String)}, recording a phase after that only updates a few
+ * atomic counters.  The histograms have a bucket per power of two nanoseconds, they are exported in the prometheus
+ * text format and as json at the end of a run.
+ */
+@Slf4j
+public class PhaseTimers {
+    static final int BUCKETS = 64;
+
+    /**
+     * The phases of starting the servers
+     */
+    public enum Phase {
+        KEYCHAIN_UNLOCK,
+        WDA_BUILD,
+        XCODEBUILD_QUEUE,
+        XCODEBUILD_LAUNCH,
+        IPROXY_LAUNCH,
+        WDA_READY,
+        WDA_START,
+        APPIUM_SPAWN,
+        APPIUM_READY,
+        APPIUM_START;
+
+        public String getLabel() {
+            return name().toLowerCase();
+        }
+    }
+
+    private static final PhaseTimers INSTANCE = new PhaseTimers(hostName());
+
+    private final String host;
+    private final Histogram[] hostHistograms = newHistograms();
+    private final ConcurrentMap<String, Device> devices = new ConcurrentHashMap<>();
+
+    public PhaseTimers(String host) {
+        this.host = host;
+    }
+
+    public static PhaseTimers getInstance() {
+        return INSTANCE;
+    }
+
+    private static String hostName() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (IOException e) {
+            return "localhost";
+        }
+    }
+
+    private static Histogram[] newHistograms() {
+        Histogram[] histograms = new Histogram[Phase.values().length];
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new Histogram();
+        }
+        return histograms;
+    }
+
+    /**
+     * Gets the timers for a device, keep it rather than looking it up for every phase
+     */
+    public Device forDevice(String device) {
+        return devices.computeIfAbsent(device, Device::new);
+    }
+
+    /**
+     * Gets the histogram of a phase on a device, or of the whole host when the device is null
+     */
+    public Histogram getHistogram(Phase phase, String device) {
+        if (device == null) {
+            return hostHistograms[phase.ordinal()];
+        }
+        return forDevice(device).histograms[phase.ordinal()];
+    }
+
+    /**
+     * Exports every phase that was recorded in the prometheus text format
+     */
+    public String toPrometheus() {
+        StringBuilder text = new StringBuilder();
+        text.append("# HELP ios_sample_phase_seconds Time spent in each startup phase per device\n");
+        text.append("# TYPE ios_sample_phase_seconds histogram\n");
+        for (Device device : sortedDevices()) {
+            for (Phase phase : Phase.values()) {
+                appendPrometheus(text, "ios_sample_phase_seconds",
+                        "phase=\"" + phase.getLabel() + "\",device=\"" + escape(device.name) + "\",host=\"" + escape(host) + "\"",
+                        device.histograms[phase.ordinal()]);
+            }
+        }
+        text.append("# HELP ios_sample_host_phase_seconds Time spent in each startup phase on the host\n");
+        text.append("# TYPE ios_sample_host_phase_seconds histogram\n");
+        for (Phase phase : Phase.values()) {
+            appendPrometheus(text, "ios_sample_host_phase_seconds",
+                    "phase=\"" + phase.getLabel() + "\",host=\"" + escape(host) + "\"",
+                    hostHistograms[phase.ordinal()]);
+        }
+        return text.toString();
+    }
+
+    private static void appendPrometheus(StringBuilder text, String name, String labels, Histogram histogram) {
+        long count = histogram.getCount();
+        if (count == 0) {
+            return;
+        }
+        long cumulative = 0;
+        int last = histogram.highestBucket();
+        for (int i = 0; i <= last; i++) {
+            cumulative += histogram.buckets.get(i);
+            text.append(name).append("_bucket{").append(labels).append(",le=\"").append(Histogram.upperBound(i) / 1e9).append("\"} ")
+                    .append(cumulative).append('\n');
+        }
+        text.append(name).append("_bucket{").append(labels).append(",le=\"+Inf\"} ").append(count).append('\n');
+        text.append(name).append("_sum{").append(labels).append("} ").append(histogram.sum.get() / 1e9).append('\n');
+        text.append(name).append("_count{").append(labels).append("} ").append(count).append('\n');
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    /**
+     * Exports every phase that was recorded as json, with the percentiles worked out from the buckets
+     */
+    public String toJson() {
+        Report report = new Report();
+        report.host = host;
+        for (Phase phase : Phase.values()) {
+            if (hostHistograms[phase.ordinal()].getCount() > 0) {
+                report.hostPhases.put(phase.getLabel(), hostHistograms[phase.ordinal()].snapshot());
+            }
+        }
+        for (Device device : sortedDevices()) {
+            Map<String, Snapshot> phases = new LinkedHashMap<>();
+            for (Phase phase : Phase.values()) {
+                if (device.histograms[phase.ordinal()].getCount() > 0) {
+                    phases.put(phase.getLabel(), device.histograms[phase.ordinal()].snapshot());
+                }
+            }
+            if (!phases.isEmpty()) {
+                report.devices.put(device.name, phases);
+            }
+        }
+        return new GsonBuilder().setPrettyPrinting().create().toJson(report);
+    }
+
+    /**
+     * Writes startup-phases.prom and startup-phases.json to the directory
+     */
+    public void writeReports(Path dir) throws IOException {
+        Files.createDirectories(dir);
+        Files.write(dir.resolve("startup-phases.prom"), toPrometheus().getBytes(StandardCharsets.UTF_8));
+        Files.write(dir.resolve("startup-phases.json"), toJson().getBytes(StandardCharsets.UTF_8));
+        log.info("Startup phase timings written to {}", dir.toAbsolutePath());
+    }
+
+    private List<Device> sortedDevices() {
+        List<Device> sorted = new ArrayList<>(devices.values());
+        sorted.sort((a, b) -> a.name.compareTo(b.name));
+        return sorted;
+    }
+
+    /**
+     * The timers of one device
+     */
+    public class Device {
+        private final String name;
+        private final Histogram[] histograms = newHistograms();
+
+        Device(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Records a phase that started at the given {@link System#nanoTime()}
+         *
+         * @return the current nano time, so it can start the next phase
+         */
+        public long record(Phase phase, long startNanos) {
+            long now = System.nanoTime();
+            recordNanos(phase, now - startNanos);
+            return now;
+        }
+
+        public void recordNanos(Phase phase, long nanos) {
+            histograms[phase.ordinal()].record(nanos);
+            hostHistograms[phase.ordinal()].record(nanos);
+        }
+    }
+
+    /**
+     * Counts of durations in buckets of powers of two nanoseconds
+     */
+    public static class Histogram {
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        /**
+         * Gets the bucket for a duration, bucket i holds durations up to 2^i nanoseconds
+         */
+        static int bucket(long nanos) {
+            if (nanos <= 1) {
+                return 0;
+            }
+            return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(nanos - 1));
+        }
+
+        static long upperBound(int bucket) {
+            return 1L << bucket;
+        }
+
+        public void record(long nanos) {
+            buckets.incrementAndGet(bucket(nanos));
+            count.incrementAndGet();
+            sum.addAndGet(nanos);
+            max.accumulateAndGet(nanos, Math::max);
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        /**
+         * Gets the upper bound of the bucket the percentile falls in
+         *
+         * @param percentile between 0 and 100
+         */
+        public long percentileNanos(double percentile) {
+            long total = count.get();
+            if (total == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+            long cumulative = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                cumulative += buckets.get(i);
+                if (cumulative >= rank) {
+                    return Math.min(upperBound(i), max.get());
+                }
+            }
+            return max.get();
+        }
+
+        int highestBucket() {
+            for (int i = BUCKETS - 1; i > 0; i--) {
+                if (buckets.get(i) > 0) {
+                    return i;
+                }
+            }
+            return 0;
+        }
+
+        Snapshot snapshot() {
+            Snapshot snapshot = new Snapshot();
+            snapshot.setCount(count.get());
+            snapshot.setSumMillis(sum.get() / 1e6);
+            snapshot.setMaxMillis(max.get() / 1e6);
+            snapshot.setP50Millis(percentileNanos(50) / 1e6);
+            snapshot.setP90Millis(percentileNanos(90) / 1e6);
+            snapshot.setP99Millis(percentileNanos(99) / 1e6);
+            return snapshot;
+        }
+    }
+
+    @Data
+    static class Snapshot {
+        private long count;
+        private double sumMillis;
+        private double maxMillis;
+        private double p50Millis;
+        private double p90Millis;
+        private double p99Millis;
+    }
+
+    private static class Report {
+        private String host;
+        private Map<String, Snapshot> hostPhases = new LinkedHashMap<>();
+        private Map<String, Map<String, Snapshot>> devices = new LinkedHashMap<>();
+    }
+}
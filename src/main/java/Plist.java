@@ -0,0 +1,156 @@
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.xml.sax.SAXException;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads and writes xml property lists, the format usbmuxd and the device tools talk in.
+ * <p>
+ * A dict is a Map, an array a List, integers are Longs and data is a byte array.
+ */
+public class Plist {
+    private static final String HEADER = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+            + "<!DOCTYPE plist PUBLIC \"-//Apple//DTD PLIST 1.0//EN\" \"http://www.apple.com/DTDs/PropertyList-1.0.dtd\">\n"
+            + "<plist version=\"1.0\">\n";
+
+    //Looking up the factory is slow, and builders can't be shared between threads
+    private static final ThreadLocal<DocumentBuilder> BUILDERS = ThreadLocal.withInitial(() -> {
+        try {
+            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+            //Don't go to apple.com for the dtd
+            factory.setFeature("http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
+            return factory.newDocumentBuilder();
+        } catch (ParserConfigurationException e) {
+            throw new IllegalStateException("No xml parser", e);
+        }
+    });
+
+    private Plist() {
+    }
+
+    public static byte[] write(Object value) {
+        StringBuilder xml = new StringBuilder(HEADER);
+        append(xml, value);
+        xml.append("</plist>\n");
+        return xml.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void append(StringBuilder xml, Object value) {
+        if (value instanceof Map) {
+            xml.append("<dict>\n");
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                xml.append("<key>").append(escape(entry.getKey().toString())).append("</key>\n");
+                append(xml, entry.getValue());
+            }
+            xml.append("</dict>\n");
+        } else if (value instanceof List) {
+            xml.append("<array>\n");
+            for (Object item : (List<?>) value) {
+                append(xml, item);
+            }
+            xml.append("</array>\n");
+        } else if (value instanceof Integer || value instanceof Long) {
+            xml.append("<integer>").append(value).append("</integer>\n");
+        } else if (value instanceof Number) {
+            xml.append("<real>").append(value).append("</real>\n");
+        } else if (value instanceof Boolean) {
+            xml.append((Boolean) value ? "<true/>\n" : "<false/>\n");
+        } else if (value instanceof byte[]) {
+            xml.append("<data>").append(Base64.getEncoder().encodeToString((byte[]) value)).append("</data>\n");
+        } else {
+            xml.append("<string>").append(escape(String.valueOf(value))).append("</string>\n");
+        }
+    }
+
+    private static String escape(String text) {
+        return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+    }
+
+    /**
+     * Parses a property list
+     *
+     * @return the top level value, usually a Map
+     * @throws IOException if it isn't a property list
+     */
+    public static Object parse(byte[] xml) throws IOException {
+        try {
+            DocumentBuilder builder = BUILDERS.get();
+            builder.reset();
+            Element root = builder.parse(new ByteArrayInputStream(xml)).getDocumentElement();
+            if (!root.getTagName().equals("plist")) {
+                throw new IOException("Not a property list: " + root.getTagName());
+            }
+            List<Element> children = elements(root);
+            return children.isEmpty() ? null : value(children.get(0));
+        } catch (SAXException e) {
+            throw new IOException("Error parsing property list", e);
+        }
+    }
+
+    /**
+     * Parses a property list that has a dict at the top
+     */
+    @SuppressWarnings("unchecked")
+    public static Map<String, Object> parseDict(byte[] xml) throws IOException {
+        Object value = parse(xml);
+        if (!(value instanceof Map)) {
+            throw new IOException("Property list is not a dict");
+        }
+        return (Map<String, Object>) value;
+    }
+
+    private static Object value(Element element) throws IOException {
+        String text = element.getTextContent().trim();
+        switch (element.getTagName()) {
+            case "dict":
+                Map<String, Object> dict = new LinkedHashMap<>();
+                List<Element> children = elements(element);
+                for (int i = 0; i + 1 < children.size(); i += 2) {
+                    dict.put(children.get(i).getTextContent(), value(children.get(i + 1)));
+                }
+                return dict;
+            case "array":
+                List<Object> array = new ArrayList<>();
+                for (Element child : elements(element)) {
+                    array.add(value(child));
+                }
+                return array;
+            case "integer":
+                return Long.parseLong(text);
+            case "real":
+                return Double.parseDouble(text);
+            case "true":
+                return true;
+            case "false":
+                return false;
+            case "data":
+                return Base64.getMimeDecoder().decode(text);
+            case "string":
+            case "date":
+                return element.getTextContent();
+            default:
+                throw new IOException("Unknown property list element: " + element.getTagName());
+        }
+    }
+
+    private static List<Element> elements(Element parent) {
+        List<Element> elements = new ArrayList<>();
+        for (Node node = parent.getFirstChild(); node != null; node = node.getNextSibling()) {
+            if (node instanceof Element) {
+                elements.add((Element) node);
+            }
+        }
+        return elements;
+    }
+}
@@ -0,0 +1,54 @@
+import lombok.Data;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Describes how long to wait between polling attempts
+ */
+@Data
+public class PollingBackoff {
+    private final long initialWait;
+    private final long maxWait;
+    private final double multiplier;
+    private final double jitter;
+
+    /**
+     * Always waits the same amount of time between attempts
+     *
+     * @param waitTime the amount of time between trying the polling action
+     */
+    public static PollingBackoff fixed(long waitTime) {
+        return new PollingBackoff(waitTime, waitTime, 1.0, 0.0);
+    }
+
+    /**
+     * Grows the wait time by the multiplier after every failed attempt, up to max wait.
+     *
+     * @param initialWait the wait after the first failed attempt
+     * @param maxWait     the largest wait between two attempts
+     * @param multiplier  how much the wait grows after each attempt
+     * @param jitter      fraction of the wait (0 - 1) that is randomized so polls started together spread out
+     */
+    public static PollingBackoff exponential(long initialWait, long maxWait, double multiplier, double jitter) {
+        if (initialWait < 0 || maxWait < initialWait || multiplier < 1.0 || jitter < 0.0 || jitter > 1.0) {
+            throw new IllegalArgumentException("Invalid backoff: initialWait=" + initialWait + " maxWait=" + maxWait
+                    + " multiplier=" + multiplier + " jitter=" + jitter);
+        }
+        return new PollingBackoff(initialWait, maxWait, multiplier, jitter);
+    }
+
+    /**
+     * Gets the wait before the next attempt
+     *
+     * @param attempt the number of attempts that have failed so far, starting at 1
+     * @return the wait in milliseconds
+     */
+    public long delay(int attempt) {
+        double wait = initialWait * Math.pow(multiplier, Math.max(0, attempt - 1));
+        wait = Math.min(wait, maxWait);
+        if (jitter > 0) {
+            wait -= wait * jitter * ThreadLocalRandom.current().nextDouble();
+        }
+        return Math.max(0, (long) wait);
+    }
+}
@@ -1,6 +1,15 @@
 import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
  * Service to make polling easier
  */
@@ -17,6 +26,31 @@ public class PollingService {
      */
     public static long DEFAULT_WAIT_TIME = 100;
 
+    /**
+     * One scheduler shared by every pending poll.  Nothing sleeps on it, a poll only holds a thread while the action runs.
+     */
+    private static final ScheduledThreadPoolExecutor SCHEDULER = createScheduler();
+
+    private static ScheduledThreadPoolExecutor createScheduler() {
+        AtomicInteger count = new AtomicInteger();
+        ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(
+                Math.max(2, Runtime.getRuntime().availableProcessors()),
+                r -> {
+                    Thread thread = new Thread(r, "polling-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        scheduler.setRemoveOnCancelPolicy(true);
+        return scheduler;
+    }
+
+    /**
+     * Gets the scheduler used for polling so other periodic work can share it
+     */
+    public static ScheduledExecutorService getScheduler() {
+        return SCHEDULER;
+    }
+
     public static boolean poll(PollingAction action) {
         return poll(action, DEFAULT_TIMEOUT, DEFAULT_WAIT_TIME);
     }
@@ -31,18 +65,125 @@ public class PollingService {
      */
     @SneakyThrows(InterruptedException.class)
     public static boolean poll(PollingAction action, long timeout, long waitTime) {
-        long t = System.currentTimeMillis();
-        boolean success;
+        CompletableFuture<Boolean> future = pollAsync(action, timeout, waitTime);
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            throw e;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
 
-        do {
-            success = action.poll();
+    public static CompletableFuture<Boolean> pollAsync(PollingAction action, long timeout, long waitTime) {
+        return pollAsync(action, timeout, PollingBackoff.fixed(waitTime));
+    }
 
-            if (!success) {
-                Thread.sleep(waitTime);
-            }
-        } while (!success && (t > System.currentTimeMillis() - timeout));
+    public static CompletableFuture<Boolean> pollAsync(PollingAction action, long timeout, PollingBackoff backoff) {
+        return pollAsync(action, timeout, backoff, null);
+    }
 
-        return success;
+    /**
+     * Polls without blocking the caller.  Cancelling the returned future stops any further attempts.
+     *
+     * @param action   The action that performs the polling operation
+     * @param timeout  the max time this operation can occur
+     * @param backoff  how long to wait between attempts
+     * @param executor where to run the action, null runs it on the polling scheduler which is fine for short actions
+     * @return completes with true when the action succeeds, false on timeout, or exceptionally if the action throws
+     */
+    public static CompletableFuture<Boolean> pollAsync(PollingAction action, long timeout, PollingBackoff backoff, Executor executor) {
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        PollingTask task = new PollingTask(action, backoff, executor, result,
+                System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout));
+        result.whenComplete((success, e) -> task.cancel());
+        task.schedule(0);
+        return result;
     }
 
+    /**
+     * A single pending poll.  Each attempt reschedules the next one until the result is complete.
+     */
+    private static class PollingTask implements Runnable {
+        private final PollingAction action;
+        private final PollingBackoff backoff;
+        private final Executor executor;
+        private final CompletableFuture<Boolean> result;
+        private final long deadline;
+        private int attempts;
+        private volatile ScheduledFuture<?> next;
+
+        PollingTask(PollingAction action, PollingBackoff backoff, Executor executor, CompletableFuture<Boolean> result, long deadline) {
+            this.action = action;
+            this.backoff = backoff;
+            this.executor = executor;
+            this.result = result;
+            this.deadline = deadline;
+        }
+
+        void schedule(long delay) {
+            if (result.isDone()) {
+                return;
+            }
+            next = SCHEDULER.schedule(this, delay, TimeUnit.MILLISECONDS);
+            //The result may have been cancelled while scheduling
+            if (result.isDone()) {
+                cancel();
+            }
+        }
+
+        void cancel() {
+            ScheduledFuture<?> scheduled = next;
+            if (scheduled != null) {
+                scheduled.cancel(false);
+            }
+        }
+
+        @Override
+        public void run() {
+            if (executor == null) {
+                attempt();
+            } else {
+                try {
+                    executor.execute(this::attempt);
+                } catch (RuntimeException e) {
+                    result.completeExceptionally(e);
+                }
+            }
+        }
+
+        private void attempt() {
+            if (result.isDone()) {
+                return;
+            }
+
+            boolean success;
+            try {
+                success = action.poll();
+            } catch (Throwable e) {
+                result.completeExceptionally(e);
+                return;
+            }
+
+            if (success) {
+                result.complete(true);
+                return;
+            }
+
+            long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remaining <= 0) {
+                result.complete(false);
+            } else {
+                schedule(Math.min(backoff.delay(++attempts), remaining));
+            }
+        }
+    }
 }
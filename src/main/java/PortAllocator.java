@@ -0,0 +1,405 @@
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Hands out the local ports of the servers, so two runs on the same host never pick the same port.
+ * <p>
+ * Every leased port is written to a file shared by all the jvms on the host, under a file lock.  A port is recorded
+ * with the jvm that leased it and is free again once the lease is closed or that jvm is gone.  The free ports are kept
+ * in a bitmap that is searched from where the last search stopped, so recently released ports aren't handed out again
+ * right away, and each candidate is bound once to make sure nothing outside of the runs is listening on it.
+ * <p>
+ * The leases and the bitmap are kept between calls and the file is only read again when another jvm replaced it, so
+ * an allocation doesn't parse every lease on the host.  It still takes the file lock and writes the file, otherwise
+ * the other jvms wouldn't see the lease.  The leases of jvms that are gone are dropped when the file is read, and
+ * before an allocation gives up for lack of free ports.
+ * <p>
+ * The port of a server that is left running after the run is handed over to the server process, so it stays leased
+ * as long as the server runs.  The next run can take the ports kept under a name back with {@link #reuse(String, int)}.
+ */
+@Slf4j
+public class PortAllocator {
+    public static int DEFAULT_FIRST_PORT = 7500;
+    public static int DEFAULT_LAST_PORT = 11499;
+
+    private static final String LEASE_FILE = "ports.properties";
+    private static final String LOCK_FILE = "ports.lock";
+    //Marks the name of a port that was handed over to a server process
+    private static final String KEPT = "kept:";
+
+    private static final PortAllocator INSTANCE = new PortAllocator(Constants.STATE_DIR, DEFAULT_FIRST_PORT, DEFAULT_LAST_PORT);
+
+    private final Path stateDir;
+    @Getter
+    private final int firstPort;
+    @Getter
+    private final int lastPort;
+    private final String owner;
+    //Ports leased by any jvm, or found in use by something else
+    private final BitSet used;
+    //Ports that failed the bind probe, tried again after the search wraps around
+    private final BitSet busy;
+    private int cursor;
+    //The leases as of the last read or write of the file, and the file they came from
+    private Properties leases = new Properties();
+    private String stamp;
+    //How often the file was read, for the tests
+    private int loads;
+
+    /**
+     * @param stateDir  where the leases and their lock are kept
+     * @param firstPort the lowest port handed out
+     * @param lastPort  the highest port handed out
+     */
+    public PortAllocator(Path stateDir, int firstPort, int lastPort) {
+        this.stateDir = stateDir;
+        this.firstPort = firstPort;
+        this.lastPort = lastPort;
+        used = new BitSet(lastPort - firstPort + 1);
+        busy = new BitSet(lastPort - firstPort + 1);
+        ProcessHandle current = ProcessHandle.current();
+        owner = current.pid() + "|" + startOf(current);
+    }
+
+    public static PortAllocator getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Leases free ports
+     *
+     * @param name  what the ports are for, shown in the lease file
+     * @param count the number of ports
+     * @return the lease, close it once the ports are no longer listened on
+     * @throws IllegalStateException if there aren't enough free ports
+     */
+    public synchronized Lease allocate(String name, int count) {
+        List<Integer> ports = new ArrayList<>(count);
+        update(false, leases -> {
+            for (int i = 0; i < count; i++) {
+                int port = nextFree(leases);
+                leases.setProperty(String.valueOf(port), owner + "|" + name);
+                ports.add(port);
+            }
+            return count > 0;
+        });
+        log.debug("Leased ports {} for {}", ports, name);
+        return new Lease(name, ports);
+    }
+
+    /**
+     * Leases the ports kept under the name by servers of an earlier run, and free ports for the rest.  The kept ports
+     * come first and are leased by this jvm again until they are handed over.
+     *
+     * @param name  what the ports are for, the same name the kept ports were leased with
+     * @param count the number of ports
+     * @return the lease, close it once the ports are no longer listened on
+     * @throws IllegalStateException if there aren't enough free ports
+     */
+    public synchronized Lease reuse(String name, int count) {
+        List<Integer> ports = new ArrayList<>(count);
+        update(true, leases -> {
+            List<Integer> leased = new ArrayList<>();
+            for (String key : leases.stringPropertyNames()) {
+                String[] parts = leases.getProperty(key).split("\\|", 3);
+                if (parts.length == 3 && parts[2].equals(KEPT + name)) {
+                    leased.add(Integer.parseInt(key));
+                }
+            }
+            Collections.sort(leased);
+            for (int port : leased.subList(0, Math.min(count, leased.size()))) {
+                leases.setProperty(String.valueOf(port), owner + "|" + name);
+                ports.add(port);
+            }
+            while (ports.size() < count) {
+                int port = nextFree(leases);
+                leases.setProperty(String.valueOf(port), owner + "|" + name);
+                ports.add(port);
+            }
+            return count > 0;
+        });
+        log.debug("Leased ports {} for {}", ports, name);
+        return new Lease(name, ports);
+    }
+
+    /**
+     * Hands a port leased by this jvm over to a server process, it stays leased until the process exits even after
+     * this jvm is gone
+     */
+    public synchronized void handOver(int port, ProcessHandle process) {
+        String kept = process.pid() + "|" + startOf(process) + "|" + KEPT;
+        update(false, leases -> {
+            String value = leases.getProperty(String.valueOf(port));
+            if (value != null && value.startsWith(owner + "|")) {
+                leases.setProperty(String.valueOf(port), kept + value.substring(owner.length() + 1));
+                return true;
+            }
+            return false;
+        });
+        log.debug("Handed port {} over to pid {}", port, process.pid());
+    }
+
+    /**
+     * Checks if a port is leased by any jvm that is still running
+     */
+    public synchronized boolean isLeased(int port) {
+        boolean[] leased = new boolean[1];
+        update(true, leases -> {
+            leased[0] = leases.containsKey(String.valueOf(port));
+            return false;
+        });
+        return leased[0];
+    }
+
+    /**
+     * Finds the next port that isn't leased and can be bound, marking it used
+     */
+    private int nextFree(Properties leases) {
+        int size = lastPort - firstPort + 1;
+        boolean dropped = false;
+        for (int wrapped = 0; wrapped < 2; ) {
+            int index = used.nextClearBit(cursor);
+            if (index >= size) {
+                //Ports that were busy may have been closed since
+                used.andNot(busy);
+                busy.clear();
+                cursor = 0;
+                wrapped++;
+                //The kept leases may belong to jvms that are gone by now
+                if (wrapped == 2 && !dropped) {
+                    dropped = true;
+                    if (dropDeadOwners(leases)) {
+                        rebuild(leases);
+                        wrapped = 1;
+                    }
+                }
+                continue;
+            }
+            used.set(index);
+            cursor = index + 1;
+            if (isBindable(firstPort + index)) {
+                return firstPort + index;
+            }
+            busy.set(index);
+        }
+        throw new IllegalStateException("No free port between " + firstPort + " and " + lastPort);
+    }
+
+    private static boolean isBindable(int port) {
+        try (ServerSocket socket = new ServerSocket()) {
+            socket.setReuseAddress(false);
+            socket.bind(new InetSocketAddress(port));
+            return true;
+        } catch (IOException e) {
+            log.debug("Port {} is in use: {}", port, e.getMessage());
+            return false;
+        }
+    }
+
+    private synchronized void release(Lease lease) {
+        update(false, leases -> {
+            boolean changed = false;
+            for (int port : lease.ports) {
+                //Only if it is still ours, a dead owner's port may have been leased again
+                if ((owner + "|" + lease.name).equals(leases.getProperty(String.valueOf(port)))) {
+                    leases.remove(String.valueOf(port));
+                    used.clear(port - firstPort);
+                    changed = true;
+                }
+            }
+            return changed;
+        });
+        log.debug("Released ports {} of {}", lease.ports, lease.name);
+    }
+
+    private interface Update {
+        /**
+         * @return if the leases were changed and have to be saved
+         */
+        boolean apply(Properties leases);
+    }
+
+    /**
+     * Applies the update to the leases and saves them if they changed, holding the lock so jvms running at the same
+     * time see each others leases.  The leases are read again and the bitmap rebuilt from them when another jvm
+     * replaced the file since, or when asked to check every owner; either way the ones of jvms and servers that are
+     * gone are dropped.
+     *
+     * @param check read the file and drop the leases of the owners that are gone even if the file didn't change
+     */
+    private void update(boolean check, Update update) {
+        boolean applied = false;
+        try {
+            Files.createDirectories(stateDir);
+            Path file = stateDir.resolve(LEASE_FILE);
+            try (FileChannel channel = FileChannel.open(stateDir.resolve(LOCK_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                 FileLock ignored = channel.lock()) {
+                boolean changed = false;
+                String current = stampOf(file);
+                if (check || !current.equals(stamp)) {
+                    leases = load(file);
+                    changed = dropDeadOwners(leases);
+                    rebuild(leases);
+                }
+                //Read the file again next time if the update fails half way
+                stamp = null;
+                changed |= update.apply(leases);
+                applied = true;
+                if (changed) {
+                    Path temp = Files.createTempFile(stateDir, LEASE_FILE, ".tmp");
+                    try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                        leases.store(writer, "port=ownerPid|ownerStart|name");
+                    }
+                    Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                    current = stampOf(file);
+                }
+                stamp = current;
+                return;
+            }
+        } catch (IOException e) {
+            log.warn("Could not update the port leases in {}, other runs won't see them: {}", stateDir, e.getMessage());
+        }
+        //Still hand out ports this jvm doesn't use, the bind probe keeps other runs mostly safe
+        if (!applied) {
+            update.apply(leases);
+        }
+    }
+
+    private Properties load(Path file) throws IOException {
+        Properties leases = new Properties();
+        if (Files.exists(file)) {
+            loads++;
+            try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                leases.load(reader);
+            } catch (IllegalArgumentException e) {
+                log.warn("Ignoring unreadable port leases {}: {}", file, e.getMessage());
+            }
+        }
+        return leases;
+    }
+
+    /**
+     * Identifies the version of the lease file, every save moves a new file in its place
+     */
+    private static String stampOf(Path file) throws IOException {
+        if (!Files.exists(file)) {
+            return "";
+        }
+        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        return attributes.fileKey() + "|" + attributes.lastModifiedTime().toMillis() + "|" + attributes.size();
+    }
+
+    synchronized int getLoads() {
+        return loads;
+    }
+
+    /**
+     * @return if any lease was dropped
+     */
+    private boolean dropDeadOwners(Properties leases) {
+        boolean dropped = false;
+        for (String port : leases.stringPropertyNames()) {
+            String[] parts = leases.getProperty(port).split("\\|", 3);
+            try {
+                long pid = Long.parseLong(parts[0]);
+                long start = Long.parseLong(parts[1]);
+                boolean alive = ProcessHandle.of(pid).filter(process -> process.isAlive() && startOf(process) == start).isPresent();
+                if (!alive) {
+                    log.debug("Port {} was leased by a jvm that is gone, freeing it", port);
+                    leases.remove(port);
+                    dropped = true;
+                }
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                leases.remove(port);
+                dropped = true;
+            }
+        }
+        return dropped;
+    }
+
+    private void rebuild(Properties leases) {
+        used.clear();
+        used.or(busy);
+        for (String key : leases.stringPropertyNames()) {
+            try {
+                int port = Integer.parseInt(key);
+                if (port >= firstPort && port <= lastPort) {
+                    used.set(port - firstPort);
+                }
+            } catch (NumberFormatException e) {
+                //Dropped with the next change
+            }
+        }
+    }
+
+    private static long startOf(ProcessHandle process) {
+        return process.info().startInstant().map(start -> start.toEpochMilli()).orElse(-1L);
+    }
+
+    /**
+     * Ports leased for one server, they stay leased until it is closed or the jvm exits, or the process they were
+     * handed over to exits
+     */
+    public class Lease implements AutoCloseable {
+        @Getter
+        private final String name;
+        private final List<Integer> ports;
+        private boolean closed;
+
+        Lease(String name, List<Integer> ports) {
+            this.name = name;
+            this.ports = ports;
+        }
+
+        public List<Integer> getPorts() {
+            return Collections.unmodifiableList(ports);
+        }
+
+        public int getPort(int index) {
+            return ports.get(index);
+        }
+
+        /**
+         * Hands every port over to the server process, closing the lease does nothing afterwards
+         */
+        public void handOver(ProcessHandle process) {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+            }
+            ports.forEach(port -> PortAllocator.this.handOver(port, process));
+        }
+
+        @Override
+        public void close() {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+            }
+            release(this);
+        }
+    }
+}
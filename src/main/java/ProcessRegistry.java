@@ -0,0 +1,206 @@
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Properties;
+
+/**
+ * Remembers every server process this jvm started in a small file, so the next run can stop the ones left behind.
+ * <p>
+ * A process is recorded with its start time and the jvm that started it.  An entry is only reaped when the jvm that
+ * started it is gone and a process with the same pid and start time is still running, so a reused pid or a process
+ * of another run that is still going is never touched.  Entries are removed again when their process exits.
+ */
+@Slf4j
+public class ProcessRegistry {
+    private static final String REGISTRY_FILE = "processes.properties";
+    private static final String LOCK_FILE = "processes.lock";
+
+    private static final ProcessRegistry INSTANCE = new ProcessRegistry(Constants.STATE_DIR);
+
+    private final Path stateDir;
+    private final ProcessHandle owner = ProcessHandle.current();
+
+    /**
+     * @param stateDir where the registry and its lock are kept
+     */
+    public ProcessRegistry(Path stateDir) {
+        this.stateDir = stateDir;
+    }
+
+    public static ProcessRegistry getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Records a process, it is forgotten once it exits
+     *
+     * @param device the device the process serves
+     * @param role   what the process is, like xcodebuild or appium
+     */
+    public void register(ProcessHandle process, String device, String role) {
+        Entry entry = new Entry();
+        entry.setPid(process.pid());
+        entry.setStart(startOf(process));
+        entry.setDevice(device);
+        entry.setRole(role);
+        entry.setOwnerPid(owner.pid());
+        entry.setOwnerStart(startOf(owner));
+        update(entries -> entries.setProperty(String.valueOf(entry.getPid()), entry.format()));
+        process.onExit().thenRun(() -> update(entries -> {
+            //The pid may have been taken by a newer process already
+            String current = entries.getProperty(String.valueOf(entry.getPid()));
+            if (entry.format().equals(current)) {
+                entries.remove(String.valueOf(entry.getPid()));
+            }
+        }));
+    }
+
+    /**
+     * Gets the recorded processes
+     */
+    public List<Entry> getEntries() {
+        List<Entry> result = new ArrayList<>();
+        update(entries -> {
+            for (String pid : entries.stringPropertyNames()) {
+                Entry entry = Entry.parse(pid, entries.getProperty(pid));
+                if (entry != null) {
+                    result.add(entry);
+                }
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Stops the recorded processes whose jvm is gone, the entries of processes that are no longer running are dropped
+     *
+     * @return the number of processes stopped
+     */
+    public int reapOrphans() {
+        List<ProcessHandle> orphans = new ArrayList<>();
+        update(entries -> {
+            for (String pid : entries.stringPropertyNames()) {
+                Entry entry = Entry.parse(pid, entries.getProperty(pid));
+                if (entry == null) {
+                    entries.remove(pid);
+                    continue;
+                }
+                if (matches(entry.getOwnerPid(), entry.getOwnerStart()).isPresent()) {
+                    //Started by a jvm that is still running
+                    continue;
+                }
+                Optional<ProcessHandle> process = matches(entry.getPid(), entry.getStart());
+                if (process.isPresent()) {
+                    log.info("Stopping {} for {} left behind by an earlier run, pid {}", entry.getRole(), entry.getDevice(), pid);
+                    orphans.add(process.get());
+                }
+                entries.remove(pid);
+            }
+        });
+        if (!orphans.isEmpty()) {
+            ProcessTeardown.destroy(ProcessTeardown.DEFAULT_TIMEOUT, orphans);
+        }
+        return orphans.size();
+    }
+
+    /**
+     * Finds the running process with the pid, if it started at the given time
+     */
+    private static Optional<ProcessHandle> matches(long pid, long start) {
+        if (start < 0) {
+            //Without a start time the pid alone could be anything
+            return Optional.empty();
+        }
+        return ProcessHandle.of(pid).filter(process -> process.isAlive() && startOf(process) == start);
+    }
+
+    private static long startOf(ProcessHandle process) {
+        return process.info().startInstant().map(start -> start.toEpochMilli()).orElse(-1L);
+    }
+
+    private interface Update {
+        void apply(Properties entries) throws IOException;
+    }
+
+    /**
+     * Reads the registry, applies the update and saves it if it changed, holding the lock so jvms running at the same
+     * time don't lose each others entries
+     */
+    private synchronized void update(Update update) {
+        try {
+            Files.createDirectories(stateDir);
+            Path file = stateDir.resolve(REGISTRY_FILE);
+            try (FileChannel channel = FileChannel.open(stateDir.resolve(LOCK_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                 FileLock ignored = channel.lock()) {
+                Properties entries = new Properties();
+                if (Files.exists(file)) {
+                    try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                        entries.load(reader);
+                    } catch (IllegalArgumentException e) {
+                        log.warn("Ignoring unreadable process registry {}: {}", file, e.getMessage());
+                    }
+                }
+                Properties before = (Properties) entries.clone();
+                update.apply(entries);
+                if (!entries.equals(before)) {
+                    Path temp = Files.createTempFile(stateDir, REGISTRY_FILE, ".tmp");
+                    try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                        entries.store(writer, "pid=start|ownerPid|ownerStart|role|device");
+                    }
+                    Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+        } catch (IOException e) {
+            log.warn("Could not update the process registry in {}: {}", stateDir, e.getMessage());
+        }
+    }
+
+    /**
+     * A recorded process, start times are in epoch ms
+     */
+    @Data
+    public static class Entry {
+        private long pid;
+        private long start;
+        private String device;
+        private String role;
+        private long ownerPid;
+        private long ownerStart;
+
+        String format() {
+            return start + "|" + ownerPid + "|" + ownerStart + "|" + role + "|" + device;
+        }
+
+        static Entry parse(String pid, String value) {
+            String[] parts = value.split("\\|", 5);
+            if (parts.length != 5) {
+                return null;
+            }
+            try {
+                Entry entry = new Entry();
+                entry.setPid(Long.parseLong(pid));
+                entry.setStart(Long.parseLong(parts[0]));
+                entry.setOwnerPid(Long.parseLong(parts[1]));
+                entry.setOwnerStart(Long.parseLong(parts[2]));
+                entry.setRole(parts[3]);
+                entry.setDevice(parts[4]);
+                return entry;
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,168 @@
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Collectors;
+
+/**
+ * Stops whole process trees in parallel within one deadline.
+ * <p>
+ * The descendants of every process are found before anything is signalled, since they are re-parented once their
+ * parent dies.  Every process is asked to stop at once, the ones still running after the graceful part of the
+ * deadline are killed, and whatever survives the deadline is reported.
+ */
+@Slf4j
+public class ProcessTeardown {
+    /**
+     * Default max time for a teardown
+     */
+    public static long DEFAULT_TIMEOUT = 10 * Constants.ONE_SECOND;
+
+    /**
+     * Part of the timeout the processes get to exit on their own before they are killed
+     */
+    public static double GRACEFUL_SHARE = 0.5;
+
+    /**
+     * How often the processes are checked while waiting for them
+     */
+    private static final long POLL_INTERVAL = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final Set<ProcessHandle> roots = new LinkedHashSet<>();
+
+    /**
+     * Adds a process to stop along with its descendants
+     */
+    public ProcessTeardown add(ProcessHandle process) {
+        if (process != null) {
+            roots.add(process);
+        }
+        return this;
+    }
+
+    public ProcessTeardown addAll(Collection<ProcessHandle> processes) {
+        processes.forEach(this::add);
+        return this;
+    }
+
+    /**
+     * Stops the process trees
+     *
+     * @param processes the processes to stop with their descendants, null entries are ignored
+     * @return the processes still running after the timeout
+     */
+    public static List<ProcessHandle> destroy(long timeout, ProcessHandle... processes) {
+        return new ProcessTeardown().addAll(Arrays.asList(processes)).run(timeout);
+    }
+
+    public static List<ProcessHandle> destroy(long timeout, Collection<ProcessHandle> processes) {
+        return new ProcessTeardown().addAll(processes).run(timeout);
+    }
+
+    /**
+     * Stops every process added and their descendants
+     *
+     * @param timeout the max time in ms for the whole teardown
+     * @return the processes still running after the timeout
+     */
+    public List<ProcessHandle> run(long timeout) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        long graceful = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos((long) (timeout * GRACEFUL_SHARE));
+
+        //Children first so a parent doesn't see them die and start new ones
+        Set<ProcessHandle> all = new LinkedHashSet<>();
+        for (ProcessHandle root : roots) {
+            root.descendants().forEach(all::add);
+        }
+        all.addAll(roots);
+        List<ProcessHandle> alive = all.stream().filter(ProcessTeardown::isRunning).collect(Collectors.toList());
+        if (alive.isEmpty()) {
+            return alive;
+        }
+
+        long start = System.nanoTime();
+        alive.forEach(ProcessHandle::destroy);
+        alive = await(alive, graceful);
+
+        if (!alive.isEmpty()) {
+            log.info("Killing {} processes that did not stop gracefully", alive.size());
+            alive.forEach(ProcessHandle::destroyForcibly);
+            alive = await(alive, deadline);
+        }
+
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        if (alive.isEmpty()) {
+            log.debug("Stopped {} processes in {}ms", all.size(), elapsed);
+        } else {
+            for (ProcessHandle survivor : alive) {
+                log.error("Process {} survived teardown: {}", survivor.pid(), survivor.info().commandLine().orElse("unknown"));
+            }
+        }
+        return alive;
+    }
+
+    /**
+     * Waits for the processes to exit until the deadline
+     *
+     * @return the processes still running
+     */
+    private static List<ProcessHandle> await(List<ProcessHandle> processes, long deadline) {
+        List<ProcessHandle> running = processes;
+        while (!running.isEmpty()) {
+            List<CompletableFuture<ProcessHandle>> exits = new ArrayList<>();
+            running.forEach(process -> exits.add(process.onExit()));
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                break;
+            }
+            try {
+                //Orphans never complete their exit future, check on them every so often
+                CompletableFuture.allOf(exits.toArray(new CompletableFuture<?>[0]))
+                        .get(Math.min(remaining, POLL_INTERVAL), TimeUnit.NANOSECONDS);
+            } catch (TimeoutException | ExecutionException e) {
+                //Checked below
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            running = running.stream().filter(ProcessTeardown::isRunning).collect(Collectors.toList());
+        }
+        return running.stream().filter(ProcessTeardown::isRunning).collect(Collectors.toList());
+    }
+
+    /**
+     * Checks if the process is still running, a zombie is alive until its new parent gets round to reaping it but it
+     * is already stopped
+     */
+    static boolean isRunning(ProcessHandle process) {
+        if (!process.isAlive()) {
+            return false;
+        }
+        Path stat = Paths.get("/proc", String.valueOf(process.pid()), "stat");
+        if (!Files.exists(stat)) {
+            return true;
+        }
+        try {
+            //The state follows the command name, which is in brackets and can contain anything
+            String text = new String(Files.readAllBytes(stat), StandardCharsets.UTF_8);
+            int end = text.lastIndexOf(')');
+            return end < 0 || end + 2 >= text.length() || text.charAt(end + 2) != 'Z';
+        } catch (IOException e) {
+            //It went away while reading
+            return process.isAlive();
+        }
+    }
+}
@@ -0,0 +1,231 @@
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.support.PathMatchingResourcePatternResolver;
+import org.springframework.core.io.support.ResourcePatternResolver;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * Installs the code signing keys into the keychain and sets the wda runner bundle id, once per change of the inputs.
+ * <p>
+ * The fingerprint of the codesign files, the keychain, the bundle ids and the project file is recorded after a run,
+ * later runs with the same fingerprint are skipped without starting any process.  The work is done under a file lock
+ * so only one jvm provisions at a time, the others see the recorded fingerprint once they get the lock.
+ */
+@Slf4j
+public class Provisioner {
+    private static final String FINGERPRINT_FILE = "provisioned";
+    private static final String LOCK_FILE = "provisioning.lock";
+
+    private static final Provisioner INSTANCE = new Provisioner(
+            Constants.STATE_DIR,
+            Constants.WDA_PROJECT_PATH.resolve(Constants.WDA_PROJECT_DIR).resolve(Constants.PROJECT_FILE),
+            Constants.KEYCHAIN,
+            Provisioner::findCodesignFiles,
+            Provisioner::importKeys);
+
+    /**
+     * Installs the keys into the keychain
+     */
+    @FunctionalInterface
+    public interface KeyInstaller {
+        void install(Path keychain, List<Path> keys) throws Exception;
+    }
+
+    private final Path stateDir;
+    private final Path projectFile;
+    private final Path keychain;
+    private final Callable<List<Path>> codesignFiles;
+    private final KeyInstaller keyInstaller;
+    private boolean provisioned;
+
+    /**
+     * @param stateDir      where the fingerprint and lock are kept
+     * @param projectFile   the wda project.pbxproj to set the bundle id in
+     * @param keychain      the keychain to install the keys into
+     * @param codesignFiles finds the keys and certificates to install
+     * @param keyInstaller  installs the keys
+     */
+    public Provisioner(Path stateDir, Path projectFile, Path keychain, Callable<List<Path>> codesignFiles, KeyInstaller keyInstaller) {
+        this.stateDir = stateDir;
+        this.projectFile = projectFile;
+        this.keychain = keychain;
+        this.codesignFiles = codesignFiles;
+        this.keyInstaller = keyInstaller;
+    }
+
+    public static Provisioner getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Makes sure the keys are installed and the bundle id is set, doing nothing if that was done for the same inputs
+     *
+     * @return false if provisioning failed, the servers may not work
+     */
+    public synchronized boolean provision() {
+        if (provisioned) {
+            return true;
+        }
+        try {
+            List<Path> keys = codesignFiles.call();
+            Path fingerprintFile = stateDir.resolve(FINGERPRINT_FILE);
+            if (fingerprint(keys).equals(readFingerprint(fingerprintFile))) {
+                log.debug("Keychain and bundle id already provisioned");
+                provisioned = true;
+                return true;
+            }
+
+            Files.createDirectories(stateDir);
+            try (FileChannel channel = FileChannel.open(stateDir.resolve(LOCK_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                 FileLock ignored = channel.lock()) {
+                //Another jvm may have done it while this one waited for the lock
+                if (!fingerprint(keys).equals(readFingerprint(fingerprintFile))) {
+                    log.info("Provisioning keychain {} and wda bundle id", keychain);
+                    keyInstaller.install(keychain, keys);
+                    updateBundleId();
+                    writeFingerprint(fingerprintFile, fingerprint(keys));
+                }
+            }
+            provisioned = true;
+            return true;
+        } catch (Exception e) {
+            log.error("Error provisioning keychain and bundle id.  WDA server may not work.", e);
+            return false;
+        }
+    }
+
+    /**
+     * Gets the fingerprint of everything provisioning depends on, the project file is included so a reinstalled wda
+     * is provisioned again
+     */
+    String fingerprint(List<Path> keys) throws IOException {
+        Fingerprint fingerprint = Fingerprint.create()
+                .add(keychain.toAbsolutePath().toString())
+                .add(String.valueOf(Files.exists(keychain) || Files.exists(Paths.get(keychain + "-db"))))
+                .add(Constants.ORIG_WDA_RUNNER_BUNDLE_ID)
+                .add(Constants.WDA_RUNNER_BUNDLE_ID)
+                .addFile(projectFile);
+        List<Path> sorted = new ArrayList<>(keys);
+        Collections.sort(sorted);
+        for (Path key : sorted) {
+            fingerprint.add(key.getFileName().toString()).addFile(key);
+        }
+        return fingerprint.hex();
+    }
+
+    private static String readFingerprint(Path file) throws IOException {
+        if (!Files.exists(file)) {
+            return null;
+        }
+        return new String(Files.readAllBytes(file), StandardCharsets.UTF_8).trim();
+    }
+
+    private static void writeFingerprint(Path file, String fingerprint) throws IOException {
+        Path temp = Files.createTempFile(file.getParent(), FINGERPRINT_FILE, ".tmp");
+        Files.write(temp, fingerprint.getBytes(StandardCharsets.UTF_8));
+        Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Backs up the project file the first time and replaces the bundle id
+     */
+    private void updateBundleId() throws IOException {
+        Path backupProjectFile = projectFile.resolveSibling(projectFile.getFileName() + ".old");
+        if (!Files.exists(backupProjectFile)) {
+            Files.copy(projectFile, backupProjectFile);
+            log.debug("Backed up wda project file");
+        }
+        if (replaceBundleId(projectFile)) {
+            log.info("Replaced the bundle id to be {}", Constants.WDA_RUNNER_BUNDLE_ID);
+        }
+    }
+
+    /**
+     * Replaces the original wda runner bundle id in the project file.  The file is streamed to a temp file next to it
+     * which is moved over the original, so a reader never sees half a file.  The temp file gets the permissions of the
+     * original, the project is shared with appium.  A temp file left by a crash is ignored by the {@link WdaBuildCache}.
+     *
+     * @return true if the file had the original bundle id and was rewritten
+     */
+    static boolean replaceBundleId(Path projectFile) throws IOException {
+        Path temp = Files.createTempFile(projectFile.toAbsolutePath().getParent(), projectFile.getFileName().toString(), WdaBuildCache.TEMP_SUFFIX);
+        boolean replaced = false;
+        try {
+            try (BufferedReader reader = Files.newBufferedReader(projectFile, StandardCharsets.UTF_8);
+                 BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.contains(Constants.ORIG_WDA_RUNNER_BUNDLE_ID)) {
+                        line = line.replace(Constants.ORIG_WDA_RUNNER_BUNDLE_ID, Constants.WDA_RUNNER_BUNDLE_ID);
+                        replaced = true;
+                    }
+                    writer.write(line);
+                    writer.newLine();
+                }
+            }
+            if (replaced) {
+                //Temp files are only readable by their owner
+                if (Files.getFileStore(temp).supportsFileAttributeView(PosixFileAttributeView.class)) {
+                    Files.setPosixFilePermissions(temp, Files.getPosixFilePermissions(projectFile));
+                }
+                Files.move(temp, projectFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            }
+            return replaced;
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Finds the keys and certificates in codesign on the classpath
+     */
+    static List<Path> findCodesignFiles() throws IOException {
+        ResourcePatternResolver resolver = new PathMatchingResourcePatternResolver(Provisioner.class.getClassLoader());
+        List<Path> keys = new ArrayList<>();
+        for (Resource resource : resolver.getResources("classpath*:/codesign/*.*")) {
+            keys.add(resource.getFile().toPath().toAbsolutePath());
+        }
+        return keys;
+    }
+
+    /**
+     * Runs the import keychain script to create the keychain and import the keys
+     */
+    static void importKeys(Path keychain, List<Path> keys) throws Exception {
+        List<String> command = new ArrayList<>();
+        command.add(new ClassPathResource("scripts/import_keychain.sh").getFile().getAbsolutePath());
+
+        //Set the keychain
+        final String keychainPath = keychain.toAbsolutePath().toString();
+        command.add("-f");
+        command.add(keychainPath);
+        for (Path key : keys) {
+            command.add(key.toString());
+        }
+
+        CommandShell.Result result = CommandShell.getInstance()
+                .run(command, Collections.singletonMap("KEYPASS", Constants.KEYCHAIN_PASSWORD), null);
+
+        if (result.getExitValue() != 0) {
+            throw new IOException("Error creating keychain: " + keychainPath + ": " + result.getOutput());
+        }
+        log.info("Keychain created at {}", keychainPath);
+    }
+}
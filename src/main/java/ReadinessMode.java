@@ -0,0 +1,14 @@
+/**
+ * How a service finds out it is ready to accept requests
+ */
+public enum ReadinessMode {
+    /**
+     * Poll the status endpoint once a second
+     */
+    HTTP_POLL,
+
+    /**
+     * Watch the process output for the ready marker and confirm with the status endpoint
+     */
+    LOG_STREAM
+}
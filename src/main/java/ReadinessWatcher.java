@@ -0,0 +1,108 @@
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.output.TeeOutputStream;
+import org.zeroturnaround.exec.stream.LogOutputStream;
+import org.zeroturnaround.exec.stream.StreamPumper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Watches the output of a process line by line and completes as soon as one of the ready markers shows up.
+ */
+@Slf4j
+public class ReadinessWatcher extends LogOutputStream {
+    /**
+     * Max time to confirm with http once the marker has been seen
+     */
+    public static long CONFIRM_TIMEOUT = 10 * Constants.ONE_SECOND;
+
+    private final List<String> markers;
+    private final CompletableFuture<String> ready = new CompletableFuture<>();
+
+    public ReadinessWatcher(String... markers) {
+        this.markers = Arrays.asList(markers);
+    }
+
+    @Override
+    protected void processLine(String line) {
+        if (ready.isDone()) {
+            return;
+        }
+        for (String marker : markers) {
+            if (line.contains(marker)) {
+                log.debug("Found ready marker: {}", line);
+                ready.complete(line);
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        super.close();
+        ready.completeExceptionally(new IOException("Output ended before a ready marker was found"));
+    }
+
+    /**
+     * Completes with the line that contained the marker
+     */
+    public CompletableFuture<String> getReady() {
+        return ready;
+    }
+
+    /**
+     * Copies the stream to the output and this watcher on a background thread
+     *
+     * @param input  the process output
+     * @param output where the output should go as well, can be null
+     * @param name   name of the pumping thread
+     */
+    public void watch(InputStream input, OutputStream output, String name) {
+        OutputStream target = this;
+        if (output != null) {
+            target = new TeeOutputStream(output, this);
+        }
+        Thread thread = new Thread(new StreamPumper(input, target, true), name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Waits for the marker and then confirms with the probe.  If the marker never shows up the probe is polled slowly
+     * as a fallback, so a changed log format only costs time.
+     *
+     * @param marker  completes when the marker is found in the output
+     * @param probe   the http probe, may throw if the process died
+     * @param timeout the max time to wait for the server to be ready
+     * @return completes with true once the server is ready, false on timeout
+     */
+    public static CompletableFuture<Boolean> awaitReady(CompletableFuture<String> marker, PollingAction probe, long timeout) {
+        CompletableFuture<Boolean> fallback = PollingService.pollAsync(probe, timeout,
+                PollingBackoff.exponential(Constants.ONE_SECOND, 5 * Constants.ONE_SECOND, 1.5, 0.2));
+        CompletableFuture<Boolean> confirmed = marker.thenCompose(line ->
+                PollingService.pollAsync(probe, CONFIRM_TIMEOUT, PollingBackoff.fixed(50)));
+
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        confirmed.whenComplete((success, e) -> {
+            if (e == null && success) {
+                result.complete(true);
+            }
+        });
+        fallback.whenComplete((success, e) -> {
+            if (e != null) {
+                result.completeExceptionally(e);
+            } else {
+                result.complete(success);
+            }
+        });
+        result.whenComplete((success, e) -> {
+            fallback.cancel(true);
+            confirmed.cancel(true);
+        });
+        return result;
+    }
+}
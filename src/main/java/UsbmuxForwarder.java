@@ -0,0 +1,616 @@
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Forwards local ports to ports on the devices through usbmuxd, like iproxy does but for every device from one thread.
+ * <p>
+ * Each accepted connection opens a connection to usbmuxd, asks it to connect to the device port and then relays the
+ * bytes both ways.  Bytes are read into direct buffers from a pool and written straight out, a connection only holds
+ * a buffer while the other side is slow to take it.  The device ids are looked up the first time a device is used.
+ * <p>
+ * Java can't open the unix socket of usbmuxd, so it is reached over tcp, set with the usbmuxd.address system
+ * property.  On a mac it can be exposed with
+ * <code>socat TCP-LISTEN:27015,bind=127.0.0.1,reuseaddr,fork UNIX-CONNECT:/var/run/usbmuxd</code>.  Without it the
+ * servers keep using iproxy.
+ */
+@Slf4j
+public class UsbmuxForwarder implements AutoCloseable {
+    public static int BUFFER_SIZE = 64 * 1024;
+    public static int MAX_POOLED_BUFFERS = 64;
+
+    private static final int HEADER_SIZE = 16;
+    private static final int VERSION = 1;
+    private static final int PLIST_MESSAGE = 8;
+    private static final int MAX_MESSAGE_SIZE = 1024 * 1024;
+    private static final String PROGRAM = "ios_sample";
+
+    private static final UsbmuxForwarder INSTANCE = new UsbmuxForwarder(
+            isEnabled() ? parseAddress(Constants.USBMUXD_ADDRESS) : null);
+
+    private final InetSocketAddress usbmuxd;
+    private final Map<Integer, Mapping> mappings = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    //Only used by the selector thread
+    private final ArrayDeque<ByteBuffer> buffers = new ArrayDeque<>();
+    private final Map<String, Long> deviceIds = new HashMap<>();
+    private Selector selector;
+    private Thread loopThread;
+    private volatile boolean stopping;
+
+    private enum State {CONNECTING_USBMUXD, LISTING_DEVICES, CONNECTING_DEVICE, RELAYING}
+
+    private interface LoopTask {
+        void run() throws IOException;
+    }
+
+    /**
+     * @param usbmuxd the tcp address of usbmuxd
+     */
+    public UsbmuxForwarder(InetSocketAddress usbmuxd) {
+        this.usbmuxd = usbmuxd;
+    }
+
+    public static UsbmuxForwarder getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @return true if usbmuxd.address is set and ports should be forwarded by this instead of iproxy
+     */
+    public static boolean isEnabled() {
+        return Constants.USBMUXD_ADDRESS != null;
+    }
+
+    static InetSocketAddress parseAddress(String address) {
+        int colon = address.lastIndexOf(':');
+        if (colon < 0) {
+            throw new IllegalArgumentException("usbmuxd address is not host:port: " + address);
+        }
+        return new InetSocketAddress(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+    }
+
+    /**
+     * Starts forwarding a local port, connections are accepted as soon as this returns
+     *
+     * @param localPort  the port to listen on, on the loopback address
+     * @param udid       the device
+     * @param devicePort the port on the device
+     * @throws IOException if the port is already forwarded or can't be bound
+     */
+    public void add(int localPort, String udid, int devicePort) throws IOException {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        Mapping mapping = new Mapping(localPort, udid, devicePort, server);
+        try {
+            server.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), localPort));
+            server.configureBlocking(false);
+            if (mappings.putIfAbsent(localPort, mapping) != null) {
+                throw new IOException("Port " + localPort + " is already forwarded");
+            }
+        } catch (IOException e) {
+            server.close();
+            throw e;
+        }
+        try {
+            runOnLoop(() -> server.register(selector, SelectionKey.OP_ACCEPT, mapping));
+        } catch (IOException e) {
+            mappings.remove(localPort, mapping);
+            server.close();
+            throw e;
+        }
+        log.info("Forwarding port {} to port {} of {}", localPort, devicePort, udid);
+    }
+
+    /**
+     * Stops forwarding a port and closes its connections, does nothing if it isn't forwarded
+     */
+    public void remove(int localPort) {
+        Mapping mapping = mappings.remove(localPort);
+        if (mapping == null) {
+            return;
+        }
+        try {
+            runOnLoop(() -> closeMapping(mapping));
+            log.info("Stopped forwarding port {} to {}", localPort, mapping.udid);
+        } catch (IOException e) {
+            log.error("Error closing the forwarding of port {}", localPort, e);
+        }
+    }
+
+    public boolean isForwarding(int localPort) {
+        return mappings.containsKey(localPort);
+    }
+
+    /**
+     * Gets the number of open connections on a forwarded port
+     */
+    public int getConnectionCount(int localPort) throws IOException {
+        Mapping mapping = mappings.get(localPort);
+        if (mapping == null) {
+            return 0;
+        }
+        CompletableFuture<Integer> count = new CompletableFuture<>();
+        runOnLoop(() -> count.complete(mapping.tunnels.size()));
+        return count.join();
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (selector == null) {
+                return;
+            }
+        }
+        List<Mapping> all = new ArrayList<>(mappings.values());
+        mappings.clear();
+        try {
+            runOnLoop(() -> {
+                for (Mapping mapping : all) {
+                    closeMapping(mapping);
+                }
+                stopping = true;
+            });
+        } catch (IOException e) {
+            log.error("Error stopping the usbmux forwarder", e);
+        }
+    }
+
+    /**
+     * Runs a task on the selector thread and waits for it, starting the thread if needed
+     */
+    private void runOnLoop(LoopTask task) throws IOException {
+        synchronized (this) {
+            if (selector == null) {
+                selector = Selector.open();
+                loopThread = new Thread(this::loop, "usbmux-forwarder");
+                loopThread.setDaemon(true);
+                loopThread.start();
+            } else if (stopping || !selector.isOpen() || !loopThread.isAlive()) {
+                throw new IOException("The usbmux forwarder is closed");
+            }
+        }
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        tasks.add(() -> {
+            try {
+                task.run();
+                done.complete(null);
+            } catch (Throwable e) {
+                done.completeExceptionally(e);
+            }
+        });
+        selector.wakeup();
+        try {
+            //A loop that died can't run the task, don't wait for it forever
+            while (true) {
+                try {
+                    done.get(100, TimeUnit.MILLISECONDS);
+                    return;
+                } catch (TimeoutException e) {
+                    if (!loopThread.isAlive()) {
+                        throw new IOException("The usbmux forwarder stopped");
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for the usbmux forwarder", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private void loop() {
+        try {
+            while (true) {
+                selector.select();
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+                if (stopping) {
+                    selector.close();
+                    //Anything queued since fails on the closed selector
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+                    return;
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    //One bad connection must not stop the forwarding of every device
+                    try {
+                        if (key.attachment() instanceof Mapping) {
+                            accept((Mapping) key.attachment());
+                        } else {
+                            ((Tunnel) key.attachment()).handle(key);
+                        }
+                    } catch (RuntimeException e) {
+                        log.error("Error forwarding a connection", e);
+                        if (key.attachment() instanceof Tunnel) {
+                            ((Tunnel) key.attachment()).close();
+                        }
+                    }
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            log.error("The usbmux forwarder stopped", e);
+        } finally {
+            //Callers waiting on the loop see that it is gone
+            stopping = true;
+            try {
+                selector.close();
+            } catch (IOException e) {
+                log.debug("Error closing the usbmux forwarder selector: {}", e.toString());
+            }
+        }
+    }
+
+    private void accept(Mapping mapping) {
+        SocketChannel client = null;
+        SocketChannel upstream = null;
+        try {
+            client = mapping.server.accept();
+            if (client == null) {
+                return;
+            }
+            client.configureBlocking(false);
+            client.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            upstream = SocketChannel.open();
+            upstream.configureBlocking(false);
+            upstream.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            boolean connected = upstream.connect(usbmuxd);
+
+            Tunnel tunnel = new Tunnel(mapping, client, upstream);
+            tunnel.clientKey = client.register(selector, 0, tunnel);
+            tunnel.upstreamKey = upstream.register(selector, 0, tunnel);
+            mapping.tunnels.add(tunnel);
+            if (connected) {
+                tunnel.startHandshake();
+            }
+            tunnel.updateInterest();
+        } catch (IOException e) {
+            log.info("Error accepting a connection on port {}: {}", mapping.localPort, e.toString());
+            closeQuietly(client);
+            closeQuietly(upstream);
+        }
+    }
+
+    private void closeMapping(Mapping mapping) throws IOException {
+        mapping.server.close();
+        for (Tunnel tunnel : new ArrayList<>(mapping.tunnels)) {
+            tunnel.close();
+        }
+        //The port is only released once the selector drops the closed channel
+        selector.selectNow();
+    }
+
+    private ByteBuffer borrowBuffer() {
+        ByteBuffer buffer = buffers.pollFirst();
+        return buffer != null ? buffer : ByteBuffer.allocateDirect(BUFFER_SIZE);
+    }
+
+    private void giveBack(ByteBuffer buffer) {
+        if (buffer != null && buffers.size() < MAX_POOLED_BUFFERS) {
+            buffer.clear();
+            buffers.addFirst(buffer);
+        }
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                //Nothing left to do with it
+            }
+        }
+    }
+
+    private static class Mapping {
+        private final int localPort;
+        private final String udid;
+        private final int devicePort;
+        private final ServerSocketChannel server;
+        private final Set<Tunnel> tunnels = new HashSet<>();
+
+        Mapping(int localPort, String udid, int devicePort, ServerSocketChannel server) {
+            this.localPort = localPort;
+            this.udid = udid;
+            this.devicePort = devicePort;
+            this.server = server;
+        }
+    }
+
+    /**
+     * One forwarded connection, it talks to usbmuxd until the device is connected then relays the bytes
+     */
+    private class Tunnel {
+        private final Mapping mapping;
+        private final SocketChannel client;
+        private final SocketChannel upstream;
+        private final Direction toDevice;
+        private final Direction toClient;
+        private SelectionKey clientKey;
+        private SelectionKey upstreamKey;
+        private State state = State.CONNECTING_USBMUXD;
+        private ByteBuffer request;
+        private ByteBuffer reply;
+        private boolean readingHeader;
+        private boolean cachedDeviceId;
+        private int tag;
+
+        Tunnel(Mapping mapping, SocketChannel client, SocketChannel upstream) {
+            this.mapping = mapping;
+            this.client = client;
+            this.upstream = upstream;
+            this.toDevice = new Direction(client, upstream);
+            this.toClient = new Direction(upstream, client);
+        }
+
+        void handle(SelectionKey key) {
+            try {
+                if (state != State.RELAYING) {
+                    if (key.isConnectable() && upstream.finishConnect()) {
+                        startHandshake();
+                    } else if (key.isWritable()) {
+                        upstream.write(request);
+                    } else if (key.isReadable()) {
+                        readReply();
+                    }
+                } else {
+                    if (key.isReadable()) {
+                        (key.channel() == client ? toDevice : toClient).transfer();
+                    }
+                    Direction writing = key.channel() == client ? toClient : toDevice;
+                    if (key.isValid() && key.isWritable() && writing.pending != null) {
+                        writing.flush();
+                    }
+                }
+                if (toDevice.finished && toClient.finished) {
+                    close();
+                } else {
+                    updateInterest();
+                }
+            } catch (IOException e) {
+                log.debug("Closing connection on port {} to {}: {}", mapping.localPort, mapping.udid, e.toString());
+                close();
+            } catch (RuntimeException e) {
+                //Like a reply from usbmuxd that can't be parsed
+                log.warn("Closing connection on port {} to {}: {}", mapping.localPort, mapping.udid, e.toString());
+                close();
+            }
+        }
+
+        void startHandshake() throws IOException {
+            Long deviceId = deviceIds.get(mapping.udid);
+            cachedDeviceId = deviceId != null;
+            if (deviceId != null) {
+                sendConnect(deviceId);
+            } else {
+                sendListDevices();
+            }
+        }
+
+        private void sendListDevices() throws IOException {
+            state = State.LISTING_DEVICES;
+            send(message("ListDevices"));
+        }
+
+        private void sendConnect(long deviceId) throws IOException {
+            state = State.CONNECTING_DEVICE;
+            Map<String, Object> connect = message("Connect");
+            connect.put("DeviceID", deviceId);
+            //usbmuxd wants the port in network byte order
+            connect.put("PortNumber", ((mapping.devicePort & 0xff) << 8) | ((mapping.devicePort >> 8) & 0xff));
+            send(connect);
+        }
+
+        private Map<String, Object> message(String type) {
+            Map<String, Object> message = new LinkedHashMap<>();
+            message.put("MessageType", type);
+            message.put("ClientVersionString", PROGRAM);
+            message.put("ProgName", PROGRAM);
+            return message;
+        }
+
+        private void send(Map<String, Object> message) throws IOException {
+            byte[] payload = Plist.write(message);
+            request = ByteBuffer.allocate(HEADER_SIZE + payload.length).order(ByteOrder.LITTLE_ENDIAN);
+            request.putInt(HEADER_SIZE + payload.length).putInt(VERSION).putInt(PLIST_MESSAGE).putInt(++tag).put(payload);
+            request.flip();
+            reply = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            readingHeader = true;
+            upstream.write(request);
+        }
+
+        private void readReply() throws IOException {
+            while (true) {
+                int read = upstream.read(reply);
+                if (read < 0) {
+                    throw new IOException("usbmuxd closed the connection");
+                }
+                if (reply.hasRemaining()) {
+                    return;
+                }
+                if (readingHeader) {
+                    int length = reply.getInt(0);
+                    if (length < HEADER_SIZE || length > MAX_MESSAGE_SIZE) {
+                        throw new IOException("Bad usbmuxd message length " + length);
+                    }
+                    readingHeader = false;
+                    reply = ByteBuffer.allocate(length - HEADER_SIZE);
+                } else {
+                    onReply(Plist.parseDict(reply.array()));
+                    return;
+                }
+            }
+        }
+
+        private void onReply(Map<String, Object> message) throws IOException {
+            if (state == State.LISTING_DEVICES) {
+                Long deviceId = findDevice(message);
+                if (deviceId == null) {
+                    throw new IOException("Device " + mapping.udid + " is not connected");
+                }
+                deviceIds.put(mapping.udid, deviceId);
+                sendConnect(deviceId);
+                return;
+            }
+
+            Object number = message.get("Number");
+            if (number instanceof Long && (Long) number == 0) {
+                state = State.RELAYING;
+                request = null;
+                reply = null;
+                log.debug("Connected port {} to port {} of {}", mapping.localPort, mapping.devicePort, mapping.udid);
+            } else if (cachedDeviceId) {
+                //The device may have been plugged in again and got a new id
+                deviceIds.remove(mapping.udid);
+                cachedDeviceId = false;
+                sendListDevices();
+            } else {
+                throw new IOException("usbmuxd could not connect to port " + mapping.devicePort + " of "
+                        + mapping.udid + ", result " + number);
+            }
+        }
+
+        private Long findDevice(Map<String, Object> message) {
+            Object list = message.get("DeviceList");
+            if (!(list instanceof List)) {
+                return null;
+            }
+            for (Object device : (List<?>) list) {
+                if (device instanceof Map) {
+                    Object properties = ((Map<?, ?>) device).get("Properties");
+                    if (properties instanceof Map
+                            && mapping.udid.equalsIgnoreCase(String.valueOf(((Map<?, ?>) properties).get("SerialNumber")))) {
+                        Object deviceId = ((Map<?, ?>) device).get("DeviceID");
+                        return deviceId instanceof Long ? (Long) deviceId : null;
+                    }
+                }
+            }
+            return null;
+        }
+
+        void updateInterest() {
+            if (!clientKey.isValid() || !upstreamKey.isValid()) {
+                return;
+            }
+            if (state != State.RELAYING) {
+                clientKey.interestOps(0);
+                if (state == State.CONNECTING_USBMUXD) {
+                    upstreamKey.interestOps(SelectionKey.OP_CONNECT);
+                } else {
+                    upstreamKey.interestOps(request.hasRemaining() ? SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+                }
+                return;
+            }
+            clientKey.interestOps(toDevice.readInterest() | toClient.writeInterest());
+            upstreamKey.interestOps(toClient.readInterest() | toDevice.writeInterest());
+        }
+
+        void close() {
+            closeQuietly(client);
+            closeQuietly(upstream);
+            toDevice.release();
+            toClient.release();
+            mapping.tunnels.remove(this);
+        }
+    }
+
+    /**
+     * The bytes going one way through a tunnel, the source isn't read while the target has bytes waiting
+     */
+    private class Direction {
+        private final SocketChannel source;
+        private final SocketChannel target;
+        private ByteBuffer pending;
+        private boolean finished;
+
+        Direction(SocketChannel source, SocketChannel target) {
+            this.source = source;
+            this.target = target;
+        }
+
+        void transfer() throws IOException {
+            ByteBuffer buffer = borrowBuffer();
+            int read;
+            try {
+                read = source.read(buffer);
+            } catch (IOException e) {
+                giveBack(buffer);
+                throw e;
+            }
+            if (read <= 0) {
+                giveBack(buffer);
+                if (read < 0) {
+                    //Pass the end on, the other way may still have bytes to send
+                    finished = true;
+                    target.shutdownOutput();
+                }
+                return;
+            }
+            buffer.flip();
+            target.write(buffer);
+            if (buffer.hasRemaining()) {
+                pending = buffer;
+            } else {
+                giveBack(buffer);
+            }
+        }
+
+        void flush() throws IOException {
+            target.write(pending);
+            if (!pending.hasRemaining()) {
+                giveBack(pending);
+                pending = null;
+            }
+        }
+
+        int readInterest() {
+            return pending == null && !finished ? SelectionKey.OP_READ : 0;
+        }
+
+        int writeInterest() {
+            return pending != null ? SelectionKey.OP_WRITE : 0;
+        }
+
+        void release() {
+            giveBack(pending);
+            pending = null;
+        }
+    }
+}
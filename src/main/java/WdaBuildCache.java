@@ -0,0 +1,225 @@
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.FileUtils;
+import org.zeroturnaround.exec.ProcessExecutor;
+import org.zeroturnaround.exec.ProcessResult;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.stream.Stream;
+
+/**
+ * Caches the build-for-testing output of the WebDriverAgent project.
+ * <p>
+ * The cache key is a hash of the project tree, the xcconfig and the build settings, it is only hashed again once the
+ * size or modification time of an input changed.  On a miss the build runs once, under a file lock so other jvms wait
+ * for it too, and every device starting at the same time shares the result.
+ */
+@Slf4j
+public class WdaBuildCache {
+    /**
+     * Directories in the wda project that are created by building or running it, they don't change the build
+     */
+    private static final Set<String> IGNORED = new HashSet<>(Arrays.asList(
+            "build", "DerivedData", "Carthage", "xcuserdata", ".git", "WebDriverAgent.bundle"));
+
+    /**
+     * The suffix of temp files written into the wda project, one left by a crash doesn't change the build
+     */
+    static final String TEMP_SUFFIX = ".tmp";
+
+    private static final String COMPLETE_MARKER = "complete";
+    private static final String DERIVED_DATA = "DerivedData";
+
+    private static final WdaBuildCache INSTANCE = new WdaBuildCache(Constants.WDA_BUILD_CACHE, WdaBuildCache::xcodebuild);
+
+    /**
+     * Runs the build-for-testing
+     */
+    @FunctionalInterface
+    public interface BuildCommand {
+        /**
+         * @param projectPath     the wda project directory
+         * @param derivedDataPath where the build output has to go
+         * @param xcconfig        the xcconfig used for code signing
+         * @param buildSettings   extra build settings in the form NAME=value
+         */
+        void build(Path projectPath, Path derivedDataPath, Path xcconfig, List<String> buildSettings) throws Exception;
+    }
+
+    private final Path cacheRoot;
+    private final BuildCommand buildCommand;
+    private final ConcurrentMap<String, CompletableFuture<Path>> builds = new ConcurrentHashMap<>();
+    //The keys by the stamp of the inputs, so the tree is only hashed again once a file in it changed
+    private final ConcurrentMap<String, String> keys = new ConcurrentHashMap<>();
+
+    public WdaBuildCache(Path cacheRoot, BuildCommand buildCommand) {
+        this.cacheRoot = cacheRoot;
+        this.buildCommand = buildCommand;
+    }
+
+    public static WdaBuildCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Gets the cache key for the inputs of the build.  The content is only hashed when the paths, sizes or modification
+     * times of the inputs changed since the last call, otherwise the key of that call is returned.
+     */
+    public String key(Path projectPath, Path xcconfig, List<String> buildSettings) throws IOException {
+        Fingerprint stamp = Fingerprint.create()
+                .add(projectPath.toAbsolutePath().toString())
+                .addTreeStamp(projectPath, WdaBuildCache::isIgnored)
+                .addFileStamp(xcconfig);
+        for (String setting : buildSettings) {
+            stamp.add(setting);
+        }
+        String inputs = stamp.hex();
+        String key = keys.get(inputs);
+        if (key != null) {
+            return key;
+        }
+
+        Fingerprint fingerprint = Fingerprint.create()
+                .addTree(projectPath, WdaBuildCache::isIgnored)
+                .addFile(xcconfig);
+        for (String setting : buildSettings) {
+            fingerprint.add(setting);
+        }
+        key = fingerprint.hex();
+        keys.put(inputs, key);
+        return key;
+    }
+
+    private static boolean isIgnored(Path path) {
+        String name = path.getFileName().toString();
+        return IGNORED.contains(name) || name.endsWith(".old") || name.endsWith(TEMP_SUFFIX);
+    }
+
+    /**
+     * Gets the xctestrun file for the inputs, building it if needed
+     *
+     * @return the xctestrun file to pass to test-without-building
+     */
+    public Path getXctestrun(Path projectPath, Path xcconfig, List<String> buildSettings) throws Exception {
+        String key = key(projectPath, xcconfig, buildSettings);
+
+        CompletableFuture<Path> build = new CompletableFuture<>();
+        CompletableFuture<Path> existing = builds.putIfAbsent(key, build);
+        if (existing != null) {
+            log.debug("Waiting on wda build {}", key);
+            try {
+                return existing.get();
+            } catch (ExecutionException e) {
+                throw new Exception("Shared wda build failed", e.getCause());
+            }
+        }
+
+        try {
+            Path xctestrun = buildLocked(key, projectPath, xcconfig, buildSettings);
+            build.complete(xctestrun);
+            return xctestrun;
+        } catch (Exception e) {
+            //Let the next start try again
+            builds.remove(key, build);
+            build.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    private Path buildLocked(String key, Path projectPath, Path xcconfig, List<String> buildSettings) throws Exception {
+        Files.createDirectories(cacheRoot);
+        Path entry = cacheRoot.resolve(key);
+
+        try (FileChannel channel = FileChannel.open(cacheRoot.resolve(key + ".lock"), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+             FileLock ignored = channel.lock()) {
+            Optional<Path> cached = findXctestrun(entry);
+            if (cached.isPresent()) {
+                log.info("Using cached wda build {}", key);
+                return cached.get();
+            }
+
+            //Remove what is left of a failed build
+            FileUtils.deleteDirectory(entry.toFile());
+            Path derivedData = Files.createDirectories(entry.resolve(DERIVED_DATA));
+
+            log.info("Building wda {}", key);
+            long start = System.currentTimeMillis();
+            buildCommand.build(projectPath, derivedData, xcconfig, buildSettings);
+
+            Path xctestrun = findProducts(derivedData)
+                    .orElseThrow(() -> new IOException("Build did not produce an xctestrun file in " + derivedData));
+            Files.createFile(entry.resolve(COMPLETE_MARKER));
+            log.info("Built wda {} in {}ms", key, System.currentTimeMillis() - start);
+            return xctestrun;
+        }
+    }
+
+    private Optional<Path> findXctestrun(Path entry) throws IOException {
+        if (!Files.exists(entry.resolve(COMPLETE_MARKER))) {
+            return Optional.empty();
+        }
+        return findProducts(entry.resolve(DERIVED_DATA));
+    }
+
+    private static Optional<Path> findProducts(Path derivedData) throws IOException {
+        Path products = derivedData.resolve("Build/Products");
+        if (!Files.isDirectory(products)) {
+            return Optional.empty();
+        }
+        try (Stream<Path> files = Files.list(products)) {
+            return files.filter(path -> path.getFileName().toString().endsWith(".xctestrun")).findFirst();
+        }
+    }
+
+    /**
+     * Bootstraps the wda dependencies and runs xcodebuild build-for-testing
+     */
+    static void xcodebuild(Path projectPath, Path derivedDataPath, Path xcconfig, List<String> buildSettings) throws Exception {
+        Files.createDirectories(projectPath.resolve("Resources/WebDriverAgent.bundle"));
+
+        //Run the bootstrap script
+        new ProcessExecutor()
+                .command(projectPath.resolve("Scripts/bootstrap.sh").toAbsolutePath().toString(), "-d")
+                .directory(projectPath.toFile())
+                .readOutput(true)
+                .execute();
+
+        List<String> command = new ArrayList<>(Arrays.asList("xcodebuild", "build-for-testing",
+                "-project", Constants.WDA_PROJECT_DIR,
+                "-scheme", "WebDriverAgentRunner",
+                "-destination", "generic/platform=iOS",
+                "-derivedDataPath", derivedDataPath.toAbsolutePath().toString(),
+                "-allowProvisioningUpdates",
+                "-xcconfig", xcconfig.toAbsolutePath().toString()));
+        command.addAll(buildSettings);
+
+        ProcessResult result;
+        try (LogCaptureService.Channel buildLog = LogCaptureService.getInstance().open("wda-build", LogCaptureService.newSession(), "xcodebuild")) {
+            result = new ProcessExecutor()
+                    .command(command)
+                    .directory(projectPath.toFile())
+                    .redirectOutput(buildLog.asStream())
+                    .redirectError(buildLog.asStream())
+                    .execute();
+        }
+        if (result.getExitValue() != 0) {
+            LogCaptureService.getInstance().flush();
+            throw new IOException("xcodebuild build-for-testing failed with exit code: " + result.getExitValue() + "\n"
+                    + String.join("\n", LogCaptureService.getInstance().getTail("wda-build")));
+        }
+    }
+}
@@ -1,81 +1,75 @@
+import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
-import org.slf4j.LoggerFactory;
-import org.springframework.core.io.ClassPathResource;
-import org.springframework.core.io.Resource;
-import org.springframework.core.io.support.PathMatchingResourcePatternResolver;
-import org.springframework.core.io.support.ResourcePatternResolver;
-import org.springframework.http.ResponseEntity;
-import org.springframework.web.client.RestClientException;
-import org.springframework.web.client.RestTemplate;
+import org.apache.commons.io.output.TeeOutputStream;
 import org.zeroturnaround.exec.ProcessExecutor;
-import org.zeroturnaround.exec.ProcessResult;
-import org.zeroturnaround.exec.stream.slf4j.Slf4jStream;
+import org.zeroturnaround.exec.listener.ProcessListener;
 
-import java.io.File;
 import java.io.IOException;
-import java.nio.file.Files;
+import java.io.OutputStream;
 import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeoutException;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
 @Slf4j
 public class WdaServer {
+    /**
+     * Build settings passed to build-for-testing, changing them invalidates the cached build
+     */
+    static final List<String> BUILD_SETTINGS = Collections.singletonList("IPHONEOS_DEPLOYMENT_TARGET=11.2");
+
+    /**
+     * Max time for the whole start, including waiting for a build slot
+     */
+    public static long START_TIMEOUT = 20 * Constants.ONE_MINUTE;
+
+    //The port wda listens on, on the device
+    static final int DEVICE_PORT = 8100;
+
+    @Getter
     private final String uuid;
+    @Getter
     private final int port;
 
-    private Process xcodebuildProcess;
-    private Process iproxyProcess;
+    //Left running for the next run instead of stopped, see DetachedServers
+    @Getter
+    private final boolean detached;
+
+    //Set by the bring up steps, or when reattaching
+    private volatile ProcessHandle xcodebuildProcess;
+    private volatile ProcessHandle iproxyProcess;
+    //The same processes when this jvm started them, only they have an exit code
+    private volatile Process startedXcodebuild;
+    private volatile Process startedIproxy;
+    private volatile boolean forwarding;
+    private ReadinessMode readinessMode = ReadinessMode.LOG_STREAM;
+    private final PhaseTimers.Device timers;
 
     public WdaServer(String uuid, int port) {
+        this(uuid, port, Constants.DETACHED);
+    }
+
+    /**
+     * @param detached true to keep the server running after the run and reattach to the one an earlier run kept
+     */
+    public WdaServer(String uuid, int port, boolean detached) {
         this.uuid = uuid;
         this.port = port;
+        this.detached = detached;
+        this.timers = PhaseTimers.getInstance().forDevice(uuid);
 
-        installKeys();
-        updateBundleId();
+        provision();
     }
 
     /**
-     * make sure the keys are installed into the key chain
+     * Makes sure the keys are in the keychain and the wda bundle id is set, only does the work when they changed
      */
-    void installKeys() {
-        try {
-            List<String> command = new ArrayList<>();
-            File script = new ClassPathResource("scripts/import_keychain.sh").getFile();
-            command.add(script.getAbsolutePath());
-
-
-            //Set the keychain
-            final String keychainPath = Constants.KEYCHAIN.toAbsolutePath().toString();
-            command.add("-f");
-            command.add(keychainPath);
-
-
-            //Find all keys and certificates and set them for the script to consume
-            ClassLoader cl = this.getClass().getClassLoader();
-            ResourcePatternResolver resolver = new PathMatchingResourcePatternResolver(cl);
-            Resource[] resources = resolver.getResources("classpath*:/codesign/*.*");
-            for (Resource resource : resources) {
-                String key = resource.getFile().getAbsolutePath();
-                command.add(key);
-            }
-
-            ProcessResult result = new ProcessExecutor()
-                    .command(command)
-                    .environment("KEYPASS", Constants.KEYCHAIN_PASSWORD)
-                    .readOutput(true)
-                    .execute();
-
-            if (result.getExitValue() != 0) {
-                log.error("Error creating keychain: {}: {}", keychainPath, result.getOutput().getUTF8());
-            } else {
-                log.info("Keychain created at {}", keychainPath);
-            }
-        } catch (IOException | InterruptedException | TimeoutException e) {
-            log.error("Error while running import keys script", e);
-        }
+    void provision() {
+        Provisioner.getInstance().provision();
     }
 
     //Gets the url to connect to
@@ -85,121 +79,342 @@ public class WdaServer {
     }
 
     /**
-     * Updates the bundle id in the wda project file
-     */
-    void updateBundleId() {
-        Path projectFile = Constants.WDA_PROJECT_PATH
-                .resolve(Constants.WDA_PROJECT_DIR)
-                .resolve(Constants.PROJECT_FILE);
-
-        Path backupProjectFile = Constants.WDA_PROJECT_PATH
-                .resolve(Constants.WDA_PROJECT_DIR)
-                .resolve(Constants.PROJECT_FILE + ".old");
-
-        try {
-            //Backup bundle id
-            if (!Files.exists(backupProjectFile)) {
-                Files.copy(projectFile, backupProjectFile);
-                log.debug("Backed up wda project file");
-
-                //Replace the bundle Id
-                Stream<String> lines = Files.lines(projectFile);
-                List<String> replaced = lines.map(line -> line.replaceAll(
-                        Constants.ORIG_WDA_RUNNER_BUNDLE_ID.replace(".", "\\."),
-                        Constants.WDA_RUNNER_BUNDLE_ID.replace(".", "\\.")))
-                        .collect(Collectors.toList());
-                Files.write(projectFile, replaced);
-                lines.close();
-                log.info("Replaced the bundle id to be {}" + Constants.WDA_RUNNER_BUNDLE_ID);
-            }
-        } catch (IOException e) {
-            log.error("Error updating bundle id in project file.  WDA server may not work.", e);
-        }
-    }
-
-    /**
-     * starts up the wda server
+     * starts up the wda server, a detached server reattaches to the one an earlier run kept if it can
      */
     public void start() {
         if (xcodebuildProcess != null && xcodebuildProcess.isAlive()) {
             throw new RuntimeException("Server already started");
         }
-        if (iproxyProcess != null && iproxyProcess.isAlive()) {
+        if (iproxyProcess != null && iproxyProcess.isAlive() || forwarding) {
             throw new RuntimeException("Server already started");
         }
+        if (detached && reattach()) {
+            return;
+        }
+        try {
+            bringUp().await(START_TIMEOUT);
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            log.error("Error starting WdaServer", e);
+        }
+    }
+
+    /**
+     * Starts the server as a graph of steps, the keychain is unlocked and iproxy started while xcodebuild waits for
+     * its turn.  A failed step cancels the others.
+     *
+     * @return the handle of this device's bring up
+     */
+    public BringUp bringUp() {
+        long started = System.nanoTime();
+        //Capture the output per device and start, without holding up the processes
+        String session = LogCaptureService.newSession();
 
-        //Unlock the keychain
+        BringUp bringUp = new BringUp(uuid);
+        BringUp.Step<Void> unlock = bringUp.step("keychain-unlock", () -> {
+            unlockKeychain();
+            timers.record(PhaseTimers.Phase.KEYCHAIN_UNLOCK, started);
+            return null;
+        });
+        BringUp.Step<Void> iproxy = bringUp.step("iproxy", () -> {
+            startIproxy(session);
+            timers.record(PhaseTimers.Phase.IPROXY_LAUNCH, started);
+            return null;
+        });
+        bringUp.step("wda", () -> {
+            //Only a few devices build and launch at once, the rest wait their turn
+            long queued = System.nanoTime();
+            boolean ready = XcodebuildGovernor.getInstance().run(uuid, () -> launch(queued, session));
+            if (ready) {
+                timers.record(PhaseTimers.Phase.WDA_START, started);
+                log.debug("Wda Server is running and ready to accept requests");
+                if (detached) {
+                    keep();
+                }
+            }
+            return ready;
+        }, unlock, iproxy);
+        return bringUp;
+    }
+
+    private void unlockKeychain() {
         //security -v unlock-keychain -p $keychainPassword $keychain
         try {
             final String keychainPath = Constants.KEYCHAIN.toAbsolutePath().toString();
-            ProcessResult result = new ProcessExecutor()
-                    .command("security", "-v", "unlock-keychain", "-p", Constants.KEYCHAIN_PASSWORD, keychainPath)
-                    .readOutput(true)
-                    .execute();
+            CommandShell.Result result = CommandShell.getInstance()
+                    .run("security", "-v", "unlock-keychain", "-p", Constants.KEYCHAIN_PASSWORD, keychainPath);
             if (result.getExitValue() != 0) {
-                log.error("Error unlocking keychain: {}: {}", keychainPath, result.getOutput().getUTF8());
+                log.error("Error unlocking keychain: {}: {}", keychainPath, result.getOutput());
             } else {
                 log.info("Keychain unlocked");
             }
         } catch (IOException | InterruptedException | TimeoutException e) {
             log.error("Error Creating keychain: " + e.getMessage());
         }
+    }
+
+    private void startIproxy(String session) throws IOException {
+        if (UsbmuxForwarder.isEnabled()) {
+            UsbmuxForwarder.getInstance().add(port, uuid, DEVICE_PORT);
+            forwarding = true;
+            return;
+        }
+        if (detached) {
+            ProcessBuilder iproxy = new ProcessBuilder("iproxy", String.valueOf(port), String.valueOf(DEVICE_PORT), uuid)
+                    .redirectErrorStream(true);
+            startedIproxy = DetachedServers.getInstance().launch(iproxy, key(), "iproxy");
+            iproxyProcess = startedIproxy.toHandle();
+            return;
+        }
+        LogCaptureService.Channel iproxyLog = LogCaptureService.getInstance().open(uuid, session, "iproxy");
+        OutputStream output = iproxyLog.asStream();
+        OutputStream error = iproxyLog.asStream();
+        startedIproxy = new ProcessExecutor()
+                .command("iproxy", String.valueOf(port), String.valueOf(DEVICE_PORT), uuid)
+                .redirectOutput(output)
+                .redirectError(error)
+                .addListener(closeWhenPumped(output, error))
+                .start()
+                .getProcess();
+        iproxyProcess = startedIproxy.toHandle();
+        ProcessRegistry.getInstance().register(iproxyProcess, uuid, "iproxy");
+    }
 
-        //Make sure the directories exist
+    /**
+     * Closes the capture streams once the process exited and everything it wrote was pumped into them, closing them
+     * when the process exits would lose what is still in the pipe
+     */
+    private ProcessListener closeWhenPumped(OutputStream... streams) {
+        return new ProcessListener() {
+            @Override
+            public void afterStop(Process process) {
+                for (OutputStream stream : streams) {
+                    try {
+                        stream.close();
+                    } catch (IOException e) {
+                        log.error("Error closing the output of {}", uuid, e);
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * Builds wda if needed, starts xcodebuild then waits for the server
+     *
+     * @param queued when the launch was queued, in nano time
+     * @return true if the server is ready
+     */
+    private boolean launch(long queued, String session) throws IOException, InterruptedException {
+        long phase = timers.record(PhaseTimers.Phase.XCODEBUILD_QUEUE, queued);
+
+        //Get the prebuilt wda, this only builds when the project, xcconfig or settings changed
+        Path xctestrun;
         try {
-            Files.createDirectories(Constants.WDA_PROJECT_PATH.resolve("Resources/WebDriverAgent.bundle"));
+            xctestrun = WdaBuildCache.getInstance().getXctestrun(Constants.WDA_PROJECT_PATH, xcconfig(), BUILD_SETTINGS);
+        } catch (Exception e) {
+            log.error("Error building wda", e);
+            return false;
+        }
+        phase = timers.record(PhaseTimers.Phase.WDA_BUILD, phase);
 
-            //Run the bootstrap script
-            new ProcessExecutor()
-                .command(Constants.WDA_PROJECT_PATH.resolve("Scripts/bootstrap.sh").toAbsolutePath().toString(), "-d")
-                .directory(Constants.WDA_PROJECT_PATH.toFile())
-                .readOutput(true)
-                .execute();
-
-            //Start up xcodebuild
-            String xcconfig = getClass().getClassLoader().getResource("miw.xcconfig").getFile();
-            Slf4jStream xdaStream = Slf4jStream.of(LoggerFactory.getLogger(getClass().getName() + ".xcodebuild"));
-
-            xcodebuildProcess = new ProcessExecutor()
-                    .command("xcodebuild", "build-for-testing", "test-without-building",
-                            "-project",  Constants.WDA_PROJECT_DIR,
-                            "-scheme", "WebDriverAgentRunner",
-                            "-destination", "id=" + uuid,
-                            "IPHONEOS_DEPLOYMENT_TARGET=11.2",
-                            "-allowProvisioningUpdates",
-                            "-xcconfig", xcconfig)
+        if (detached) {
+            //The output goes to a file so xcodebuild outlives the jvm, readiness is polled
+            ProcessBuilder xcodebuild = new ProcessBuilder("xcodebuild", "test-without-building",
+                    "-xctestrun", xctestrun.toAbsolutePath().toString(),
+                    "-destination", "id=" + uuid)
                     .directory(Constants.WDA_PROJECT_PATH.toFile())
-                    .redirectOutput(xdaStream.asInfo())
-                    .redirectError(xdaStream.asError())
-                    .start()
-                    .getProcess();
-
-            Slf4jStream iproxyStream = Slf4jStream.of(LoggerFactory.getLogger(getClass().getName() + ".iproxy"));
-            iproxyProcess = new ProcessExecutor()
-                    .command("iproxy", String.valueOf(port), "8100", uuid)
-                    .redirectOutput(iproxyStream.asInfo())
-                    .redirectError(iproxyStream.asError())
-                    .start()
-                    .getProcess();
-
-            if (PollingService.poll(this::pollWdaServer, 2 * Constants.ONE_MINUTE, Constants.ONE_SECOND)) {
-                log.debug("Wda Server is running and ready to accept requests");
+                    .redirectErrorStream(true);
+            startedXcodebuild = DetachedServers.getInstance().launch(xcodebuild, key(), "xcodebuild");
+            xcodebuildProcess = startedXcodebuild.toHandle();
+            phase = timers.record(PhaseTimers.Phase.XCODEBUILD_LAUNCH, phase);
+            boolean ready = PollingService.poll(this::pollWdaServer, 2 * Constants.ONE_MINUTE, Constants.ONE_SECOND);
+            if (ready) {
+                timers.record(PhaseTimers.Phase.WDA_READY, phase);
             }
+            return ready;
+        }
 
-        } catch (IOException | InterruptedException | TimeoutException e) {
-            log.error("Error starting WdaServer");
+        LogCaptureService.Channel xcodebuildLog = LogCaptureService.getInstance().open(uuid, session, "xcodebuild");
+
+        //Start up xcodebuild
+        ReadinessWatcher watcher = new ReadinessWatcher(Constants.WDA_READY_MARKER);
+
+        OutputStream output = new TeeOutputStream(xcodebuildLog.asStream(), watcher);
+        OutputStream error = xcodebuildLog.asStream();
+        startedXcodebuild = new ProcessExecutor()
+                .command("xcodebuild", "test-without-building",
+                        "-xctestrun", xctestrun.toAbsolutePath().toString(),
+                        "-destination", "id=" + uuid)
+                .directory(Constants.WDA_PROJECT_PATH.toFile())
+                .redirectOutput(output)
+                .redirectError(error)
+                .addListener(closeWhenPumped(output, error))
+                .start()
+                .getProcess();
+        xcodebuildProcess = startedXcodebuild.toHandle();
+        ProcessRegistry.getInstance().register(xcodebuildProcess, uuid, "xcodebuild");
+        phase = timers.record(PhaseTimers.Phase.XCODEBUILD_LAUNCH, phase);
+
+        boolean ready = awaitReady(watcher);
+        if (ready) {
+            timers.record(PhaseTimers.Phase.WDA_READY, phase);
         }
+        return ready;
+    }
+
+    private boolean awaitReady(ReadinessWatcher watcher) throws InterruptedException {
+        if (readinessMode == ReadinessMode.LOG_STREAM) {
+            try {
+                return ReadinessWatcher.awaitReady(watcher.getReady(), this::pollWdaServer, 2 * Constants.ONE_MINUTE).get();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new RuntimeException(e.getCause());
+            }
+        }
+        return PollingService.poll(this::pollWdaServer, 2 * Constants.ONE_MINUTE, Constants.ONE_SECOND);
+    }
+
+    public void setReadinessMode(ReadinessMode readinessMode) {
+        this.readinessMode = readinessMode;
+    }
+
+    private Path xcconfig() {
+        return Paths.get(getClass().getClassLoader().getResource("miw.xcconfig").getFile());
+    }
+
+    private String key() {
+        return "wda-" + uuid;
     }
 
     /**
-     * Stops the wda server
+     * What the server was started from, the wda build and the port, a kept server with another fingerprint is replaced
+     */
+    private String fingerprint() throws IOException {
+        return Fingerprint.create()
+                .add(WdaBuildCache.getInstance().key(Constants.WDA_PROJECT_PATH, xcconfig(), BUILD_SETTINGS))
+                .add(uuid)
+                .add(String.valueOf(port))
+                .hex();
+    }
+
+    /**
+     * Records the started server so the next run can reattach to it, the port stays leased while xcodebuild runs
+     */
+    private void keep() {
+        try {
+            PortAllocator.getInstance().handOver(port, xcodebuildProcess);
+            DetachedServers.getInstance().record(key(), uuid, getProcesses(), getServerUrl() + "/status", fingerprint());
+        } catch (IOException e) {
+            log.warn("{} - Could not keep the wda server for the next run: {}", uuid, e.getMessage());
+        }
+    }
+
+    /**
+     * Takes over the server an earlier run kept, if it is still the same build and answers
+     *
+     * @return true if the server is up
+     */
+    private boolean reattach() {
+        Optional<DetachedServers.State> state;
+        try {
+            //The forward lived in the jvm of the earlier run, it is needed to reach the server
+            if (UsbmuxForwarder.isEnabled()) {
+                UsbmuxForwarder.getInstance().add(port, uuid, DEVICE_PORT);
+                forwarding = true;
+            }
+            state = DetachedServers.getInstance().reattach(key(), fingerprint());
+        } catch (IOException e) {
+            log.warn("{} - Could not check the kept wda server: {}", uuid, e.getMessage());
+            state = Optional.empty();
+        }
+        if (!state.isPresent()) {
+            if (forwarding) {
+                UsbmuxForwarder.getInstance().remove(port);
+                forwarding = false;
+            }
+            return false;
+        }
+        //Kept as xcodebuild then iproxy, without iproxy when the port was forwarded
+        List<ProcessHandle> processes = state.get().getHandles();
+        if (processes.size() != (forwarding ? 1 : 2)) {
+            log.info("{} - The kept wda server was started {} the forwarder, starting it again", uuid, forwarding ? "without" : "with");
+            List<ProcessHandle> survivors = ProcessTeardown.destroy(ProcessTeardown.DEFAULT_TIMEOUT, processes);
+            if (!survivors.isEmpty()) {
+                log.error("{} processes of the kept wda server for {} are still running", survivors.size(), uuid);
+            }
+            DetachedServers.getInstance().release(key());
+            if (forwarding) {
+                UsbmuxForwarder.getInstance().remove(port);
+                forwarding = false;
+            }
+            return false;
+        }
+        xcodebuildProcess = processes.get(0);
+        iproxyProcess = forwarding ? null : processes.get(1);
+        startedXcodebuild = null;
+        startedIproxy = null;
+        PortAllocator.getInstance().handOver(port, xcodebuildProcess);
+        log.info("{} - Reattached to the wda server on port {}", uuid, port);
+        return true;
+    }
+
+    /**
+     * Leaves a detached server running for the next run
+     */
+    public void detach() {
+        DetachedServers.getInstance().detach(key());
+        if (forwarding) {
+            UsbmuxForwarder.getInstance().remove(port);
+            forwarding = false;
+        }
+    }
+
+    /**
+     * Gets the xcodebuild and iproxy processes that were started
+     */
+    public List<ProcessHandle> getProcesses() {
+        List<ProcessHandle> processes = new ArrayList<>();
+        if (xcodebuildProcess != null) {
+            processes.add(xcodebuildProcess);
+        }
+        if (iproxyProcess != null) {
+            processes.add(iproxyProcess);
+        }
+        return processes;
+    }
+
+    /**
+     * Stops the wda server, along with everything xcodebuild and iproxy started
      */
     public void stop() {
-        if (xcodebuildProcess != null && xcodebuildProcess.isAlive()) {
-            xcodebuildProcess.destroy();
+        List<ProcessHandle> survivors = ProcessTeardown.destroy(ProcessTeardown.DEFAULT_TIMEOUT, getProcesses());
+        if (!survivors.isEmpty()) {
+            log.error("{} processes of the wda server for {} are still running", survivors.size(), uuid);
+        }
+        if (forwarding) {
+            UsbmuxForwarder.getInstance().remove(port);
+            forwarding = false;
         }
-        if (iproxyProcess != null && iproxyProcess.isAlive()) {
-            iproxyProcess.destroy();
+        if (detached) {
+            DetachedServers.getInstance().release(key());
+        }
+    }
+
+    /**
+     * Quick check that both processes are alive and the server answers
+     *
+     * @return true if the server can be used
+     */
+    public boolean isHealthy() {
+        try {
+            return pollWdaServer();
+        } catch (RuntimeException e) {
+            log.info("WDA server {} is not healthy: {}", uuid, e.getMessage());
+            return false;
         }
     }
 
@@ -212,25 +427,34 @@ public class WdaServer {
         if (xcodebuildProcess == null) {
             throw new RuntimeException("xcodebuild process is null");
         }
-        if (!xcodebuildProcess.isAlive()) {
-            throw new RuntimeException("xcodebuild failed with exit code: " + xcodebuildProcess.exitValue());
-        }
-        if (iproxyProcess == null) {
+        checkAlive("xcodebuild", startedXcodebuild, xcodebuildProcess);
+        if (forwarding) {
+            if (!UsbmuxForwarder.getInstance().isForwarding(port)) {
+                throw new RuntimeException("port " + port + " is no longer forwarded");
+            }
+        } else if (iproxyProcess == null) {
             throw new RuntimeException("iproxy process is null");
+        } else {
+            checkAlive("iproxy", startedIproxy, iproxyProcess);
         }
-        if (!iproxyProcess.isAlive()) {
-            throw new RuntimeException("iproxy failed with exit code: " + iproxyProcess.exitValue());
+
+        if (HealthCheckClient.getInstance().probe(getServerUrl() + "/status")) {
+            return true;
         }
+        log.debug("WDA server not ready yet, port: {}", port);
+        return false;
+    }
 
-        try {
-            RestTemplate restTemplate = new RestTemplate();
-            ResponseEntity<String> response = restTemplate.getForEntity(getServerUrl() + "/status", String.class);
-            return response
-                    .getStatusCode()
-                    .is2xxSuccessful();
-        } catch (RestClientException e) {
-            log.debug("WDA server not ready yet, port: {}", port);
-            return false;
+    /**
+     * Fails with the exit code of a process this jvm started, a reattached one only has its pid
+     */
+    private static void checkAlive(String name, Process started, ProcessHandle process) {
+        if (started != null) {
+            if (!started.isAlive()) {
+                throw new RuntimeException(name + " failed with exit code: " + started.exitValue());
+            }
+        } else if (!process.isAlive()) {
+            throw new RuntimeException(name + " exited, pid: " + process.pid());
         }
     }
 }
@@ -0,0 +1,301 @@
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiFunction;
+
+/**
+ * Keeps one started {@link WdaServer} per device so tests don't pay for the wda startup.
+ * <p>
+ * Servers are started in the background with {@link #warmUp(String, int)} or on the first borrow.  A borrowed server
+ * is checked before it is handed out and replaced if xcodebuild or iproxy died or it is older than the max age.  Idle
+ * servers are checked in the background, dead ones are replaced and the ones idle for too long are stopped.  Started
+ * servers are also handed to the {@link LivenessWatchdog}, which restarts them in place as soon as they fail.
+ * Detached servers are left running when the pool is closed, for the next run to reattach to.
+ */
+@Slf4j
+public class WdaServerPool implements AutoCloseable {
+    public static long DEFAULT_MAX_IDLE = 15 * Constants.ONE_MINUTE;
+    public static long DEFAULT_MAX_AGE = 60 * Constants.ONE_MINUTE;
+    public static long CHECK_INTERVAL = 30 * Constants.ONE_SECOND;
+
+    private final BiFunction<String, Integer, WdaServer> factory;
+    private final long maxIdle;
+    private final long maxAge;
+    private final LivenessWatchdog watchdog;
+    private final Map<String, Entry> entries = new HashMap<>();
+    private final ExecutorService starter = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "wda-pool-start");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final ScheduledFuture<?> checkTask;
+    //Set while a check runs, a slow check isn't started again on top of itself
+    private final AtomicBoolean checking = new AtomicBoolean();
+
+    public WdaServerPool() {
+        this(WdaServer::new, DEFAULT_MAX_IDLE, DEFAULT_MAX_AGE, LivenessWatchdog.getInstance());
+    }
+
+    /**
+     * Creates a pool whose servers are only checked by the pool
+     */
+    public WdaServerPool(BiFunction<String, Integer, WdaServer> factory, long maxIdle, long maxAge) {
+        this(factory, maxIdle, maxAge, null);
+    }
+
+    /**
+     * @param factory  creates a server for a device uuid and port
+     * @param maxIdle  how long in ms a server can sit unused before it is stopped
+     * @param maxAge   how long in ms a server is used before it is replaced with a fresh one
+     * @param watchdog watches the started servers, null to leave it to the pool
+     */
+    public WdaServerPool(BiFunction<String, Integer, WdaServer> factory, long maxIdle, long maxAge, LivenessWatchdog watchdog) {
+        this.factory = factory;
+        this.maxIdle = maxIdle;
+        this.maxAge = maxAge;
+        this.watchdog = watchdog;
+        //The health checks block on http, they run on the pool's threads so they don't hold up the shared scheduler
+        checkTask = PollingService.getScheduler().scheduleWithFixedDelay(() -> {
+            if (checking.compareAndSet(false, true)) {
+                starter.execute(() -> {
+                    try {
+                        checkIdle();
+                    } finally {
+                        checking.set(false);
+                    }
+                });
+            }
+        }, CHECK_INTERVAL, CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Starts the server for the device in the background if there isn't one already
+     *
+     * @return completes when the server has started
+     */
+    public synchronized CompletableFuture<WdaServer> warmUp(String uuid, int port) {
+        Entry entry = entries.get(uuid);
+        if (entry == null || entry.port != port) {
+            if (entry != null) {
+                discard(entry);
+            }
+            entry = start(uuid, port);
+        }
+        return entry.server;
+    }
+
+    /**
+     * Borrows the server for the device, waiting for it to start if needed
+     *
+     * @return a healthy server, give it back with {@link #giveBack(WdaServer)}
+     */
+    public WdaServer borrow(String uuid, int port) throws InterruptedException {
+        Entry entry;
+        synchronized (this) {
+            warmUp(uuid, port);
+            entry = entries.get(uuid);
+            if (entry.borrowed) {
+                throw new IllegalStateException("WDA server for " + uuid + " is already borrowed");
+            }
+            entry.borrowed = true;
+        }
+
+        WdaServer server = await(entry);
+        if (server != null && server.isHealthy() && age(entry) < maxAge) {
+            return server;
+        }
+
+        //Dead or too old, start a new one right away
+        log.info("Replacing wda server for {}", uuid);
+        synchronized (this) {
+            discard(entry);
+            entry = start(uuid, port);
+            entry.borrowed = true;
+        }
+        server = await(entry);
+        if (server == null || !server.isHealthy()) {
+            giveBack(uuid);
+            throw new IllegalStateException("WDA server for " + uuid + " did not start");
+        }
+        return server;
+    }
+
+    /**
+     * Returns a borrowed server so it can be used by the next test on the device
+     */
+    public void giveBack(WdaServer server) {
+        giveBack(server.getUuid());
+    }
+
+    private synchronized void giveBack(String uuid) {
+        Entry entry = entries.get(uuid);
+        if (entry != null) {
+            entry.borrowed = false;
+            entry.lastReturned = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Gets the number of servers in the pool, started or starting
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private Entry start(String uuid, int port) {
+        Entry entry = new Entry(uuid, port);
+        entry.server = CompletableFuture.supplyAsync(() -> {
+            WdaServer server = factory.apply(uuid, port);
+            try {
+                server.start();
+            } catch (RuntimeException e) {
+                server.stop();
+                throw e;
+            }
+            if (watchdog != null) {
+                watchdog.watch(server);
+            }
+            return server;
+        }, starter);
+        entries.put(uuid, entry);
+        return entry;
+    }
+
+    private void discard(Entry entry) {
+        entries.remove(entry.uuid, entry);
+        if (watchdog == null) {
+            entry.server.thenAccept(this::stop);
+        } else {
+            //Off the pool lock, the watchdog may have to finish restarting it first
+            entry.server.thenAcceptAsync(this::stop, starter);
+        }
+    }
+
+    private void stop(WdaServer server) {
+        if (watchdog != null) {
+            watchdog.unwatch(server);
+        }
+        server.stop();
+    }
+
+    private WdaServer await(Entry entry) throws InterruptedException {
+        try {
+            return entry.server.get();
+        } catch (ExecutionException e) {
+            log.error("Error starting wda server for {}", entry.uuid, e.getCause());
+            return null;
+        }
+    }
+
+    //The watchdog is already bringing it back
+    private boolean isRestarting(Entry entry) {
+        return watchdog != null && !entry.server.isCompletedExceptionally() && watchdog.isRestarting(entry.server.join());
+    }
+
+    private long age(Entry entry) {
+        return System.currentTimeMillis() - entry.created;
+    }
+
+    /**
+     * Stops idle servers that were unused for too long and replaces the dead or old ones
+     */
+    void checkIdle() {
+        List<Entry> idle;
+        synchronized (this) {
+            idle = new ArrayList<>();
+            for (Entry entry : entries.values()) {
+                if (!entry.borrowed && entry.server.isDone() && !isRestarting(entry)) {
+                    idle.add(entry);
+                }
+            }
+        }
+
+        long now = System.currentTimeMillis();
+        for (Entry entry : idle) {
+            WdaServer server = entry.server.isCompletedExceptionally() ? null : entry.server.getNow(null);
+            boolean healthy = server != null && server.isHealthy();
+            synchronized (this) {
+                if (entry.borrowed || entries.get(entry.uuid) != entry) {
+                    continue;
+                }
+                if (now - entry.lastReturned > maxIdle) {
+                    log.info("Stopping idle wda server for {}", entry.uuid);
+                    discard(entry);
+                } else if (!healthy || age(entry) > maxAge) {
+                    log.info("Recycling wda server for {}, healthy: {}", entry.uuid, healthy);
+                    discard(entry);
+                    start(entry.uuid, entry.port);
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets the processes of every server that is up
+     */
+    public synchronized List<ProcessHandle> getProcesses() {
+        return getProcesses(new ArrayList<>(entries.values()));
+    }
+
+    private static List<ProcessHandle> getProcesses(List<Entry> all) {
+        List<ProcessHandle> processes = new ArrayList<>();
+        for (Entry entry : all) {
+            if (entry.server.isDone() && !entry.server.isCompletedExceptionally()) {
+                processes.addAll(entry.server.join().getProcesses());
+            }
+        }
+        return processes;
+    }
+
+    /**
+     * Stops every server in the pool, detached ones that are up are left running for the next run
+     */
+    @Override
+    public void close() {
+        checkTask.cancel(false);
+        List<Entry> all;
+        synchronized (this) {
+            all = new ArrayList<>(entries.values());
+            entries.clear();
+        }
+        if (watchdog != null) {
+            all.forEach(entry -> entry.server.thenAccept(watchdog::unwatch));
+        }
+        all.removeIf(entry -> {
+            WdaServer server = entry.server.isDone() && !entry.server.isCompletedExceptionally() ? entry.server.join() : null;
+            if (server != null && server.isDetached() && server.isHealthy()) {
+                server.detach();
+                return true;
+            }
+            return false;
+        });
+        //Every server that is up goes down at once, servers that are still starting are stopped once they are up
+        ProcessTeardown.destroy(ProcessTeardown.DEFAULT_TIMEOUT, getProcesses(all));
+        all.forEach(entry -> entry.server.thenAccept(this::stop));
+        starter.shutdown();
+    }
+
+    private static class Entry {
+        private final String uuid;
+        private final int port;
+        private final long created = System.currentTimeMillis();
+        private CompletableFuture<WdaServer> server;
+        private long lastReturned = created;
+        private boolean borrowed;
+
+        Entry(String uuid, int port) {
+            this.uuid = uuid;
+            this.port = port;
+        }
+    }
+}
@@ -0,0 +1,208 @@
+import lombok.extern.slf4j.Slf4j;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Limits how many xcodebuild phases run on the host at once.
+ * <p>
+ * Starting xcodebuild for every device together saturates the cpu and disk so every device is ready later than with
+ * staggered launches.  The limit comes from the core count and the load average, which is checked periodically, and
+ * callers over the limit wait in arrival order.  The time spent waiting is kept apart from the time spent building.
+ */
+@Slf4j
+public class XcodebuildGovernor implements AutoCloseable {
+    /**
+     * Cores a single xcodebuild keeps busy
+     */
+    public static int CORES_PER_BUILD = 2;
+    public static int DEFAULT_MAX_BUILDS = 8;
+    public static long ADJUST_INTERVAL = 10 * Constants.ONE_SECOND;
+
+    private static final XcodebuildGovernor instance = new XcodebuildGovernor(
+            Runtime.getRuntime().availableProcessors(), XcodebuildGovernor::systemLoad, DEFAULT_MAX_BUILDS);
+
+    private final int cores;
+    private final DoubleSupplier load;
+    private final int maxBuilds;
+    private final ResizableSemaphore permits;
+    private final AtomicInteger running = new AtomicInteger();
+    private final Stats stats = new Stats();
+    private final ScheduledFuture<?> adjustTask;
+    private int limit;
+
+    public static XcodebuildGovernor getInstance() {
+        return instance;
+    }
+
+    /**
+     * @param cores     the cores on the host
+     * @param load      gets the one minute load average, negative if it is not available
+     * @param maxBuilds the most builds to ever run at once
+     */
+    public XcodebuildGovernor(int cores, DoubleSupplier load, int maxBuilds) {
+        this.cores = cores;
+        this.load = load;
+        this.maxBuilds = maxBuilds;
+        this.limit = limitFor(cores, load.getAsDouble(), 0, maxBuilds);
+        this.permits = new ResizableSemaphore(limit);
+        adjustTask = PollingService.getScheduler().scheduleWithFixedDelay(this::adjust, ADJUST_INTERVAL, ADJUST_INTERVAL, TimeUnit.MILLISECONDS);
+        log.info("Running up to {} xcodebuilds at once on {} cores", limit, cores);
+    }
+
+    /**
+     * Works out how many builds can run at once
+     *
+     * @param cores     the cores on the host
+     * @param load      the load average, negative if it is not available
+     * @param running   the builds running now, their share of the load is not counted against new ones
+     * @param maxBuilds the most builds to ever run at once
+     */
+    static int limitFor(int cores, double load, int running, int maxBuilds) {
+        double free = cores;
+        if (load >= 0) {
+            free = cores - Math.max(0, load - running * CORES_PER_BUILD);
+        }
+        int limit = (int) Math.floor(free / CORES_PER_BUILD);
+        return Math.max(1, Math.min(maxBuilds, limit));
+    }
+
+    private static double systemLoad() {
+        return ManagementFactory.getOperatingSystemMXBean().getSystemLoadAverage();
+    }
+
+    /**
+     * Runs the xcodebuild phase once there is room for it
+     *
+     * @param name what is being built, used in the logs
+     * @param task the phase to run
+     * @return the result of the task
+     */
+    public <T> T run(String name, Callable<T> task) throws Exception {
+        long queued = System.nanoTime();
+        permits.acquire();
+        long started = System.nanoTime();
+        running.incrementAndGet();
+        try {
+            return task.call();
+        } finally {
+            running.decrementAndGet();
+            permits.release();
+            long finished = System.nanoTime();
+            stats.record(started - queued, finished - started);
+            log.info("xcodebuild for {} waited {}ms, ran {}ms", name,
+                    TimeUnit.NANOSECONDS.toMillis(started - queued), TimeUnit.NANOSECONDS.toMillis(finished - started));
+        }
+    }
+
+    /**
+     * Sets the limit again from the current load
+     */
+    void adjust() {
+        setLimit(limitFor(cores, load.getAsDouble(), running.get(), maxBuilds));
+    }
+
+    /**
+     * Changes how many builds can run at once, builds already running are not affected
+     */
+    public synchronized void setLimit(int newLimit) {
+        int delta = newLimit - limit;
+        if (delta > 0) {
+            permits.release(delta);
+        } else if (delta < 0) {
+            permits.reducePermits(-delta);
+        }
+        if (delta != 0) {
+            log.info("xcodebuild limit changed from {} to {}", limit, newLimit);
+        }
+        limit = newLimit;
+    }
+
+    public synchronized int getLimit() {
+        return limit;
+    }
+
+    /**
+     * Gets the number of callers waiting for their turn
+     */
+    public int getQueueLength() {
+        return permits.getQueueLength();
+    }
+
+    public Stats getStats() {
+        return stats;
+    }
+
+    @Override
+    public void close() {
+        adjustTask.cancel(false);
+    }
+
+    /**
+     * Fair semaphore that can also give up permits
+     */
+    private static class ResizableSemaphore extends Semaphore {
+        ResizableSemaphore(int permits) {
+            super(permits, true);
+        }
+
+        @Override
+        protected void reducePermits(int reduction) {
+            super.reducePermits(reduction);
+        }
+    }
+
+    /**
+     * Time spent waiting for a turn and building
+     */
+    public static class Stats {
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalWaitNanos = new LongAdder();
+        private final AtomicLong maxWaitNanos = new AtomicLong();
+        private final LongAdder totalBuildNanos = new LongAdder();
+        private final AtomicLong maxBuildNanos = new AtomicLong();
+
+        void record(long waitNanos, long buildNanos) {
+            count.increment();
+            totalWaitNanos.add(waitNanos);
+            maxWaitNanos.accumulateAndGet(waitNanos, Math::max);
+            totalBuildNanos.add(buildNanos);
+            maxBuildNanos.accumulateAndGet(buildNanos, Math::max);
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public double getMeanWaitMillis() {
+            long n = count.sum();
+            return n == 0 ? 0 : totalWaitNanos.sum() / (double) n / 1_000_000;
+        }
+
+        public double getMaxWaitMillis() {
+            return maxWaitNanos.get() / 1_000_000d;
+        }
+
+        public double getMeanBuildMillis() {
+            long n = count.sum();
+            return n == 0 ? 0 : totalBuildNanos.sum() / (double) n / 1_000_000;
+        }
+
+        public double getMaxBuildMillis() {
+            return maxBuildNanos.get() / 1_000_000d;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("count=%d wait(mean=%.1fms max=%.1fms) build(mean=%.1fms max=%.1fms)",
+                    getCount(), getMeanWaitMillis(), getMaxWaitMillis(), getMeanBuildMillis(), getMaxBuildMillis());
+        }
+    }
+}
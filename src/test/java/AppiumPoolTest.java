@@ -0,0 +1,167 @@
+import lombok.extern.slf4j.Slf4j;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@Slf4j
+public class AppiumPoolTest {
+    private static final int BASE_PORT = 7500;
+
+    /**
+     * Stands in for an appium node with a local http server instead of node
+     */
+    static class StubAppiumService extends AppiumService {
+        private final int assignedPort;
+        private final CompletableFuture<Void> exit = new CompletableFuture<>();
+        private StubHttpServer server;
+
+        StubAppiumService(int port) {
+            super(port);
+            this.assignedPort = port;
+        }
+
+        @Override
+        public Process startAppium() throws Exception {
+            server = new StubHttpServer().respond("/wd/hub/status", 200, "{\"status\":0}");
+            //The drivers connect to the stub, the pool still knows the node by its assigned port
+            setPort(server.getPort());
+            if (!HealthCheckClient.getInstance().probe(getStatusUrl())) {
+                throw new IllegalStateException("stub did not answer");
+            }
+            return null;
+        }
+
+        @Override
+        public boolean isRunning() {
+            return server != null && !exit.isDone();
+        }
+
+        @Override
+        public CompletableFuture<Void> onExit() {
+            return exit;
+        }
+
+        @Override
+        public void stopAppium() {
+            if (server != null) {
+                server.close();
+            }
+            exit.complete(null);
+        }
+
+        /**
+         * Simulates node crashing
+         */
+        void crash() {
+            stopAppium();
+        }
+    }
+
+    private static class StubFactory {
+        private final List<StubAppiumService> created = new ArrayList<>();
+
+        synchronized StubAppiumService create(int port) {
+            StubAppiumService service = new StubAppiumService(port);
+            created.add(service);
+            return service;
+        }
+
+        synchronized StubAppiumService forPort(int port) {
+            for (StubAppiumService service : created) {
+                if (service.assignedPort == port && !service.exit.isDone()) {
+                    return service;
+                }
+            }
+            throw new IllegalStateException("No stub on " + port);
+        }
+
+        synchronized int count() {
+            return created.size();
+        }
+    }
+
+    @Test
+    public void testSessionsGoToLeastLoadedNode() throws Exception {
+        StubFactory factory = new StubFactory();
+        try (AppiumPool pool = new AppiumPool(3, BASE_PORT, factory::create)) {
+            pool.start();
+
+            List<AppiumPool.Session> sessions = new ArrayList<>();
+            for (int i = 0; i < 6; i++) {
+                sessions.add(pool.openSession());
+            }
+            assertThat(pool.getSessionCounts()).containsValues(2, 2, 2).hasSize(3);
+
+            //The freed node gets the next session
+            AppiumPool.Session freed = sessions.get(4);
+            freed.close();
+            freed.close();
+            assertThat(pool.getSessionCounts().get(freed.getPort())).isEqualTo(1);
+            AppiumPool.Session next = pool.openSession();
+            assertThat(next.getPort()).isEqualTo(freed.getPort());
+            assertThat(HealthCheckClient.getInstance().probe(next.getUrl() + "/status")).isTrue();
+        }
+    }
+
+    @Test
+    public void testCrashedNodeIsReplacedBySpare() throws Exception {
+        StubFactory factory = new StubFactory();
+        try (AppiumPool pool = new AppiumPool(2, BASE_PORT, factory::create)) {
+            pool.start();
+            PollingService.poll(pool::isSpareReady, 5000, 10);
+            assertThat(factory.count()).isEqualTo(3);
+            assertThat(pool.getSessionCounts()).containsOnlyKeys(BASE_PORT, BASE_PORT + 1);
+
+            AppiumPool.Session session = pool.openSession();
+            factory.forPort(session.getPort()).crash();
+
+            //The spare took over straight away and a new spare is starting
+            Map<Integer, Integer> counts = pool.getSessionCounts();
+            assertThat(counts).hasSize(2).doesNotContainKey(session.getPort()).containsKey(BASE_PORT + 2);
+            assertThat(counts.values()).containsOnly(0);
+            PollingService.poll(pool::isSpareReady, 5000, 10);
+            assertThat(factory.count()).isEqualTo(4);
+        }
+    }
+
+    @Test
+    public void testExitedNodeIsSkipped() throws Exception {
+        StubFactory factory = new StubFactory();
+        try (AppiumPool pool = new AppiumPool(1, BASE_PORT, factory::create)) {
+            pool.start();
+            PollingService.poll(pool::isSpareReady, 5000, 10);
+
+            //Exited without the exit callback firing yet
+            StubAppiumService node = factory.forPort(BASE_PORT);
+            node.server.close();
+            node.server = null;
+
+            //The spare is put in its place while routing
+            assertThat(pool.openSession().getPort()).isEqualTo(BASE_PORT + 1);
+
+            //Then the new spare takes over when that one dies as well
+            PollingService.poll(pool::isSpareReady, 5000, 10);
+            StubAppiumService second = factory.forPort(BASE_PORT + 1);
+            second.server.close();
+            second.server = null;
+            assertThat(pool.openSession().getPort()).isEqualTo(BASE_PORT);
+        }
+    }
+
+    @Test
+    public void testCloseStopsEveryNode() throws Exception {
+        StubFactory factory = new StubFactory();
+        AppiumPool pool = new AppiumPool(2, BASE_PORT, factory::create);
+        pool.start();
+        PollingService.poll(pool::isSpareReady, 5000, 10);
+        pool.close();
+
+        assertThat(factory.created).allMatch(service -> !service.isRunning());
+        assertThat(pool.getSessionCounts()).isEmpty();
+    }
+}
@@ -0,0 +1,200 @@
+import com.google.gson.GsonBuilder;
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+import org.testng.SkipException;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Brings simulated devices up and down against the stand-in tools of {@link FakeToolchain} and reports how it went.
+ * <p>
+ * Run it with the loadTest gradle task, which puts the stand-ins first on the PATH.  The device counts, cycles and
+ * failure rate come from the load.devices, load.cycles and load.failureRate system properties.
+ */
+@Slf4j
+@Test(groups = "load")
+public class BringUpLoadTest {
+    private final int cycles = Integer.getInteger("load.cycles", 3);
+    private final double failureRate = Double.parseDouble(System.getProperty("load.failureRate", "0"));
+    private final List<Result> results = Collections.synchronizedList(new ArrayList<>());
+    private final ExecutorService appiumStarter = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "load-appium-start");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private FakeToolchain toolchain;
+
+    @Data
+    static class Result {
+        private int devices;
+        private int cycles;
+        private int started;
+        private int failed;
+        private double devicesPerSecond;
+        private double p50Millis;
+        private double p99Millis;
+        private double maxTeardownMillis;
+        private int peakThreads;
+        private double peakHeapMb;
+    }
+
+    @DataProvider(name = "devices")
+    public Object[][] devices() {
+        return Arrays.stream(System.getProperty("load.devices", "1,10").split(","))
+                .map(count -> new Object[] {Integer.parseInt(count.trim())})
+                .toArray(Object[][]::new);
+    }
+
+    @BeforeClass
+    public void installToolchain() throws Exception {
+        if (Constants.TOOLCHAIN_PATH == null) {
+            throw new SkipException("Run with the loadTest task, ios.toolchain.path is not set");
+        }
+        toolchain = new FakeToolchain(Paths.get(Constants.TOOLCHAIN_PATH)).install(settings(1));
+        FakeToolchain.createWdaProject(Constants.WDA_PROJECT_PATH);
+    }
+
+    @AfterClass(alwaysRun = true)
+    public void writeReport() throws Exception {
+        appiumStarter.shutdownNow();
+        if (results.isEmpty()) {
+            return;
+        }
+        Files.createDirectories(Constants.LOG_DIR);
+        Files.write(Constants.LOG_DIR.resolve("load-test.json"),
+                new GsonBuilder().setPrettyPrinting().create().toJson(results).getBytes(StandardCharsets.UTF_8));
+        PhaseTimers.getInstance().writeReports(Constants.LOG_DIR);
+
+        StringBuilder table = new StringBuilder(String.format("%8s %8s %8s %10s %10s %10s %12s %8s %10s%n",
+                "devices", "started", "failed", "devices/s", "p50 ms", "p99 ms", "teardown ms", "threads", "heap MB"));
+        for (Result result : results) {
+            table.append(String.format("%8d %8d %8d %10.2f %10.0f %10.0f %12.0f %8d %10.1f%n",
+                    result.getDevices(), result.getStarted(), result.getFailed(), result.getDevicesPerSecond(),
+                    result.getP50Millis(), result.getP99Millis(), result.getMaxTeardownMillis(),
+                    result.getPeakThreads(), result.getPeakHeapMb()));
+        }
+        log.info("Bring up load test, {} cycles per run:\n{}", cycles, table);
+    }
+
+    private FakeToolchain.Settings settings(int devices) {
+        FakeToolchain.Settings settings = new FakeToolchain.Settings();
+        settings.setDevices(devices);
+        settings.setFailureRate(failureRate);
+        return settings;
+    }
+
+    @Test(dataProvider = "devices")
+    public void testBringUpAndTeardown(int deviceCount) throws Exception {
+        toolchain.configure(settings(deviceCount));
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        List<MemoryPoolMXBean> heap = new ArrayList<>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+                heap.add(pool);
+            }
+        }
+        threads.resetPeakThreadCount();
+
+        List<Long> latencies = Collections.synchronizedList(new ArrayList<>());
+        long busyNanos = 0;
+        long maxTeardown = 0;
+        int failed = 0;
+        for (int cycle = 0; cycle < cycles; cycle++) {
+            long cycleStart = System.nanoTime();
+            List<IosHelper.IosDevice> devices = new DeviceWatcher(IosHelper::listDevicesOutput).refresh();
+            assertThat(devices).hasSize(deviceCount);
+
+            //Every device and appium node comes up at once, like the sample does
+            int appiumCount = (deviceCount + 3) / 4;
+            PortAllocator.Lease ports = PortAllocator.getInstance().allocate("load-test", devices.size() + appiumCount);
+            List<WdaServer> servers = new ArrayList<>();
+            List<CompletableFuture<?>> starts = new ArrayList<>();
+            for (int i = 0; i < devices.size(); i++) {
+                WdaServer server = new WdaServer(devices.get(i).getUuid(), ports.getPort(i));
+                servers.add(server);
+                long start = System.nanoTime();
+                starts.add(server.bringUp().getDone().whenComplete((ignored, e) -> latencies.add(System.nanoTime() - start)));
+            }
+            List<AppiumService> appiums = new ArrayList<>();
+            for (int i = 0; i < appiumCount; i++) {
+                AppiumService appium = new AppiumService(ports.getPort(devices.size() + i));
+                appiums.add(appium);
+                starts.add(CompletableFuture.runAsync(() -> {
+                    try {
+                        appium.startAppium();
+                    } catch (Exception e) {
+                        log.info("Appium on port {} failed to start: {}", appium.getPort(), e.getMessage());
+                    }
+                }, appiumStarter));
+            }
+            try {
+                CompletableFuture.allOf(starts.toArray(new CompletableFuture<?>[0])).get(10, TimeUnit.MINUTES);
+            } catch (Exception e) {
+                log.info("Not every device came up: {}", e.getMessage());
+            }
+            busyNanos += System.nanoTime() - cycleStart;
+            for (WdaServer server : servers) {
+                if (!server.isHealthy()) {
+                    failed++;
+                }
+            }
+
+            long teardownStart = System.nanoTime();
+            ProcessTeardown teardown = new ProcessTeardown();
+            servers.forEach(server -> teardown.addAll(server.getProcesses()));
+            appiums.forEach(appium -> teardown.addAll(appium.getProcesses()));
+            assertThat(teardown.run(ProcessTeardown.DEFAULT_TIMEOUT)).isEmpty();
+            ports.close();
+            maxTeardown = Math.max(maxTeardown, System.nanoTime() - teardownStart);
+        }
+
+        Result result = new Result();
+        result.setDevices(deviceCount);
+        result.setCycles(cycles);
+        result.setStarted(deviceCount * cycles - failed);
+        result.setFailed(failed);
+        result.setDevicesPerSecond(result.getStarted() / (busyNanos / 1e9));
+        List<Long> sorted = new ArrayList<>(latencies);
+        Collections.sort(sorted);
+        result.setP50Millis(percentile(sorted, 50) / 1e6);
+        result.setP99Millis(percentile(sorted, 99) / 1e6);
+        result.setMaxTeardownMillis(maxTeardown / 1e6);
+        result.setPeakThreads(threads.getPeakThreadCount());
+        result.setPeakHeapMb(heap.stream().mapToLong(pool -> pool.getPeakUsage().getUsed()).sum() / (1024.0 * 1024));
+        results.add(result);
+        log.info("{}", result);
+
+        if (failureRate == 0) {
+            assertThat(failed).isZero();
+        }
+    }
+
+    private static long percentile(List<Long> sorted, double percentile) {
+        if (sorted.isEmpty()) {
+            return 0;
+        }
+        int rank = (int) Math.ceil(sorted.size() * percentile / 100);
+        return sorted.get(Math.max(0, rank - 1));
+    }
+}
@@ -0,0 +1,121 @@
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class BringUpTest {
+    private final ExecutorService executor = Executors.newFixedThreadPool(4, r -> {
+        Thread thread = new Thread(r, "bring-up-test");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @AfterClass
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testIndependentStepsOverlap() throws Exception {
+        BringUp bringUp = new BringUp("device1", executor);
+        //Neither step can finish unless both are running at once
+        CountDownLatch both = new CountDownLatch(2);
+        BringUp.Step<String> iproxy = bringUp.step("iproxy", () -> {
+            both.countDown();
+            assertThat(both.await(5, TimeUnit.SECONDS)).isTrue();
+            return "iproxy";
+        });
+        BringUp.Step<String> unlock = bringUp.step("keychain-unlock", () -> {
+            both.countDown();
+            assertThat(both.await(5, TimeUnit.SECONDS)).isTrue();
+            return "unlocked";
+        });
+        BringUp.Step<String> wda = bringUp.step("wda", () -> iproxy.get() + "+" + unlock.get(), iproxy, unlock);
+
+        bringUp.await(10 * Constants.ONE_SECOND);
+        assertThat(wda.get()).isEqualTo("iproxy+unlocked");
+    }
+
+    @Test
+    public void testFailureCancelsSiblings() throws Exception {
+        BringUp bringUp = new BringUp("device1", executor);
+        AtomicBoolean interrupted = new AtomicBoolean();
+        AtomicBoolean dependentRan = new AtomicBoolean();
+        CountDownLatch building = new CountDownLatch(1);
+
+        BringUp.Step<Void> build = bringUp.step("build", () -> {
+            building.countDown();
+            try {
+                Thread.sleep(60 * Constants.ONE_SECOND);
+            } catch (InterruptedException e) {
+                interrupted.set(true);
+            }
+            return null;
+        });
+        BringUp.Step<Void> iproxy = bringUp.step("iproxy", () -> {
+            building.await();
+            throw new IllegalStateException("iproxy failed");
+        });
+        bringUp.step("wda", () -> {
+            dependentRan.set(true);
+            return null;
+        }, build, iproxy);
+
+        long start = System.nanoTime();
+        assertThatThrownBy(() -> bringUp.await(30 * Constants.ONE_SECOND))
+                .isInstanceOf(IllegalStateException.class)
+                .hasMessage("iproxy failed");
+        assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)).isLessThan(5 * Constants.ONE_SECOND);
+        //The sibling notices the interrupt on its own thread, after await has returned
+        assertThat(PollingService.poll(interrupted::get, 5 * Constants.ONE_SECOND, 10)).isTrue();
+        assertThat(dependentRan).isFalse();
+        assertThat(build.getResult().isCancelled()).isTrue();
+    }
+
+    @Test
+    public void testAsyncStepsDoNotHoldThreads() throws Exception {
+        ExecutorService single = Executors.newSingleThreadExecutor();
+        try {
+            BringUp bringUp = new BringUp("farm", single);
+            List<BringUp.Step<Integer>> waits = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                int device = i;
+                waits.add(bringUp.stepAsync("wait-" + i, () -> {
+                    CompletableFuture<Integer> ready = new CompletableFuture<>();
+                    PollingService.getScheduler().schedule(() -> ready.complete(device), 300, TimeUnit.MILLISECONDS);
+                    return ready;
+                }));
+            }
+
+            long start = System.nanoTime();
+            bringUp.await(10 * Constants.ONE_SECOND);
+            //Twenty waits of 300ms with one thread, they must have waited together
+            assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)).isLessThan(3 * Constants.ONE_SECOND);
+            assertThat(waits.get(19).get()).isEqualTo(19);
+        } finally {
+            single.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testTimeoutCancelsEverything() {
+        BringUp bringUp = new BringUp("device1", executor);
+        CompletableFuture<Boolean> never = new CompletableFuture<>();
+        BringUp.Step<Boolean> ready = bringUp.stepAsync("wda-ready", () -> never);
+
+        assertThatThrownBy(() -> bringUp.await(200)).isInstanceOf(TimeoutException.class);
+        assertThat(ready.getResult().isCancelled()).isTrue();
+        assertThat(never.isCancelled()).isTrue();
+    }
+}
@@ -0,0 +1,52 @@
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CircuitBreakerTest {
+
+    @Test
+    public void testOpensAfterFailuresInWindow() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker(3, 200, Constants.ONE_MINUTE);
+        List<CircuitBreaker.State> changes = new ArrayList<>();
+        breaker.addListener((key, state) -> changes.add(state));
+
+        breaker.recordFailure("device1");
+        breaker.recordFailure("device1");
+        //The first two are outside the window by the time of the third
+        Thread.sleep(300);
+        breaker.recordFailure("device1");
+        assertThat(breaker.isClosed("device1")).isTrue();
+
+        breaker.recordFailure("device1");
+        breaker.recordFailure("device1");
+        assertThat(breaker.getState("device1")).isEqualTo(CircuitBreaker.State.OPEN);
+        assertThat(breaker.tryRestart("device1")).isFalse();
+        assertThat(breaker.isClosed("device2")).isTrue();
+        assertThat(changes).containsExactly(CircuitBreaker.State.OPEN);
+    }
+
+    @Test
+    public void testHalfOpenAllowsOneRestart() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker(1, Constants.ONE_MINUTE, 100);
+        breaker.recordFailure("device1");
+        Thread.sleep(150);
+
+        assertThat(breaker.tryRestart("device1")).isTrue();
+        assertThat(breaker.getState("device1")).isEqualTo(CircuitBreaker.State.HALF_OPEN);
+        assertThat(breaker.tryRestart("device1")).isFalse();
+
+        //A failed try opens it again for another wait
+        breaker.recordFailure("device1");
+        assertThat(breaker.getState("device1")).isEqualTo(CircuitBreaker.State.OPEN);
+        assertThat(breaker.tryRestart("device1")).isFalse();
+        Thread.sleep(150);
+
+        assertThat(breaker.tryRestart("device1")).isTrue();
+        breaker.recordSuccess("device1");
+        assertThat(breaker.isClosed("device1")).isTrue();
+        assertThat(breaker.getTripped()).isEmpty();
+    }
+}
@@ -0,0 +1,88 @@
+import org.testng.annotations.Test;
+import org.zeroturnaround.exec.ProcessExecutor;
+import org.zeroturnaround.exec.ProcessResult;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class CommandShellTest {
+
+    @Test
+    public void testResultMatchesProcessExecutor() throws Exception {
+        try (CommandShell shell = new CommandShell(1, Constants.ONE_MINUTE, 100, Constants.ONE_MINUTE)) {
+            List<List<String>> commands = Arrays.asList(
+                    Arrays.asList("echo", "one two", "it's"),
+                    Arrays.asList("sh", "-c", "echo out; echo err >&2; exit 3"),
+                    Arrays.asList("printf", "no new line"),
+                    Arrays.asList("printf", "\\nlooks like a marker 0\\n"),
+                    Arrays.asList("sh", "-c", "read line; echo \"read $line\""),
+                    Arrays.asList("echo", "$HOME `id` ; exit 1"));
+            for (List<String> command : commands) {
+                ProcessResult expected = new ProcessExecutor().command(command).readOutput(true).execute();
+
+                CommandShell.Result result = shell.run(command, Collections.emptyMap(), null);
+
+                assertThat(result.getExitValue()).as("%s", command).isEqualTo(expected.getExitValue());
+                assertThat(result.getOutput()).as("%s", command).isEqualTo(expected.outputUTF8());
+            }
+            //Every command ran in the same shell
+            assertThat(shell.getShellCount()).isEqualTo(1);
+        }
+    }
+
+    @Test
+    public void testEnvironmentAndDirectory() throws Exception {
+        Path dir = Files.createTempDirectory("command-shell");
+        try (CommandShell shell = new CommandShell(1, Constants.ONE_MINUTE, 100, Constants.ONE_MINUTE)) {
+            CommandShell.Result result = shell.run(Arrays.asList("sh", "-c", "echo \"$KEYPASS\"; pwd -P"),
+                    Collections.singletonMap("KEYPASS", "pa'ss word"), dir);
+
+            assertThat(result.getOutput()).isEqualTo("pa'ss word\n" + dir.toRealPath() + "\n");
+            //The variable and directory don't stick to the shell
+            assertThat(shell.run("sh", "-c", "echo \"[$KEYPASS]\"").getOutput()).isEqualTo("[]\n");
+        } finally {
+            Files.deleteIfExists(dir);
+        }
+    }
+
+    @Test
+    public void testMissingProgramThrows() throws Exception {
+        try (CommandShell shell = new CommandShell(1, Constants.ONE_MINUTE, 100, Constants.ONE_MINUTE)) {
+            assertThatThrownBy(() -> shell.run("no-such-program-for-the-test"))
+                    .isInstanceOf(IOException.class);
+            assertThat(shell.run("echo", "still works").getOutput()).isEqualTo("still works\n");
+        }
+    }
+
+    @Test
+    public void testTimeoutKillsTheShell() throws Exception {
+        try (CommandShell shell = new CommandShell(1, 500, 100, Constants.ONE_MINUTE)) {
+            long start = System.nanoTime();
+            assertThatThrownBy(() -> shell.run("sh", "-c", "sleep 300"))
+                    .isInstanceOf(TimeoutException.class);
+            assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)).isLessThan(5 * Constants.ONE_SECOND);
+
+            //A new shell takes its place
+            assertThat(shell.run("echo", "next").getOutput()).isEqualTo("next\n");
+            assertThat(shell.getShellCount()).isEqualTo(1);
+        }
+    }
+
+    @Test
+    public void testShellIsReplacedAfterMaxCommands() throws Exception {
+        try (CommandShell shell = new CommandShell(1, Constants.ONE_MINUTE, 2, Constants.ONE_MINUTE)) {
+            String first = shell.run("sh", "-c", "echo $PPID").getOutput();
+            assertThat(shell.run("sh", "-c", "echo $PPID").getOutput()).isEqualTo(first);
+            assertThat(shell.run("sh", "-c", "echo $PPID").getOutput()).isNotEqualTo(first);
+        }
+    }
+}
@@ -0,0 +1,137 @@
+import org.testng.annotations.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class DetachedServersTest {
+
+    private static List<ProcessHandle> server() throws Exception {
+        return Collections.singletonList(new ProcessBuilder("sleep", "300").start().toHandle());
+    }
+
+    private static boolean exited(List<ProcessHandle> processes) throws Exception {
+        return PollingService.poll(() -> processes.stream().noneMatch(ProcessHandle::isAlive), 10 * Constants.ONE_SECOND, 20);
+    }
+
+    @Test
+    public void testNextRunReattachesToTheSameBuild() throws Exception {
+        Path directory = Files.createTempDirectory("detached");
+        List<ProcessHandle> processes = server();
+        try (StubHttpServer status = new StubHttpServer().respond("/status", 200, "{}")) {
+            DetachedServers run = new DetachedServers(directory, Constants.ONE_MINUTE, 0);
+            run.record("wda-a", "a", processes, status.getUrl() + "/status", "build-1");
+            run.detach("wda-a");
+
+            DetachedServers nextRun = new DetachedServers(directory, Constants.ONE_MINUTE, 0);
+            Optional<DetachedServers.State> state = nextRun.reattach("wda-a", "build-1");
+
+            assertThat(state).isPresent();
+            assertThat(state.get().getHandles()).isEqualTo(processes);
+            assertThat(nextRun.list()).extracting(DetachedServers.State::getOwner).doesNotContain("");
+
+            //A server started from another build is stopped so it can be started again
+            nextRun.detach("wda-a");
+            assertThat(nextRun.reattach("wda-a", "build-2")).isEmpty();
+            assertThat(exited(processes)).isTrue();
+            assertThat(nextRun.list()).isEmpty();
+        } finally {
+            processes.forEach(ProcessHandle::destroyForcibly);
+        }
+    }
+
+    @Test
+    public void testReattachedProcessesKeepTheirPlaces() throws Exception {
+        Path directory = Files.createTempDirectory("detached");
+        List<ProcessHandle> processes = Arrays.asList(server().get(0), server().get(0));
+        try (StubHttpServer status = new StubHttpServer().respond("/status", 200, "{}")) {
+            DetachedServers servers = new DetachedServers(directory, Constants.ONE_MINUTE, 0);
+            servers.record("wda-a", "a", processes, status.getUrl() + "/status", "build");
+            servers.detach("wda-a");
+
+            Optional<DetachedServers.State> state = servers.reattach("wda-a", "build");
+            //The main process dies after it was checked, the other one doesn't take its place
+            processes.get(0).destroyForcibly();
+            assertThat(exited(processes.subList(0, 1))).isTrue();
+
+            assertThat(state.get().getHandles()).containsExactlyElementsOf(processes);
+            assertThat(state.get().findProcesses()).containsExactly(processes.get(1));
+        } finally {
+            processes.forEach(ProcessHandle::destroyForcibly);
+        }
+    }
+
+    @Test
+    public void testServerThatDoesNotAnswerIsStopped() throws Exception {
+        Path directory = Files.createTempDirectory("detached");
+        List<ProcessHandle> wedged = server();
+        Process exited = new ProcessBuilder("true").start();
+        exited.waitFor();
+        try (StubHttpServer status = new StubHttpServer().respond("/status", 500, "{}")) {
+            DetachedServers servers = new DetachedServers(directory, Constants.ONE_MINUTE, 0);
+            servers.record("appium-1", "appium", wedged, status.getUrl() + "/status", "build");
+            servers.record("appium-2", "appium", Collections.singletonList(exited.toHandle()), status.getUrl() + "/status", "build");
+
+            assertThat(servers.reattach("appium-1", "build")).isEmpty();
+            assertThat(servers.reattach("appium-2", "build")).isEmpty();
+            assertThat(servers.reattach("appium-3", "build")).isEmpty();
+
+            assertThat(exited(wedged)).isTrue();
+            assertThat(servers.list()).isEmpty();
+        } finally {
+            wedged.forEach(ProcessHandle::destroyForcibly);
+        }
+    }
+
+    @Test
+    public void testOnlyDetachedServersGoIdle() throws Exception {
+        Path directory = Files.createTempDirectory("detached");
+        List<ProcessHandle> detached = server();
+        List<ProcessHandle> inUse = server();
+        try {
+            DetachedServers servers = new DetachedServers(directory, 300, 0);
+            servers.record("wda-a", "a", detached, "http://127.0.0.1:1/status", "build");
+            servers.record("wda-b", "b", inUse, "http://127.0.0.1:1/status", "build");
+            servers.detach("wda-a");
+            Thread.sleep(500);
+
+            assertThat(servers.reapIdle()).isEqualTo(1);
+            assertThat(exited(detached)).isTrue();
+            assertThat(inUse.get(0).isAlive()).isTrue();
+            assertThat(servers.list()).extracting(DetachedServers.State::getKey).containsExactly("wda-b");
+
+            //Shutdown stops the ones in use too
+            assertThat(servers.shutdown()).isEqualTo(1);
+            assertThat(exited(inUse)).isTrue();
+            assertThat(servers.list()).isEmpty();
+        } finally {
+            detached.forEach(ProcessHandle::destroyForcibly);
+            inUse.forEach(ProcessHandle::destroyForcibly);
+        }
+    }
+
+    @Test
+    public void testWatcherStopsIdleServersAfterTheRun() throws Exception {
+        Path directory = Files.createTempDirectory("detached");
+        List<ProcessHandle> processes = server();
+        try {
+            //The watcher runs in its own jvm, so it keeps going once the run is over
+            DetachedServers servers = new DetachedServers(directory, 300, 100);
+            servers.record("appium-1", "appium", processes, "http://127.0.0.1:1/status", "build");
+            assertThat(directory.resolve("watcher.pid")).exists();
+            servers.detach("appium-1");
+
+            assertThat(exited(processes)).isTrue();
+            //Nothing left to watch, the watcher stops
+            assertThat(PollingService.poll(() -> !Files.exists(directory.resolve("watcher.pid")), 10 * Constants.ONE_SECOND, 20)).isTrue();
+            assertThat(servers.list()).isEmpty();
+        } finally {
+            processes.forEach(ProcessHandle::destroyForcibly);
+        }
+    }
+}
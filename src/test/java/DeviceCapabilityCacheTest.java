@@ -0,0 +1,129 @@
+import org.openqa.selenium.remote.DesiredCapabilities;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class DeviceCapabilityCacheTest {
+
+    private static IosHelper.IosDevice device(String uuid, String version) {
+        IosHelper.IosDevice device = new IosHelper.IosDevice();
+        device.setUuid(uuid);
+        device.setName("Farm iPhone");
+        device.setVersion(version);
+        return device;
+    }
+
+    private static Map<String, Object> values(String version, String name) {
+        Map<String, Object> values = new HashMap<>();
+        values.put("ProductVersion", version);
+        values.put("ProductType", "iPhone10,3");
+        values.put("DeviceName", name);
+        values.put("TotalDiskCapacity", 64_000_000_000L);
+        values.put("AmountDataAvailable", 12_000_000_000L);
+        return values;
+    }
+
+    private static DeviceCapabilityCache.Fetcher failing() {
+        return uuid -> {
+            throw new IOException("ideviceinfo should not run");
+        };
+    }
+
+    @Test
+    public void testDevicesAreFetchedTogetherAndSaved() throws Exception {
+        Path directory = Files.createTempDirectory("devices");
+        List<IosHelper.IosDevice> devices = Arrays.asList(device("a", "11.2.5"), device("b", "11.2.5"), device("c", "10.3.3"));
+        //Each fetch waits for the others, so this only finishes if they run at the same time
+        CountDownLatch together = new CountDownLatch(devices.size());
+        DeviceCapabilityCache cache = new DeviceCapabilityCache(directory, Constants.ONE_MINUTE, 4, uuid -> {
+            together.countDown();
+            assertThat(together.await(10, TimeUnit.SECONDS)).isTrue();
+            return values(uuid.equals("c") ? "10.3.3" : "11.2.5", "Phone " + uuid);
+        });
+
+        cache.load(devices).get(10, TimeUnit.SECONDS);
+
+        DeviceCapabilityCache.DeviceInfo info = cache.get(devices.get(2));
+        assertThat(info.getOsVersion()).isEqualTo("10.3.3");
+        assertThat(info.getModel()).isEqualTo("iPhone10,3");
+        assertThat(info.getFreeStorage()).isEqualTo(12_000_000_000L);
+
+        //The next run reads the files instead of asking the devices
+        DeviceCapabilityCache nextRun = new DeviceCapabilityCache(directory, Constants.ONE_MINUTE, 4, failing());
+        nextRun.load(devices).get(10, TimeUnit.SECONDS);
+        assertThat(nextRun.get(devices.get(0))).isEqualTo(cache.get(devices.get(0)));
+        DesiredCapabilities capabilities = nextRun.capabilities(devices.get(1));
+        assertThat(capabilities.getCapability("platformVersion")).isEqualTo("11.2.5");
+        assertThat(capabilities.getCapability("deviceName")).isEqualTo("Phone b");
+        assertThat(capabilities.getCapability("udid")).isEqualTo("b");
+    }
+
+    @Test
+    public void testOsUpdateInvalidatesEntry() throws Exception {
+        Path directory = Files.createTempDirectory("devices");
+        new DeviceCapabilityCache(directory, Constants.ONE_MINUTE, 1, uuid -> values("11.2.5", "Old"))
+                .load(Arrays.asList(device("a", "11.2.5"))).get(10, TimeUnit.SECONDS);
+
+        AtomicInteger fetches = new AtomicInteger();
+        DeviceCapabilityCache cache = new DeviceCapabilityCache(directory, Constants.ONE_MINUTE, 1, uuid -> {
+            fetches.incrementAndGet();
+            return values("12.1", "Updated");
+        });
+        IosHelper.IosDevice updated = device("a", "12.1");
+
+        //The old entry doesn't count for the new version, even before it is fetched again
+        assertThat(cache.get(updated)).isNull();
+        cache.load(Arrays.asList(updated)).get(10, TimeUnit.SECONDS);
+
+        assertThat(fetches.get()).isEqualTo(1);
+        assertThat(cache.get(updated).getName()).isEqualTo("Updated");
+    }
+
+    @Test
+    public void testExpiredEntryIsUsedWhileItIsRefreshed() throws Exception {
+        AtomicInteger fetches = new AtomicInteger();
+        CountDownLatch refresh = new CountDownLatch(1);
+        DeviceCapabilityCache cache = new DeviceCapabilityCache(null, 500, 1, uuid -> {
+            if (fetches.incrementAndGet() > 1) {
+                assertThat(refresh.await(10, TimeUnit.SECONDS)).isTrue();
+            }
+            return values("11.2.5", "Fetch " + fetches.get());
+        });
+        IosHelper.IosDevice device = device("a", "11.2.5");
+        cache.load(Arrays.asList(device)).get(10, TimeUnit.SECONDS);
+        Thread.sleep(700);
+
+        //The lookup doesn't wait for the refresh it starts
+        assertThat(cache.get(device).getName()).isEqualTo("Fetch 1");
+        assertThat(cache.get(device).getName()).isEqualTo("Fetch 1");
+        refresh.countDown();
+
+        assertThat(PollingService.poll(() -> cache.get(device).getName().equals("Fetch 2"), 10 * Constants.ONE_SECOND, 20)).isTrue();
+        assertThat(fetches.get()).isEqualTo(2);
+    }
+
+    @Test
+    public void testUnknownDeviceUsesDeviceList() throws Exception {
+        DeviceCapabilityCache cache = new DeviceCapabilityCache(null, Constants.ONE_MINUTE, 1, failing());
+        IosHelper.IosDevice device = device("a", "11.2.5");
+
+        //A device whose info can't be fetched still loads
+        cache.load(Arrays.asList(device)).get(10, TimeUnit.SECONDS);
+
+        assertThat(cache.get(device)).isNull();
+        DesiredCapabilities capabilities = cache.capabilities(device);
+        assertThat(capabilities.getCapability("platformVersion")).isEqualTo("11.2.5");
+        assertThat(capabilities.getCapability("deviceName")).isEqualTo("Farm iPhone");
+    }
+}
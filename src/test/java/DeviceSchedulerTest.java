@@ -0,0 +1,156 @@
+import lombok.extern.slf4j.Slf4j;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@Slf4j
+public class DeviceSchedulerTest {
+    private static final long UNIT = 50;
+
+    static IosHelper.IosDevice fakeDevice(int i) {
+        IosHelper.IosDevice device = new IosHelper.IosDevice();
+        device.setUuid(String.format("%040x", i));
+        device.setName("Fake iPhone");
+        device.setVersion("11.2.5");
+        return device;
+    }
+
+    /**
+     * Creates a scheduler with ports of its own, so the tests never touch the leases of the runs on the host
+     */
+    private static DeviceScheduler scheduler(Collection<IosHelper.IosDevice> devices, DurationHistory history,
+                                             CircuitBreaker breaker) throws IOException {
+        PortAllocator ports = new PortAllocator(Files.createTempDirectory("ports"), 31900, 31999);
+        return new DeviceScheduler(devices, history, IosHelper.IosDevice::getName, breaker, ports);
+    }
+
+    /**
+     * Runs the synthetic tests on two fake devices and returns the time until the last one finished
+     *
+     * @param durations the duration of each test in units, in the order they are submitted
+     */
+    private long makespan(DurationHistory history, long... durations) throws IOException {
+        DeviceScheduler scheduler = scheduler(Collections.emptyList(), history, CircuitBreaker.getInstance());
+        List<CompletableFuture<?>> runs = new ArrayList<>();
+        for (int i = 0; i < durations.length; i++) {
+            long duration = durations[i] * UNIT;
+            runs.add(scheduler.submit("test" + i, lease -> {
+                try {
+                    Thread.sleep(duration);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return lease.getDevice();
+            }));
+        }
+
+        //Every test is waiting before the devices show up
+        long start = System.currentTimeMillis();
+        scheduler.addDevice(fakeDevice(1));
+        scheduler.addDevice(fakeDevice(2));
+        CompletableFuture.allOf(runs.toArray(new CompletableFuture<?>[0])).join();
+        long elapsed = System.currentTimeMillis() - start;
+        scheduler.close();
+        return elapsed;
+    }
+
+    @Test
+    public void testLongestFirstBeatsArrivalOrder() throws IOException {
+        long[] durations = {1, 1, 1, 1, 4};
+
+        //Without history every test looks the same, so they run in arrival order
+        long fifo = makespan(DurationHistory.load(null), durations);
+
+        DurationHistory history = DurationHistory.load(null);
+        for (int i = 0; i < durations.length; i++) {
+            history.record("test" + i, "Fake iPhone", durations[i] * UNIT);
+        }
+        long lpt = makespan(history, durations);
+
+        log.info("Makespan in arrival order {}ms, longest first {}ms", fifo, lpt);
+        assertThat(fifo).isGreaterThanOrEqualTo(6 * UNIT);
+        assertThat(lpt).isLessThan(fifo - UNIT);
+    }
+
+    @Test
+    public void testLeaseWaitsForFreeDevice() throws Exception {
+        DeviceScheduler scheduler = scheduler(Collections.singletonList(fakeDevice(1)), DurationHistory.load(null),
+                CircuitBreaker.getInstance());
+
+        DeviceScheduler.Lease first = scheduler.acquire("first");
+        CompletableFuture<DeviceScheduler.Lease> second = scheduler.acquireAsync("second");
+        assertThat(second).isNotDone();
+
+        first.close();
+        DeviceScheduler.Lease lease = second.get(1, TimeUnit.SECONDS);
+        assertThat(lease.getDevice()).isEqualTo(first.getDevice());
+        //The device keeps the ports it was given
+        assertThat(lease.getWdaLocalPort()).isEqualTo(first.getWdaLocalPort());
+        assertThat(lease.getWebkitDebugProxyPort()).isEqualTo(first.getWebkitDebugProxyPort())
+                .isNotEqualTo(lease.getWdaLocalPort());
+        lease.close();
+        scheduler.close();
+    }
+
+    @Test
+    public void testCancelledRequestReleasesDevice() throws Exception {
+        DeviceScheduler scheduler = scheduler(Collections.singletonList(fakeDevice(1)), DurationHistory.load(null),
+                CircuitBreaker.getInstance());
+
+        DeviceScheduler.Lease first = scheduler.acquire("first");
+        scheduler.acquireAsync("gave up").cancel(true);
+        first.close();
+
+        assertThat(scheduler.acquireAsync("next").get(1, TimeUnit.SECONDS).getDevice()).isEqualTo(first.getDevice());
+        scheduler.close();
+    }
+
+    @Test
+    public void testTrippedDeviceIsSkipped() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker(2, Constants.ONE_MINUTE, Constants.ONE_MINUTE);
+        IosHelper.IosDevice broken = fakeDevice(1);
+        IosHelper.IosDevice working = fakeDevice(2);
+        breaker.recordFailure(broken.getUuid());
+        breaker.recordFailure(broken.getUuid());
+        DeviceScheduler scheduler = scheduler(Arrays.asList(broken, working), DurationHistory.load(null), breaker);
+
+        DeviceScheduler.Lease first = scheduler.acquire("first");
+        assertThat(first.getDevice()).isEqualTo(working);
+        CompletableFuture<DeviceScheduler.Lease> waiting = scheduler.acquireAsync("waiting");
+        Thread.sleep(100);
+        assertThat(waiting).isNotDone();
+
+        //Once the breaker closes the device is handed out again
+        breaker.reset(broken.getUuid());
+        assertThat(waiting.get(1, TimeUnit.SECONDS).getDevice()).isEqualTo(broken);
+
+        //A closed scheduler no longer listens to the breaker
+        scheduler.close();
+        assertThat(breaker.getListenerCount()).isZero();
+    }
+
+    @Test
+    public void testHistoryIsSaved() throws Exception {
+        Path file = Files.createTempDirectory("durations").resolve("durations.properties");
+        DurationHistory history = DurationHistory.load(file);
+        history.record("testCustomWebDriver", "iPhone 6", 1000);
+        history.record("testCustomWebDriver", "iPhone 6", 2000);
+
+        DurationHistory loaded = DurationHistory.load(file);
+        assertThat(loaded.expected("testCustomWebDriver", "iPhone 6")).isEqualTo(1300);
+        //Unknown model falls back to the test on other models
+        assertThat(loaded.expected("testCustomWebDriver", "iPhone X")).isEqualTo(1300);
+        assertThat(loaded.expected("other", "iPhone X")).isEqualTo(DurationHistory.DEFAULT_DURATION);
+    }
+}
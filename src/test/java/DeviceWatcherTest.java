@@ -0,0 +1,118 @@
+import lombok.extern.slf4j.Slf4j;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@Slf4j
+public class DeviceWatcherTest {
+
+    static String recordedOutput() throws IOException {
+        try (InputStream in = DeviceWatcherTest.class.getResourceAsStream("/instruments/devices.txt")) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    @Test
+    public void testParseRecordedOutput() throws IOException {
+        List<IosHelper.IosDevice> devices = DeviceListParser.parse(recordedOutput());
+
+        assertThat(devices).extracting(IosHelper.IosDevice::getUuid).containsExactly(
+                "656d6ef9da2ccb39d34b00fe7e0c23fe7ec91278",
+                "3f1c2b7e8d9a0b1c2d3e4f5a6b7c8d9e0f1a2b3c",
+                "00008020-000A2D0E0C38002E");
+        assertThat(devices.get(0).getName()).isEqualTo("Chris's iPhone");
+        assertThat(devices.get(0).getVersion()).isEqualTo("11.2.5");
+        assertThat(devices.get(1).getName()).isEqualTo("QA iPhone 6");
+        assertThat(devices.get(1).getVersion()).isEqualTo("10.3.3");
+    }
+
+    @Test
+    public void testParseWindowsLineEndings() throws IOException {
+        List<IosHelper.IosDevice> devices = DeviceListParser.parse(recordedOutput().replace("\n", "\r\n"));
+
+        assertThat(devices).hasSize(3);
+        assertThat(devices.get(0).getUuid()).isEqualTo("656d6ef9da2ccb39d34b00fe7e0c23fe7ec91278");
+    }
+
+    @Test
+    public void testParseGarbage() {
+        assertThat(DeviceListParser.parse("")).isEmpty();
+        assertThat(DeviceListParser.parse("Known Devices:\n]\n[]\n() []\nno brackets (1.0)\n")).isEmpty();
+    }
+
+    @Test
+    public void testAttachDetachEvents() throws IOException {
+        String recorded = recordedOutput();
+        AtomicReference<String> output = new AtomicReference<>(recorded);
+        List<String> events = new ArrayList<>();
+
+        DeviceWatcher watcher = new DeviceWatcher(output::get);
+        watcher.addListener(new DeviceWatcher.Listener() {
+            @Override
+            public void onAttached(IosHelper.IosDevice device) {
+                events.add("attached " + device.getUuid());
+            }
+
+            @Override
+            public void onDetached(IosHelper.IosDevice device) {
+                events.add("detached " + device.getUuid());
+            }
+        });
+
+        assertThat(watcher.getDevices()).hasSize(3);
+        assertThat(events).hasSize(3);
+        events.clear();
+
+        //Nothing changed
+        watcher.refresh();
+        assertThat(events).isEmpty();
+
+        output.set(recorded.replace("QA iPhone 6 (10.3.3) [3f1c2b7e8d9a0b1c2d3e4f5a6b7c8d9e0f1a2b3c]\n", ""));
+        assertThat(watcher.refresh()).hasSize(2);
+        assertThat(events).containsExactly("detached 3f1c2b7e8d9a0b1c2d3e4f5a6b7c8d9e0f1a2b3c");
+        events.clear();
+
+        output.set(recorded);
+        watcher.refresh();
+        assertThat(events).containsExactly("attached 3f1c2b7e8d9a0b1c2d3e4f5a6b7c8d9e0f1a2b3c");
+    }
+
+    @Test
+    public void testOldDevicesAreReadAgain() throws Exception {
+        String recorded = recordedOutput();
+        AtomicReference<String> output = new AtomicReference<>(recorded);
+        DeviceWatcher watcher = new DeviceWatcher(output::get, 200);
+
+        assertThat(watcher.getDevices()).hasSize(3);
+        output.set(recorded.replace("QA iPhone 6 (10.3.3) [3f1c2b7e8d9a0b1c2d3e4f5a6b7c8d9e0f1a2b3c]\n", ""));
+        //Still fresh, instruments isn't run again
+        assertThat(watcher.getDevices()).hasSize(3);
+
+        Thread.sleep(300);
+        assertThat(watcher.getDevices()).hasSize(2);
+    }
+
+    @Test
+    public void testFailedRefreshKeepsDevices() throws IOException {
+        String recorded = recordedOutput();
+        AtomicReference<String> output = new AtomicReference<>(recorded);
+        DeviceWatcher watcher = new DeviceWatcher(() -> {
+            if (output.get() == null) {
+                throw new IOException("instruments not found");
+            }
+            return output.get();
+        });
+
+        assertThat(watcher.refresh()).hasSize(3);
+        output.set(null);
+        assertThat(watcher.refresh()).hasSize(3);
+        assertThat(watcher.getDevices()).hasSize(3);
+    }
+}
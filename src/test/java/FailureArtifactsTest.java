@@ -0,0 +1,120 @@
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class FailureArtifactsTest {
+    private static final String SOURCE_JSON = "{\"value\":\"<?xml version=\\\"1.0\\\"?>\\n"
+            + "<XCUIElementTypeApplication name=\\\"Caf\\u00e9 \\ud83d\\ude00\\\" path=\\\"a\\/b\\\"\\/>\",\"status\":0}";
+    private static final String SOURCE = "<?xml version=\"1.0\"?>\n"
+            + "<XCUIElementTypeApplication name=\"Caf\u00e9 \ud83d\ude00\" path=\"a/b\"/>";
+
+    private Path root;
+    private LogCaptureService logs;
+
+    @BeforeClass
+    public void setUp() throws IOException {
+        root = Files.createTempDirectory("artifacts");
+        logs = new LogCaptureService(root.resolve("logs"), 100, 1024 * 1024, 2, 10);
+    }
+
+    @AfterClass
+    public void tearDown() throws InterruptedException {
+        logs.close();
+    }
+
+    //Wda escapes the slashes of the base64 and puts other keys around the value
+    private static String screenshotJson(byte[] png) {
+        String base64 = Base64.getEncoder().encodeToString(png).replace("/", "\\/");
+        return "{\"sessionId\":\"ABC-1\",\"meta\":{\"sizes\":[1, 2.5, \"x\\\"}\"], \"ok\":true},\"value\":\"" + base64
+                + "\",\"status\":0}";
+    }
+
+    @Test
+    public void testArtifactsAreDecodedToFiles() throws Exception {
+        byte[] png = new byte[2 * 1024 * 1024];
+        new Random(1).nextBytes(png);
+        String device = "artifact-device";
+        try (LogCaptureService.Channel channel = logs.open(device, "session", "wda")) {
+            channel.offer("last wda line");
+        }
+        logs.flush();
+
+        try (StubHttpServer wda = new StubHttpServer()
+                .respond("/screenshot", 200, screenshotJson(png))
+                .respond("/source", 200, SOURCE_JSON);
+             FailureArtifacts artifacts = new FailureArtifacts(root, logs, 2, 2, Constants.ONE_SECOND * 10)) {
+            Path directory = artifacts.captureAndWait(device, wda.getUrl(), 10 * Constants.ONE_SECOND);
+
+            assertThat(directory).startsWith(root.resolve(device));
+            assertThat(Files.readAllBytes(directory.resolve("screenshot.png"))).isEqualTo(png);
+            assertThat(new String(Files.readAllBytes(directory.resolve("source.xml")), StandardCharsets.UTF_8)).isEqualTo(SOURCE);
+            assertThat(Files.readAllLines(directory.resolve("device.log"))).containsExactly("last wda line");
+        }
+    }
+
+    @Test
+    public void testFailedArtifactDoesNotStopTheOthers() throws Exception {
+        try (StubHttpServer wda = new StubHttpServer()
+                .respond("/screenshot", 500, "{\"value\":{\"error\":\"unable to take screenshot\"},\"status\":13}")
+                .respond("/source", 200, SOURCE_JSON);
+             FailureArtifacts artifacts = new FailureArtifacts(root, logs, 2, 2, Constants.ONE_SECOND * 10)) {
+            Path directory = artifacts.capture("broken-screen", wda.getUrl()).get(10, TimeUnit.SECONDS);
+
+            assertThat(directory.resolve("screenshot.png")).doesNotExist();
+            assertThat(directory.resolve("source.xml")).exists();
+            assertThat(directory.resolve("device.log")).exists();
+        }
+    }
+
+    @Test
+    public void testCapturesBeyondTheQueueAreSkipped() throws Exception {
+        try (StubHttpServer wda = new StubHttpServer()
+                .respond("/screenshot", 200, screenshotJson(new byte[16]), 500)
+                .respond("/source", 200, SOURCE_JSON);
+             FailureArtifacts artifacts = new FailureArtifacts(root, logs, 1, 1, Constants.ONE_SECOND * 10)) {
+            List<CompletableFuture<Path>> captures = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                captures.add(artifacts.capture("busy-" + i, wda.getUrl()));
+            }
+
+            //One running and one waiting, the third is turned away right away
+            assertThat(captures.get(2)).isCompletedExceptionally();
+            assertThatThrownBy(() -> captures.get(2).get()).isInstanceOf(ExecutionException.class)
+                    .hasCauseInstanceOf(RejectedExecutionException.class);
+            assertThat(artifacts.getSkipped()).isEqualTo(1);
+            assertThat(captures.get(0).get(10, TimeUnit.SECONDS).resolve("screenshot.png")).exists();
+            assertThat(captures.get(1).get(10, TimeUnit.SECONDS).resolve("screenshot.png")).exists();
+        }
+    }
+
+    @Test
+    public void testResponseWithoutStringValueIsRejected() {
+        assertThatThrownBy(() -> read("{\"status\":0}")).isInstanceOf(IOException.class);
+        assertThatThrownBy(() -> read("{\"value\":null}")).isInstanceOf(IOException.class);
+        assertThatThrownBy(() -> read("{\"value\":\"cut off")).isInstanceOf(IOException.class);
+    }
+
+    private static byte[] read(String json) throws IOException {
+        try (InputStream value = FailureArtifacts.valueStream(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)))) {
+            return value.readAllBytes();
+        }
+    }
+}
@@ -0,0 +1,34 @@
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.util.Iterator;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * A device test for the shard workers started by {@link ShardCoordinatorTest}, the uuid of a device says how it
+ * behaves.  Outside a worker there are no devices, so it doesn't run.
+ */
+public class FakeDeviceTest {
+
+    @DataProvider(name = "devices", parallel = true)
+    public Iterator<Object[]> devices() {
+        return ShardWorker.getAssignments().stream()
+                .map(assignment -> new Object[] {assignment.getDevice().getUuid(), assignment.getWdaLocalPort(),
+                        assignment.getWebkitDebugProxyPort()})
+                .iterator();
+    }
+
+    @Test(dataProvider = "devices")
+    public void testDevice(String uuid, int wdaLocalPort, int webkitDebugProxyPort) throws Exception {
+        if (uuid.startsWith("crash")) {
+            //Like a driver taking the jvm down, nothing after this is sent
+            Runtime.getRuntime().halt(3);
+        }
+        if (uuid.startsWith("hang")) {
+            Thread.sleep(10 * Constants.ONE_MINUTE);
+        }
+        assertThat(wdaLocalPort).isNotEqualTo(webkitDebugProxyPort);
+        assertThat(uuid).as("device %s failed", uuid).doesNotStartWith("fail");
+    }
+}
@@ -0,0 +1,193 @@
+import com.sun.net.httpserver.HttpServer;
+import lombok.Data;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Locale;
+
+/**
+ * Stand-ins for instruments, security, xcodebuild, iproxy and appium so the startup code can be load tested on linux.
+ * <p>
+ * The tools are shell scripts written to a directory that goes first on the PATH.  They read their delays, output and
+ * failure rate from a config file next to them, so the settings can change between runs without rewriting them.
+ * iproxy and appium end up in {@link #main(String[])}, a small http server answering their status endpoint.
+ */
+public class FakeToolchain {
+    private static final String STATUS_BODY = "{\"value\":{\"ready\":true},\"sessionId\":null,\"status\":0}";
+
+    private static final String COMMON = "#!/bin/sh\n"
+            + ". \"$(dirname \"$0\")/fake.conf\"\n"
+            + "fail() {\n"
+            + "    r=$(od -An -N2 -tu2 /dev/urandom | tr -d ' ')\n"
+            + "    [ \"$r\" -lt \"$FAIL_BELOW\" ]\n"
+            + "}\n"
+            + "output() {\n"
+            + "    i=0\n"
+            + "    while [ $i -lt \"$OUTPUT_LINES\" ]; do\n"
+            + "        echo \"$1 simulated output line $i\"\n"
+            + "        i=$((i+1))\n"
+            + "    done\n"
+            + "}\n";
+
+    private static final String INSTRUMENTS = COMMON
+            + "echo 'Known Devices:'\n"
+            + "echo 'Load test host [00000000-0000-0000-0000-000000000000]'\n"
+            + "i=0\n"
+            + "while [ $i -lt \"$DEVICES\" ]; do\n"
+            + "    printf 'Fake iPhone %d (12.1) [fake%036d]\\n' $i $i\n"
+            + "    i=$((i+1))\n"
+            + "done\n";
+
+    private static final String SECURITY = COMMON
+            + "exit 0\n";
+
+    private static final String XCODEBUILD = COMMON
+            + "case \"$1\" in\n"
+            + "build-for-testing)\n"
+            + "    while [ $# -gt 0 ]; do\n"
+            + "        [ \"$1\" = \"-derivedDataPath\" ] && products=\"$2/Build/Products\"\n"
+            + "        shift\n"
+            + "    done\n"
+            + "    sleep \"$BUILD_DELAY\"\n"
+            + "    output xcodebuild\n"
+            + "    mkdir -p \"$products\" && touch \"$products/WebDriverAgentRunner_iphoneos.xctestrun\"\n"
+            + "    echo '** TEST BUILD SUCCEEDED **'\n"
+            + "    ;;\n"
+            + "test-without-building)\n"
+            + "    sleep \"$STARTUP_DELAY\"\n"
+            + "    output xcodebuild\n"
+            + "    if fail; then\n"
+            + "        echo 'Testing failed: simulated failure' >&2\n"
+            + "        exit 65\n"
+            + "    fi\n"
+            + "    echo 'ServerURLHere->http://127.0.0.1:8100<-ServerURLHere'\n"
+            + "    exec sleep 100000\n"
+            + "    ;;\n"
+            + "esac\n";
+
+    private static final String IPROXY = COMMON
+            + "sleep \"$STARTUP_DELAY\"\n"
+            + "if fail; then\n"
+            + "    echo 'Could not connect to the device: simulated failure' >&2\n"
+            + "    exit 1\n"
+            + "fi\n"
+            + "exec \"$JAVA\" $JAVA_OPTS -cp \"$FAKE_CLASSPATH\" FakeToolchain \"$1\" /status 'waiting for connection'\n";
+
+    private static final String APPIUM = COMMON
+            + "while [ $# -gt 0 ]; do\n"
+            + "    [ \"$1\" = \"-p\" ] && port=\"$2\"\n"
+            + "    shift\n"
+            + "done\n"
+            + "sleep \"$STARTUP_DELAY\"\n"
+            + "output appium\n"
+            + "if fail; then\n"
+            + "    echo 'Could not start REST http interface listener: simulated failure'\n"
+            + "    exit 1\n"
+            + "fi\n"
+            + "exec \"$JAVA\" $JAVA_OPTS -cp \"$FAKE_CLASSPATH\" FakeToolchain \"$port\" /wd/hub/status "
+            + "\"http interface listener started on 0.0.0.0:$port\"\n";
+
+    /**
+     * How the stand-ins behave, delays are in ms
+     */
+    @Data
+    public static class Settings {
+        private long startupDelay = 200;
+        private long buildDelay = 1000;
+        private int outputLines = 100;
+        private double failureRate;
+        private int devices = 1;
+    }
+
+    private final Path bin;
+
+    /**
+     * @param bin the directory the tools are written to, it has to be on the PATH of the processes using them
+     */
+    public FakeToolchain(Path bin) {
+        this.bin = bin;
+    }
+
+    /**
+     * Writes the tools and their settings
+     */
+    public FakeToolchain install(Settings settings) throws IOException {
+        Files.createDirectories(bin);
+        writeScript(bin.resolve("instruments"), INSTRUMENTS);
+        writeScript(bin.resolve("security"), SECURITY);
+        writeScript(bin.resolve("xcodebuild"), XCODEBUILD);
+        writeScript(bin.resolve("iproxy"), IPROXY);
+        writeScript(bin.resolve("appium"), APPIUM);
+        configure(settings);
+        return this;
+    }
+
+    /**
+     * Changes the settings, processes started after this use them
+     */
+    public void configure(Settings settings) throws IOException {
+        String java = ProcessHandle.current().info().command().orElse("java");
+        //Only the test classes are needed by the status server
+        String classpath = Paths.get(FakeToolchain.class.getProtectionDomain().getCodeSource().getLocation().getPath()).toString();
+        String conf = "STARTUP_DELAY=" + seconds(settings.getStartupDelay()) + "\n"
+                + "BUILD_DELAY=" + seconds(settings.getBuildDelay()) + "\n"
+                + "OUTPUT_LINES=" + settings.getOutputLines() + "\n"
+                + "FAIL_BELOW=" + Math.round(settings.getFailureRate() * 65536) + "\n"
+                + "DEVICES=" + settings.getDevices() + "\n"
+                + "JAVA='" + java + "'\n"
+                + "JAVA_OPTS='-Xmx16m -Xss256k -XX:+UseSerialGC -XX:TieredStopAtLevel=1'\n"
+                + "FAKE_CLASSPATH='" + classpath + "'\n";
+        Path temp = Files.createTempFile(bin, "fake.conf", ".tmp");
+        Files.write(temp, conf.getBytes(StandardCharsets.UTF_8));
+        Files.move(temp, bin.resolve("fake.conf"), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Creates a wda project with just what the build cache and provisioning read
+     */
+    public static void createWdaProject(Path projectPath) throws IOException {
+        Path projectFile = projectPath.resolve(Constants.WDA_PROJECT_DIR).resolve(Constants.PROJECT_FILE);
+        Files.createDirectories(projectFile.getParent());
+        if (!Files.exists(projectFile)) {
+            Files.write(projectFile, ("PRODUCT_BUNDLE_IDENTIFIER = " + Constants.ORIG_WDA_RUNNER_BUNDLE_ID + ";\n").getBytes(StandardCharsets.UTF_8));
+        }
+        Files.createDirectories(projectPath.resolve("Scripts"));
+        writeScript(projectPath.resolve("Scripts/bootstrap.sh"), "#!/bin/sh\nexit 0\n");
+    }
+
+    private static String seconds(long millis) {
+        return String.format(Locale.ROOT, "%.3f", millis / 1000.0);
+    }
+
+    private static void writeScript(Path file, String script) throws IOException {
+        Files.write(file, script.getBytes(StandardCharsets.UTF_8));
+        Files.setPosixFilePermissions(file, PosixFilePermissions.fromString("rwxr-xr-x"));
+    }
+
+    /**
+     * Serves the status endpoint of a stand-in server until it is killed
+     *
+     * @param args the port, the status path and the line printed once it listens
+     */
+    public static void main(String[] args) throws IOException {
+        byte[] body = STATUS_BODY.getBytes(StandardCharsets.UTF_8);
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", Integer.parseInt(args[0])), 0);
+        server.createContext(args[1], exchange -> {
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        System.out.println(args[2]);
+        System.out.flush();
+    }
+}
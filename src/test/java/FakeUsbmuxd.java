@@ -0,0 +1,224 @@
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stands in for usbmuxd over tcp, a connect to a device port connects to that port on the loopback address instead.
+ * <p>
+ * Also has an echo server to play the part of a port on the device.
+ */
+public class FakeUsbmuxd implements AutoCloseable {
+    private static final int CONNECTED = 0;
+    private static final int BAD_DEVICE = 2;
+    private static final int CONNECTION_REFUSED = 3;
+
+    private final ServerSocket server;
+    private final Map<String, Long> devices = new ConcurrentHashMap<>();
+    private final AtomicInteger nextDeviceId = new AtomicInteger(1);
+    private final AtomicInteger listings = new AtomicInteger();
+    private final Set<AutoCloseable> open = ConcurrentHashMap.newKeySet();
+    private final ExecutorService executor = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "fake-usbmuxd");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public FakeUsbmuxd() throws IOException {
+        server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        executor.execute(() -> {
+            while (!server.isClosed()) {
+                try {
+                    Socket client = server.accept();
+                    open.add(client);
+                    executor.execute(() -> serve(client));
+                } catch (IOException e) {
+                    //Closed
+                }
+            }
+        });
+    }
+
+    public InetSocketAddress getAddress() {
+        return new InetSocketAddress(server.getInetAddress(), server.getLocalPort());
+    }
+
+    /**
+     * Plugs in a device, it gets a new device id each time
+     */
+    public void attach(String udid) {
+        devices.put(udid, (long) nextDeviceId.getAndIncrement());
+    }
+
+    public void detach(String udid) {
+        devices.remove(udid);
+    }
+
+    /**
+     * Gets the number of ListDevices requests
+     */
+    public int getListings() {
+        return listings.get();
+    }
+
+    /**
+     * Starts a server that sends back whatever it gets
+     *
+     * @return its port, on the loopback address
+     */
+    public int startEchoServer() throws IOException {
+        ServerSocket echo = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        open.add(echo);
+        executor.execute(() -> {
+            while (!echo.isClosed()) {
+                try {
+                    Socket socket = echo.accept();
+                    socket.setTcpNoDelay(true);
+                    open.add(socket);
+                    executor.execute(() -> {
+                        pump(socket, socket);
+                        closeQuietly(socket);
+                    });
+                } catch (IOException e) {
+                    //Closed
+                }
+            }
+        });
+        return echo.getLocalPort();
+    }
+
+    private void serve(Socket client) {
+        try {
+            client.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(client.getInputStream());
+            while (true) {
+                byte[] header = new byte[16];
+                in.readFully(header);
+                ByteBuffer fields = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+                byte[] payload = new byte[fields.getInt(0) - header.length];
+                in.readFully(payload);
+                int tag = fields.getInt(12);
+                Map<String, Object> request = Plist.parseDict(payload);
+
+                if ("ListDevices".equals(request.get("MessageType"))) {
+                    listings.incrementAndGet();
+                    List<Object> list = new ArrayList<>();
+                    for (Map.Entry<String, Long> device : devices.entrySet()) {
+                        Map<String, Object> properties = new LinkedHashMap<>();
+                        properties.put("ConnectionType", "USB");
+                        properties.put("DeviceID", device.getValue());
+                        properties.put("SerialNumber", device.getKey());
+                        Map<String, Object> attached = new LinkedHashMap<>();
+                        attached.put("DeviceID", device.getValue());
+                        attached.put("MessageType", "Attached");
+                        attached.put("Properties", properties);
+                        list.add(attached);
+                    }
+                    Map<String, Object> reply = new LinkedHashMap<>();
+                    reply.put("DeviceList", list);
+                    send(client, tag, reply);
+                } else if ("Connect".equals(request.get("MessageType"))) {
+                    if (!devices.containsValue(request.get("DeviceID"))) {
+                        send(client, tag, result(BAD_DEVICE));
+                        continue;
+                    }
+                    long port = (Long) request.get("PortNumber");
+                    Socket device;
+                    try {
+                        device = new Socket(InetAddress.getLoopbackAddress(), (int) (((port & 0xff) << 8) | (port >> 8)));
+                        device.setTcpNoDelay(true);
+                        open.add(device);
+                    } catch (IOException e) {
+                        send(client, tag, result(CONNECTION_REFUSED));
+                        continue;
+                    }
+                    send(client, tag, result(CONNECTED));
+                    CompletableFuture<Void> back = CompletableFuture.runAsync(() -> pump(device, client), executor);
+                    if (!pump(client, device)) {
+                        //Stops the other way too
+                        closeQuietly(device);
+                    }
+                    back.join();
+                    closeQuietly(device);
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            //The client went away
+        } finally {
+            closeQuietly(client);
+        }
+    }
+
+    private void closeQuietly(AutoCloseable closeable) {
+        open.remove(closeable);
+        try {
+            closeable.close();
+        } catch (Exception e) {
+            //Nothing left to do with it
+        }
+    }
+
+    private static Map<String, Object> result(int number) {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("MessageType", "Result");
+        result.put("Number", number);
+        return result;
+    }
+
+    private static void send(Socket client, int tag, Map<String, Object> message) throws IOException {
+        byte[] payload = Plist.write(message);
+        ByteBuffer buffer = ByteBuffer.allocate(16 + payload.length).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(16 + payload.length).putInt(1).putInt(8).putInt(tag).put(payload);
+        OutputStream out = client.getOutputStream();
+        out.write(buffer.array());
+        out.flush();
+    }
+
+    //Copies until the end of the input, then passes the end on, returns false if a socket failed
+    private static boolean pump(Socket from, Socket to) {
+        byte[] buffer = new byte[64 * 1024];
+        try {
+            InputStream in = from.getInputStream();
+            OutputStream out = to.getOutputStream();
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, read);
+            }
+            to.shutdownOutput();
+            return true;
+        } catch (IOException e) {
+            //One of them was closed
+            return false;
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            server.close();
+        } catch (IOException e) {
+            //Nothing left to do with it
+        }
+        for (AutoCloseable closeable : new ArrayList<>(open)) {
+            closeQuietly(closeable);
+        }
+        executor.shutdownNow();
+    }
+}
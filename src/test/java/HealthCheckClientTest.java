@@ -0,0 +1,69 @@
+import lombok.extern.slf4j.Slf4j;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@Slf4j
+public class HealthCheckClientTest {
+    private final HealthCheckClient client = new HealthCheckClient(2000, 2000, 4);
+
+    @Test
+    public void testProbeHealthy() throws IOException {
+        try (StubHttpServer server = new StubHttpServer().respond("/status", 200, "{\"status\":0}")) {
+            String url = server.getUrl() + "/status";
+            for (int i = 0; i < 5; i++) {
+                assertThat(client.probe(url)).isTrue();
+            }
+
+            HealthCheckClient.ProbeStats stats = client.getStats(url);
+            log.debug("Stats for {}: {}", url, stats);
+            assertThat(stats.getCount()).isEqualTo(5);
+            assertThat(stats.getFailures()).isZero();
+        }
+    }
+
+    @Test
+    public void testProbeErrorStatus() throws IOException {
+        try (StubHttpServer server = new StubHttpServer().respond("/status", 503, "starting")) {
+            String url = server.getUrl() + "/status";
+            assertThat(client.probe(url)).isFalse();
+            assertThat(client.getStats(url).getFailures()).isEqualTo(1);
+        }
+    }
+
+    @Test
+    public void testProbeNothingListening() throws IOException {
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        assertThat(client.probe("http://127.0.0.1:" + port + "/status")).isFalse();
+    }
+
+    @Test
+    public void testProbeHungEndpoint() throws IOException {
+        try (StubHttpServer server = new StubHttpServer().respond("/status", 200, "late", 5000)) {
+            HealthCheckClient strictClient = new HealthCheckClient(200, 200, 1);
+            long start = System.currentTimeMillis();
+            assertThat(strictClient.probe(server.getUrl() + "/status")).isFalse();
+            assertThat(System.currentTimeMillis() - start).isLessThan(2000);
+        }
+    }
+
+    @Test
+    public void testProbeAll() throws IOException {
+        try (StubHttpServer up = new StubHttpServer().respond("/status", 200, "ok");
+             StubHttpServer down = new StubHttpServer().respond("/status", 500, "down")) {
+            Map<String, Boolean> results = client.probeAll(Arrays.asList(up.getUrl() + "/status", down.getUrl() + "/status")).join();
+
+            assertThat(results)
+                    .containsEntry(up.getUrl() + "/status", true)
+                    .containsEntry(down.getUrl() + "/status", false);
+        }
+    }
+}
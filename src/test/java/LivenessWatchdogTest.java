@@ -0,0 +1,142 @@
+import com.sun.net.httpserver.HttpServer;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class LivenessWatchdogTest {
+
+    /**
+     * A process with a status endpoint that can be made to fail
+     */
+    static class FakeComponent implements AutoCloseable {
+        private final HttpServer server;
+        private final AtomicBoolean healthy = new AtomicBoolean(true);
+        //Restarts after which it is healthy again, -1 to never fix it
+        private final AtomicInteger fixedAfter = new AtomicInteger(-1);
+        private final AtomicInteger restarts = new AtomicInteger();
+        private volatile Process process;
+
+        FakeComponent() throws IOException {
+            server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+            server.createContext("/status", exchange -> {
+                exchange.sendResponseHeaders(healthy.get() ? 200 : 500, -1);
+                exchange.close();
+            });
+            server.start();
+            process = new ProcessBuilder("sleep", "300").start();
+        }
+
+        String getStatusUrl() {
+            return "http://127.0.0.1:" + server.getAddress().getPort() + "/status";
+        }
+
+        List<ProcessHandle> getProcesses() {
+            return Collections.singletonList(process.toHandle());
+        }
+
+        boolean restart() throws IOException {
+            process.destroyForcibly();
+            process = new ProcessBuilder("sleep", "300").start();
+            if (restarts.incrementAndGet() == fixedAfter.get()) {
+                healthy.set(true);
+            }
+            return true;
+        }
+
+        void watch(LivenessWatchdog watchdog, String key) {
+            watchdog.watch(this, key, this::getProcesses, getStatusUrl(), this::restart);
+        }
+
+        @Override
+        public void close() {
+            process.destroyForcibly();
+            server.stop(0);
+        }
+    }
+
+    private static void awaitCondition(PollingAction condition) {
+        assertThat(PollingService.poll(condition, 10 * Constants.ONE_SECOND, 20)).isTrue();
+    }
+
+    @Test
+    public void testExitedProcessIsRestartedRightAway() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker(3, Constants.ONE_MINUTE, Constants.ONE_MINUTE);
+        //The probes would take a minute, so the restart has to come from the exit callback
+        try (LivenessWatchdog watchdog = new LivenessWatchdog(breaker, HealthCheckClient.getInstance(), Constants.ONE_MINUTE, 1);
+             FakeComponent component = new FakeComponent()) {
+            component.watch(watchdog, "device1");
+            Process first = component.process;
+
+            first.destroyForcibly();
+
+            awaitCondition(() -> component.restarts.get() == 1 && !watchdog.isRestarting(component));
+            assertThat(component.process).isNotSameAs(first);
+            assertThat(component.process.isAlive()).isTrue();
+            assertThat(breaker.isClosed("device1")).isTrue();
+
+            //The new process is watched as well
+            component.process.destroyForcibly();
+            awaitCondition(() -> component.restarts.get() == 2);
+        }
+    }
+
+    @Test
+    public void testWedgedComponentTripsBreaker() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker(3, Constants.ONE_MINUTE, Constants.ONE_MINUTE);
+        try (LivenessWatchdog watchdog = new LivenessWatchdog(breaker, HealthCheckClient.getInstance(), 50, 2);
+             FakeComponent component = new FakeComponent()) {
+            component.watch(watchdog, "device1");
+            //Alive but not answering, restarts don't help
+            component.healthy.set(false);
+
+            awaitCondition(() -> breaker.getState("device1") == CircuitBreaker.State.OPEN);
+            //The third failure opened the breaker instead of restarting
+            assertThat(component.restarts.get()).isEqualTo(2);
+            Thread.sleep(300);
+            assertThat(component.restarts.get()).isEqualTo(2);
+        }
+    }
+
+    @Test
+    public void testHealthyRestartClosesBreaker() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker(1, Constants.ONE_MINUTE, 300);
+        try (LivenessWatchdog watchdog = new LivenessWatchdog(breaker, HealthCheckClient.getInstance(), 50, 1);
+             FakeComponent component = new FakeComponent()) {
+            component.watch(watchdog, "device1");
+            component.fixedAfter.set(1);
+            component.healthy.set(false);
+
+            awaitCondition(() -> breaker.getState("device1") == CircuitBreaker.State.OPEN);
+            assertThat(component.restarts.get()).isZero();
+
+            //After the open time one restart is tried, it works so the breaker closes
+            awaitCondition(() -> breaker.isClosed("device1"));
+            assertThat(component.restarts.get()).isEqualTo(1);
+            assertThat(component.healthy.get()).isTrue();
+        }
+    }
+
+    @Test
+    public void testUnwatchedComponentIsLeftAlone() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker(3, Constants.ONE_MINUTE, Constants.ONE_MINUTE);
+        try (LivenessWatchdog watchdog = new LivenessWatchdog(breaker, HealthCheckClient.getInstance(), 50, 1);
+             FakeComponent component = new FakeComponent()) {
+            component.watch(watchdog, "device1");
+            watchdog.unwatch(component);
+
+            component.process.destroyForcibly();
+            component.healthy.set(false);
+            Thread.sleep(300);
+
+            assertThat(component.restarts.get()).isZero();
+            assertThat(watchdog.isWatching(component)).isFalse();
+        }
+    }
+}
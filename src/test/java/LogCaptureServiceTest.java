@@ -0,0 +1,139 @@
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.testng.annotations.Test;
+import org.zeroturnaround.exec.stream.StreamPumper;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@Slf4j
+public class LogCaptureServiceTest {
+
+    private static List<String> readLines(Path file) throws Exception {
+        try (InputStream in = new GZIPInputStream(Files.newInputStream(file))) {
+            return Arrays.asList(IOUtils.toString(in, StandardCharsets.UTF_8).split("\n"));
+        }
+    }
+
+    private static List<Path> listFiles(Path dir) throws Exception {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.sorted().collect(Collectors.toList());
+        }
+    }
+
+    @Test
+    public void testLinesAreWrittenPerDeviceAndSession() throws Exception {
+        Path root = Files.createTempDirectory("log-capture");
+        try (LogCaptureService service = new LogCaptureService(root, 1024, 1024 * 1024, 2, 3)) {
+            LogCaptureService.Channel channel = service.open("device1", "session1", "xcodebuild");
+            try (OutputStream out = channel.asStream()) {
+                out.write("line 1\nline 2\nline 3\nline 4\nServerURLHere->http://127.0.0.1:8100<-ServerURLHere\n".getBytes(StandardCharsets.UTF_8));
+            }
+            LogCaptureService.Channel other = service.open("device2", "session1", "iproxy");
+            other.offer("other device");
+            //Closed channels have their gzip file finished
+            channel.close();
+            other.close();
+            service.flush();
+
+            List<String> lines = readLines(root.resolve("device1/session1/xcodebuild.0.log.gz"));
+            assertThat(lines).hasSize(5);
+            assertThat(lines.get(0)).matches("\\d\\d:\\d\\d:\\d\\d\\.\\d{3} line 1");
+            assertThat(service.getTail("device1")).containsExactly("line 3", "line 4", "ServerURLHere->http://127.0.0.1:8100<-ServerURLHere");
+            assertThat(service.getTail("device2")).containsExactly("other device");
+            assertThat(service.getTail("unknown")).isEmpty();
+            assertThat(service.getWrittenLines()).isEqualTo(6);
+            assertThat(service.getDroppedLines()).isZero();
+        } finally {
+            FileUtils.deleteDirectory(root.toFile());
+        }
+    }
+
+    @Test
+    public void testOutputLeftInThePipeAfterExitIsWritten() throws Exception {
+        Path root = Files.createTempDirectory("log-capture");
+        try (LogCaptureService service = new LogCaptureService(root, 1024, 1024 * 1024, 2, 10)) {
+            LogCaptureService.Channel channel = service.open("device1", "session1", "xcodebuild");
+            OutputStream out = channel.asStream();
+            Process process = new ProcessBuilder("printf", "line 1\\nerror: the build failed").start();
+            process.waitFor();
+            //The process is gone and the writer went over the channel before its output was read
+            service.flush();
+
+            Thread pump = new Thread(new StreamPumper(process.getInputStream(), out, true));
+            pump.start();
+            pump.join();
+            service.flush();
+
+            assertThat(readLines(root.resolve("device1/session1/xcodebuild.0.log.gz")))
+                    .hasSize(2).last().asString().endsWith("error: the build failed");
+            assertThat(service.getTail("device1")).containsExactly("line 1", "error: the build failed");
+
+            //Once the channel was written out a late line is counted instead of lost
+            assertThat(channel.offer("too late")).isFalse();
+            assertThat(service.getDroppedLines()).isEqualTo(1);
+        } finally {
+            FileUtils.deleteDirectory(root.toFile());
+        }
+    }
+
+    @Test
+    public void testFilesAreRotated() throws Exception {
+        Path root = Files.createTempDirectory("log-capture");
+        try (LogCaptureService service = new LogCaptureService(root, 1024, 100, 2, 10)) {
+            LogCaptureService.Channel channel = service.open("device1", "session1", "appium");
+            for (int i = 0; i < 50; i++) {
+                channel.offer(String.format("line %02d of appium output", i));
+            }
+            channel.close();
+            service.flush();
+
+            List<Path> files = listFiles(root.resolve("device1/session1"));
+            assertThat(files).hasSize(2);
+            List<String> last = readLines(files.get(files.size() - 1));
+            assertThat(last.get(last.size() - 1)).endsWith("line 49 of appium output");
+        } finally {
+            FileUtils.deleteDirectory(root.toFile());
+        }
+    }
+
+    @Test
+    public void testProducerIsNeverBlocked() throws Exception {
+        Path root = Files.createTempDirectory("log-capture");
+        try (LogCaptureService service = new LogCaptureService(root, 16, 1024 * 1024, 2, 10)) {
+            LogCaptureService.Channel channel = service.open("device1", "session1", "xcodebuild");
+
+            int offered = 200_000;
+            long start = System.nanoTime();
+            for (int i = 0; i < offered; i++) {
+                channel.offer("line " + i);
+            }
+            long elapsed = System.nanoTime() - start;
+            service.flush();
+
+            log.info("Offered {} lines in {}ms, written {}, dropped {}", offered, elapsed / 1_000_000,
+                    service.getWrittenLines(), service.getDroppedLines());
+            //The tiny buffer overflowed, the lines were dropped and counted rather than waiting for the writer
+            assertThat(channel.getDroppedLines()).isPositive();
+            assertThat(service.getWrittenLines() + service.getDroppedLines()).isEqualTo(offered);
+
+            //Once the writer caught up lines get through again
+            channel.offer("last line");
+            service.flush();
+            assertThat(service.getTail("device1")).last().isEqualTo("last line");
+        } finally {
+            FileUtils.deleteDirectory(root.toFile());
+        }
+    }
+}
@@ -0,0 +1,111 @@
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import lombok.extern.slf4j.Slf4j;
+import org.testng.SkipException;
+import org.testng.annotations.Test;
+
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@Slf4j
+public class PhaseTimersTest {
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Test
+    public void testBuckets() {
+        assertThat(PhaseTimers.Histogram.bucket(0)).isEqualTo(0);
+        assertThat(PhaseTimers.Histogram.bucket(1)).isEqualTo(0);
+        assertThat(PhaseTimers.Histogram.bucket(2)).isEqualTo(1);
+        assertThat(PhaseTimers.Histogram.bucket(3)).isEqualTo(2);
+        assertThat(PhaseTimers.Histogram.bucket(1024)).isEqualTo(10);
+        assertThat(PhaseTimers.Histogram.bucket(1025)).isEqualTo(11);
+        assertThat(PhaseTimers.Histogram.bucket(Long.MAX_VALUE)).isEqualTo(PhaseTimers.BUCKETS - 1);
+    }
+
+    @Test
+    public void testDeviceAndHostHistograms() {
+        PhaseTimers timers = new PhaseTimers("mac-mini-1");
+        PhaseTimers.Device fast = timers.forDevice("fast");
+        PhaseTimers.Device slow = timers.forDevice("slow");
+        for (int i = 0; i < 9; i++) {
+            fast.recordNanos(PhaseTimers.Phase.WDA_READY, 100 * MS);
+        }
+        slow.recordNanos(PhaseTimers.Phase.WDA_READY, 30_000 * MS);
+
+        assertThat(timers.forDevice("fast")).isSameAs(fast);
+        assertThat(timers.getHistogram(PhaseTimers.Phase.WDA_READY, "fast").getCount()).isEqualTo(9);
+        assertThat(timers.getHistogram(PhaseTimers.Phase.WDA_READY, null).getCount()).isEqualTo(10);
+        assertThat(timers.getHistogram(PhaseTimers.Phase.WDA_BUILD, null).getCount()).isZero();
+
+        //Percentiles are the bucket bounds, capped at the max
+        PhaseTimers.Histogram host = timers.getHistogram(PhaseTimers.Phase.WDA_READY, null);
+        assertThat(host.percentileNanos(50)).isBetween(100 * MS, 200 * MS);
+        assertThat(host.percentileNanos(99)).isEqualTo(30_000 * MS);
+    }
+
+    @Test
+    public void testPrometheusExport() {
+        PhaseTimers timers = new PhaseTimers("mac-mini-1");
+        PhaseTimers.Device device = timers.forDevice("656d6ef9");
+        device.recordNanos(PhaseTimers.Phase.KEYCHAIN_UNLOCK, 3 * MS);
+        device.recordNanos(PhaseTimers.Phase.KEYCHAIN_UNLOCK, 5 * MS);
+
+        String text = timers.toPrometheus();
+        log.info("Prometheus export:\n{}", text);
+        String labels = "phase=\"keychain_unlock\",device=\"656d6ef9\",host=\"mac-mini-1\"";
+        assertThat(text)
+                .contains("# TYPE ios_sample_phase_seconds histogram")
+                .contains("ios_sample_phase_seconds_bucket{" + labels + ",le=\"0.004194304\"} 1\n")
+                .contains("ios_sample_phase_seconds_bucket{" + labels + ",le=\"0.008388608\"} 2\n")
+                .contains("ios_sample_phase_seconds_bucket{" + labels + ",le=\"+Inf\"} 2\n")
+                .contains("ios_sample_phase_seconds_sum{" + labels + "} 0.008\n")
+                .contains("ios_sample_phase_seconds_count{" + labels + "} 2\n")
+                .contains("ios_sample_host_phase_seconds_count{phase=\"keychain_unlock\",host=\"mac-mini-1\"} 2\n")
+                //Phases that never ran are left out
+                .doesNotContain("wda_build");
+    }
+
+    @Test
+    public void testJsonExport() throws Exception {
+        PhaseTimers timers = new PhaseTimers("mac-mini-1");
+        timers.forDevice("appium-7500").recordNanos(PhaseTimers.Phase.APPIUM_START, 4000 * MS);
+
+        Path dir = Files.createTempDirectory("phases");
+        timers.writeReports(dir);
+        assertThat(dir.resolve("startup-phases.prom")).exists();
+
+        JsonObject json = new JsonParser().parse(new String(Files.readAllBytes(dir.resolve("startup-phases.json")), "UTF-8")).getAsJsonObject();
+        assertThat(json.get("host").getAsString()).isEqualTo("mac-mini-1");
+        JsonObject phase = json.getAsJsonObject("devices").getAsJsonObject("appium-7500").getAsJsonObject("appium_start");
+        assertThat(phase.get("count").getAsLong()).isEqualTo(1);
+        assertThat(phase.get("maxMillis").getAsDouble()).isEqualTo(4000);
+        assertThat(json.getAsJsonObject("hostPhases").has("appium_start")).isTrue();
+    }
+
+    @Test
+    public void testRecordingDoesNotAllocate() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            throw new SkipException("Allocation counting is not supported");
+        }
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+
+        PhaseTimers.Device device = new PhaseTimers("host").forDevice("device");
+        for (int i = 0; i < 10_000; i++) {
+            device.record(PhaseTimers.Phase.XCODEBUILD_LAUNCH, System.nanoTime() - i);
+        }
+
+        long thread = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < 100_000; i++) {
+            device.record(PhaseTimers.Phase.XCODEBUILD_LAUNCH, System.nanoTime() - i);
+        }
+        long allocated = threads.getThreadAllocatedBytes(thread) - before;
+        log.info("Allocated {} bytes recording 100000 phases", allocated);
+        assertThat(allocated).isLessThan(10_000);
+    }
+}
@@ -0,0 +1,101 @@
+import lombok.extern.slf4j.Slf4j;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+@Slf4j
+public class PollingServiceTest {
+
+    @Test
+    public void testPollSucceedsAfterRetries() {
+        AtomicInteger attempts = new AtomicInteger();
+        boolean result = PollingService.poll(() -> attempts.incrementAndGet() >= 3, 5000, 10);
+
+        assertThat(result).isTrue();
+        assertThat(attempts.get()).isEqualTo(3);
+    }
+
+    @Test
+    public void testPollTimesOut() {
+        long start = System.currentTimeMillis();
+        boolean result = PollingService.poll(() -> false, 200, 20);
+
+        assertThat(result).isFalse();
+        assertThat(System.currentTimeMillis() - start).isGreaterThanOrEqualTo(200);
+    }
+
+    @Test
+    public void testPollPropagatesException() {
+        assertThatThrownBy(() -> PollingService.poll(() -> {
+            throw new IllegalStateException("process died");
+        }, 1000, 10)).isInstanceOf(IllegalStateException.class).hasMessage("process died");
+    }
+
+    @Test
+    public void testPollAsyncCancel() throws InterruptedException {
+        AtomicInteger attempts = new AtomicInteger();
+        CompletableFuture<Boolean> future = PollingService.pollAsync(() -> {
+            attempts.incrementAndGet();
+            return false;
+        }, 10000, 10);
+
+        Thread.sleep(100);
+        future.cancel(true);
+        int cancelledAt = attempts.get();
+        Thread.sleep(100);
+
+        assertThat(attempts.get()).isLessThanOrEqualTo(cancelledAt + 1);
+        assertThatThrownBy(future::join).isInstanceOf(CancellationException.class);
+    }
+
+    @Test
+    public void testPollAsyncManyPending() {
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[2000];
+        for (int i = 0; i < futures.length; i++) {
+            AtomicInteger attempts = new AtomicInteger();
+            futures[i] = PollingService.pollAsync(() -> attempts.incrementAndGet() >= 3, 10000,
+                    PollingBackoff.exponential(5, 50, 2.0, 0.5));
+        }
+
+        CompletableFuture.allOf(futures).join();
+        for (CompletableFuture<?> future : futures) {
+            assertThat(future.join()).isEqualTo(true);
+        }
+    }
+
+    @Test
+    public void testPollAsyncException() {
+        CompletableFuture<Boolean> future = PollingService.pollAsync(() -> {
+            throw new IllegalStateException("boom");
+        }, 1000, PollingBackoff.fixed(10));
+
+        assertThatThrownBy(future::join)
+                .isInstanceOf(CompletionException.class)
+                .hasCauseInstanceOf(IllegalStateException.class);
+    }
+
+    @Test
+    public void testExponentialBackoff() {
+        PollingBackoff backoff = PollingBackoff.exponential(100, 1000, 2.0, 0.0);
+
+        assertThat(backoff.delay(1)).isEqualTo(100);
+        assertThat(backoff.delay(2)).isEqualTo(200);
+        assertThat(backoff.delay(3)).isEqualTo(400);
+        assertThat(backoff.delay(10)).isEqualTo(1000);
+    }
+
+    @Test
+    public void testBackoffJitter() {
+        PollingBackoff backoff = PollingBackoff.exponential(100, 1000, 2.0, 0.5);
+
+        for (int i = 0; i < 100; i++) {
+            assertThat(backoff.delay(2)).isBetween(100L, 200L);
+        }
+    }
+}
@@ -0,0 +1,140 @@
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class PortAllocatorTest {
+
+    @Test
+    public void testAllocatorsSharingStateNeverHandOutTheSamePort() throws Exception {
+        Path stateDir = Files.createTempDirectory("ports");
+        //Two allocators on one state directory stand in for two runs on the host
+        PortAllocator first = new PortAllocator(stateDir, 31000, 31099);
+        PortAllocator second = new PortAllocator(stateDir, 31000, 31099);
+
+        Set<Integer> handedOut = new HashSet<>();
+        List<PortAllocator.Lease> leases = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            PortAllocator.Lease lease = (i % 2 == 0 ? first : second).allocate("run" + i % 2, 4);
+            leases.add(lease);
+            for (int port : lease.getPorts()) {
+                assertThat(handedOut.add(port)).as("port %d handed out twice", port).isTrue();
+            }
+        }
+        assertThat(handedOut).hasSize(40).allMatch(port -> port >= 31000 && port <= 31099);
+        assertThat(second.isLeased(leases.get(0).getPort(0))).isTrue();
+
+        //A released port can be leased by the other run
+        leases.get(0).close();
+        assertThat(first.isLeased(leases.get(0).getPort(0))).isFalse();
+        leases.forEach(PortAllocator.Lease::close);
+        assertThat(second.allocate("run1", 100).getPorts()).hasSize(100);
+    }
+
+    @Test
+    public void testLeasesAreOnlyReadAgainWhenAnotherRunChangedThem() throws Exception {
+        Path stateDir = Files.createTempDirectory("ports");
+        PortAllocator first = new PortAllocator(stateDir, 31800, 31899);
+        PortAllocator second = new PortAllocator(stateDir, 31800, 31899);
+
+        PortAllocator.Lease lease = first.allocate("run0", 2);
+        first.allocate("run0", 2).close();
+        lease.close();
+        first.allocate("run0", 2);
+        //Only this run wrote the file, so it never had to be read
+        assertThat(first.getLoads()).isZero();
+
+        Set<Integer> taken = new HashSet<>(second.allocate("run1", 50).getPorts());
+        assertThat(first.allocate("run0", 10).getPorts()).doesNotContainAnyElementsOf(taken);
+        assertThat(first.getLoads()).isEqualTo(1);
+    }
+
+    @Test
+    public void testPortInUseIsSkipped() throws Exception {
+        Path stateDir = Files.createTempDirectory("ports");
+        try (ServerSocket listening = new ServerSocket()) {
+            listening.bind(new InetSocketAddress(31200));
+            PortAllocator allocator = new PortAllocator(stateDir, 31200, 31209);
+
+            PortAllocator.Lease lease = allocator.allocate("appium", 2);
+
+            assertThat(lease.getPorts()).doesNotContain(31200).hasSize(2);
+        }
+    }
+
+    @Test
+    public void testPortsOfExitedJvmAreFreed() throws Exception {
+        Path stateDir = Files.createTempDirectory("ports");
+        Process exited = new ProcessBuilder("true").start();
+        exited.waitFor();
+        Properties leases = new Properties();
+        leases.setProperty("31300", exited.pid() + "|" + System.currentTimeMillis() + "|crashed run");
+        try (Writer writer = Files.newBufferedWriter(stateDir.resolve("ports.properties"))) {
+            leases.store(writer, null);
+        }
+        PortAllocator allocator = new PortAllocator(stateDir, 31300, 31300);
+
+        assertThat(allocator.isLeased(31300)).isFalse();
+        PortAllocator.Lease lease = allocator.allocate("wda", 1);
+        assertThat(lease.getPort(0)).isEqualTo(31300);
+
+        //Now the only port is taken
+        assertThatThrownBy(() -> allocator.allocate("wda", 1)).isInstanceOf(IllegalStateException.class);
+        lease.close();
+        assertThat(allocator.allocate("wda", 1).getPort(0)).isEqualTo(31300);
+    }
+
+    @Test
+    public void testHandedOverPortIsReusedByTheNextRun() throws Exception {
+        Path stateDir = Files.createTempDirectory("ports");
+        Process server = new ProcessBuilder("sleep", "300").start();
+        try {
+            PortAllocator run = new PortAllocator(stateDir, 31500, 31509);
+            PortAllocator.Lease lease = run.allocate("device", 2);
+            run.handOver(lease.getPort(1), server.toHandle());
+            lease.close();
+
+            //The server keeps its port after the lease is closed
+            assertThat(run.isLeased(lease.getPort(0))).isFalse();
+            assertThat(run.isLeased(lease.getPort(1))).isTrue();
+
+            PortAllocator nextRun = new PortAllocator(stateDir, 31500, 31509);
+            PortAllocator.Lease reused = nextRun.reuse("device", 2);
+            assertThat(reused.getPort(0)).isEqualTo(lease.getPort(1));
+            assertThat(reused.getPort(1)).isNotEqualTo(lease.getPort(1));
+
+            //Handed over again, it is free once the server exits
+            reused.handOver(server.toHandle());
+            reused.close();
+            assertThat(nextRun.isLeased(reused.getPort(1))).isTrue();
+            server.destroy();
+            server.waitFor();
+            assertThat(nextRun.isLeased(reused.getPort(0))).isFalse();
+            assertThat(nextRun.isLeased(reused.getPort(1))).isFalse();
+        } finally {
+            server.destroyForcibly();
+        }
+    }
+
+    @Test
+    public void testUnwritableStateStillHandsOutPorts() throws IOException {
+        Path file = Files.createTempFile("ports", ".state");
+        //The state directory is a file, so the leases can't be saved
+        PortAllocator allocator = new PortAllocator(file, 31400, 31409);
+
+        assertThat(allocator.allocate("wda", 2).getPorts()).hasSize(2).doesNotHaveDuplicates();
+        assertThat(allocator.allocate("wda", 2).getPorts()).hasSize(2);
+    }
+}
@@ -0,0 +1,105 @@
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.FileUtils;
+import org.testng.annotations.Test;
+import org.zeroturnaround.exec.ProcessExecutor;
+import org.zeroturnaround.exec.ProcessResult;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@Slf4j
+public class ProcessRegistryTest {
+
+    /**
+     * Registers a process and dies without stopping it, like a run that was killed
+     */
+    public static void main(String[] args) throws Exception {
+        ProcessHandle sleep = new ProcessBuilder("sleep", "300").start().toHandle();
+        new ProcessRegistry(Paths.get(args[0])).register(sleep, "device1", "xcodebuild");
+        System.out.println(sleep.pid());
+        System.out.flush();
+        Runtime.getRuntime().halt(0);
+    }
+
+    private static ProcessHandle startSleep() throws Exception {
+        return new ProcessBuilder("sleep", "300").start().toHandle();
+    }
+
+    private static void awaitNoEntries(ProcessRegistry registry) throws Exception {
+        for (int i = 0; i < 100 && !registry.getEntries().isEmpty(); i++) {
+            Thread.sleep(50);
+        }
+        assertThat(registry.getEntries()).isEmpty();
+    }
+
+    @Test
+    public void testOrphansOfDeadRunAreReaped() throws Exception {
+        Path dir = Files.createTempDirectory("process-registry");
+        try {
+            String java = ProcessHandle.current().info().command().orElse("java");
+            ProcessResult result = new ProcessExecutor()
+                    .command(java, "-cp", System.getProperty("java.class.path"), ProcessRegistryTest.class.getName(), dir.toString())
+                    .readOutput(true)
+                    .timeout(1, TimeUnit.MINUTES)
+                    .execute();
+            long pid = Long.parseLong(result.outputUTF8().trim());
+            ProcessHandle orphan = ProcessHandle.of(pid).orElseThrow(AssertionError::new);
+
+            ProcessRegistry registry = new ProcessRegistry(dir);
+            assertThat(registry.getEntries()).hasSize(1);
+            assertThat(registry.getEntries().get(0).getRole()).isEqualTo("xcodebuild");
+
+            assertThat(registry.reapOrphans()).isEqualTo(1);
+            assertThat(ProcessTeardown.isRunning(orphan)).isFalse();
+            assertThat(registry.getEntries()).isEmpty();
+        } finally {
+            FileUtils.deleteDirectory(dir.toFile());
+        }
+    }
+
+    @Test
+    public void testProcessesOfRunningJvmAreKept() throws Exception {
+        Path dir = Files.createTempDirectory("process-registry");
+        ProcessHandle sleep = startSleep();
+        try {
+            ProcessRegistry registry = new ProcessRegistry(dir);
+            registry.register(sleep, "device1", "iproxy");
+
+            //Another run starting while this one is going leaves its processes alone
+            assertThat(new ProcessRegistry(dir).reapOrphans()).isZero();
+            assertThat(sleep.isAlive()).isTrue();
+
+            //The entry goes once the process exits
+            sleep.destroy();
+            awaitNoEntries(registry);
+        } finally {
+            sleep.destroyForcibly();
+            FileUtils.deleteDirectory(dir.toFile());
+        }
+    }
+
+    @Test
+    public void testReusedPidIsNotKilled() throws Exception {
+        Path dir = Files.createTempDirectory("process-registry");
+        ProcessHandle sleep = startSleep();
+        try {
+            //The recorded process started earlier than the one now using its pid, and its jvm is gone
+            long start = sleep.info().startInstant().orElseThrow(AssertionError::new).toEpochMilli();
+            Files.write(dir.resolve("processes.properties"),
+                    (sleep.pid() + "=" + (start - 60_000) + "|" + Integer.MAX_VALUE + "|0|appium|appium-7500\n").getBytes(StandardCharsets.UTF_8));
+
+            ProcessRegistry registry = new ProcessRegistry(dir);
+            assertThat(registry.reapOrphans()).isZero();
+            assertThat(sleep.isAlive()).isTrue();
+            assertThat(registry.getEntries()).isEmpty();
+        } finally {
+            sleep.destroyForcibly();
+            FileUtils.deleteDirectory(dir.toFile());
+        }
+    }
+}
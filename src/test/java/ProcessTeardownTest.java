@@ -0,0 +1,89 @@
+import lombok.extern.slf4j.Slf4j;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@Slf4j
+public class ProcessTeardownTest {
+
+    private static ProcessHandle start(String script) throws Exception {
+        return new ProcessBuilder("sh", "-c", script).start().toHandle();
+    }
+
+    //Waits for the shell to start its children
+    private static List<ProcessHandle> awaitDescendants(ProcessHandle root, int count) throws Exception {
+        for (int i = 0; i < 100; i++) {
+            List<ProcessHandle> descendants = root.descendants().collect(Collectors.toList());
+            if (descendants.size() >= count) {
+                return descendants;
+            }
+            Thread.sleep(50);
+        }
+        throw new AssertionError("The children of " + root.pid() + " did not start");
+    }
+
+    @Test
+    public void testWholeTreeIsStopped() throws Exception {
+        ProcessHandle root = start("sleep 300 & sleep 300 & wait");
+        List<ProcessHandle> children = awaitDescendants(root, 2);
+
+        List<ProcessHandle> survivors = ProcessTeardown.destroy(10 * Constants.ONE_SECOND, root);
+
+        assertThat(survivors).isEmpty();
+        assertThat(root.isAlive()).isFalse();
+        //The children are not left behind when the shell goes
+        assertThat(children).noneMatch(ProcessTeardown::isRunning);
+    }
+
+    @Test
+    public void testProcessIgnoringTermIsKilled() throws Exception {
+        ProcessHandle root = start("trap '' TERM; while true; do sleep 0.1; done");
+        awaitDescendants(root, 1);
+
+        long start = System.nanoTime();
+        List<ProcessHandle> survivors = ProcessTeardown.destroy(2 * Constants.ONE_SECOND, root);
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertThat(survivors).isEmpty();
+        assertThat(root.isAlive()).isFalse();
+        //It got the graceful part of the timeout before it was killed
+        assertThat(elapsed).isBetween(900L, 2000L);
+    }
+
+    @Test
+    public void testTreesAreStoppedInParallel() throws Exception {
+        ProcessTeardown teardown = new ProcessTeardown();
+        List<ProcessHandle> roots = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            ProcessHandle root = start("trap '' TERM; sleep 300 & wait");
+            roots.add(root);
+            teardown.add(root);
+        }
+        for (ProcessHandle root : roots) {
+            awaitDescendants(root, 1);
+        }
+
+        long start = System.nanoTime();
+        List<ProcessHandle> survivors = teardown.run(2 * Constants.ONE_SECOND);
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        log.info("Stopped 20 trees in {}ms", elapsed);
+
+        //One deadline for all of them, not one per tree
+        assertThat(survivors).isEmpty();
+        assertThat(roots).noneMatch(ProcessTeardown::isRunning);
+        assertThat(elapsed).isLessThan(2000L);
+    }
+
+    @Test
+    public void testProcessesThatAlreadyExited() throws Exception {
+        Process process = new ProcessBuilder("sh", "-c", "exit 0").start();
+        process.waitFor();
+
+        assertThat(ProcessTeardown.destroy(Constants.ONE_SECOND, process.toHandle(), null)).isEmpty();
+    }
+}
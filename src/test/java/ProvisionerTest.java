@@ -0,0 +1,164 @@
+import lombok.extern.slf4j.Slf4j;
+import org.testng.annotations.Test;
+import org.zeroturnaround.exec.ProcessExecutor;
+import org.zeroturnaround.exec.StartedProcess;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@Slf4j
+public class ProvisionerTest {
+    private static final String PROJECT = "\t\t\t\tPRODUCT_BUNDLE_IDENTIFIER = " + Constants.ORIG_WDA_RUNNER_BUNDLE_ID + ";\n"
+            + "\t\t\t\tPRODUCT_NAME = \"$(TARGET_NAME)\";\n"
+            + "\t\t\t\tPRODUCT_BUNDLE_IDENTIFIER = com.facebook.WebDriverAgentLib;\n";
+
+    /**
+     * Provisions the directory from another jvm, recording each key install as a line in installs.txt
+     */
+    public static void main(String[] args) throws Exception {
+        Path dir = Paths.get(args[0]);
+        Provisioner provisioner = new Provisioner(dir.resolve("state"), dir.resolve(Constants.PROJECT_FILE), dir.resolve("test.keychain"),
+                () -> Collections.singletonList(dir.resolve("dev.cer")),
+                (keychain, keys) -> {
+                    Files.write(dir.resolve("installs.txt"), Collections.singletonList(String.valueOf(ProcessHandle.current().pid())),
+                            StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+                    Thread.sleep(200);
+                });
+        System.exit(provisioner.provision() ? 0 : 1);
+    }
+
+    private static Path createProject() throws Exception {
+        Path dir = Files.createTempDirectory("provisioner");
+        Files.write(dir.resolve(Constants.PROJECT_FILE), PROJECT.getBytes(StandardCharsets.UTF_8));
+        Files.write(dir.resolve("dev.cer"), "certificate".getBytes(StandardCharsets.UTF_8));
+        return dir;
+    }
+
+    private static Provisioner provisioner(Path dir, AtomicInteger installs) {
+        return new Provisioner(dir.resolve("state"), dir.resolve(Constants.PROJECT_FILE), dir.resolve("test.keychain"),
+                () -> Collections.singletonList(dir.resolve("dev.cer")),
+                (keychain, keys) -> {
+                    assertThat(keys).containsExactly(dir.resolve("dev.cer"));
+                    installs.incrementAndGet();
+                });
+    }
+
+    @Test
+    public void testProvisionsOnce() throws Exception {
+        Path dir = createProject();
+        AtomicInteger installs = new AtomicInteger();
+
+        assertThat(provisioner(dir, installs).provision()).isTrue();
+        assertThat(installs.get()).isEqualTo(1);
+        String project = new String(Files.readAllBytes(dir.resolve(Constants.PROJECT_FILE)), StandardCharsets.UTF_8);
+        assertThat(project).contains("PRODUCT_BUNDLE_IDENTIFIER = " + Constants.WDA_RUNNER_BUNDLE_ID + ";")
+                .doesNotContain(Constants.ORIG_WDA_RUNNER_BUNDLE_ID + ";")
+                .contains("com.facebook.WebDriverAgentLib");
+        assertThat(new String(Files.readAllBytes(dir.resolve(Constants.PROJECT_FILE + ".old")), StandardCharsets.UTF_8)).isEqualTo(PROJECT);
+
+        //A new run with the same inputs does nothing
+        assertThat(provisioner(dir, installs).provision()).isTrue();
+        assertThat(installs.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void testChangedInputsProvisionAgain() throws Exception {
+        Path dir = createProject();
+        AtomicInteger installs = new AtomicInteger();
+        provisioner(dir, installs).provision();
+
+        Files.write(dir.resolve("dev.cer"), "renewed certificate".getBytes(StandardCharsets.UTF_8));
+        provisioner(dir, installs).provision();
+        assertThat(installs.get()).isEqualTo(2);
+
+        //A reinstalled wda has the original bundle id again
+        Files.write(dir.resolve(Constants.PROJECT_FILE), PROJECT.getBytes(StandardCharsets.UTF_8));
+        provisioner(dir, installs).provision();
+        assertThat(installs.get()).isEqualTo(3);
+        assertThat(new String(Files.readAllBytes(dir.resolve(Constants.PROJECT_FILE)), StandardCharsets.UTF_8))
+                .doesNotContain(Constants.ORIG_WDA_RUNNER_BUNDLE_ID + ";");
+    }
+
+    @Test
+    public void testFailureIsRetried() throws Exception {
+        Path dir = createProject();
+        AtomicInteger attempts = new AtomicInteger();
+        Provisioner failing = new Provisioner(dir.resolve("state"), dir.resolve(Constants.PROJECT_FILE), dir.resolve("test.keychain"),
+                () -> Collections.singletonList(dir.resolve("dev.cer")),
+                (keychain, keys) -> {
+                    attempts.incrementAndGet();
+                    throw new IllegalStateException("security failed");
+                });
+        assertThat(failing.provision()).isFalse();
+        assertThat(failing.provision()).isFalse();
+        assertThat(attempts.get()).isEqualTo(2);
+
+        AtomicInteger installs = new AtomicInteger();
+        assertThat(provisioner(dir, installs).provision()).isTrue();
+        assertThat(installs.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void testOnlyOneJvmProvisions() throws Exception {
+        Path dir = createProject();
+        String java = ProcessHandle.current().info().command().orElse("java");
+
+        List<StartedProcess> jvms = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            jvms.add(new ProcessExecutor()
+                    .command(java, "-cp", System.getProperty("java.class.path"), ProvisionerTest.class.getName(), dir.toString())
+                    .readOutput(true)
+                    .start());
+        }
+        for (StartedProcess jvm : jvms) {
+            assertThat(jvm.getFuture().get(60, TimeUnit.SECONDS).getExitValue()).isZero();
+        }
+        assertThat(Files.readAllLines(dir.resolve("installs.txt"))).hasSize(1);
+    }
+
+    @Test
+    public void testRewrittenProjectKeepsItsPermissions() throws Exception {
+        Path dir = createProject();
+        Path projectFile = dir.resolve(Constants.PROJECT_FILE);
+        Set<PosixFilePermission> permissions = PosixFilePermissions.fromString("rw-r--r--");
+        Files.setPosixFilePermissions(projectFile, permissions);
+
+        assertThat(Provisioner.replaceBundleId(projectFile)).isTrue();
+
+        assertThat(Files.getPosixFilePermissions(projectFile)).isEqualTo(permissions);
+    }
+
+    @Test
+    public void testUnchangedProjectIsNotRewritten() throws Exception {
+        Path dir = createProject();
+        Path projectFile = dir.resolve(Constants.PROJECT_FILE);
+        assertThat(Provisioner.replaceBundleId(projectFile)).isTrue();
+
+        FileTime modified = FileTime.fromMillis(1000);
+        Files.setLastModifiedTime(projectFile, modified);
+        assertThat(Provisioner.replaceBundleId(projectFile)).isFalse();
+        assertThat(Files.getLastModifiedTime(projectFile)).isEqualTo(modified);
+
+        //No temp files are left behind
+        try (Stream<Path> files = Files.list(dir)) {
+            assertThat(files.map(path -> path.getFileName().toString()))
+                    .containsOnlyElementsOf(Arrays.asList(Constants.PROJECT_FILE, "dev.cer"));
+        }
+    }
+}
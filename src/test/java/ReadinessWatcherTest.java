@@ -0,0 +1,94 @@
+import lombok.extern.slf4j.Slf4j;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+@Slf4j
+public class ReadinessWatcherTest {
+
+    /**
+     * Starts a fake process that prints the scripted output
+     */
+    private Process fakeProcess(String script) throws IOException {
+        return new ProcessBuilder("sh", "-c", script).start();
+    }
+
+    @Test
+    public void testMarkerFromFakeProcess() throws Exception {
+        Process process = fakeProcess("echo 'Build Succeeded'; sleep 0.2; "
+                + "echo 'ServerURLHere->http://10.0.0.5:8100<-ServerURLHere'; sleep 5");
+        try {
+            ReadinessWatcher watcher = new ReadinessWatcher(Constants.WDA_READY_MARKER);
+            ByteArrayOutputStream copy = new ByteArrayOutputStream();
+            watcher.watch(process.getInputStream(), copy, "fake-xcodebuild");
+
+            String line = watcher.getReady().get(5, TimeUnit.SECONDS);
+            assertThat(line).contains("http://10.0.0.5:8100");
+            assertThat(copy.toString(StandardCharsets.UTF_8.name())).contains("Build Succeeded");
+        } finally {
+            process.destroyForcibly();
+        }
+    }
+
+    @Test
+    public void testOutputEndsWithoutMarker() throws Exception {
+        Process process = fakeProcess("echo 'Testing failed'; exit 65");
+        ReadinessWatcher watcher = new ReadinessWatcher(Constants.WDA_READY_MARKER);
+        watcher.watch(process.getInputStream(), null, "fake-xcodebuild");
+
+        assertThatThrownBy(() -> watcher.getReady().get(5, TimeUnit.SECONDS))
+                .hasCauseInstanceOf(IOException.class);
+    }
+
+    @Test
+    public void testAwaitReadyConfirmsWithProbe() throws Exception {
+        Process process = fakeProcess("sleep 0.1; echo '[Appium] Appium REST http interface listener started on 0.0.0.0:7500'; sleep 5");
+        try (StubHttpServer server = new StubHttpServer().respond("/wd/hub/status", 200, "{}")) {
+            ReadinessWatcher watcher = new ReadinessWatcher(Constants.APPIUM_READY_MARKER);
+            watcher.watch(process.getInputStream(), null, "fake-appium");
+            HealthCheckClient client = new HealthCheckClient(200, 200, 1);
+            AtomicBoolean listening = new AtomicBoolean();
+            watcher.getReady().thenRun(() -> listening.set(true));
+
+            //The endpoint only counts as up once the fake process said so
+            long start = System.currentTimeMillis();
+            CompletableFuture<Boolean> ready = ReadinessWatcher.awaitReady(watcher.getReady(),
+                    () -> listening.get() && client.probe(server.getUrl() + "/wd/hub/status"), 10000);
+
+            assertThat(ready.get(5, TimeUnit.SECONDS)).isTrue();
+            //Faster than the one second wait of the http fallback
+            assertThat(System.currentTimeMillis() - start).isLessThan(1000);
+        } finally {
+            process.destroyForcibly();
+        }
+    }
+
+    @Test
+    public void testAwaitReadyFallsBackToProbe() throws Exception {
+        CompletableFuture<String> marker = new CompletableFuture<>();
+        CompletableFuture<Boolean> ready = ReadinessWatcher.awaitReady(marker, () -> true, 10000);
+
+        assertThat(ready.get(5, TimeUnit.SECONDS)).isTrue();
+    }
+
+    @Test
+    public void testAwaitReadyProbeFails() {
+        CompletableFuture<String> marker = new CompletableFuture<>();
+        CompletableFuture<Boolean> ready = ReadinessWatcher.awaitReady(marker, () -> {
+            throw new RuntimeException("xcodebuild failed with exit code: 65");
+        }, 10000);
+
+        assertThatThrownBy(ready::join)
+                .isInstanceOf(CompletionException.class)
+                .hasMessageContaining("exit code: 65");
+    }
+}
@@ -0,0 +1,427 @@
+import lombok.Data;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.testng.ITestResult;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Runs the device tests in one worker jvm per group of devices, so the run isn't limited by the threads of one jvm and
+ * a crash or leak in one session only takes down its own group.
+ * <p>
+ * The ports of each device are leased here and handed over to the worker that uses them, so they are free again as
+ * soon as it exits.  Each worker gets its devices and ports on the command line and streams its results and timings
+ * back over a local socket, see {@link ShardWorker}.  A worker that exits before it finished, or runs past the
+ * timeout, is reported as a failure of its own next to the results it did send.  The results of all the workers are
+ * merged into one testng-results.xml.
+ */
+@Slf4j
+public class ShardCoordinator {
+    public static int DEFAULT_DEVICES_PER_SHARD = 4;
+    public static long DEFAULT_TIMEOUT = 60 * Constants.ONE_MINUTE;
+
+    //System properties the workers get from this jvm, they point the tools and state at the same places
+    private static final List<String> FORWARDED = Arrays.asList("user.home", "ios.toolchain.path", "wda.project.path",
+            "usbmuxd.address", "ios.detached");
+
+    private final PortAllocator ports;
+    private final Path logDir;
+    private final int devicesPerShard;
+    private final long timeout;
+
+    /**
+     * @param ports           leases the ports of the devices
+     * @param logDir          where the output of each worker goes
+     * @param devicesPerShard the devices each worker runs
+     * @param timeout         the max time in ms for the whole run, workers still running are stopped
+     */
+    public ShardCoordinator(PortAllocator ports, Path logDir, int devicesPerShard, long timeout) {
+        this.ports = ports;
+        this.logDir = logDir;
+        this.devicesPerShard = devicesPerShard;
+        this.timeout = timeout;
+    }
+
+    /**
+     * Runs the test classes on the devices, a worker per group of devices, and waits for all of them
+     *
+     * @return the results of every worker
+     */
+    public Report run(List<IosHelper.IosDevice> devices, List<String> testClasses) throws IOException, InterruptedException {
+        Files.createDirectories(logDir);
+        Report report = new Report();
+        List<Shard> shards = new ArrayList<>();
+        try (ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            for (int i = 0; i * devicesPerShard < devices.size(); i++) {
+                List<IosHelper.IosDevice> group = devices.subList(i * devicesPerShard, Math.min(devices.size(), (i + 1) * devicesPerShard));
+                shards.add(new Shard(i, group));
+            }
+            Thread acceptor = new Thread(() -> accept(server, shards, report), "shard-accept");
+            acceptor.setDaemon(true);
+            acceptor.start();
+
+            long started = System.currentTimeMillis();
+            for (Shard shard : shards) {
+                shard.start(server.getLocalPort(), testClasses);
+            }
+            log.info("Started {} shards for {} devices", shards.size(), devices.size());
+
+            long deadline = System.currentTimeMillis() + timeout;
+            for (Shard shard : shards) {
+                shard.await(deadline, report);
+            }
+            report.setDuration(System.currentTimeMillis() - started);
+        } finally {
+            for (Shard shard : shards) {
+                shard.leases.forEach(PortAllocator.Lease::close);
+            }
+        }
+        log.info("Sharded run finished, {} passed, {} failed, {} skipped", report.count(Status.PASS), report.count(Status.FAIL),
+                report.count(Status.SKIP));
+        return report;
+    }
+
+    /**
+     * Takes the connection of each worker, hands its ports over and reads its results
+     */
+    private void accept(ServerSocket server, List<Shard> shards, Report report) {
+        while (!server.isClosed()) {
+            try {
+                Socket socket = server.accept();
+                Thread reader = new Thread(() -> read(socket, shards, report), "shard-read");
+                reader.setDaemon(true);
+                reader.start();
+            } catch (SocketException e) {
+                //Closed once the run is over
+                return;
+            } catch (IOException e) {
+                log.error("Error accepting a shard connection", e);
+            }
+        }
+    }
+
+    private void read(Socket socket, List<Shard> shards, Report report) {
+        Shard shard = null;
+        try (Socket ignored = socket) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            shard = shards.get(in.readInt());
+            //The worker may lease the ports itself once it has them, they are freed when it exits
+            for (PortAllocator.Lease lease : shard.leases) {
+                lease.handOver(shard.process.toHandle());
+            }
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.writeInt(0);
+            out.flush();
+
+            while (true) {
+                String type = in.readUTF();
+                if (ShardWorker.DONE.equals(type)) {
+                    shard.finished = true;
+                    return;
+                }
+                report.add(readResult(shard.number, in));
+            }
+        } catch (EOFException e) {
+            //The worker exited, it is reported once the process is gone
+        } catch (IOException | IndexOutOfBoundsException e) {
+            log.error("Error reading the results of shard {}", shard == null ? "?" : shard.number, e);
+        } finally {
+            if (shard != null) {
+                shard.closed.countDown();
+            }
+        }
+    }
+
+    private static Result readResult(int shard, DataInputStream in) throws IOException {
+        Result result = new Result();
+        result.setShard(shard);
+        result.setClassName(in.readUTF());
+        result.setMethod(in.readUTF());
+        List<String> parameters = new ArrayList<>();
+        for (int i = in.readInt(); i > 0; i--) {
+            parameters.add(in.readUTF());
+        }
+        result.setParameters(parameters);
+        int status = in.readInt();
+        result.setStatus(status == ITestResult.SUCCESS ? Status.PASS : status == ITestResult.SKIP ? Status.SKIP : Status.FAIL);
+        result.setStart(in.readLong());
+        result.setEnd(in.readLong());
+        result.setExceptionClass(in.readUTF());
+        result.setMessage(in.readUTF());
+        result.setStackTrace(in.readUTF());
+        return result;
+    }
+
+    /**
+     * A group of devices and the worker running it
+     */
+    private class Shard {
+        private final int number;
+        private final List<IosHelper.IosDevice> devices;
+        private final List<PortAllocator.Lease> leases = new ArrayList<>();
+        //Counted down once the connection of the worker is closed
+        private final CountDownLatch closed = new CountDownLatch(1);
+        private final Path log;
+        private volatile Process process;
+        private volatile boolean finished;
+        private long started;
+
+        Shard(int number, List<IosHelper.IosDevice> devices) {
+            this.number = number;
+            this.devices = devices;
+            this.log = logDir.resolve("shard-" + number + ".log");
+        }
+
+        void start(int coordinatorPort, List<String> testClasses) throws IOException {
+            List<ShardWorker.Assignment> assignments = new ArrayList<>();
+            for (IosHelper.IosDevice device : devices) {
+                PortAllocator.Lease lease = ports.allocate(device.getUuid(), 2);
+                leases.add(lease);
+                //Sorted, the way the worker gets them back from the allocator
+                List<Integer> leased = new ArrayList<>(lease.getPorts());
+                Collections.sort(leased);
+                assignments.add(new ShardWorker.Assignment(device, leased.get(0), leased.get(1)));
+            }
+
+            List<String> command = new ArrayList<>();
+            command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+            command.add("-cp");
+            command.add(System.getProperty("java.class.path"));
+            for (String property : FORWARDED) {
+                if (System.getProperty(property) != null) {
+                    command.add("-D" + property + "=" + System.getProperty(property));
+                }
+            }
+            command.add("-Dios.shard.devices=" + ShardWorker.format(assignments));
+            command.add(ShardWorker.class.getName());
+            command.add(String.valueOf(coordinatorPort));
+            command.add(String.valueOf(number));
+            command.addAll(testClasses);
+
+            started = System.currentTimeMillis();
+            process = new ProcessBuilder(command)
+                    .redirectErrorStream(true)
+                    .redirectOutput(log.toFile())
+                    .start();
+            ShardCoordinator.log.info("Shard {} started with pid {} for {}", number, process.pid(),
+                    devices.stream().map(IosHelper.IosDevice::getUuid).collect(Collectors.toList()));
+        }
+
+        /**
+         * Waits for the worker, a worker that didn't finish is added to the report as a failure
+         */
+        void await(long deadline, Report report) throws InterruptedException {
+            String problem = null;
+            if (!process.waitFor(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS)) {
+                problem = "timed out";
+                ProcessTeardown.destroy(ProcessTeardown.DEFAULT_TIMEOUT, process.toHandle());
+            }
+            //The rest of the results are still on their way once the process is gone
+            closed.await(ProcessTeardown.DEFAULT_TIMEOUT, TimeUnit.MILLISECONDS);
+            if (!finished && problem == null) {
+                problem = "exited with code " + process.exitValue() + " before it finished";
+            }
+            if (problem == null) {
+                ShardCoordinator.log.info("Shard {} finished in {} ms", number, System.currentTimeMillis() - started);
+                return;
+            }
+            ShardCoordinator.log.error("Shard {} {}, see {}", number, problem, log);
+            Result result = new Result();
+            result.setShard(number);
+            result.setClassName(ShardCoordinator.class.getName());
+            result.setMethod("shard-" + number);
+            result.setParameters(devices.stream().map(IosHelper.IosDevice::getUuid).collect(Collectors.toList()));
+            result.setStatus(Status.FAIL);
+            result.setStart(started);
+            result.setEnd(System.currentTimeMillis());
+            result.setExceptionClass(IllegalStateException.class.getName());
+            result.setMessage("The worker of shard " + number + " " + problem + ", its output is in " + log.toAbsolutePath());
+            result.setStackTrace(result.getMessage());
+            report.add(result);
+        }
+    }
+
+    public enum Status {
+        PASS,
+        FAIL,
+        SKIP
+    }
+
+    /**
+     * The result of one test invocation, the times are in epoch ms
+     */
+    @Data
+    public static class Result {
+        private int shard;
+        private String className;
+        private String method;
+        private List<String> parameters;
+        private Status status;
+        private long start;
+        private long end;
+        private String exceptionClass;
+        private String message;
+        private String stackTrace;
+    }
+
+    /**
+     * The merged results of all the workers
+     */
+    public static class Report {
+        private final List<Result> results = new ArrayList<>();
+        @Getter
+        private long duration;
+
+        synchronized void add(Result result) {
+            results.add(result);
+        }
+
+        void setDuration(long duration) {
+            this.duration = duration;
+        }
+
+        public synchronized List<Result> getResults() {
+            return new ArrayList<>(results);
+        }
+
+        public synchronized long count(Status status) {
+            return results.stream().filter(result -> result.getStatus() == status).count();
+        }
+
+        /**
+         * Writes the results in the testng-results.xml format, a test per shard
+         */
+        public void write(Path file) throws IOException {
+            List<Result> all = getResults();
+            Map<Integer, List<Result>> byShard = new LinkedHashMap<>();
+            all.stream()
+                    .sorted((a, b) -> a.getShard() != b.getShard() ? Integer.compare(a.getShard(), b.getShard()) : Long.compare(a.getStart(), b.getStart()))
+                    .forEach(result -> byShard.computeIfAbsent(result.getShard(), shard -> new ArrayList<>()).add(result));
+
+            Files.createDirectories(file.toAbsolutePath().getParent());
+            try (Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+                XMLStreamWriter xml = XMLOutputFactory.newFactory().createXMLStreamWriter(writer);
+                xml.writeStartDocument("UTF-8", "1.0");
+                xml.writeStartElement("testng-results");
+                xml.writeAttribute("skipped", String.valueOf(count(Status.SKIP)));
+                xml.writeAttribute("failed", String.valueOf(count(Status.FAIL)));
+                xml.writeAttribute("total", String.valueOf(all.size()));
+                xml.writeAttribute("passed", String.valueOf(count(Status.PASS)));
+                xml.writeStartElement("suite");
+                xml.writeAttribute("name", "sharded");
+                xml.writeAttribute("duration-ms", String.valueOf(duration));
+                for (Map.Entry<Integer, List<Result>> shard : byShard.entrySet()) {
+                    writeShard(xml, shard.getKey(), shard.getValue());
+                }
+                xml.writeEndElement();
+                xml.writeEndElement();
+                xml.writeEndDocument();
+                xml.close();
+            } catch (XMLStreamException e) {
+                throw new IOException("Could not write the report " + file, e);
+            }
+        }
+
+        private static void writeShard(XMLStreamWriter xml, int shard, List<Result> results) throws XMLStreamException {
+            long start = results.stream().mapToLong(Result::getStart).min().orElse(0);
+            long end = results.stream().mapToLong(Result::getEnd).max().orElse(0);
+            xml.writeStartElement("test");
+            xml.writeAttribute("name", "shard-" + shard);
+            xml.writeAttribute("duration-ms", String.valueOf(end - start));
+            xml.writeAttribute("started-at", time(start));
+            xml.writeAttribute("finished-at", time(end));
+            Map<String, List<Result>> byClass = results.stream()
+                    .collect(Collectors.groupingBy(Result::getClassName, LinkedHashMap::new, Collectors.toList()));
+            for (Map.Entry<String, List<Result>> testClass : byClass.entrySet()) {
+                xml.writeStartElement("class");
+                xml.writeAttribute("name", testClass.getKey());
+                for (Result result : testClass.getValue()) {
+                    writeResult(xml, result);
+                }
+                xml.writeEndElement();
+            }
+            xml.writeEndElement();
+        }
+
+        private static void writeResult(XMLStreamWriter xml, Result result) throws XMLStreamException {
+            xml.writeStartElement("test-method");
+            xml.writeAttribute("status", result.getStatus().name());
+            xml.writeAttribute("signature", result.getMethod() + "(" + String.join(", ", result.getParameters()) + ")");
+            xml.writeAttribute("name", result.getMethod());
+            xml.writeAttribute("duration-ms", String.valueOf(result.getEnd() - result.getStart()));
+            xml.writeAttribute("started-at", time(result.getStart()));
+            xml.writeAttribute("finished-at", time(result.getEnd()));
+            if (!result.getParameters().isEmpty()) {
+                xml.writeStartElement("params");
+                for (int i = 0; i < result.getParameters().size(); i++) {
+                    xml.writeStartElement("param");
+                    xml.writeAttribute("index", String.valueOf(i));
+                    xml.writeStartElement("value");
+                    xml.writeCData(result.getParameters().get(i));
+                    xml.writeEndElement();
+                    xml.writeEndElement();
+                }
+                xml.writeEndElement();
+            }
+            if (!result.getExceptionClass().isEmpty()) {
+                xml.writeStartElement("exception");
+                xml.writeAttribute("class", result.getExceptionClass());
+                xml.writeStartElement("message");
+                xml.writeCData(result.getMessage());
+                xml.writeEndElement();
+                xml.writeStartElement("full-stacktrace");
+                xml.writeCData(result.getStackTrace());
+                xml.writeEndElement();
+                xml.writeEndElement();
+            }
+            xml.writeEndElement();
+        }
+
+        private static String time(long millis) {
+            return DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss'Z'").withZone(ZoneOffset.UTC).format(Instant.ofEpochMilli(millis));
+        }
+    }
+
+    /**
+     * Runs the test classes on the connected devices: the report directory, the devices per shard and the classes, iPhoneSample if none
+     */
+    public static void main(String[] args) throws Exception {
+        Path reportDir = Paths.get(args[0]);
+        int devicesPerShard = Integer.parseInt(args[1]);
+        List<String> testClasses = args.length > 2 ? Arrays.asList(args).subList(2, args.length) : Collections.singletonList("iPhoneSample");
+
+        ShardCoordinator coordinator = new ShardCoordinator(PortAllocator.getInstance(), Constants.LOG_DIR.resolve("shards"),
+                devicesPerShard, DEFAULT_TIMEOUT);
+        Report report = coordinator.run(IosHelper.getConnectedDevices(), testClasses);
+        report.write(reportDir.resolve("testng-results.xml"));
+        System.exit(report.count(Status.FAIL) == 0 ? 0 : 1);
+    }
+}
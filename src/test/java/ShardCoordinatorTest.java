@@ -0,0 +1,76 @@
+import org.testng.annotations.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.tuple;
+
+public class ShardCoordinatorTest {
+
+    private static List<IosHelper.IosDevice> devices(String... uuids) {
+        return Arrays.stream(uuids).map(uuid -> {
+            IosHelper.IosDevice device = new IosHelper.IosDevice();
+            device.setUuid(uuid);
+            device.setName("fake " + uuid);
+            device.setVersion("11.2");
+            return device;
+        }).collect(Collectors.toList());
+    }
+
+    @Test
+    public void testShardsAreMergedAndACrashedShardFails() throws Exception {
+        Path directory = Files.createTempDirectory("shards");
+        PortAllocator ports = new PortAllocator(directory.resolve("state"), 31600, 31699);
+        ShardCoordinator coordinator = new ShardCoordinator(ports, directory.resolve("logs"), 2, Constants.ONE_MINUTE);
+
+        //Three workers, the last one crashes while it runs its device
+        ShardCoordinator.Report report = coordinator.run(devices("a1", "a2", "fail-b1", "b2", "crash-c1"),
+                Collections.singletonList("FakeDeviceTest"));
+
+        List<ShardCoordinator.Result> results = report.getResults();
+        assertThat(results).hasSize(5);
+        assertThat(report.count(ShardCoordinator.Status.PASS)).isEqualTo(3);
+        assertThat(report.count(ShardCoordinator.Status.FAIL)).isEqualTo(2);
+        assertThat(results).filteredOn(result -> result.getParameters().get(0).equals("fail-b1"))
+                .extracting(ShardCoordinator.Result::getShard, ShardCoordinator.Result::getStatus)
+                .containsExactly(tuple(1, ShardCoordinator.Status.FAIL));
+        assertThat(results).filteredOn(result -> result.getShard() == 2).hasSize(1).first()
+                .satisfies(crashed -> assertThat(crashed.getMessage()).contains("exited with code 3"));
+        assertThat(results).filteredOn(result -> result.getStatus() == ShardCoordinator.Status.PASS)
+                .allMatch(result -> result.getEnd() >= result.getStart() && result.getStart() > 0);
+
+        //Every device got its own ports and they are free once the workers are gone
+        Set<Integer> leased = new HashSet<>();
+        results.stream().filter(result -> result.getClassName().equals("FakeDeviceTest")).forEach(result -> {
+            assertThat(leased.add(Integer.parseInt(result.getParameters().get(1)))).isTrue();
+            assertThat(leased.add(Integer.parseInt(result.getParameters().get(2)))).isTrue();
+        });
+        assertThat(leased).allMatch(port -> !ports.isLeased(port));
+
+        Path xml = directory.resolve("testng-results.xml");
+        report.write(xml);
+        String written = new String(Files.readAllBytes(xml), "UTF-8");
+        assertThat(written).contains("<testng-results skipped=\"0\" failed=\"2\" total=\"5\" passed=\"3\">")
+                .contains("name=\"shard-0\"").contains("name=\"shard-2\"").contains("device fail-b1 failed");
+    }
+
+    @Test
+    public void testHangingShardIsStopped() throws Exception {
+        Path directory = Files.createTempDirectory("shards");
+        PortAllocator ports = new PortAllocator(directory.resolve("state"), 31700, 31709);
+        ShardCoordinator coordinator = new ShardCoordinator(ports, directory.resolve("logs"), 1, 15 * Constants.ONE_SECOND);
+
+        ShardCoordinator.Report report = coordinator.run(devices("a1", "hang-b1"), Collections.singletonList("FakeDeviceTest"));
+
+        assertThat(report.count(ShardCoordinator.Status.PASS)).isEqualTo(1);
+        assertThat(report.getResults()).filteredOn(result -> result.getShard() == 1).hasSize(1).first()
+                .satisfies(hung -> assertThat(hung.getMessage()).contains("timed out"));
+    }
+}
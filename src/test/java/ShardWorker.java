@@ -0,0 +1,220 @@
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+import org.testng.ITestContext;
+import org.testng.ITestListener;
+import org.testng.ITestNGListener;
+import org.testng.ITestResult;
+import org.testng.TestNG;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Runs the tests of one shard in a worker jvm started by the {@link ShardCoordinator}.
+ * <p>
+ * The worker connects back to the coordinator and waits until its ports were handed over, then runs the test classes
+ * against the devices it was given and sends every result with its timings as soon as it is known.  The coordinator
+ * knows the worker finished once it says so, a worker that exits without saying so crashed.
+ */
+@Slf4j
+public class ShardWorker implements ITestListener {
+    static final String RESULT = "result";
+    static final String DONE = "done";
+    //Longer stack traces are cut, they are sent as one string
+    private static final int MAX_TEXT = 16 * 1024;
+
+    private final DataOutputStream out;
+
+    ShardWorker(DataOutputStream out) {
+        this.out = out;
+    }
+
+    /**
+     * A device of the shard with the two ports leased for it, the wda local port and the webkit debug proxy port
+     */
+    @Data
+    public static class Assignment {
+        private final IosHelper.IosDevice device;
+        private final int wdaLocalPort;
+        private final int webkitDebugProxyPort;
+
+        String format() {
+            return encode(device.getUuid()) + "," + encode(device.getName()) + "," + encode(String.valueOf(device.getVersion()))
+                    + "," + wdaLocalPort + "," + webkitDebugProxyPort;
+        }
+
+        static Assignment parse(String value) {
+            String[] parts = value.split(",");
+            IosHelper.IosDevice device = new IosHelper.IosDevice();
+            device.setUuid(decode(parts[0]));
+            device.setName(decode(parts[1]));
+            String version = decode(parts[2]);
+            device.setVersion("null".equals(version) ? null : version);
+            return new Assignment(device, Integer.parseInt(parts[3]), Integer.parseInt(parts[4]));
+        }
+    }
+
+    /**
+     * Checks if this jvm is a worker of a sharded run
+     */
+    public static boolean isWorker() {
+        return Constants.SHARD_DEVICES != null;
+    }
+
+    /**
+     * Gets the devices this worker was given, empty if this jvm isn't a worker
+     */
+    public static List<Assignment> getAssignments() {
+        if (!isWorker() || Constants.SHARD_DEVICES.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<Assignment> assignments = new ArrayList<>();
+        for (String value : Constants.SHARD_DEVICES.split(";")) {
+            assignments.add(Assignment.parse(value));
+        }
+        return assignments;
+    }
+
+    public static List<IosHelper.IosDevice> getDevices() {
+        return getAssignments().stream().map(Assignment::getDevice).collect(Collectors.toList());
+    }
+
+    static String format(List<Assignment> assignments) {
+        return assignments.stream().map(Assignment::format).collect(Collectors.joining(";"));
+    }
+
+    private static String encode(String value) {
+        try {
+            return URLEncoder.encode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String decode(String value) {
+        try {
+            return URLDecoder.decode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Sends a finished test, the parallel tests of the shard share the connection
+     */
+    private synchronized void send(ITestResult result) {
+        try {
+            out.writeUTF(RESULT);
+            out.writeUTF(result.getTestClass().getName());
+            out.writeUTF(result.getMethod().getMethodName());
+            Object[] parameters = result.getParameters() == null ? new Object[0] : result.getParameters();
+            out.writeInt(parameters.length);
+            for (Object parameter : parameters) {
+                out.writeUTF(cut(String.valueOf(parameter)));
+            }
+            out.writeInt(result.getStatus());
+            out.writeLong(result.getStartMillis());
+            out.writeLong(result.getEndMillis());
+            Throwable throwable = result.getThrowable();
+            out.writeUTF(throwable == null ? "" : throwable.getClass().getName());
+            out.writeUTF(throwable == null ? "" : cut(String.valueOf(throwable.getMessage())));
+            out.writeUTF(throwable == null ? "" : cut(stackTrace(throwable)));
+            out.flush();
+        } catch (IOException e) {
+            log.error("Could not send the result of {} to the coordinator", result.getName(), e);
+        }
+    }
+
+    private synchronized void done() throws IOException {
+        out.writeUTF(DONE);
+        out.flush();
+    }
+
+    private static String stackTrace(Throwable throwable) {
+        StringWriter trace = new StringWriter();
+        throwable.printStackTrace(new PrintWriter(trace));
+        return trace.toString();
+    }
+
+    private static String cut(String text) {
+        return text.length() > MAX_TEXT ? text.substring(0, MAX_TEXT) : text;
+    }
+
+    @Override
+    public void onTestStart(ITestResult result) {
+    }
+
+    @Override
+    public void onTestSuccess(ITestResult result) {
+        send(result);
+    }
+
+    @Override
+    public void onTestFailure(ITestResult result) {
+        send(result);
+    }
+
+    @Override
+    public void onTestSkipped(ITestResult result) {
+        send(result);
+    }
+
+    @Override
+    public void onTestFailedButWithinSuccessPercentage(ITestResult result) {
+        send(result);
+    }
+
+    @Override
+    public void onStart(ITestContext context) {
+    }
+
+    @Override
+    public void onFinish(ITestContext context) {
+    }
+
+    /**
+     * Runs the shard: coordinator port, shard number and the test classes
+     */
+    public static void main(String[] args) throws Exception {
+        int port = Integer.parseInt(args[0]);
+        int shard = Integer.parseInt(args[1]);
+        Class<?>[] classes = new Class<?>[args.length - 2];
+        for (int i = 2; i < args.length; i++) {
+            classes[i - 2] = Class.forName(args[i]);
+        }
+
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            out.writeInt(shard);
+            out.flush();
+            //The ports are ours once the coordinator answers
+            new DataInputStream(socket.getInputStream()).readInt();
+            log.info("Shard {} running {} devices", shard, getAssignments().size());
+
+            ShardWorker worker = new ShardWorker(out);
+            TestNG testng = new TestNG();
+            testng.setUseDefaultListeners(false);
+            testng.setTestClasses(classes);
+            //Every device of the shard runs at once
+            testng.setDataProviderThreadCount(Math.max(1, getAssignments().size()));
+            testng.addListener((ITestNGListener) worker);
+            testng.run();
+            worker.done();
+        }
+        //Don't wait for threads the tests left behind
+        System.exit(0);
+    }
+}
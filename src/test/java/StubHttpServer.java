@@ -0,0 +1,76 @@
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Small local http server that stands in for the appium and wda endpoints in tests
+ */
+public class StubHttpServer implements AutoCloseable {
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "stub-http");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public StubHttpServer() throws IOException {
+        this(0);
+    }
+
+    public StubHttpServer(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    /**
+     * Answers the path with a fixed status and body
+     */
+    public StubHttpServer respond(String path, int status, String body) {
+        return respond(path, status, body, 0);
+    }
+
+    /**
+     * Answers the path with a fixed status and body after a delay
+     */
+    public StubHttpServer respond(String path, int status, String body, long delay) {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        server.createContext(path, exchange -> {
+            try {
+                if (delay > 0) {
+                    Thread.sleep(delay);
+                }
+                exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+                if (bytes.length > 0) {
+                    try (OutputStream out = exchange.getResponseBody()) {
+                        out.write(bytes);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                exchange.close();
+            }
+        });
+        return this;
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    public String getUrl() {
+        return "http://127.0.0.1:" + getPort();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}
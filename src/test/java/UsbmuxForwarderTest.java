@@ -0,0 +1,210 @@
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class UsbmuxForwarderTest {
+    private FakeUsbmuxd usbmuxd;
+    private int devicePort;
+
+    @BeforeClass
+    public void startUsbmuxd() throws Exception {
+        usbmuxd = new FakeUsbmuxd();
+        devicePort = usbmuxd.startEchoServer();
+    }
+
+    @AfterClass
+    public void stopUsbmuxd() {
+        usbmuxd.close();
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static Socket connect(int port) throws IOException {
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+        socket.setSoTimeout(10 * Constants.ONE_SECOND);
+        return socket;
+    }
+
+    //Sends the bytes from another thread so a large payload doesn't fill both ways and stall
+    private static byte[] echo(Socket socket, byte[] bytes) throws Exception {
+        CompletableFuture<Void> sent = CompletableFuture.runAsync(() -> {
+            try {
+                OutputStream out = socket.getOutputStream();
+                out.write(bytes);
+                out.flush();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        byte[] received = new byte[bytes.length];
+        new DataInputStream(socket.getInputStream()).readFully(received);
+        sent.get();
+        return received;
+    }
+
+    @Test
+    public void testBytesAreRelayedBothWays() throws Exception {
+        String udid = "relay-device";
+        usbmuxd.attach(udid);
+        int port = freePort();
+        try (UsbmuxForwarder forwarder = new UsbmuxForwarder(usbmuxd.getAddress())) {
+            forwarder.add(port, udid, devicePort);
+
+            byte[] bytes = new byte[4 * 1024 * 1024];
+            new Random(1).nextBytes(bytes);
+            try (Socket socket = connect(port)) {
+                assertThat(echo(socket, bytes)).isEqualTo(bytes);
+
+                //The end is passed on and comes back
+                socket.shutdownOutput();
+                assertThat(socket.getInputStream().read()).isEqualTo(-1);
+            }
+        }
+    }
+
+    @Test
+    public void testManyConnectionsAndDeviceIdIsCached() throws Exception {
+        String udid = "busy-device";
+        usbmuxd.attach(udid);
+        int port = freePort();
+        try (UsbmuxForwarder forwarder = new UsbmuxForwarder(usbmuxd.getAddress())) {
+            forwarder.add(port, udid, devicePort);
+            try (Socket first = connect(port)) {
+                assertThat(echo(first, "first".getBytes())).isEqualTo("first".getBytes());
+            }
+            int listings = usbmuxd.getListings();
+
+            List<Socket> sockets = new ArrayList<>();
+            try {
+                for (int i = 0; i < 20; i++) {
+                    sockets.add(connect(port));
+                }
+                for (int i = 0; i < sockets.size(); i++) {
+                    byte[] bytes = ("connection " + i).getBytes();
+                    assertThat(echo(sockets.get(i), bytes)).isEqualTo(bytes);
+                }
+                assertThat(forwarder.getConnectionCount(port)).isEqualTo(20);
+            } finally {
+                for (Socket socket : sockets) {
+                    socket.close();
+                }
+            }
+            //Other tests may list their own devices at the same time, but these connections didn't need to
+            assertThat(usbmuxd.getListings() - listings).isLessThan(20);
+        }
+    }
+
+    @Test
+    public void testReplugGetsNewDeviceId() throws Exception {
+        String udid = "replugged-device";
+        usbmuxd.attach(udid);
+        int port = freePort();
+        try (UsbmuxForwarder forwarder = new UsbmuxForwarder(usbmuxd.getAddress())) {
+            forwarder.add(port, udid, devicePort);
+            try (Socket socket = connect(port)) {
+                assertThat(echo(socket, "before".getBytes())).isEqualTo("before".getBytes());
+            }
+
+            usbmuxd.attach(udid);
+            try (Socket socket = connect(port)) {
+                assertThat(echo(socket, "after".getBytes())).isEqualTo("after".getBytes());
+            }
+
+            //A device that isn't there just closes the connection
+            usbmuxd.detach(udid);
+            try (Socket socket = connect(port)) {
+                assertThat(socket.getInputStream().read()).isEqualTo(-1);
+            }
+        }
+    }
+
+    @Test(timeOut = 30000)
+    public void testBadReplyOnlyClosesItsConnection() throws Exception {
+        //Answers every request with a plist the forwarder can't parse
+        try (ServerSocket broken = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            CompletableFuture.runAsync(() -> {
+                try (Socket client = broken.accept()) {
+                    DataInputStream in = new DataInputStream(client.getInputStream());
+                    byte[] header = new byte[16];
+                    in.readFully(header);
+                    in.readFully(new byte[ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN).getInt(0) - 16]);
+                    byte[] payload = ("<?xml version=\"1.0\" encoding=\"UTF-8\"?><plist version=\"1.0\"><dict>"
+                            + "<key>Number</key><integer>oops</integer></dict></plist>").getBytes(StandardCharsets.UTF_8);
+                    ByteBuffer reply = ByteBuffer.allocate(16 + payload.length).order(ByteOrder.LITTLE_ENDIAN);
+                    reply.putInt(16 + payload.length).putInt(1).putInt(8).putInt(1).put(payload);
+                    client.getOutputStream().write(reply.array());
+                    client.getInputStream().read();
+                } catch (IOException e) {
+                    //The forwarder closed it
+                }
+            });
+
+            String udid = "broken-device";
+            usbmuxd.attach(udid);
+            int brokenPort = freePort();
+            int port = freePort();
+            try (UsbmuxForwarder forwarder = new UsbmuxForwarder((InetSocketAddress) broken.getLocalSocketAddress())) {
+                forwarder.add(brokenPort, udid, devicePort);
+                try (Socket socket = connect(brokenPort)) {
+                    assertThat(socket.getInputStream().read()).isEqualTo(-1);
+                }
+
+                //The loop is still running
+                assertThat(forwarder.getConnectionCount(brokenPort)).isZero();
+                forwarder.add(port, udid, devicePort);
+                forwarder.remove(brokenPort);
+                assertThat(forwarder.isForwarding(port)).isTrue();
+            }
+        }
+    }
+
+    @Test
+    public void testRemoveClosesPortAndConnections() throws Exception {
+        String udid = "removed-device";
+        usbmuxd.attach(udid);
+        int port = freePort();
+        try (UsbmuxForwarder forwarder = new UsbmuxForwarder(usbmuxd.getAddress())) {
+            forwarder.add(port, udid, devicePort);
+            assertThatThrownBy(() -> forwarder.add(port, udid, devicePort)).isInstanceOf(IOException.class);
+
+            try (Socket socket = connect(port)) {
+                assertThat(echo(socket, "open".getBytes())).isEqualTo("open".getBytes());
+
+                forwarder.remove(port);
+
+                assertThat(forwarder.isForwarding(port)).isFalse();
+                assertThat(socket.getInputStream().read()).isEqualTo(-1);
+                assertThatThrownBy(() -> connect(port).close()).isInstanceOf(ConnectException.class);
+            }
+
+            //The port can be forwarded again
+            forwarder.add(port, udid, devicePort);
+            try (Socket socket = connect(port)) {
+                assertThat(echo(socket, "again".getBytes())).isEqualTo("again".getBytes());
+            }
+        }
+    }
+}
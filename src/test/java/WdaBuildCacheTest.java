@@ -0,0 +1,145 @@
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.FileUtils;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+@Slf4j
+@Test(singleThreaded = true)
+public class WdaBuildCacheTest {
+    private static final List<String> SETTINGS = Collections.singletonList("IPHONEOS_DEPLOYMENT_TARGET=11.2");
+
+    private Path root;
+    private Path project;
+    private Path xcconfig;
+    private final AtomicInteger builds = new AtomicInteger();
+
+    /**
+     * Stands in for xcodebuild, writes an xctestrun file where the real build would
+     */
+    private void stubBuild(Path projectPath, Path derivedDataPath, Path xcconfig, List<String> buildSettings) throws Exception {
+        builds.incrementAndGet();
+        Thread.sleep(100);
+        Path products = Files.createDirectories(derivedDataPath.resolve("Build/Products"));
+        Files.write(products.resolve("WebDriverAgentRunner_iphoneos11.2-arm64.xctestrun"), "<plist/>".getBytes());
+    }
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        root = Files.createTempDirectory("wda-cache-test");
+        project = Files.createDirectories(root.resolve("WebDriverAgent"));
+        Files.createDirectories(project.resolve("WebDriverAgentLib"));
+        Files.write(project.resolve("WebDriverAgentLib/FBWebServer.m"), "@implementation FBWebServer".getBytes());
+        Files.createDirectories(project.resolve("Carthage/Checkouts"));
+        Files.write(project.resolve("Carthage/Checkouts/dependency.m"), "v1".getBytes());
+        xcconfig = Files.write(root.resolve("miw.xcconfig"), "DEVELOPMENT_TEAM = P9MSLF2266".getBytes());
+        builds.set(0);
+    }
+
+    @AfterMethod
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(root.toFile());
+    }
+
+    @Test
+    public void testBuildsOnceForConcurrentStarts() throws Exception {
+        WdaBuildCache cache = new WdaBuildCache(root.resolve("cache"), this::stubBuild);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Path>> starts = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                starts.add(executor.submit(() -> cache.getXctestrun(project, xcconfig, SETTINGS)));
+            }
+            Path first = starts.get(0).get();
+            for (Future<Path> start : starts) {
+                assertThat(start.get()).isEqualTo(first);
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        assertThat(builds.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void testHitAcrossInstances() throws Exception {
+        Path xctestrun = new WdaBuildCache(root.resolve("cache"), this::stubBuild).getXctestrun(project, xcconfig, SETTINGS);
+        //A new instance acts like a new jvm
+        Path cached = new WdaBuildCache(root.resolve("cache"), this::stubBuild).getXctestrun(project, xcconfig, SETTINGS);
+
+        assertThat(cached).isEqualTo(xctestrun).exists();
+        assertThat(builds.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void testKeyChangesWithInputs() throws Exception {
+        WdaBuildCache cache = new WdaBuildCache(root.resolve("cache"), this::stubBuild);
+        String key = cache.key(project, xcconfig, SETTINGS);
+
+        //Derived directories and temp files left by a crash don't change the key
+        Files.write(project.resolve("Carthage/Checkouts/dependency.m"), "v2".getBytes());
+        Files.write(project.resolve("WebDriverAgentLib/project.pbxproj123.tmp"), "half".getBytes());
+        assertThat(cache.key(project, xcconfig, SETTINGS)).isEqualTo(key);
+
+        assertThat(cache.key(project, xcconfig, Collections.singletonList("IPHONEOS_DEPLOYMENT_TARGET=12.0"))).isNotEqualTo(key);
+
+        Files.write(xcconfig, "DEVELOPMENT_TEAM = OTHER".getBytes());
+        String xcconfigKey = cache.key(project, xcconfig, SETTINGS);
+        assertThat(xcconfigKey).isNotEqualTo(key);
+
+        Files.write(project.resolve("WebDriverAgentLib/FBWebServer.m"), "@implementation FBWebServer2".getBytes());
+        assertThat(cache.key(project, xcconfig, SETTINGS)).isNotEqualTo(xcconfigKey);
+
+        cache.getXctestrun(project, xcconfig, SETTINGS);
+        assertThat(builds.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void testKeyIsOnlyHashedAgainWhenTheTreeChanged() throws Exception {
+        WdaBuildCache cache = new WdaBuildCache(root.resolve("cache"), this::stubBuild);
+        Path source = project.resolve("WebDriverAgentLib/FBWebServer.m");
+        String key = cache.key(project, xcconfig, SETTINGS);
+
+        //Same size and modification time, the content isn't read again
+        FileTime modified = Files.getLastModifiedTime(source);
+        Files.write(source, "@implementation FBWebServes".getBytes());
+        Files.setLastModifiedTime(source, modified);
+        assertThat(cache.key(project, xcconfig, SETTINGS)).isEqualTo(key);
+
+        //Once the file looks changed the tree is hashed
+        Files.setLastModifiedTime(source, FileTime.fromMillis(modified.toMillis() + 2000));
+        String changed = cache.key(project, xcconfig, SETTINGS);
+        assertThat(changed).isNotEqualTo(key);
+        assertThat(new WdaBuildCache(root.resolve("cache"), this::stubBuild).key(project, xcconfig, SETTINGS)).isEqualTo(changed);
+    }
+
+    @Test
+    public void testFailedBuildIsRetried() throws Exception {
+        AtomicInteger attempts = new AtomicInteger();
+        WdaBuildCache cache = new WdaBuildCache(root.resolve("cache"), (projectPath, derivedDataPath, config, settings) -> {
+            if (attempts.incrementAndGet() == 1) {
+                throw new IOException("xcodebuild build-for-testing failed with exit code: 65");
+            }
+            stubBuild(projectPath, derivedDataPath, config, settings);
+        });
+
+        assertThatThrownBy(() -> cache.getXctestrun(project, xcconfig, SETTINGS)).hasMessageContaining("exit code: 65");
+        assertThat(cache.getXctestrun(project, xcconfig, SETTINGS)).exists();
+        assertThat(attempts.get()).isEqualTo(2);
+    }
+}
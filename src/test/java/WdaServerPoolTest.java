@@ -0,0 +1,118 @@
+import lombok.extern.slf4j.Slf4j;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+@Slf4j
+public class WdaServerPoolTest {
+
+    /**
+     * Stands in for a wda server without running xcodebuild or iproxy
+     */
+    static class FakeWdaServer extends WdaServer {
+        private final AtomicInteger starts;
+        private volatile boolean alive;
+
+        FakeWdaServer(String uuid, int port, AtomicInteger starts) {
+            super(uuid, port);
+            this.starts = starts;
+        }
+
+        @Override
+        void provision() {
+        }
+
+        @Override
+        public void start() {
+            starts.incrementAndGet();
+            alive = true;
+        }
+
+        @Override
+        public void stop() {
+            alive = false;
+        }
+
+        @Override
+        public boolean isHealthy() {
+            return alive;
+        }
+
+        void kill() {
+            alive = false;
+        }
+    }
+
+    @Test
+    public void testBorrowReusesServer() throws Exception {
+        AtomicInteger starts = new AtomicInteger();
+        try (WdaServerPool pool = new WdaServerPool((uuid, port) -> new FakeWdaServer(uuid, port, starts), 60000, 60000)) {
+            pool.warmUp("device1", 8100).get(5, TimeUnit.SECONDS);
+
+            WdaServer first = pool.borrow("device1", 8100);
+            pool.giveBack(first);
+            WdaServer second = pool.borrow("device1", 8100);
+            pool.giveBack(second);
+
+            assertThat(second).isSameAs(first);
+            assertThat(starts.get()).isEqualTo(1);
+        }
+    }
+
+    @Test
+    public void testDeadServerIsReplacedOnBorrow() throws Exception {
+        AtomicInteger starts = new AtomicInteger();
+        try (WdaServerPool pool = new WdaServerPool((uuid, port) -> new FakeWdaServer(uuid, port, starts), 60000, 60000)) {
+            FakeWdaServer first = (FakeWdaServer) pool.borrow("device1", 8100);
+            pool.giveBack(first);
+            first.kill();
+
+            WdaServer second = pool.borrow("device1", 8100);
+            assertThat(second).isNotSameAs(first);
+            assertThat(second.isHealthy()).isTrue();
+            assertThat(starts.get()).isEqualTo(2);
+        }
+    }
+
+    @Test
+    public void testBorrowTwice() throws Exception {
+        AtomicInteger starts = new AtomicInteger();
+        try (WdaServerPool pool = new WdaServerPool((uuid, port) -> new FakeWdaServer(uuid, port, starts), 60000, 60000)) {
+            pool.borrow("device1", 8100);
+            assertThatThrownBy(() -> pool.borrow("device1", 8100)).isInstanceOf(IllegalStateException.class);
+        }
+    }
+
+    @Test
+    public void testIdleServersAreStopped() throws Exception {
+        AtomicInteger starts = new AtomicInteger();
+        try (WdaServerPool pool = new WdaServerPool((uuid, port) -> new FakeWdaServer(uuid, port, starts), 0, 60000)) {
+            WdaServer server = pool.borrow("device1", 8100);
+            pool.giveBack(server);
+            Thread.sleep(5);
+
+            pool.checkIdle();
+            assertThat(pool.size()).isZero();
+            assertThat(server.isHealthy()).isFalse();
+        }
+    }
+
+    @Test
+    public void testOldServersAreRecycled() throws Exception {
+        AtomicInteger starts = new AtomicInteger();
+        try (WdaServerPool pool = new WdaServerPool((uuid, port) -> new FakeWdaServer(uuid, port, starts), 60000, 0)) {
+            WdaServer first = pool.borrow("device1", 8100);
+            pool.giveBack(first);
+            Thread.sleep(5);
+
+            pool.checkIdle();
+            WdaServer second = pool.borrow("device1", 8100);
+            assertThat(second).isNotSameAs(first);
+            assertThat(first.isHealthy()).isFalse();
+        }
+    }
+}
@@ -9,7 +9,7 @@ public class WdaServerTest {
     //@Test
     public void testInstallKeys() throws IOException {
         WdaServer wdaServer = new WdaServer("foo", 8100);
-        wdaServer.installKeys();
+        wdaServer.provision();
     }
 
     //@Test
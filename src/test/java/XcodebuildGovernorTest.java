@@ -0,0 +1,134 @@
+import lombok.extern.slf4j.Slf4j;
+import org.testng.annotations.Test;
+import org.zeroturnaround.exec.ProcessExecutor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@Slf4j
+public class XcodebuildGovernorTest {
+    private static final long BUILD_TIME = 300;
+    //Every caller blocks, so each gets its own thread
+    private static final Executor NEW_THREAD = runnable -> new Thread(runnable).start();
+
+    /**
+     * Fake xcodebuild, keeps one core busy for the given number of ms
+     */
+    public static void main(String[] args) {
+        long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Long.parseLong(args[0]));
+        long spin = 0;
+        while (System.nanoTime() < end) {
+            spin++;
+        }
+        System.out.println("** TEST BUILD SUCCEEDED ** " + spin);
+    }
+
+    private static int fakeXcodebuild(long millis) throws Exception {
+        String java = ProcessHandle.current().info().command().orElse("java");
+        return new ProcessExecutor()
+                .command(java, "-cp", System.getProperty("java.class.path"), XcodebuildGovernorTest.class.getName(), String.valueOf(millis))
+                .readOutput(true)
+                .execute()
+                .getExitValue();
+    }
+
+    @Test
+    public void testLimitFromLoad() {
+        //Unknown load, only the cores count
+        assertThat(XcodebuildGovernor.limitFor(8, -1, 0, 8)).isEqualTo(4);
+        //Busy host
+        assertThat(XcodebuildGovernor.limitFor(8, 6, 0, 8)).isEqualTo(1);
+        //The load from our own builds doesn't count against them
+        assertThat(XcodebuildGovernor.limitFor(8, 6, 3, 8)).isEqualTo(4);
+        assertThat(XcodebuildGovernor.limitFor(64, -1, 0, 8)).isEqualTo(8);
+        assertThat(XcodebuildGovernor.limitFor(1, 20, 0, 8)).isEqualTo(1);
+    }
+
+    @Test
+    public void testBuildsAreLimited() throws Exception {
+        AtomicInteger active = new AtomicInteger();
+        AtomicInteger maxActive = new AtomicInteger();
+        try (XcodebuildGovernor governor = new XcodebuildGovernor(4, () -> -1, 8)) {
+            assertThat(governor.getLimit()).isEqualTo(2);
+
+            List<CompletableFuture<Integer>> builds = new ArrayList<>();
+            for (int i = 0; i < 6; i++) {
+                String name = "device" + i;
+                builds.add(CompletableFuture.supplyAsync(() -> {
+                    try {
+                        return governor.run(name, () -> {
+                            maxActive.accumulateAndGet(active.incrementAndGet(), Math::max);
+                            try {
+                                return fakeXcodebuild(BUILD_TIME);
+                            } finally {
+                                active.decrementAndGet();
+                            }
+                        });
+                    } catch (Exception e) {
+                        throw new IllegalStateException(e);
+                    }
+                }, NEW_THREAD));
+            }
+            for (CompletableFuture<Integer> build : builds) {
+                assertThat(build.get(60, TimeUnit.SECONDS)).isZero();
+            }
+
+            XcodebuildGovernor.Stats stats = governor.getStats();
+            log.info("Governed builds: {}", stats);
+            assertThat(maxActive.get()).isEqualTo(2);
+            assertThat(stats.getCount()).isEqualTo(6);
+            assertThat(stats.getMaxBuildMillis()).isGreaterThanOrEqualTo(BUILD_TIME);
+            //The last two waited for two rounds of builds
+            assertThat(stats.getMaxWaitMillis()).isGreaterThanOrEqualTo(2 * BUILD_TIME);
+        }
+    }
+
+    @Test
+    public void testLimitChangesWhileQueued() throws Exception {
+        try (XcodebuildGovernor governor = new XcodebuildGovernor(2, () -> -1, 8)) {
+            assertThat(governor.getLimit()).isEqualTo(1);
+
+            CompletableFuture<Void> running = new CompletableFuture<>();
+            CompletableFuture<Void> release = new CompletableFuture<>();
+            CompletableFuture<Void> first = CompletableFuture.runAsync(() -> runQuietly(governor, () -> {
+                running.complete(null);
+                return release.join();
+            }), NEW_THREAD);
+            running.get(5, TimeUnit.SECONDS);
+            CompletableFuture<Void> second = CompletableFuture.runAsync(() -> runQuietly(governor, () -> null), NEW_THREAD);
+
+            PollingService.poll(() -> governor.getQueueLength() == 1, 5000, 10);
+            assertThat(second).isNotDone();
+
+            //Room for another build lets the queued one through while the first still runs
+            governor.setLimit(2);
+            second.get(5, TimeUnit.SECONDS);
+            assertThat(first).isNotDone();
+
+            release.complete(null);
+            first.get(5, TimeUnit.SECONDS);
+
+            //A limit of zero holds new builds back until it is raised again
+            governor.setLimit(0);
+            CompletableFuture<Void> third = CompletableFuture.runAsync(() -> runQuietly(governor, () -> null), NEW_THREAD);
+            PollingService.poll(() -> governor.getQueueLength() == 1, 5000, 10);
+            governor.setLimit(1);
+            third.get(5, TimeUnit.SECONDS);
+        }
+    }
+
+    private static void runQuietly(XcodebuildGovernor governor, Callable<?> task) {
+        try {
+            governor.run("test", task);
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
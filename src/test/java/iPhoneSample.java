@@ -9,32 +9,49 @@ import org.testng.annotations.Test;
 import org.zeroturnaround.exec.ProcessExecutor;
 import org.zeroturnaround.exec.ProcessResult;
 
+import java.io.IOException;
 import java.net.URL;
+import java.nio.file.Path;
 import java.util.Iterator;
 import java.util.List;
-import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.testng.AssertJUnit.fail;
 
 @Slf4j
 public class iPhoneSample {
-    private final int appiumPort = 7500;
-    private final AppiumService appiumService = new AppiumService(appiumPort);
+    //Each appium node drives this many devices
+    private final int devicesPerAppiumNode = 4;
+    //How long a failed test waits for its screenshot and source before giving the device back
+    private final long artifactTimeout = 20 * Constants.ONE_SECOND;
+    private AppiumPool appiumPool;
+    private DeviceScheduler scheduler;
+    //Adds and removes devices in the scheduler as they are plugged in and out
+    private final DeviceWatcher.Listener deviceListener = new DeviceWatcher.Listener() {
+        @Override
+        public void onAttached(IosHelper.IosDevice device) {
+            scheduler.addDevice(device);
+        }
+
+        @Override
+        public void onDetached(IosHelper.IosDevice device) {
+            scheduler.removeDevice(device);
+        }
+    };
+    private final WdaServerPool wdaServerPool = new WdaServerPool();
 
     /**
      * This method will provide data to any test method that declares that its Data Provider is named "phones".
-     * provides unique port numbers for appium, wda local port, wda proxy port that needs to be unique per phone.
+     * provides one invocation per phone, the devices and their unique ports are leased from the scheduler and the
+     * appium node is picked by the pool.
      */
     @DataProvider(name = "phones", parallel = true)
     public Iterator<Object[]> createData() {
         log.info("createData called");
-        final AtomicInteger wdaLocalPort = new AtomicInteger(8100);
-        final AtomicInteger webkitDebugProxyPort = new AtomicInteger(27335);
-
-        List<Object[]> data = IosHelper.getConnectedDevices().stream()
-                .map(d -> new Object[] {d, appiumPort, wdaLocalPort.getAndIncrement(), webkitDebugProxyPort.getAndIncrement()})
+        List<Object[]> data = IntStream.range(0, scheduler.getDeviceCount())
+                .mapToObj(i -> new Object[] {i})
                 .collect(Collectors.toList());
 
         return data.iterator();
@@ -42,32 +59,79 @@ public class iPhoneSample {
 
     @BeforeClass
     public void startAppium() throws Exception {
-        log.debug("Starting test appium port {}", appiumPort);
-        appiumService.startAppium();
+        //A worker of a sharded run only runs the devices it was given
+        List<IosHelper.IosDevice> devices = ShardWorker.isWorker() ? ShardWorker.getDevices() : IosHelper.getConnectedDevices();
+        scheduler = new DeviceScheduler(devices,
+                DurationHistory.load(Constants.STATE_DIR.resolve("durations.properties")));
+        if (!ShardWorker.isWorker()) {
+            DeviceWatcher.getInstance().addListener(deviceListener);
+            DeviceWatcher.getInstance().start(DeviceWatcher.DEFAULT_PERIOD);
+        }
+
+        int nodes = Math.max(1, (scheduler.getDeviceCount() + devicesPerAppiumNode - 1) / devicesPerAppiumNode);
+        //The ports are leased so another run on this host can't take them
+        appiumPool = new AppiumPool(nodes);
+
+        BringUp bringUp = new BringUp("device farm");
+        //Stop the servers earlier runs left behind, only the ones they recorded
+        BringUp.Step<Integer> reap = bringUp.step("reap-orphans", ProcessRegistry.getInstance()::reapOrphans);
+        //Start the wda servers while appium starts, a device that fails to start is tried again when it is borrowed
+        bringUp.step("wda-warm-up", () -> {
+            scheduler.getWdaLocalPorts().forEach(wdaServerPool::warmUp);
+            return null;
+        }, reap);
+        //The os version and name of each device, only read from the devices when they changed or are old
+        bringUp.stepAsync("device-info", () -> DeviceCapabilityCache.getInstance().load(devices));
+        bringUp.step("appium", () -> {
+            log.debug("Starting {} appium nodes", nodes);
+            appiumPool.start();
+            return null;
+        }, reap);
+        bringUp.await(5 * Constants.ONE_MINUTE);
     }
 
     @AfterClass
     public void stopAppium() {
-        appiumService.stopAppium();
+        DeviceWatcher.getInstance().removeListener(deviceListener);
+        DeviceWatcher.getInstance().close();
+
+        //Take the whole farm down at once before the pools check their own servers, detached ones are left running
+        if (!Constants.DETACHED) {
+            ProcessTeardown teardown = new ProcessTeardown();
+            if (appiumPool != null) {
+                teardown.addAll(appiumPool.getProcesses());
+            }
+            teardown.addAll(wdaServerPool.getProcesses());
+            teardown.run(ProcessTeardown.DEFAULT_TIMEOUT);
+        }
+
+        if (appiumPool != null) {
+            appiumPool.close();
+        }
+        wdaServerPool.close();
+        if (scheduler != null) {
+            scheduler.close();
+        }
+        try {
+            PhaseTimers.getInstance().writeReports(Constants.LOG_DIR);
+        } catch (IOException e) {
+            log.error("Error writing the startup phase timings", e);
+        }
     }
 
     @Test(dataProvider = "phones")
-    public void testCustomWebDriver(IosHelper.IosDevice device, Integer appiumPort, Integer wdaLocalPort, Integer webkitDebugProxyPort) throws Exception {
-        log.debug("Killing all services related to {}", device.getUuid());
-        ProcessResult result = new ProcessExecutor()
-                .command("pkill", "-f", device.getUuid())
-                .readOutput(true)
-                .execute();
+    public void testCustomWebDriver(Integer invocation) throws Exception {
+        try (DeviceScheduler.Lease lease = scheduler.acquire("testCustomWebDriver");
+             AppiumPool.Session session = appiumPool.openSession()) {
+            testCustomWebDriver(lease.getDevice(), session.getUrl(), lease.getWdaLocalPort(), lease.getWebkitDebugProxyPort());
+        }
+    }
 
-        WdaServer wdaServer = new WdaServer(device.getUuid(), wdaLocalPort);
+    private void testCustomWebDriver(IosHelper.IosDevice device, String appiumUrl, Integer wdaLocalPort, Integer webkitDebugProxyPort) throws Exception {
+        WdaServer wdaServer = wdaServerPool.borrow(device.getUuid(), wdaLocalPort);
+        WebDriver driver = null;
         try {
-            wdaServer.start();
-
-            DesiredCapabilities capabilities = new DesiredCapabilities();
-            capabilities.setCapability("platformName", "iOS");
-            capabilities.setCapability("deviceName", device.getName());
-            capabilities.setCapability("platformVersion", "11.2.5");
-            capabilities.setCapability("udid", device.getUuid());
+            DesiredCapabilities capabilities = DeviceCapabilityCache.getInstance().capabilities(device);
             capabilities.setCapability("browserName", "Safari");
             capabilities.setCapability("webkitDebugProxyPort", webkitDebugProxyPort);
             capabilities.setCapability("webDriverAgentUrl", wdaServer.getServerUrl());
@@ -77,7 +141,7 @@ public class iPhoneSample {
             capabilities.setCapability("startIWDP", true);
 
             log.debug("{} - Going to open driver", device.getUuid());
-            WebDriver driver = new IOSDriver<>(new URL("http://127.0.0.1:" + appiumPort + "/wd/hub"), capabilities);
+            driver = new IOSDriver<>(new URL(appiumUrl), capabilities);
 
             log.debug("{} - Open google", device.getUuid());
             driver.get("http://www.google.com");
@@ -86,19 +150,38 @@ public class iPhoneSample {
             log.debug("{} - Current URL: {}", device.getUuid(), driver.getCurrentUrl());
 
             assertThat(driver.getCurrentUrl()).startsWith("https://www.google.com/");
-            driver.quit();
 
-        } catch (Exception e) {
+        } catch (Exception | AssertionError e) {
             log.error(device.getUuid() + " - Failed: ", e);
-            fail(device.getUuid() + " - Failed:");
+            //Save what the device shows before it is given back, the other devices don't wait for it
+            Path artifacts = FailureArtifacts.getInstance().captureAndWait(device.getUuid(), wdaServer.getServerUrl(),
+                    artifactTimeout);
+            //Add what wda printed last to the failure
+            fail(device.getUuid() + " - Failed, artifacts in " + artifacts + ":\n"
+                    + String.join("\n", LogCaptureService.getInstance().getTail(device.getUuid())));
         } finally {
-            wdaServer.stop();
+            //After the capture, so the screen and source are still the ones of the failure
+            if (driver != null) {
+                try {
+                    driver.quit();
+                } catch (Exception e) {
+                    log.error("{} - Error quitting the driver", device.getUuid(), e);
+                }
+            }
+            wdaServerPool.giveBack(wdaServer);
         }
         log.debug("{} - Finished test", device.getUuid());
     }
 
     //@Test(dataProvider = "phones")
-    public void testWebDriver(IosHelper.IosDevice device, Integer appiumPort, Integer wdaLocalPort, Integer webkitDebugProxyPort) throws Exception {
+    public void testWebDriver(Integer invocation) throws Exception {
+        try (DeviceScheduler.Lease lease = scheduler.acquire("testWebDriver");
+             AppiumPool.Session session = appiumPool.openSession()) {
+            testWebDriver(lease.getDevice(), session.getUrl(), lease.getWdaLocalPort(), lease.getWebkitDebugProxyPort());
+        }
+    }
+
+    private void testWebDriver(IosHelper.IosDevice device, String appiumUrl, Integer wdaLocalPort, Integer webkitDebugProxyPort) throws Exception {
         log.debug("Killing all services related to {}", device.getUuid());
         ProcessResult result = new ProcessExecutor()
                 .command("pkill", "-f", device.getUuid())
@@ -109,11 +192,7 @@ public class iPhoneSample {
         log.debug("xcconfig: {}", xcconfig);
         try {
 
-            DesiredCapabilities capabilities = new DesiredCapabilities();
-            capabilities.setCapability("platformName", "iOS");
-            capabilities.setCapability("deviceName", device.getName());
-            capabilities.setCapability("platformVersion", "11.2.5");
-            capabilities.setCapability("udid", device.getUuid());
+            DesiredCapabilities capabilities = DeviceCapabilityCache.getInstance().capabilities(device);
             capabilities.setCapability("browserName", "Safari");
             capabilities.setCapability("webkitDebugProxyPort", webkitDebugProxyPort);
 
@@ -144,7 +223,7 @@ public class iPhoneSample {
             capabilities.setCapability("xcodeConfigFile", xcconfig);
 
             log.debug("{} - Going to open driver", device.getUuid());
-            WebDriver driver = new IOSDriver<>(new URL("http://127.0.0.1:" + appiumPort + "/wd/hub"), capabilities);
+            WebDriver driver = new IOSDriver<>(new URL(appiumUrl), capabilities);
 
             log.debug("{} - Open google", device.getUuid());
             driver.get("http://www.google.com");